@@ -0,0 +1,149 @@
+package fire.alarm.sensor;
+
+import java.util.HashMap;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.SensorThresholds;
+
+/*
+ * Change only (deadband) reporting for a sensor.
+ *
+ * Instead of the full reading every cycle, only the fields that moved more than their tolerance away from
+ * the value last sent are reported, as a reading marked "delta". The server fills in the other fields from
+ * the last reading it has of the sensor. A reading where nothing moved is not sent at all.
+ *
+ * The full reading is still sent;
+ * 		1) first, and after every reconnect (reset()), so the server has something to apply the deltas to,
+ * 		2) every keepalive interval, so the server does not consider the sensor silent and corrects any drift,
+ * 		3) whenever a field goes into or out of alarm, however small the change and whatever its tolerance.
+ * A field is in alarm when the server's validators (FireSensorData) find it dangerous against the thresholds
+ * the server applies to the sensor, the defaults of SensorThresholds unless given with setThresholds.
+ */
+public class DeadbandReporter {
+
+	public static final String[] FIELDS = {"temperature", "battery", "smoke", "co2"};
+
+	// default tolerances, in the order of FIELDS.
+	private static final double[] DEFAULT_TOLERANCES = {0.5, 2, 0, 5.0};
+
+	private double[] tolerances;
+	private long keepaliveInterval;		// millis.
+
+	// last value sent of each field, per sensor.
+	private HashMap<String, double[]> lastSent = new HashMap<>();
+	private HashMap<String, Long> lastFullAt = new HashMap<>();
+	private HashMap<String, Integer> lastAlarms = new HashMap<>();		// getAlarms of the last full reading.
+	private HashMap<String, float[]> thresholds = new HashMap<>();		// of the sensors that have their own.
+	private float[] defaultThresholds;		// of the others, null for the defaults of SensorThresholds.
+
+
+	public DeadbandReporter(long keepaliveInterval) {
+		this(DEFAULT_TOLERANCES, keepaliveInterval);
+	}
+
+	public DeadbandReporter(double[] tolerances, long keepaliveInterval) {
+		this.tolerances = tolerances.clone();
+		this.keepaliveInterval = keepaliveInterval;
+	}
+
+	// The thresholds the server applies to the sensor (one per SensorThresholds, NaN for the default), e.g. from its inventory.
+	public synchronized void setThresholds(String sensorId, float[] sensorThresholds) {
+		thresholds.put(sensorId, sensorThresholds.clone());
+	}
+
+	// The same, for every sensor without thresholds of its own.
+	public synchronized void setThresholds(float[] sensorThresholds) {
+		defaultThresholds = sensorThresholds.clone();
+	}
+
+	/*
+	 * Returns what should be sent for this reading: the reading itself, a delta, or null if nothing has to be sent.
+	 * The reading is assumed to be sent, the following ones are compared against it.
+	 */
+	public synchronized HashMap<String, String> report(HashMap<String, String> sensorData, long now) {
+		String sensorId = sensorData.get("sensorId");
+		double[] values = parse(sensorData);
+		double[] sent = lastSent.get(sensorId);
+
+		// anything unreadable is sent as it is, the server decides what to make of it.
+		if (values == null) {
+			lastSent.remove(sensorId);
+			return sensorData;
+		}
+
+		float[] sensorThresholds = thresholds.get(sensorId);
+		int alarms = getAlarms(sensorData, sensorThresholds != null ? sensorThresholds : defaultThresholds);
+		Long fullAt = lastFullAt.get(sensorId);
+		if (sent == null || alarms != lastAlarms.get(sensorId) || now - fullAt >= keepaliveInterval) {
+			lastSent.put(sensorId, values);
+			lastFullAt.put(sensorId, now);
+			lastAlarms.put(sensorId, alarms);
+			return sensorData;
+		}
+
+		HashMap<String, String> delta = null;
+		for (int i = 0; i < FIELDS.length; i++) {
+			if (Math.abs(values[i] - sent[i]) > tolerances[i]) {
+				if (delta == null) {
+					delta = new HashMap<>();
+					delta.put("sensorId", sensorId);
+					delta.put("delta", "true");
+					if (sensorData.containsKey("timestamp")) {
+						delta.put("timestamp", sensorData.get("timestamp"));
+					}
+				}
+				delta.put(FIELDS[i], sensorData.get(FIELDS[i]));
+				sent[i] = values[i];
+			}
+		}
+
+		return delta;
+	}
+
+	// The server lost what was sent so far (e.g. reconnected), the next reading of every sensor goes out in full.
+	public synchronized void reset() {
+		lastSent.clear();
+		lastFullAt.clear();
+		lastAlarms.clear();
+	}
+
+	/*
+	 * The fields of a reading in alarm, a bit per SensorThresholds type, as the server's validators find them
+	 * against the given thresholds (null or NaN for the defaults); 0 if none is, or the reading can't be read.
+	 */
+	public static int getAlarms(HashMap<String, String> sensorData, float[] sensorThresholds) {
+		FireSensorData fsd;
+		try {
+			fsd = new FireSensorData().getFireSensorDataFromHashMap(sensorData);
+		}
+		catch (NumberFormatException | NullPointerException e) {
+			return 0;
+		}
+
+		int alarms = 0;
+		alarms |= fsd.isTemperatureInLevel(threshold(sensorThresholds, SensorThresholds.MAX_TEMPERATURE)) ? 0 : 1 << SensorThresholds.MAX_TEMPERATURE;
+		alarms |= fsd.isBatteryInLevel(threshold(sensorThresholds, SensorThresholds.MIN_BATTERY)) ? 0 : 1 << SensorThresholds.MIN_BATTERY;
+		alarms |= fsd.isSmokeInLevel(threshold(sensorThresholds, SensorThresholds.MAX_SMOKE)) ? 0 : 1 << SensorThresholds.MAX_SMOKE;
+		alarms |= fsd.isCo2InLevel(threshold(sensorThresholds, SensorThresholds.MAX_CO2)) ? 0 : 1 << SensorThresholds.MAX_CO2;
+
+		return alarms;
+	}
+
+	private static float threshold(float[] sensorThresholds, int threshold) {
+		return sensorThresholds == null || Float.isNaN(sensorThresholds[threshold]) ? SensorThresholds.getDefault(threshold) : sensorThresholds[threshold];
+	}
+
+	private static double[] parse(HashMap<String, String> sensorData) {
+		double[] values = new double[FIELDS.length];
+		try {
+			for (int i = 0; i < FIELDS.length; i++) {
+				values[i] = Double.parseDouble(sensorData.get(FIELDS[i]));
+			}
+		}
+		catch (NumberFormatException | NullPointerException e) {
+			return null;
+		}
+
+		return values;
+	}
+}
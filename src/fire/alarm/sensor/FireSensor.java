@@ -1,35 +1,80 @@
 package fire.alarm.sensor;
 
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
 
+import fire.alarm.server.SensorBatchCodec;
+import fire.alarm.server.SensorFrameWriter;
+import fire.alarm.server.SensorGoAway;
+import fire.alarm.server.SensorThresholds;
+import fire.alarm.server.SensorTransport;
+
+/*
+ * Readings are sent to the server as they are taken. While the server is unreachable they are kept
+ * in a SensorReadingBuffer file instead, and sent after reconnecting, alarms first, as compressed batches
+ * marked as backfill so that the server records them without raising old alarms.
+ *
+ * With -Dfire.sensor.deadband=<keepalive millis> only the readings that changed are sent, see DeadbandReporter.
+ * -Dfire.sensor.thresholds=<max temperature>,<min battery>,<max smoke>,<max CO2> are the thresholds the server applies
+ * to the sensor when it has its own (NaN for a default), a reading crossing one is never held back.
+ *
+ * A server shutting down asks the sensor to go away (see SensorGoAway); the sensor closes the connection once
+ * what it sent is out, keeps its readings in the backlog while it waits, and reconnects where it is told to.
+ */
 public class FireSensor {
-	private static ObjectOutputStream sensorDataOutput;
-	private static ObjectInputStream serverDataInput;
+	private static SensorFrameWriter sensorDataOutput;	// declares the sensor to the server once per connection.
+	private static DataInputStream serverDataInput;
 	private static PrintWriter sensorTextOutput;
-	
-	
+
+	private static Socket socket;
+	private static String serverHost;
+	private static int serverPort;
+	private static long reconnectAt = 0;	// millis, not before then after a GOAWAY.
+	private static SensorReadingBuffer backlog;
+	private static SensorTransport transport = SensorTransport.fromSystemProperties();	// as the server's.
+	private static DeadbandReporter deadband;	// null when every reading is sent in full.
+	private static float[] thresholds;			// null for the defaults, see SensorThresholds.
+
+	private static final int BACKLOG_SLOTS = 8192;		// per ring, see SensorReadingBuffer.
+	private static final int BACKFILL_BATCH = 500;
+
+
 	// TODO mimic the procedure of the sensor getting data by using a file.
+	// Usage: FireSensor [server or gateway host] [port]
+	// -Dfire.sensor.buffer=<file> sets where readings are kept while disconnected.
 	public static void main(String[] main) {
-		String server = "localhost";
-		Socket socket = null;
+		serverHost = main.length > 0 ? main[0] : "localhost";
+		serverPort = main.length > 1 ? Integer.parseInt(main[1]) : 9001;
 		try {
-			socket = new Socket(server, 9001);
-			sensorDataOutput = new ObjectOutputStream(socket.getOutputStream());
-			serverDataInput = new ObjectInputStream(socket.getInputStream());
-			sensorTextOutput = new PrintWriter(socket.getOutputStream(), true);
-			
+			backlog = new SensorReadingBuffer(new File(System.getProperty("fire.sensor.buffer", "sensor-buffer.bin")), BACKLOG_SLOTS);
+			String sensorThresholds = System.getProperty("fire.sensor.thresholds");
+			if (sensorThresholds != null) {
+				String[] values = sensorThresholds.split(",");
+				thresholds = new float[SensorThresholds.COUNT];
+				for (int threshold = 0; threshold < thresholds.length; threshold++) {
+					thresholds[threshold] = threshold < values.length ? Float.parseFloat(values[threshold].trim()) : Float.NaN;
+				}
+			}
+			String keepalive = System.getProperty("fire.sensor.deadband");
+			if (keepalive != null) {
+				deadband = new DeadbandReporter(Long.parseLong(keepalive));
+				if (thresholds != null) {
+					deadband.setThresholds(thresholds);
+				}
+			}
+
 			// send to the server
 			// TODO Send to the server according to the specifications.
 			HashMap<String, String> sensorData;
 			int count = 0; // for testing.
 			while (true) {
 				if (count > 3) {break;}	// for testing.
-				
+
 				// add the parameters and their readings to the hashmap first.
 				sensorData = new HashMap<>();
 
@@ -38,14 +83,15 @@ public class FireSensor {
 				sensorData.put("battery", "100");
 				sensorData.put("smoke", "3");
 				sensorData.put("co2", "300.0");
+				sensorData.put("timestamp", Long.toString(System.currentTimeMillis()));
 
 				// let the server know data is ready to be read through its ObjectInputStream;
 				//sensorTextOutput.println("23-41");
 				// send the data to the server
-				sensorDataOutput.writeObject(sensorData);
-			
+				send(sensorData);
+
 				count++;
-				
+
 				Thread.sleep(5000);
 			}
 		}
@@ -53,4 +99,103 @@ public class FireSensor {
 			e.printStackTrace();
 		}
 	}
+
+	/*
+	 * Sends the reading, (re)connecting if needed and sending the backlog first.
+	 * If the server can't be reached the reading goes to the backlog, always in full.
+	 */
+	private static void send(HashMap<String, String> sensorData) {
+		try {
+			if (socket != null && sensorDataOutput.getGoAway() != null) {
+				goAway(sensorDataOutput.getGoAway());
+			}
+			if (socket == null) {
+				if (System.currentTimeMillis() < reconnectAt) {
+					throw new IOException("server going away, reconnecting in " + (reconnectAt - System.currentTimeMillis()) + " ms");
+				}
+				connect(serverHost, serverPort);
+			}
+			sendBacklog();
+
+			HashMap<String, String> report = sensorData;
+			if (deadband != null) {
+				report = deadband.report(sensorData, System.currentTimeMillis());
+				if (report == null) {
+					return;	// nothing moved.
+				}
+			}
+
+			sensorDataOutput.writeReading(report);
+			sensorDataOutput.flush();
+		}
+		catch (IOException e) {
+			System.err.println("Server unreachable, keeping the reading : " + e.getMessage());
+			disconnect();
+			backlog.add(sensorData, isAlarm(sensorData));
+		}
+	}
+
+	private static void connect(String server, int port) throws IOException {
+		socket = transport.connect(server, port);
+		sensorDataOutput = new SensorFrameWriter(transport.openOutput(socket));
+		serverDataInput = transport.openInput(socket);
+		sensorTextOutput = new PrintWriter(socket.getOutputStream(), true);
+		sensorDataOutput.listen(serverDataInput);
+
+		// a new connection may be to a server that never saw this sensor.
+		if (deadband != null) {
+			deadband.reset();
+		}
+	}
+
+	private static void disconnect() {
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		}
+		catch (IOException e) {
+			// already broken.
+		}
+		socket = null;
+	}
+
+	/*
+	 * Closes the sending side first, the server reads everything up to there before it closes the connection;
+	 * the next connection is after the retry, to the server it redirects to if any.
+	 */
+	private static void goAway(SensorGoAway goAway) {
+		try {
+			sensorDataOutput.flush();
+			socket.shutdownOutput();
+		}
+		catch (IOException e) {
+			// already broken.
+		}
+		disconnect();
+
+		serverHost = goAway.getHost(serverHost);
+		serverPort = goAway.getPort(serverPort);
+		reconnectAt = System.currentTimeMillis() + goAway.getRetryMillis();
+		System.out.println("Server going away, reconnecting to " + serverHost + ":" + serverPort + " in " + goAway.getRetryMillis() + " ms");
+	}
+
+	// A batch is only removed from the backlog once it is written, a failure leaves it for the next attempt.
+	private static void sendBacklog() throws IOException {
+		while (!backlog.isEmpty()) {
+			ArrayList<HashMap<String, String>> batch = backlog.peek(BACKFILL_BATCH);
+			for (HashMap<String, String> sensorData: batch) {
+				sensorData.put("backfill", "true");
+			}
+
+			sensorDataOutput.writeBackfill(SensorBatchCodec.compress(batch));
+			sensorDataOutput.flush();
+			backlog.remove(batch.size());
+		}
+	}
+
+	// Readings the server would find dangerous, these are sent before anything else after reconnecting.
+	private static boolean isAlarm(HashMap<String, String> sensorData) {
+		return DeadbandReporter.getAlarms(sensorData, thresholds) != 0;
+	}
 }
@@ -0,0 +1,287 @@
+package fire.alarm.sensor;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import fire.alarm.server.SensorBatchCodec;
+import fire.alarm.server.SensorFrameCodec;
+import fire.alarm.server.SensorFrameException;
+import fire.alarm.server.SensorFrameReader;
+import fire.alarm.server.SensorFrameWriter;
+import fire.alarm.server.SensorGoAway;
+import fire.alarm.server.SensorTransport;
+
+/*
+ * Local gateway between the sensors of a building and the FireAlarmServer.
+ *
+ * Sensors connect to the gateway exactly as they would to the server. The gateway;
+ * 		1) drops readings identical to the previous reading of the same sensor, resending one only every KEEPALIVE_INTERVAL
+ * 		   so the server does not consider the sensor silent (deltas of a DeadbandReporter are always forwarded),
+ * 		2) queues the rest, keeping up to BUFFER_CAPACITY readings (the oldest are dropped first) while the server is unreachable,
+ * 		3) sends them in batch frames over a few long lived connections to the server, each declaring its sensors once,
+ * 		   moving them to another server, or back to the same one later, when the server asks it to go away (SensorGoAway).
+ * The server tracks every sensor of a multiplexed connection on its own.
+ * A sensor always goes through the same connection, so its readings stay in order and
+ * the server never sees it on two connections at once.
+ *
+ * Usage: FireSensorGateway [listen port] [server host] [server port] [uplinks]
+ */
+public class FireSensorGateway {
+
+	private static final int BUFFER_CAPACITY = 100000;
+	private static final int MAX_BATCH = 500;
+	private static final long KEEPALIVE_INTERVAL = 30000;	// millis.
+	private static final long RECONNECT_INTERVAL = 1000;
+	private static final long POLL_INTERVAL = 200;			// millis an idle uplink waits for readings before checking for a GOAWAY.
+
+	// used both to the sensors and to the server.
+	private SensorTransport transport = SensorTransport.fromSystemProperties();
+
+	// where the uplinks connect, changed by a GOAWAY that redirects.
+	private volatile String serverHost;
+	private volatile int serverPort;
+
+	// one buffer per connection to the server.
+	private ArrayList<LinkedBlockingDeque<HashMap<String, String>>> buffers = new ArrayList<>();
+
+	// last reading forwarded for each sensor, and when.
+	private HashMap<String, HashMap<String, String>> lastForwarded = new HashMap<>();
+	private HashMap<String, Long> lastForwardedAt = new HashMap<>();
+
+	// stats.
+	private volatile long deduplicated = 0;
+	private volatile long dropped = 0;
+
+
+	public FireSensorGateway(String serverHost, int serverPort, int uplinks) {
+		this.serverHost = serverHost;
+		this.serverPort = serverPort;
+
+		for (int i = 0; i < uplinks; i++) {
+			buffers.add(new LinkedBlockingDeque<HashMap<String, String>>(BUFFER_CAPACITY / uplinks));
+		}
+	}
+
+	/*
+	 * Queues a reading unless it repeats the last one forwarded for that sensor.
+	 * Only the measured values are compared, not when they were taken; backfilled readings and deltas are always forwarded.
+	 */
+	public void accept(HashMap<String, String> sensorData) {
+		// the number the sensor's own connection declared it by, the uplink declares it again.
+		sensorData.remove("sensor");
+		String sensorId = sensorData.get("sensorId");
+		long now = System.currentTimeMillis();
+
+		if (!sensorData.containsKey("backfill") && !sensorData.containsKey("delta")) {
+			HashMap<String, String> values = new HashMap<>(sensorData);
+			values.remove("timestamp");
+
+			synchronized (lastForwarded) {
+				Long forwardedAt = lastForwardedAt.get(sensorId);
+				if (values.equals(lastForwarded.get(sensorId)) && forwardedAt != null && now - forwardedAt < KEEPALIVE_INTERVAL) {
+					deduplicated++;
+					return;
+				}
+
+				lastForwarded.put(sensorId, values);
+				lastForwardedAt.put(sensorId, now);
+			}
+		}
+		else if (sensorData.containsKey("delta")) {
+			// the server's view of the sensor moved, a full reading equal to the last one is no longer a repeat.
+			synchronized (lastForwarded) {
+				lastForwarded.remove(sensorId);
+			}
+		}
+
+		// while the server is unreachable keep the most recent readings.
+		LinkedBlockingDeque<HashMap<String, String>> buffer = buffers.get(Math.floorMod(sensorId.hashCode(), buffers.size()));
+		while (!buffer.offerLast(sensorData)) {
+			if (buffer.pollFirst() != null) {
+				dropped++;
+			}
+		}
+	}
+
+
+	// Sensor side.
+	public void listenToSensors(int port) throws IOException {
+		ServerSocket portListner = transport.listen(port);
+		try {
+			while (true) {
+				final Socket sensor = portListner.accept();
+				new Thread(new Runnable() {
+					public void run() {
+						readSensor(sensor);
+					}
+				}).start();
+			}
+		}
+		finally {
+			portListner.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void readSensor(Socket sensor) {
+		try {
+			SensorFrameReader sensorDataInput = new SensorFrameReader(transport.openInput(sensor));
+
+			while (true) {
+				Object data;
+				try {
+					data = sensorDataInput.readFrame();
+				}
+				catch (SensorFrameException e) {
+					continue;	// rejected on its own, logged by the reader.
+				}
+
+				if (data instanceof byte[]) {
+					// backlog of a sensor that could not reach the gateway, keeps its backfill marks.
+					for (HashMap<String, String> sensorData: SensorBatchCodec.decompress((byte[]) data)) {
+						try {
+							SensorFrameCodec.validate(sensorData);
+							accept(sensorData);
+						}
+						catch (SensorFrameException e) {
+							System.err.println("Rejected : " + e.getMessage());
+						}
+					}
+				}
+				else if (data instanceof ArrayList) {
+					// from another gateway.
+					for (HashMap<String, String> sensorData: (ArrayList<HashMap<String, String>>) data) {
+						accept(sensorData);
+					}
+				}
+				else if (data instanceof HashMap) {
+					accept((HashMap<String, String>) data);
+				}
+				// the sensors a HELLO declared only matter to the reader.
+			}
+		}
+		catch (IOException e) {
+			// sensor disconnected.
+		}
+		finally {
+			try {
+				sensor.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+	// Server side.
+	public void startUplinks() {
+		for (int i = 0; i < buffers.size(); i++) {
+			final LinkedBlockingDeque<HashMap<String, String>> buffer = buffers.get(i);
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					uplink(buffer);
+				}
+			}, "gateway-uplink-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/*
+	 * Keeps a connection to the server and sends whatever is buffered in batches.
+	 * A batch that could not be sent is put back at the front of the buffer, so it goes first after reconnecting.
+	 * After a GOAWAY nothing more is sent on the connection, it is closed from this side once what was sent is out.
+	 */
+	private void uplink(LinkedBlockingDeque<HashMap<String, String>> buffer) {
+		ArrayList<HashMap<String, String>> batch = new ArrayList<>(MAX_BATCH);
+		while (true) {
+			long retryMillis = RECONNECT_INTERVAL;
+			try (Socket server = transport.connect(serverHost, serverPort)) {
+				SensorFrameWriter sensorDataOutput = new SensorFrameWriter(transport.openOutput(server));
+				sensorDataOutput.listen(transport.openInput(server));
+
+				while (true) {
+					SensorGoAway goAway = sensorDataOutput.getGoAway();
+					if (goAway != null) {
+						server.shutdownOutput();
+						retryMillis = goAway.getRetryMillis();
+						serverHost = goAway.getHost(serverHost);
+						serverPort = goAway.getPort(serverPort);
+						System.out.println("Server going away, reconnecting to " + serverHost + ":" + serverPort + " in " + retryMillis + " ms");
+						break;
+					}
+
+					if (batch.isEmpty()) {
+						HashMap<String, String> first = buffer.pollFirst(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+						if (first == null) {
+							continue;
+						}
+						batch.add(first);
+						buffer.drainTo(batch, MAX_BATCH - 1);
+					}
+
+					sensorDataOutput.writeBatch(batch);
+					sensorDataOutput.flush();
+					batch = new ArrayList<>(MAX_BATCH);
+				}
+			}
+			catch (IOException e) {
+				System.err.println("Server unreachable, buffering : " + e.getMessage());
+				for (int i = batch.size() - 1; i >= 0; i--) {
+					if (!buffer.offerFirst(batch.get(i))) {
+						dropped++;
+					}
+				}
+				batch.clear();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+
+			try {
+				Thread.sleep(retryMillis);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+
+	// Getters for stats.
+	public int getBuffered() {
+		int buffered = 0;
+		for (LinkedBlockingDeque<HashMap<String, String>> buffer: buffers) {
+			buffered += buffer.size();
+		}
+
+		return buffered;
+	}
+
+	public long getDeduplicated() {
+		return deduplicated;
+	}
+
+	public long getDropped() {
+		return dropped;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int listenPort = args.length > 0 ? Integer.parseInt(args[0]) : 9002;
+		String serverHost = args.length > 1 ? args[1] : "localhost";
+		int serverPort = args.length > 2 ? Integer.parseInt(args[2]) : 9001;
+		int uplinks = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+		FireSensorGateway gateway = new FireSensorGateway(serverHost, serverPort, uplinks);
+		gateway.startUplinks();
+
+		System.out.println("Gateway listening to sensors on port " + listenPort);
+		gateway.listenToSensors(listenPort);
+	}
+}
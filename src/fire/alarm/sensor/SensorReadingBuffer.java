@@ -0,0 +1,150 @@
+package fire.alarm.sensor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import fire.alarm.server.SensorBatchCodec;
+
+/*
+ * Readings a sensor could not send, kept in a memory mapped file until the server is reachable again.
+ *
+ * The file holds two fixed size rings, one for alarm level readings and one for routine readings.
+ * When a ring is full its oldest reading is overwritten, so the buffer never grows past the file,
+ * and alarms are never pushed out by routine readings. Readings are read back alarms first.
+ *
+ * The file survives the sensor being restarted; what was written is on disk once the OS flushes the mapping
+ * (or force() is called).
+ */
+public class SensorReadingBuffer {
+
+	public static final int ALARMS = 0;
+	public static final int ROUTINE = 1;
+
+	// Header layout, per ring a head (next to read) and tail (next to write) counter.
+	private static final int MAGIC = 0x53425546;	// "SBUF"
+	private static final int SLOTS_OFFSET = 4;
+	private static final int HEAD_OFFSET = 8;		// + ring * 16
+	private static final int TAIL_OFFSET = 16;		// + ring * 16
+	private static final int HEADER_SIZE = 48;
+
+	// a slot is a short length followed by the encoded reading.
+	private static final int SLOT_SIZE = 256;
+
+	private MappedByteBuffer buffer;
+	private int slots;	// per ring.
+
+
+	@SuppressWarnings("resource")
+	public SensorReadingBuffer(File file, int slots) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2L * slots * SLOT_SIZE);
+		channel.close();	// the mapping stays valid.
+
+		// a buffer of another size can't be read back, start over.
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(SLOTS_OFFSET) != slots) {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(SLOTS_OFFSET, slots);
+			for (int ring = ALARMS; ring <= ROUTINE; ring++) {
+				setHead(ring, 0);
+				setTail(ring, 0);
+			}
+		}
+		this.slots = slots;
+	}
+
+	/*
+	 * Keeps a reading that could not be sent.
+	 * Returns false if the ring was full and the oldest reading had to be overwritten.
+	 */
+	public synchronized boolean add(HashMap<String, String> sensorData, boolean alarm) {
+		byte[] reading = SensorBatchCodec.encodeReading(sensorData).getBytes(StandardCharsets.UTF_8);
+		if (reading.length > SLOT_SIZE - 2) {
+			throw new IllegalArgumentException("Reading does not fit in a buffer slot : " + sensorData);
+		}
+
+		int ring = alarm ? ALARMS : ROUTINE;
+		long tail = getTail(ring);
+		boolean overwritten = tail - getHead(ring) == slots;
+		if (overwritten) {
+			setHead(ring, getHead(ring) + 1);
+		}
+
+		int slot = slotOffset(ring, tail);
+		buffer.putShort(slot, (short) reading.length);
+		for (int i = 0; i < reading.length; i++) {
+			buffer.put(slot + 2 + i, reading[i]);
+		}
+		setTail(ring, tail + 1);
+
+		return !overwritten;
+	}
+
+	// Returns up to max of the oldest readings, alarms first, without removing them.
+	public synchronized ArrayList<HashMap<String, String>> peek(int max) {
+		ArrayList<HashMap<String, String>> readings = new ArrayList<>();
+		for (int ring = ALARMS; ring <= ROUTINE; ring++) {
+			for (long i = getHead(ring); i < getTail(ring) && readings.size() < max; i++) {
+				readings.add(read(ring, i));
+			}
+		}
+
+		return readings;
+	}
+
+	// Removes the readings returned by peek once they are sent.
+	public synchronized void remove(int count) {
+		for (int ring = ALARMS; ring <= ROUTINE && count > 0; ring++) {
+			int removed = (int) Math.min(count, getTail(ring) - getHead(ring));
+			setHead(ring, getHead(ring) + removed);
+			count -= removed;
+		}
+	}
+
+	public synchronized int size() {
+		return (int) (getTail(ALARMS) - getHead(ALARMS) + getTail(ROUTINE) - getHead(ROUTINE));
+	}
+
+	public synchronized boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public synchronized void force() {
+		buffer.force();
+	}
+
+	private HashMap<String, String> read(int ring, long index) {
+		int slot = slotOffset(ring, index);
+		byte[] reading = new byte[buffer.getShort(slot)];
+		for (int i = 0; i < reading.length; i++) {
+			reading[i] = buffer.get(slot + 2 + i);
+		}
+
+		return SensorBatchCodec.decodeReading(new String(reading, StandardCharsets.UTF_8));
+	}
+
+	private int slotOffset(int ring, long index) {
+		return HEADER_SIZE + (ring * slots + (int) (index % slots)) * SLOT_SIZE;
+	}
+
+	private long getHead(int ring) {
+		return buffer.getLong(HEAD_OFFSET + ring * 16);
+	}
+
+	private void setHead(int ring, long head) {
+		buffer.putLong(HEAD_OFFSET + ring * 16, head);
+	}
+
+	private long getTail(int ring) {
+		return buffer.getLong(TAIL_OFFSET + ring * 16);
+	}
+
+	private void setTail(int ring, long tail) {
+		buffer.putLong(TAIL_OFFSET + ring * 16, tail);
+	}
+}
@@ -0,0 +1,166 @@
+package fire.alarm.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Decides which of the errors of the readings the monitors are told of.
+ *
+ * Each sensor (by handle) has an alert per measurement, the types being the thresholds of SensorThresholds,
+ * and one for the sensor having gone silent (SILENT, raised by the server's silence check, cleared by any reading).
+ * An alert is either clear or raised;
+ * 		clear, reading in error		raised, the error is sent as it is,
+ * 		raised, reading in error	ongoing, nothing is sent unless the last message is a window old, then a reminder,
+ * 		raised, reading in level	cleared, the monitors are told the sensor is back in level.
+ * An error of another kind than the one raised (a malfunction turning into a danger, a battery low turning into
+ * a malfunction) is raised again, the kind being the message without its figures.
+ * Raising and clearing are sent on the reading that causes them, only the repeats in between are held back.
+ * With a window of 0 nothing is held back, every reading in error is sent as before.
+ *
+ * The fan-out of the pipeline calls update, the readings of a sensor always on the same thread and in order,
+ * so the state of a sensor is only contended when the sensor shows up on two connections at once.
+ * It lives in pages of PAGE sensors that never move once created, locked one page at a time.
+ */
+public class AlertTracker {
+
+	public static final int SILENT = SensorThresholds.COUNT;
+	public static final String[] NAMES = {"temperature", "battery", "smoke level", "CO2 level", "reporting"};	// by type.
+
+	private static final int TYPES = SensorThresholds.COUNT + 1;
+	private static final int PAGE = 4096;
+
+	private final long windowMillis;
+	private volatile Page[] pages = new Page[0];
+
+	// what came out of update, and what it held back.
+	private final AtomicLong raised = new AtomicLong();
+	private final AtomicLong reminded = new AtomicLong();
+	private final AtomicLong cleared = new AtomicLong();
+	private final AtomicLong suppressed = new AtomicLong();
+
+
+	public AlertTracker(long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+
+	/*
+	 * The message the monitors should get for an alert of a stored (validated) reading, null for none.
+	 * error is what the validator left in the reading for that type, empty when in level.
+	 */
+	public String update(FireSensorData fsd, int type, String error, long now) {
+		int handle = fsd.getHandle();
+		if (handle == SensorIdInterner.NO_HANDLE) {
+			return error.isEmpty() ? null : error;
+		}
+
+		Page page = getPage(handle / PAGE);
+		int alert = (handle % PAGE) * TYPES + type;
+		synchronized (page) {
+			long raisedAt = page.raisedAt[alert];
+			int kind = error.isEmpty() ? 0 : kindOf(error);
+			if (error.isEmpty()) {
+				if (raisedAt == 0) {
+					return null;
+				}
+
+				page.raisedAt[alert] = 0;
+				cleared.incrementAndGet();
+				if (type == SILENT) {
+					return fsd.getSensorId() + " is reporting again after " + (now - raisedAt) / 1000 + " s.";
+				}
+				return fsd.getSensorId() + " : " + NAMES[type] + " is back in level after " + (now - raisedAt) / 1000 + " s.";
+			}
+
+			if (raisedAt == 0 || kind != page.kinds[alert]) {
+				page.raisedAt[alert] = now;
+				page.lastSent[alert] = now;
+				page.readings[alert] = 1;
+				page.kinds[alert] = kind;
+				raised.incrementAndGet();
+				return error;
+			}
+
+			page.readings[alert]++;
+			if (windowMillis == 0) {
+				return error;
+			}
+			if (now - page.lastSent[alert] < windowMillis) {
+				suppressed.incrementAndGet();
+				return null;
+			}
+
+			page.lastSent[alert] = now;
+			reminded.incrementAndGet();
+			return error + " (ongoing for " + (now - raisedAt) / 1000 + " s, " + page.readings[alert] + " readings)";
+		}
+	}
+
+	// A sensor that disconnected starts over, its alerts are raised again if it comes back in error.
+	public void forget(int handle) {
+		if (handle == SensorIdInterner.NO_HANDLE || handle / PAGE >= pages.length) {
+			return;
+		}
+
+		Page page = getPage(handle / PAGE);
+		synchronized (page) {
+			for (int type = 0; type < TYPES; type++) {
+				page.raisedAt[(handle % PAGE) * TYPES + type] = 0;
+			}
+		}
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/*
+	 * Since the start;
+	 * 		alerts   : 12 raised, 3 reminders, 10 cleared, 48,120 repeats held back
+	 */
+	public String getStats() {
+		return String.format("alerts   : %,d raised, %,d reminders, %,d cleared, %,d repeats held back%n",
+				raised.get(), reminded.get(), cleared.get(), suppressed.get());
+	}
+
+	// Hash of the message without digits, points and signs, the same for every reading with the same error.
+	private static int kindOf(String error) {
+		int kind = 1;
+		for (int i = 0; i < error.length(); i++) {
+			char c = error.charAt(i);
+			if ((c < '0' || c > '9') && c != '.' && c != '-') {
+				kind = 31 * kind + c;
+			}
+		}
+
+		return kind;
+	}
+
+	private Page getPage(int index) {
+		Page[] pages = this.pages;
+		if (index < pages.length && pages[index] != null) {
+			return pages[index];
+		}
+
+		synchronized (this) {
+			pages = this.pages;
+			if (index >= pages.length) {
+				Page[] grown = new Page[Math.max(index + 1, pages.length * 2)];
+				System.arraycopy(pages, 0, grown, 0, pages.length);
+				pages = grown;
+			}
+			if (pages[index] == null) {
+				pages[index] = new Page();
+			}
+			this.pages = pages;
+
+			return pages[index];
+		}
+	}
+
+	// The alerts of PAGE sensors, TYPES in a row for each.
+	private static class Page {
+		private final long[] raisedAt = new long[PAGE * TYPES];	// millis, 0 when clear.
+		private final long[] lastSent = new long[PAGE * TYPES];
+		private final int[] readings = new int[PAGE * TYPES];		// in error since raised.
+		private final int[] kinds = new int[PAGE * TYPES];			// of the error raised.
+	}
+}
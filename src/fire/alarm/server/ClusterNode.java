@@ -0,0 +1,387 @@
+package fire.alarm.server;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import fire.monitor.IRmiListener;
+
+/*
+ * One shard of a multi-node FireAlarmServer.
+ *
+ * Sensors may connect to any node. A node keeps only the sensors that the consistent hash ring assigns to it,
+ * and forwards readings of other sensors to their owners. Monitors subscribe to every node (see FireSensorClusterMonitor)
+ * and, since shards never share a sensor, the union of what they receive is the view of the whole cluster.
+ *
+ * Nodes find each other through the RMI registry of their host, bound as "FireAlarmServer-<port>",
+ * therefore several server JVMs on one host can share a single rmiregistry.
+ */
+public class ClusterNode extends UnicastRemoteObject implements IClusterNode {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final String BIND_NAME_PREFIX = "FireAlarmServer-";
+	private static final long MEMBER_CHECK_INTERVAL = 5000;	// millis between checks for dead members.
+
+	private String nodeId;
+	private ConsistentHashRing ring = new ConsistentHashRing();
+	private HashMap<String, IClusterNode> memberStubs = new HashMap<>();
+
+	// the node serves monitors and processes readings exactly as a single server would.
+	private FireAlarmServer localServer;
+	private RmiServerFacade rmiServer;
+	private ISensorStateStore store;
+
+
+	public ClusterNode(String nodeId, FireAlarmServer localServer, RmiServerFacade rmiServer, ISensorStateStore store) throws RemoteException {
+		this.nodeId = nodeId;
+		this.localServer = localServer;
+		this.rmiServer = rmiServer;
+		this.store = store;
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public static String getBindName(String nodeId) {
+		return BIND_NAME_PREFIX + nodeId.substring(nodeId.lastIndexOf(':') + 1);
+	}
+
+
+	// Lifecycle.
+	/*
+	 * Binds this node and joins the cluster through the seed node.
+	 * A null seed starts a new cluster.
+	 */
+	public void start(String seedNodeId) throws RemoteException, NotBoundException {
+		LocateRegistry.getRegistry().rebind(getBindName(nodeId), this);
+		ring.addNode(nodeId);
+
+		if (seedNodeId != null) {
+			for (String member: lookup(seedNodeId).join(nodeId)) {
+				ring.addNode(member);
+			}
+		}
+		System.out.println(nodeId + " joined cluster " + ring.getNodes());
+
+		Thread memberCheck = new Thread(new Runnable() {
+			public void run() {
+				checkMembers();
+			}
+		}, "cluster-member-check");
+		memberCheck.setDaemon(true);
+		memberCheck.start();
+	}
+
+	/*
+	 * Leaves the cluster in an orderly way;
+	 * sensors are handed to their new owners before the others are told, so no state is lost.
+	 */
+	public void leave() {
+		ring.removeNode(nodeId);
+		rebalance();
+
+		for (String member: ring.getNodes()) {
+			try {
+				lookup(member).memberLeft(nodeId);
+			}
+			catch (RemoteException e) {
+				// it will be detected as dead by the others.
+			}
+		}
+
+		try {
+			LocateRegistry.getRegistry().unbind(getBindName(nodeId));
+			UnicastRemoteObject.unexportObject(this, true);
+		}
+		catch (RemoteException | NotBoundException e) {
+			e.printStackTrace();
+		}
+	}
+
+
+	// Routing.
+	public boolean isLocal(String sensorId) {
+		return nodeId.equals(ring.getNode(sensorId));
+	}
+
+	/*
+	 * Processes the reading here if this node owns the sensor, otherwise forwards it to the owner.
+	 * An owner that cannot be reached is dropped from the ring and the reading is routed again.
+	 */
+	public void route(FireSensorData fireSensorData) {
+		while (true) {
+			String owner = ring.getNode(fireSensorData.getSensorId());
+			if (owner == null || owner.equals(nodeId)) {
+				localServer.processSensorData(fireSensorData);
+				return;
+			}
+
+			try {
+				lookup(owner).acceptReading(fireSensorData);
+				return;
+			}
+			catch (RemoteException e) {
+				memberLost(owner);
+			}
+		}
+	}
+
+	public void routeRemoval(String sensorId) {
+		while (true) {
+			String owner = ring.getNode(sensorId);
+			if (owner == null || owner.equals(nodeId)) {
+				localServer.processSensorRemoval(sensorId);
+				return;
+			}
+
+			try {
+				lookup(owner).acceptRemoval(sensorId);
+				return;
+			}
+			catch (RemoteException e) {
+				memberLost(owner);
+			}
+		}
+	}
+
+
+	// Cluster implementations.
+	/*
+	 * (non-Javadoc)
+	 * @see fire.alarm.server.IClusterNode#join(java.lang.String)
+	 */
+	public ArrayList<String> join(String joiningNodeId) {
+		for (String member: ring.getNodes()) {
+			if (member.equals(nodeId) || member.equals(joiningNodeId)) {
+				continue;
+			}
+
+			try {
+				lookup(member).memberJoined(joiningNodeId);
+			}
+			catch (RemoteException e) {
+				memberLost(member);
+			}
+		}
+		memberJoined(joiningNodeId);
+
+		return ring.getNodes();
+	}
+
+	// A new node takes over part of the ring, hand it the sensors that now belong to it.
+	public void memberJoined(String joiningNodeId) {
+		if (ring.addNode(joiningNodeId)) {
+			System.out.println(joiningNodeId + " joined the cluster.");
+			rebalance();
+		}
+	}
+
+	// The leaving node hands off its own sensors, nothing to move here.
+	public void memberLeft(String leavingNodeId) {
+		if (ring.removeNode(leavingNodeId)) {
+			System.out.println(leavingNodeId + " left the cluster.");
+			forget(leavingNodeId);
+		}
+	}
+
+	public ArrayList<String> getMembers() {
+		return ring.getNodes();
+	}
+
+	public void acceptReading(FireSensorData fireSensorData) {
+		localServer.processSensorData(fireSensorData);
+	}
+
+	public void acceptRemoval(String sensorId) {
+		localServer.processSensorRemoval(sensorId);
+	}
+
+	// A reading routed here since the ring changed is newer than the copy handed off, it is kept.
+	public void handOff(ArrayList<FireSensorData> sensors) {
+		for (FireSensorData fireSensorData: sensors) {
+			if (store.putIfNewer(fireSensorData.getSensorId(), fireSensorData)) {
+				rmiServer.notifyMonitors(fireSensorData);
+			}
+		}
+	}
+
+
+	// Monitors are served by the server's facade.
+	public void addMonitor(IRmiListener monitor) {
+		rmiServer.addMonitor(monitor);
+	}
+
+	public void removeMonitor(IRmiListener monitor) {
+		rmiServer.removeMonitor(monitor);
+	}
+
+	public void notifyMonitors(FireSensorData fireSensorData) {
+		rmiServer.notifyMonitors(fireSensorData);
+	}
+
+	public void notifyMonitors(String error) {
+		rmiServer.notifyMonitors(error);
+	}
+
+	public SensorStateSync subscribe(IRmiListener monitor, long lastSeenVersion) {
+		return rmiServer.subscribe(monitor, lastSeenVersion);
+	}
+
+	public SensorStateSync syncState(long lastSeenVersion) {
+		return rmiServer.syncState(lastSeenVersion);
+	}
+
+	// Queries only cover the sensors this node owns, a monitor of the cluster asks every node.
+	public ArrayList<FireSensorData> querySensors(String metric, double low, double high, String zone, int limit) {
+		return rmiServer.querySensors(metric, low, high, zone, limit);
+	}
+
+	public ArrayList<FireSensorData> queryTop(String metric, int k, boolean highest, String zone) {
+		return rmiServer.queryTop(metric, k, highest, zone);
+	}
+
+	public ArrayList<FireSensorData> querySilent(long silentMillis, String zone, int limit) {
+		return rmiServer.querySilent(silentMillis, zone, limit);
+	}
+
+	// Every node lists the whole inventory, only the sensors it owns at the moment are its to report.
+	public ArrayList<String> queryMissing(String zone, int limit) {
+		ArrayList<String> missing = new ArrayList<>();
+		for (String sensorId: rmiServer.queryMissing(zone, Integer.MAX_VALUE)) {
+			if (missing.size() == limit) {
+				break;
+			}
+			if (isLocal(sensorId)) {
+				missing.add(sensorId);
+			}
+		}
+
+		return missing;
+	}
+
+	// Any sensor of the zone may move to another node, every node gets the thresholds.
+	// Applied here first, thresholds this node rejects are not sent on.
+	public int setThresholds(String zone, float[] thresholds) {
+		int updated = acceptThresholds(zone, thresholds);
+		for (String member: ring.getNodes()) {
+			if (member.equals(nodeId)) {
+				continue;
+			}
+
+			try {
+				lookup(member).acceptThresholds(zone, thresholds);
+			}
+			catch (RemoteException e) {
+				memberLost(member);
+			}
+		}
+
+		return updated;
+	}
+
+	public int acceptThresholds(String zone, float[] thresholds) {
+		return rmiServer.setThresholds(zone, thresholds);
+	}
+
+
+	/*
+	 * Moves every sensor this node no longer owns to its new owner.
+	 * With consistent hashing only the sensors in the ring segments taken over by a new node
+	 * (or all sensors of a leaving node) move.
+	 */
+	private void rebalance() {
+		HashMap<String, ArrayList<FireSensorData>> sensorsByOwner = new HashMap<>();
+		for (FireSensorData fireSensorData: store.getSnapshot().getChangedSensors().values()) {
+			String owner = ring.getNode(fireSensorData.getSensorId());
+			if (owner == null || owner.equals(nodeId)) {
+				continue;
+			}
+
+			if (!sensorsByOwner.containsKey(owner)) {
+				sensorsByOwner.put(owner, new ArrayList<FireSensorData>());
+			}
+			sensorsByOwner.get(owner).add(fireSensorData);
+		}
+
+		for (String owner: sensorsByOwner.keySet()) {
+			ArrayList<FireSensorData> sensors = sensorsByOwner.get(owner);
+			try {
+				lookup(owner).handOff(sensors);
+				for (FireSensorData fireSensorData: sensors) {
+					store.remove(fireSensorData.getSensorId());
+				}
+				System.out.println("Moved " + sensors.size() + " sensors to " + owner);
+			}
+			catch (RemoteException e) {
+				// keep them, the next reading of each sensor is routed to the right node anyway.
+				memberLost(owner);
+			}
+		}
+	}
+
+	private void checkMembers() {
+		while (true) {
+			try {
+				Thread.sleep(MEMBER_CHECK_INTERVAL);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+
+			for (String member: ring.getNodes()) {
+				if (member.equals(nodeId)) {
+					continue;
+				}
+
+				try {
+					lookup(member).getMembers();
+				}
+				catch (RemoteException e) {
+					memberLost(member);
+				}
+			}
+		}
+	}
+
+	// A member that cannot be reached; its sensors are picked up by the next nodes on the ring as they report again.
+	private void memberLost(String member) {
+		if (ring.removeNode(member)) {
+			System.err.println(member + " is unreachable, removed from the cluster.");
+		}
+		forget(member);
+	}
+
+	private void forget(String member) {
+		synchronized (memberStubs) {
+			memberStubs.remove(member);
+		}
+	}
+
+	private IClusterNode lookup(String member) throws RemoteException {
+		synchronized (memberStubs) {
+			IClusterNode stub = memberStubs.get(member);
+			if (stub != null) {
+				return stub;
+			}
+		}
+
+		try {
+			Registry registry = LocateRegistry.getRegistry(member.substring(0, member.lastIndexOf(':')));
+			IClusterNode stub = (IClusterNode) registry.lookup(getBindName(member));
+			synchronized (memberStubs) {
+				memberStubs.put(member, stub);
+			}
+
+			return stub;
+		}
+		catch (NotBoundException e) {
+			throw new RemoteException(member + " is not bound.", e);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package fire.alarm.server;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/*
+ * Assigns sensors to server nodes by consistent hashing of the sensor id.
+ *
+ * Each node is placed on the ring at VIRTUAL_NODES points, and a sensor belongs to the first node
+ * found clockwise from the sensor's hash. When a node joins or leaves only the sensors between
+ * its points and the previous points change owner, roughly 1/n of all sensors, instead of nearly
+ * all of them as with (hash % n).
+ */
+public class ConsistentHashRing {
+
+	// more points per node spread the sensors more evenly between the nodes.
+	private static final int VIRTUAL_NODES = 128;
+
+	private TreeMap<Integer, String> ring = new TreeMap<>();
+	private TreeSet<String> nodes = new TreeSet<>();
+
+
+	public synchronized boolean addNode(String nodeId) {
+		if (!nodes.add(nodeId)) {
+			return false;
+		}
+
+		for (int i = 0; i < VIRTUAL_NODES; i++) {
+			ring.put(hash(nodeId + "#" + i), nodeId);
+		}
+
+		return true;
+	}
+
+	public synchronized boolean removeNode(String nodeId) {
+		if (!nodes.remove(nodeId)) {
+			return false;
+		}
+
+		for (int i = 0; i < VIRTUAL_NODES; i++) {
+			ring.remove(hash(nodeId + "#" + i));
+		}
+
+		return true;
+	}
+
+	// Returns the node owning the sensor, or null if there are no nodes.
+	public synchronized String getNode(String sensorId) {
+		if (ring.isEmpty()) {
+			return null;
+		}
+
+		Map.Entry<Integer, String> owner = ring.ceilingEntry(hash(sensorId));
+		if (owner == null) {
+			// wrap around the ring.
+			owner = ring.firstEntry();
+		}
+
+		return owner.getValue();
+	}
+
+	public synchronized boolean contains(String nodeId) {
+		return nodes.contains(nodeId);
+	}
+
+	public synchronized ArrayList<String> getNodes() {
+		return new ArrayList<>(nodes);
+	}
+
+	/*
+	 * 32 bit FNV-1a followed by a final mix, so that ids differing only in the last digit
+	 * ("10-11", "10-12") still land far apart on the ring.
+	 * Must give the same value in every JVM, hence not String.hashCode() based.
+	 */
+	static int hash(String key) {
+		int h = 0x811c9dc5;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x01000193;
+		}
+
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+
+		return h;
+	}
+}
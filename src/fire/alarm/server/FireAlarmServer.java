@@ -1,7 +1,9 @@
 package fire.alarm.server;
 
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -11,16 +13,18 @@ import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.rmi.AlreadyBoundException;
 import java.rmi.Naming;
+import java.rmi.NotBoundException;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
@@ -45,13 +49,40 @@ import fire.monitor.FireSensorMonitor;
  *  		2) inform the monitors about the current state of information gained in 1).
  *  
  *  A socket is used to communicate between the fire sensors.
- *  RMI is used to let the monitors know about the current state of information.
+ *  RMI is used to let the monitors know about the current state of information,
+ *  through the RmiServerFacade.
  *  
  */
-public class FireAlarmServer implements ISocketConnection, IRmiServer, Runnable {
+public class FireAlarmServer implements ISocketConnection, Runnable {
 	
 	// server config.
 	private static final int PORT_TO_LISTEN = 9001;
+	// seconds the sensors of the inventory have to connect before the monitors are told of the missing ones.
+	private static final long DEFAULT_INVENTORY_GRACE = 60;
+	private static final int MISSING_LISTED = 20;		// ids in the report, the rest can be queried.
+	// threads of the validate, store and fan-out stages, and readings each of their rings holds.
+	// the fan-out mostly waits on the monitors, so it gets more threads.
+	// a single core can't run the stages side by side, handing readings over would only cost.
+	private static final String DEFAULT_PIPELINE_THREADS = Runtime.getRuntime().availableProcessors() > 1 ? "1,1,4" : "0";
+	private static final int DEFAULT_PIPELINE_CAPACITY = 1024;
+	// seconds an ongoing alert of a sensor stays quiet before the monitors are reminded of it.
+	private static final long DEFAULT_ALERT_WINDOW = 60;
+	// seconds a sensor may stay quiet before the monitors are told, never under MIN_SILENCE; gateways (30 s) and
+	// sensors in deadband mode resend an unchanged reading more often than that, a quiet sensor isn't a silent one.
+	private static final long DEFAULT_SILENCE = 3600;
+	private static final long MIN_SILENCE = 60;
+	// millis readings may take from being read to reaching the monitors before routine ones are shed, see OverloadController;
+	// 1 routine reading in that many goes into the history at the last level.
+	private static final long DEFAULT_OVERLOAD_LATENCY = 250;
+	private static final int DEFAULT_OVERLOAD_SAMPLING = 10;
+	private static final long OVERLOAD_TICK = 100;
+	// seconds a shutdown may take, and millis sensors are told to wait before reconnecting.
+	private static final long DEFAULT_SHUTDOWN_DEADLINE = 10;
+	private static final int DEFAULT_SHUTDOWN_RETRY = 1000;
+	// millis of the deadline kept for draining what the sensors sent, they get the rest to go away.
+	private static final long SHUTDOWN_DRAIN_RESERVE = 2000;
+	// plain, TLS and/or compressed sockets to the sensors, see SensorTransport.
+	private static SensorTransport transport = SensorTransport.fromSystemProperties();
 	
 	/*
 	 *  Recording data given by each sensor.
@@ -63,92 +94,61 @@ public class FireAlarmServer implements ISocketConnection, IRmiServer, Runnable
 	 *  		4) CO2 level (parts per million)
 	 *  
 	 *  Use a helper class to validate those parameters and check for dangerous values/levels.
+	 *  The store versions every change so that monitors joining late can catch up with deltas.
+	 *  With -Dfire.registry.file=<file> the store is memory mapped to that file and survives restarts.
+	 *  With -Dfire.store.partitions=<n> it is split in n partitions, each written by a store thread of its own.
 	 */
-	private static HashMap<String, FireSensorData> sensorAndData = new HashMap<>();
+	private static ISensorStateStore sensorAndData = SensorStateStore.open(System.getProperty("fire.registry.file"),
+			Integer.getInteger("fire.store.partitions", 1));
+	
+	// every accepted reading, live or backfilled, when -Dfire.history.file=<file> is set.
+	private static SensorHistoryLog history;
+	
+	// what the errors of the readings mean to the monitors, raised, ongoing or cleared, see AlertTracker.
+	private static AlertTracker alerts = new AlertTracker(Long.getLong("fire.alert.window", DEFAULT_ALERT_WINDOW) * 1000);
 	
 	// RMI properties.
-	private static ArrayList<FireSensorMonitor> monitors = new ArrayList<>();
+	// a single facade serves every monitor, exported once in main regardless of the number of sensors.
+	private static RmiServerFacade rmiServer;
 	private static final String rmiRegistrationAddress = "rmi://localhost/server";
 	
+	// every frame read from the sensors when -Dfire.record.file=<file> is set, see IngestReplayer.
+	private static IngestRecorder recorder;
 	
-	// Socket Connection properties.
-	private Socket socket;
-	private BufferedReader sensorTextInput;	// gives sort of a heads-up before sending the actual data via object output stream.
-	private ObjectInputStream sensorDataInput;	// this will delivery a hash map where a key can be 1 of the 4 parameters.
-											// and the value relevent to the parameter is the object assigned to the key.
-											// both the key and the object/value are Strings (Parse as needed).
+	// what is shed when readings come in faster than they can be handled.
+	private static OverloadController overload;
 	
-	// while we are not sending any data to the client,
-	// we need this object initialized before the input stream,
-	// in order for everything to work.
-	// TODO initialize the ObjectOutputStream object before ObjectInpuStream.
-	@SuppressWarnings("unused")
-	private ObjectOutputStream serverDataOutput;
+	// the sensors connected now, to send them away on shutdown.
+	private static final Set<FireAlarmServer> connections = Collections.newSetFromMap(new ConcurrentHashMap<FireAlarmServer, Boolean>());
+	private static ServerSocket portListner;
+	// set once the shutdown started, connections ending then leave their sensors in the store.
+	private static volatile boolean shuttingDown = false;
 	
-	// RMI implementation.
-	/*
-	 * We need to bind each server instance to the RMI registry so that,
-	 * each instance has access to the methods provided by monitors and vice-versa.
-	 * 
-	 * (non-Javadoc)
-	 * @see fire.alarm.server.IRmiService#bindToRegistry()
-	 */
-	public void bindToRegistry(FireAlarmServer serverInstance) {
-		try {
-			// generate stub.
-			IRmiServer stub = (IRmiServer)UnicastRemoteObject.exportObject(serverInstance);
-			
-			// bind
-			Registry registry = LocateRegistry.getRegistry();
-			registry.bind("FireAlarmServer", stub);
-		} catch (RemoteException | AlreadyBoundException e) {
-			e.printStackTrace();
-		}
-	}
+	// every reading goes through its stages once read, see processSensorData.
+	private static IngestPipeline pipeline;
 	
-	/*
-	 * Here listeners are the monitors that observes the sensors' data.
-	 * 
-	 * (non-Javadoc)
-	 * @see fire.alarm.server.IRmiService#addListner(javax.management.monitor.Monitor)
-	 */
-	public void addMonitor(FireSensorMonitor monitor) {
-		monitors.add(monitor);
-	}
+	// Queries over HTTP, null unless -Dfire.query.port=<port> is set.
+	private static SensorQueryHttpServer queryServer;
 	
-	/*
-	 * (non-Javadoc)
-	 * @see fire.alarm.server.IRmiService#removeListner(javax.management.monitor.Monitor)
-	 */
-	public void removeMonitor(FireSensorMonitor monitor) {
-		monitors.remove(monitor);
-	}
+	// Cluster properties.
+	// null when running as a single server.
+	private static ClusterNode cluster;
 	
-	/*
-	 * This method is responsible for notifying all the listening monitors if there's new data.
-	 * 
-	 * (non-Javadoc)
-	 * @see fire.alarm.server.IRmiService#notifyMonitors(fire.alarm.server.FireSensorData)
-	 */
-	public void notifyMonitors(FireSensorData sensorData) {
-		for(FireSensorMonitor monitor: monitors) {
-			// TODO Call the async method on each monitor.
-		}
-	}
+	// Replication properties.
+	// null unless a standby is configured with -Dfire.replication.port=<port>.
+	private static ReplicationPrimary replication;
 	
-	/*
-	 * Same as the above method but conveys error strings instead of data.
-	 * Thereofore, the monitor's error handling method should be called!
-	 * 
-	 * (non-Javadoc)
-	 * @see fire.alarm.server.IRmiService#notifyMonitors(java.lang.String)
-	 */
-	public void notifyMonitors(String error) {
-		for(FireSensorMonitor monitor: monitors) {
-			// TODO Call the async method on each monitor.
-		}
-	}
 	
+	// Socket Connection properties.
+	private Socket socket;
+	private BufferedReader sensorTextInput;	// gives sort of a heads-up before sending the actual data via object output stream.
+	private SensorFrameReader sensorDataInput;	// this will delivery a hash map where a key can be 1 of the 4 parameters.
+											// and the value relevent to the parameter is the object assigned to the key.
+											// both the key and the object/value are Strings (Parse as needed).
+											// frames are validated as they are read, see SensorFrameCodec.
+	
+	// the only data sent to the client is a GOAWAY on shutdown, by the thread shutting down.
+	private volatile DataOutputStream serverDataOutput;
 	
 	// Socket Connection implementations.
 	/*
@@ -158,20 +158,24 @@ public class FireAlarmServer implements ISocketConnection, IRmiServer, Runnable
 	public void initSocketConnection(Socket serverSocket) {
 		this.socket = serverSocket;
 		try {
-			this.serverDataOutput = new ObjectOutputStream(this.socket.getOutputStream());
+			this.serverDataOutput = transport.openOutput(this.socket);
 			this.sensorTextInput =  new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-			this.sensorDataInput = new ObjectInputStream(this.socket.getInputStream());
+			this.sensorDataInput = new SensorFrameReader(transport.openInput(this.socket));
+			startIngest();
+			if (recorder != null) {
+				connection = recorder.connected();
+				sensorDataInput.setRecorder(recorder, connection);
+			}
 		} 
 		catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
-		}	// must be initialized before input stream.
+			connected = false;
+		}
 	}
 	
 	/*
-	 * Reads the ObjectOutputStream of the connected client socket and returns if any data is read.
-	 * TODO Above stream will always be read to check for data, thus EOFException will be thrown most of the time,
-	 * 		(since data will be available every couple of minutes). Therefore we have to ignore the above exception.
+	 * Reads the next frame of the connected client socket and returns if any data is read.
+	 * A frame that fails validation is rejected on its own (null is returned), the connection is kept.
 	 * 
 	 * (non-Javadoc)
 	 * @see fireAlarmServer.ISocketConnection#readSocketData()
@@ -179,14 +183,16 @@ public class FireAlarmServer implements ISocketConnection, IRmiServer, Runnable
 	public Object readSocketData() {
 		Object data = null;
 		try {
-			data = this.sensorDataInput.readObject();
+			data = this.sensorDataInput.readFrame();
 		} 
+		catch (SensorFrameException sfe) {
+			// already logged by the reader, the next frame is read as usual.
+		}
 		catch (IOException  ioe) {
 			// do not do a stack trace since most of the time the exception will be,
 			// EOFException, since data will be available in fixed intervals of times.
-		}
-		catch (ClassNotFoundException cnfe) {
-			cnfe.printStackTrace();
+			// readFrame blocks until data arrives, so the exception means the sensor has gone.
+			connected = false;
 		}
 		
 		return data;
@@ -223,12 +229,115 @@ public class FireAlarmServer implements ISocketConnection, IRmiServer, Runnable
 	 * Main method will listen to the port specified in PORT_TO_LISTEN and will
 	 * assign a new thread to each unique sensor.
 	 * Implementation of the thread aspects are below the main method.
+	 * 
+	 * Cluster mode:-
+	 * 		FireAlarmServer <port> [<seed host:port>]
+	 * runs this server as one node of a sharded cluster, listening to sensors on the given port.
+	 * Without a seed a new cluster is started, otherwise the node joins the seed's cluster.
+	 * Set java.rmi.server.hostname if the other nodes cannot reach this host as "localhost".
+	 * 
+	 * Hot-standby:-
+	 * 		-Dfire.replication.port=<port>			streams the state to a standby connecting on that port.
+	 * 		-Dfire.standby.of=<primary host:port>	runs as the standby of that primary, and starts serving
+	 * 												sensors once the primary is lost (see ReplicationStandby).
+	 * 
+	 * Queries:-
+	 * 		-Dfire.query.port=<port>				answers queries over HTTP on localhost (see SensorQueryHttpServer),
+	 * 												monitors can also query over RMI.
+	 * 
+	 * Inventory:-
+	 * 		-Dfire.inventory.file=<file>			registers the sensors and thresholds of that SensorInventory at startup, and reports
+	 * 		-Dfire.inventory.grace=<seconds>		the ones that have not connected after that long (60 by default).
+	 * 
+	 * Recording:-
+	 * 		-Dfire.record.file=<file>				records the sensor traffic to that capture file,
+	 * 												replay it with IngestReplayer.
+	 * 
+	 * Pipeline:-
+	 * 		-Dfire.pipeline.threads=<v>,<s>,<f>		threads of the validate, store and fan-out stages (1,1,4 by default,
+	 * 												0 on a single core), 0 runs every stage on the connection threads,
+	 * 		-Dfire.pipeline.capacity=<readings>		readings each ring between two threads holds (1024 by default),
+	 * 		-Dfire.pipeline.stats=<seconds>			prints the throughput, load and queues of every stage that often,
+	 * 		-Dfire.store.partitions=<n>				splits the store in n partitions (1 by default, see PartitionedSensorStateStore),
+	 * 												the store stage then gets n threads, one per partition.
+	 * 
+	 * Alerts:-
+	 * 		-Dfire.alert.window=<seconds>			monitors are told when an error of a sensor is raised and cleared, and reminded
+	 * 												of it that often while it goes on (60 by default), 0 sends every error,
+	 * 		-Dfire.sensor.silence=<seconds>			a sensor that hasn't reported for that long is an alert of its own
+	 * 												(3600 by default, 60 at least), checked about 60 times as often.
+	 * 
+	 * Overload:-
+	 * 		-Dfire.overload.latency=<millis>		when readings take longer than that to reach the monitors, or the rings of the
+	 * 												pipeline fill up, routine readings stop being sent to the monitors, then only
+	 * 		-Dfire.overload.sampling=<n>			1 in n of them goes into the history (250 ms and 10 by default, see
+	 * 												OverloadController); 0 ms never sheds. Readings in error, and the
+	 * 												first routine reading after them, are never shed.
+	 * 
+	 * Shutdown:-
+	 * 		on SIGTERM or Ctrl-C the server stops accepting sensors, asks the connected ones to go away (see SensorGoAway),
+	 * 		reads what they sent until they close, drains the pipeline to the monitors, lets the standby catch up,
+	 * 		flushes the history, registry and capture, and unexports its RMI objects (see ServerShutdown);
+	 * 		-Dfire.shutdown.deadline=<seconds>		all of it within that long (10 by default), connections still open
+	 * 												2 s before the deadline are closed,
+	 * 		-Dfire.shutdown.retry=<millis>			sensors reconnect after that long (1000 by default),
+	 * 		-Dfire.shutdown.redirect=<host:port>	to that server, instead of this one once it is back.
 	 */
 	
 	public static void main(String[] args) throws IOException {
-		System.out.println("Fire Alarm Sensor is up and running");
+		rmiServer = new RmiServerFacade(sensorAndData);
+		startPipeline();
+		startSilenceCheck(Math.max(MIN_SILENCE, Long.getLong("fire.sensor.silence", DEFAULT_SILENCE)) * 1000);
 		
-		ServerSocket portListner = new ServerSocket(PORT_TO_LISTEN);
+		String inventoryFile = System.getProperty("fire.inventory.file");
+		if (inventoryFile != null) {
+			loadInventory(inventoryFile, Long.getLong("fire.inventory.grace", DEFAULT_INVENTORY_GRACE));
+		}
+		
+		String historyFile = System.getProperty("fire.history.file");
+		if (historyFile != null) {
+			history = new SensorHistoryLog(historyFile);
+		}
+		
+		String recordFile = System.getProperty("fire.record.file");
+		if (recordFile != null) {
+			startRecording(recordFile);
+		}
+		
+		String standbyOf = System.getProperty("fire.standby.of");
+		if (standbyOf != null) {
+			int separator = standbyOf.lastIndexOf(':');
+			new ReplicationStandby(standbyOf.substring(0, separator), Integer.parseInt(standbyOf.substring(separator + 1)),
+					sensorAndData, rmiServer).waitForFailover();
+		}
+		
+		String replicationPort = System.getProperty("fire.replication.port");
+		if (replicationPort != null) {
+			replication = new ReplicationPrimary(Integer.parseInt(replicationPort), sensorAndData, rmiServer);
+			rmiServer.setReplication(replication);
+			replication.start();
+		}
+		
+		int port = PORT_TO_LISTEN;
+		if (args.length > 0) {
+			port = Integer.parseInt(args[0]);
+			startClusterNode(System.getProperty("java.rmi.server.hostname", "localhost") + ":" + port, args.length > 1 ? args[1] : null);
+		}
+		else {
+			// in a cluster monitors reach this server through its ClusterNode instead.
+			rmiServer.bindToRegistry();
+		}
+		
+		String queryPort = System.getProperty("fire.query.port");
+		if (queryPort != null) {
+			queryServer = new SensorQueryHttpServer(cluster != null ? cluster : rmiServer, Integer.parseInt(queryPort));
+			queryServer.start();
+		}
+		
+		portListner = transport.listen(port);
+		Runtime.getRuntime().addShutdownHook(createShutdown().hook());
+		
+		System.out.println("Fire Alarm Sensor is up and running");
 		
 		try {
 			// accept as requests come.
@@ -238,25 +347,322 @@ public class FireAlarmServer implements ISocketConnection, IRmiServer, Runnable
 				t.start();
 			}
 		}
+		catch (IOException e) {
+			if (!shuttingDown) {
+				throw e;
+			}
+			// the shutdown closed the listener.
+		}
 		finally {
 			// server is shutting down.
 			portListner.close();
 		}
 	}
 	
+	/*
+	 * The steps of an orderly shutdown, in order. Nothing a sensor sent before it closed its connection is lost:
+	 * it goes through the pipeline, to the monitors, the history and the standby, before they are let go.
+	 * The sensors stay in the store (and registry file) as they were, they come back after the restart.
+	 */
+	private static ServerShutdown createShutdown() {
+		ServerShutdown shutdown = new ServerShutdown(Long.getLong("fire.shutdown.deadline", DEFAULT_SHUTDOWN_DEADLINE) * 1000);
+		
+		shutdown.add("stopped accepting sensors", new IShutdownStep() {
+			public boolean run(long deadline) {
+				shuttingDown = true;
+				try {
+					portListner.close();
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+				return true;
+			}
+		});
+		shutdown.add("sensors sent away", new IShutdownStep() {
+			public boolean run(long deadline) {
+				return sendSensorsAway(new SensorGoAway(Integer.getInteger("fire.shutdown.retry", DEFAULT_SHUTDOWN_RETRY),
+						System.getProperty("fire.shutdown.redirect")), Math.max(System.currentTimeMillis(), deadline - SHUTDOWN_DRAIN_RESERVE));
+			}
+		});
+		shutdown.add("pipeline drained", new IShutdownStep() {
+			public boolean run(long deadline) {
+				return pipeline.awaitIdle(deadline);
+			}
+		});
+		shutdown.add("standby caught up", new IShutdownStep() {
+			public boolean run(long deadline) {
+				return replication == null || replication.awaitAcked(deadline);
+			}
+		});
+		shutdown.add("left the cluster", new IShutdownStep() {
+			public boolean run(long deadline) {
+				if (cluster != null) {
+					cluster.leave();
+				}
+				return true;
+			}
+		});
+		shutdown.add("state flushed", new IShutdownStep() {
+			public boolean run(long deadline) {
+				if (history != null) {
+					history.close();
+				}
+				sensorAndData.flush();
+				if (recorder != null) {
+					recorder.close();
+				}
+				return true;
+			}
+		});
+		shutdown.add("queries stopped", new IShutdownStep() {
+			public boolean run(long deadline) {
+				if (queryServer != null) {
+					queryServer.stop();
+				}
+				return true;
+			}
+		});
+		shutdown.add("RMI unexported", new IShutdownStep() {
+			public boolean run(long deadline) {
+				rmiServer.notifyMonitors("Server shutting down, every reading received was delivered.");
+				rmiServer.unbindFromRegistry();
+				try {
+					UnicastRemoteObject.unexportObject(rmiServer, true);
+				}
+				catch (RemoteException e) {
+					// not exported.
+				}
+				return true;
+			}
+		});
+		
+		return shutdown;
+	}
+	
+	/*
+	 * Asks every connected sensor to go away, then waits for them to close their side, reading what they still send.
+	 * Connections still open at the deadline are closed. Returns false if there were any.
+	 */
+	private static boolean sendSensorsAway(SensorGoAway goAway, long deadline) {
+		for (FireAlarmServer connection: connections) {
+			connection.goAway(goAway);
+		}
+		
+		while (!connections.isEmpty() && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(10);
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+		}
+		
+		boolean allGone = connections.isEmpty();
+		for (FireAlarmServer connection: connections) {
+			connection.closeSocket();
+		}
+		// their threads hand what they read to the pipeline before they end.
+		while (!connections.isEmpty() && System.currentTimeMillis() < deadline + SHUTDOWN_DRAIN_RESERVE / 2) {
+			try {
+				Thread.sleep(10);
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+		}
+		
+		return allGone;
+	}
+	
+	/*
+	 * Registers every sensor of the inventory before any sensor connects, and tells the monitors which of them
+	 * have not connected once the grace period (seconds) is over.
+	 */
+	private static void loadInventory(String inventoryFile, final long graceSeconds) throws IOException {
+		long start = System.currentTimeMillis();
+		SensorInventory inventory = SensorInventory.load(new File(inventoryFile), Runtime.getRuntime().availableProcessors());
+		sensorAndData.register(inventory);
+		System.out.println("Inventory of " + inventory.size() + " sensors loaded in " + (System.currentTimeMillis() - start) + " ms");
+		
+		Thread check = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(graceSeconds * 1000);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				
+				reportMissingSensors();
+			}
+		};
+		check.setDaemon(true);
+		check.start();
+	}
+	
+	private static void reportMissingSensors() {
+		try {
+			IRmiServer server = cluster != null ? cluster : rmiServer;
+			ArrayList<String> missing = server.queryMissing(null, Integer.MAX_VALUE);
+			if (missing.isEmpty()) {
+				return;
+			}
+			
+			String report = missing.size() + " sensors of the inventory have never connected : "
+					+ String.join(", ", missing.subList(0, Math.min(missing.size(), MISSING_LISTED)))
+					+ (missing.size() > MISSING_LISTED ? ", ..." : "");
+			System.out.println(report);
+			rmiServer.notifyMonitors(report);
+		}
+		catch (RemoteException e) {
+			// the server is local, it doesn't go over the network.
+			e.printStackTrace();
+		}
+	}
+	
+	/*
+	 * Tells the monitors of the sensors that haven't reported for silenceMillis as an alert of its own, sent once,
+	 * reminded once a window and cleared by the next reading. The store keeps the sensors ordered by when they were
+	 * last seen, so a check only goes through the silent ones; about 60 checks per silence.
+	 */
+	private static void startSilenceCheck(final long silenceMillis) {
+		Thread check = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(Math.max(1000, silenceMillis / 60));
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+					
+					long now = System.currentTimeMillis();
+					for (FireSensorData fsd: sensorAndData.querySilent(silenceMillis, null, Integer.MAX_VALUE)) {
+						fsd.setHandle(sensorAndData.getHandle(fsd.getSensorId()));
+						// removed since.
+						if (fsd.getHandle() != SensorIdInterner.NO_HANDLE) {
+							notifyAlert(fsd, AlertTracker.SILENT, fsd.getSensorId() + " has not reported in " + silenceMillis / 60000 + " minutes.", now);
+						}
+					}
+				}
+			}
+		}, "silent-sensors");
+		check.setDaemon(true);
+		check.start();
+	}
+	
+	// The capture is buffered, the shutdown writes out the rest of it.
+	private static void startRecording(String recordFile) throws IOException {
+		recorder = new IngestRecorder(recordFile);
+	}
+	
+	/*
+	 * Sets up what processing the readings needs without listening to sensors or binding to the registry,
+	 * for the IngestReplayer to feed recorded frames to instances of the server.
+	 */
+	static void startReplay() throws IOException {
+		rmiServer = new RmiServerFacade(sensorAndData);
+		startPipeline();
+		
+		String historyFile = System.getProperty("fire.history.file");
+		if (historyFile != null) {
+			history = new SensorHistoryLog(historyFile);
+		}
+	}
+	
+	static ISensorStateStore getSensorStateStore() {
+		return sensorAndData;
+	}
+	
+	static IngestPipeline getPipeline() {
+		return pipeline;
+	}
+	
+	static AlertTracker getAlerts() {
+		return alerts;
+	}
+	
+	static OverloadController getOverload() {
+		return overload;
+	}
+	
+	private static void startPipeline() {
+		String[] threads = System.getProperty("fire.pipeline.threads", DEFAULT_PIPELINE_THREADS).split(",");
+		int[] stageThreads = new int[3];
+		for (int stage = 0; stage < stageThreads.length; stage++) {
+			// stages left out get as many as the last one given, e.g. 0 for all of them.
+			stageThreads[stage] = Integer.parseInt(threads[Math.min(stage, threads.length - 1)].trim());
+		}
+		// a store thread per partition, the pipeline sends a sensor to the thread of its partition.
+		if (stageThreads[0] > 0 && sensorAndData instanceof PartitionedSensorStateStore) {
+			stageThreads[1] = ((PartitionedSensorStateStore) sensorAndData).getPartitions();
+		}
+		pipeline = new IngestPipeline(new String[] {"validate", "store", "fan-out"},
+				new IIngestStage[] {
+					new IIngestStage() {
+						public Object process(Object event) {
+							return validateReading(event);
+						}
+					},
+					new IIngestStage() {
+						public Object process(Object event) {
+							return storeReading(event);
+						}
+					},
+					new IIngestStage() {
+						public Object process(Object event) {
+							return fanOutReading(event);
+						}
+					}},
+				stageThreads,
+				Integer.getInteger("fire.pipeline.capacity", DEFAULT_PIPELINE_CAPACITY));
+		pipeline.start();
+		
+		overload = new OverloadController(pipeline, Long.getLong("fire.overload.latency", DEFAULT_OVERLOAD_LATENCY),
+				Integer.getInteger("fire.overload.sampling", DEFAULT_OVERLOAD_SAMPLING));
+		overload.start(OVERLOAD_TICK);
+		
+		final Long statsSeconds = Long.getLong("fire.pipeline.stats");
+		if (statsSeconds != null) {
+			Thread stats = new Thread() {
+				public void run() {
+					while (true) {
+						try {
+							Thread.sleep(statsSeconds * 1000);
+						}
+						catch (InterruptedException e) {
+							return;
+						}
+						System.out.print(pipeline.getStats() + alerts.getStats() + overload.getStats());
+					}
+				}
+			};
+			stats.setDaemon(true);
+			stats.start();
+		}
+	}
+	
+	private static void startClusterNode(String nodeId, String seedNodeId) throws IOException {
+		try {
+			cluster = new ClusterNode(nodeId, new FireAlarmServer(), rmiServer, sensorAndData);
+			cluster.start(seedNodeId);
+		}
+		catch (NotBoundException e) {
+			throw new IOException("Seed node " + seedNodeId + " is not bound.", e);
+		}
+		// the sensors are handed over to the other nodes by the shutdown, once the pipeline is drained.
+	}
+	
 	/*
 	 * Add FireSensor's data to the hashmap that we maintain.
 	 * Hashmap is keyed by the sensor's id and the data is paired with that key.
 	 * sensor id is of type String and data is of type FireSensorData.
 	 * 
-	 * TODO Always synchronize and avoid duplicates.
+	 * The store is synchronized and replaces the data if the sensorId already exists.
 	 */
 	public void insertDataToServerHashMap(String sensorId, FireSensorData fireSensorData) {
-		synchronized (sensorAndData) {
-			// HashMap will automatically replace the value if the sensorId already exists.
-			sensorAndData.put(sensorId, fireSensorData);
-		}
-		
+		sensorAndData.put(sensorId, fireSensorData);
 	}
 	
 	
@@ -267,14 +673,149 @@ public class FireAlarmServer implements ISocketConnection, IRmiServer, Runnable
 	 */
 	
 	/* * * Each ServerInstance is simple an unique instance of FireAlarmServer with a couple of data handling parameters. * * */
-	private String sensorId;
+	// a connection carries one sensor, or many when it comes from a FireSensorGateway.
+	// they are kept by the slot the connection's SensorFrameReader gave them, never by their id.
+	private int[] sensorHandles = new int[0];	// handle of each of them in the store, NO_HANDLE for an invalid id.
+	// the last update (millis) of each of them, 0 for none yet; those updated are removed when the connection closes.
+	private long[] sensorsLastUpdate = new long[0];
+	// last live reading of each of them, deltas of sensors in deadband mode are applied to it.
+	private FireSensorData[] sensorsLastReading = new FireSensorData[0];
+	// store version when each of them was declared, a removal of it is stale if anything was stored since (see SensorRemoval).
+	private long[] sensorsDeclaredVersion = new long[0];
 	private FireSensorData fireSensorData;
-	private long lastUpdate;	// using Time() we can get the difference easily.
+	private boolean connected = true;
+	private int connection = -1;	// number of the connection in the capture, when recording.
+	private IngestPipeline.Producer ingest;		// this connection's ring into the pipeline.
 	
 	
 	public FireAlarmServer(Socket sensorSocket) throws RemoteException {
 		this.socket = sensorSocket;
 	}
+	
+	// An instance without a sensor, only used to serve monitors and readings routed from other nodes.
+	public FireAlarmServer() {
+	}
+	
+	/*
+	 * Stores a reading of a sensor owned by this server, notifies the monitors and
+	 * validates it, notifying the monitors of any errors.
+	 * Done by the stages of the pipeline, this only submits it; a connection through its own ring.
+	 */
+	public void processSensorData(FireSensorData fsd) {
+		submit(fsd);
+	}
+	
+	// Removes a sensor owned by this server that disconnected, after whatever it sent before.
+	public void processSensorRemoval(String sensorId) {
+		submit(new SensorRemoval(sensorId));
+	}
+	
+	// The same, unless the sensor was stored from another connection since the removal's connection last had it.
+	public void processSensorRemoval(SensorRemoval removal) {
+		submit(removal);
+	}
+	
+	private void submit(Object event) {
+		if (ingest != null) {
+			ingest.submit(event);
+		}
+		else {
+			pipeline.submit(event);
+		}
+	}
+	
+	
+	/*
+	 * Pipeline stages (see IngestPipeline), each called by the threads of its stage.
+	 * 		validate	:	checks a reading against the thresholds of its sensor, keeping the errors in the reading.
+	 * 		store		:	appends it to the history and stores it, or removes a sensor that disconnected (unless it moved on, see SensorRemoval).
+	 * 		fan-out		:	prints it and notifies the monitors of it and of the alerts its errors raise or clear.
+	 * 
+	 * A backfilled reading is a reading the sensor kept while it could not reach the server.
+	 * It goes into the history, and becomes the sensor's state only if nothing newer arrived meanwhile.
+	 * It is not validated: whatever it shows is over by now, and alarming on it would only confuse the monitors.
+	 */
+	private static Object validateReading(Object event) {
+		if (event instanceof FireSensorData && !((FireSensorData) event).isBackfilled()) {
+			FireSensorData fsd = (FireSensorData) event;
+			
+			// against the sensor's thresholds, all of the same table.
+			// the connection gave the reading its handle, a reading routed from another node has to look it up;
+			// a sensor never seen has no handle yet, nor thresholds of its own.
+			SensorThresholds.Table thresholds = sensorAndData.getThresholds().getTable();
+			int handle = fsd.getHandle() != SensorIdInterner.NO_HANDLE ? fsd.getHandle() : sensorAndData.getHandle(fsd.getSensorId());
+			fsd.isTemperatureInLevel(thresholds.get(SensorThresholds.MAX_TEMPERATURE, handle));
+			fsd.isBatteryInLevel(thresholds.get(SensorThresholds.MIN_BATTERY, handle));
+			fsd.isSmokeInLevel(thresholds.get(SensorThresholds.MAX_SMOKE, handle));
+			fsd.isCo2InLevel(thresholds.get(SensorThresholds.MAX_CO2, handle));
+		}
+		
+		return event;
+	}
+	
+	private static Object storeReading(Object event) {
+		if (event instanceof SensorRemoval) {
+			// its alerts are dropped by the fan-out, unless it has moved to another connection meanwhile.
+			return ((SensorRemoval) event).applyTo(sensorAndData) ? event : null;
+		}
+		
+		FireSensorData fsd = (FireSensorData) event;
+		if (history != null && overload.keepHistory(fsd)) {
+			history.append(fsd);
+		}
+		if (fsd.isBackfilled()) {
+			return sensorAndData.putIfNewer(fsd.getSensorId(), fsd) ? fsd : null;
+		}
+		if (fsd.getHandle() != SensorIdInterner.NO_HANDLE) {
+			sensorAndData.put(fsd.getHandle(), fsd);
+		}
+		else {
+			sensorAndData.put(fsd.getSensorId(), fsd);
+		}
+		
+		return fsd;
+	}
+	
+	private static Object fanOutReading(Object event) {
+		if (event instanceof SensorRemoval) {
+			int handle = sensorAndData.getHandle(((SensorRemoval) event).getSensorId());
+			alerts.forget(handle);
+			overload.forget(handle);
+			return null;
+		}
+		
+		FireSensorData fsd = (FireSensorData) event;
+		// routine readings are the first thing shed when overloaded, readings in error never are.
+		if (!overload.shedFanOut(fsd)) {
+			if (!fsd.isBackfilled()) {
+				fsd.printData();
+			}
+			
+			// we need to notify the listeners about the new data.
+			// it is the data as stored, tagged with the version of the change.
+			rmiServer.notifyMonitors(fsd);
+		}
+		
+		// send the error messages, those the alerts let through.
+		if (!fsd.isBackfilled()) {
+			long now = System.currentTimeMillis();
+			notifyAlert(fsd, SensorThresholds.MAX_TEMPERATURE, fsd.getTempErr(), now);
+			notifyAlert(fsd, SensorThresholds.MIN_BATTERY, fsd.getBatteryErr(), now);
+			notifyAlert(fsd, SensorThresholds.MAX_SMOKE, fsd.getSmokeErr(), now);
+			notifyAlert(fsd, SensorThresholds.MAX_CO2, fsd.getCo2Err(), now);
+			notifyAlert(fsd, AlertTracker.SILENT, "", now);
+		}
+		overload.delivered(fsd, System.nanoTime());
+		
+		return null;
+	}
+	
+	private static void notifyAlert(FireSensorData fsd, int type, String error, long now) {
+		String alert = alerts.update(fsd, type, error, now);
+		if (alert != null) {
+			rmiServer.notifyMonitors(alert);
+		}
+	}
 		
 		
 		
@@ -285,76 +826,218 @@ public class FireAlarmServer implements ISocketConnection, IRmiServer, Runnable
 		 * TODO And determine if the monitors should be notified or not.
 		 * TODO Send alert to the sensors to turn the alarm on.
 		 * 
-		 * Monitors should be notified if the sensor does not report back after an hour.
+		 * A FireSensorGateway sends the readings of many sensors over the same connection, as a list of hashmaps,
+		 * therefore each sensor seen on the connection is tracked separately.
+		 * 
+		 * Monitors should be notified if a sensor does not report back after an hour.
 		 */
-		@SuppressWarnings("unchecked")
 		public void run() {
+			connections.add(this);
 			try {
-				bindToRegistry(this);
 				initSocketConnection(socket);
 				
-				HashMap<String, String> sensorDataAsHashMap;
-				FireSensorData fsd;
-				String sensorId = "Unassigned Sensor Id";
 				FireDataSender sender = new FireDataSender();
-				lastUpdate = System.currentTimeMillis();
 				
-				while (true) {
+				while (connected) {
 					// TODO Always get the text input and data input of the sensor into a,
 					// 		local variable to avoid null pointers.
 					
-					// Monitors should be notified if the sensor's last update exceeds one hour.
-					// 1 hour = 3.6e+6 millis. 
-					if ((System.currentTimeMillis() - lastUpdate) > 	600) {
-						notifyMonitors(sensorId + " has not reported in 1 hour.");
-						
-						// Don't remove the following code as it will result in a non-stop loop until data arrives.
-						// Sending the warning once and then waiting another 1 hour will suffice.
-						lastUpdate = System.currentTimeMillis();
-					}
-					
-					if ( (sensorDataAsHashMap = (HashMap<String, String>) readSocketData()) != null) {
-						fsd = new FireSensorData().getFireSensorDataFromHashMap(sensorDataAsHashMap);
-						sensorId = fsd.getSensorId();
-						fsd.printData();
-							
-						insertDataToServerHashMap(sensorId, fsd);
-							
-						// we need to notify the listeners about the new data.
-						// always get the data from the hashmap instead of transmitting the local variable.
-						notifyMonitors(sensorAndData.get(sensorId));
-						
-						// check for errors and send error messages.
-						if (!fsd.isTemperatureInLevel()) {
-							notifyMonitors(fsd.getTempErr());
-						}
-						if (!fsd.isBatteryInLevel()) {
-							notifyMonitors(fsd.getBatteryErr());
-						}
-						if (!fsd.isSmokeInLevel()) {
-							notifyMonitors(fsd.getSmokeErr());
-						}
-						if (!fsd.isCo2InLevel()) {
-							notifyMonitors(fsd.getCo2Err());
-						}
-						
-						// coming upto this points indicates that the sensor sent data,
-						// hence we can set the last update to the current time.
-						lastUpdate = System.currentTimeMillis();
-					}
-					
-					
+					acceptFrame(readSocketData());
 				}
 			}	
 			finally {
-				// sensor disconnecting from the server.
-				// therefore remove the sensor and its data.
-				if (sensorId != null) {
-					sensorAndData.remove(sensorId);
-				}
+				disconnected();
 				
 				// close the connection.
 				closeSocket();
+				connections.remove(this);
+			}
+		}
+		
+		// Sent by the shutdown, the sensor closes the connection once it stopped sending; it's read until then.
+		void goAway(SensorGoAway goAway) {
+			DataOutputStream out = serverDataOutput;
+			if (out == null) {
+				return;		// not set up yet, closed at the deadline.
+			}
+			
+			try {
+				synchronized (out) {
+					SensorFrameCodec.writeGoAway(out, goAway);
+					out.flush();
+				}
+			}
+			catch (IOException e) {
+				// gone already.
+			}
+		}
+		
+		// A ring of this connection's own into the pipeline. The IngestReplayer calls this for each recorded connection.
+		void startIngest() {
+			ingest = pipeline.connect();
+			if (sensorDataInput == null) {
+				sensorDataInput = new SensorFrameReader();
+			}
+		}
+		
+		// The IngestReplayer decodes the recorded frames of a connection with its reader.
+		SensorFrameReader getFrameReader() {
+			return sensorDataInput;
+		}
+		
+		/*
+		 * Takes in whatever a frame carried, null for nothing (a rejected frame).
+		 * The IngestReplayer calls this directly with recorded frames.
+		 */
+		@SuppressWarnings("unchecked")
+		void acceptFrame(Object data) {
+			if (data instanceof HashMap) {
+				acceptSensorData((HashMap<String, String>) data);
+			}
+			else if (data instanceof ArrayList) {
+				// multiplexed readings of a gateway.
+				for (HashMap<String, String> sensorDataAsHashMap: (ArrayList<HashMap<String, String>>) data) {
+					acceptSensorData(sensorDataAsHashMap);
+				}
+			}
+			else if (data instanceof byte[]) {
+				// compressed backlog of a sensor that was disconnected.
+				acceptBackfill((byte[]) data);
+			}
+			else if (data instanceof String[]) {
+				// sensors the connection is about to send readings of.
+				addSensors();
+			}
+		}
+		
+		/*
+		 * Gives the sensors the reader has a slot for and this connection doesn't yet their handle, interning each once.
+		 * Their records are reserved right away, so that their readings go into the store by handle.
+		 * In a cluster that's done for sensors of other nodes as well, the owner of a sensor changes as members come and go.
+		 */
+		private void addSensors() {
+			int from = sensorHandles.length;
+			int to = sensorDataInput.getSensorCount();
+			if (to <= from) {
+				return;
+			}
+			
+			sensorHandles = Arrays.copyOf(sensorHandles, to);
+			sensorsLastUpdate = Arrays.copyOf(sensorsLastUpdate, to);
+			sensorsLastReading = Arrays.copyOf(sensorsLastReading, to);
+			sensorsDeclaredVersion = Arrays.copyOf(sensorsDeclaredVersion, to);
+			long version = sensorAndData.getVersion();
+			for (int slot = from; slot < to; slot++) {
+				String sensorId = sensorDataInput.getSensorId(slot);
+				sensorHandles[slot] = sensorId != null ? sensorAndData.register(sensorId) : SensorIdInterner.NO_HANDLE;
+				sensorsDeclaredVersion[slot] = version;
+			}
+		}
+		
+		// sensors disconnecting from the server.
+		// therefore remove the sensors and their data.
+		// not on shutdown, the sensors are only away until the server is back.
+		void disconnected() {
+			for (int slot = 0; slot < sensorsLastUpdate.length && !shuttingDown; slot++) {
+				if (sensorsLastUpdate[slot] != 0) {
+					removeSensor(slot);
+				}
+			}
+			if (ingest != null) {
+				ingest.close();
+			}
+			
+			if (recorder != null && connection >= 0) {
+				recorder.disconnected(connection);
+			}
+		}
+		
+		private void acceptSensorData(HashMap<String, String> sensorDataAsHashMap) {
+			// a sensor that sent its id instead of declaring itself gets its slot now.
+			int slot = sensorDataInput.getSlot(sensorDataAsHashMap);
+			if (slot < 0) {
+				System.err.println("Rejected : " + sensorDataAsHashMap.get("sensorId") + " : too many sensors on one connection.");
+				return;
+			}
+			addSensors();
+			
+			FireSensorData fsd;
+			if (FireSensorData.isDelta(sensorDataAsHashMap)) {
+				fsd = applyDelta(sensorDataAsHashMap, slot);
+				if (fsd == null) {
+					return;
+				}
+			}
+			else {
+				fsd = new FireSensorData().getFireSensorDataFromHashMap(sensorDataAsHashMap);
+			}
+			
+			if (!fsd.isBackfilled()) {
+				sensorsLastReading[slot] = fsd;
+			}
+			
+			// in a cluster the sensor may belong to another node.
+			if (cluster != null && !cluster.isLocal(fsd.getSensorId())) {
+				cluster.route(fsd);
+			}
+			else {
+				fsd.setHandle(sensorHandles[slot]);
+				fsd.setReceivedNanos(System.nanoTime());
+				processSensorData(fsd);
+			}
+			
+			// coming upto this points indicates that the sensor sent data,
+			// hence we can set the last update to the current time.
+			sensorsLastUpdate[slot] = System.currentTimeMillis();
+		}
+		
+		/*
+		 * Rebuilds the full reading of a sensor in deadband mode from the fields it sent.
+		 * Without a previous reading on this connection (e.g. a gateway reconnected) the stored state is used when
+		 * this server owns it, otherwise the delta is dropped and the sensor is picked up again at its next full reading.
+		 */
+		private FireSensorData applyDelta(HashMap<String, String> delta, int slot) {
+			String sensorId = delta.get("sensorId");
+			FireSensorData previous = sensorsLastReading[slot];
+			if (previous == null && cluster == null) {
+				previous = sensorAndData.get(sensorId);
+			}
+			
+			if (previous == null) {
+				System.err.println(sensorId + " : delta without a previous reading, waiting for a full reading.");
+				sensorsLastUpdate[slot] = System.currentTimeMillis();
+				return null;
+			}
+			
+			return new FireSensorData().getFireSensorDataFromDelta(previous, delta);
+		}
+		
+		private void acceptBackfill(byte[] batch) {
+			try {
+				for (HashMap<String, String> sensorDataAsHashMap: SensorBatchCodec.decompress(batch)) {
+					// readings of a batch only have their declared sensor looked up, and are validated, now; as a frame's are.
+					try {
+						sensorDataInput.resolveAndValidate(sensorDataAsHashMap);
+					}
+					catch (SensorFrameException e) {
+						sensorDataInput.rejected(e);
+						continue;
+					}
+					acceptSensorData(sensorDataAsHashMap);
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		private void removeSensor(int slot) {
+			String sensorId = sensorDataInput.getSensorId(slot);
+			if (cluster != null && !cluster.isLocal(sensorId)) {
+				cluster.routeRemoval(sensorId);
+			}
+			else {
+				processSensorRemoval(new SensorRemoval(sensorId, sensorsLastReading[slot], sensorsDeclaredVersion[slot]));
 			}
 		}
 	
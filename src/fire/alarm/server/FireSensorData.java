@@ -1,6 +1,7 @@
 package fire.alarm.server;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 
@@ -15,7 +16,9 @@ import java.util.HashMap;
  *  The above parameters should be stored, and validated for their correctness and checked for,
  *  dangerous levels/values and notify the server right away as well.
  */
-public class FireSensorData {
+public class FireSensorData implements Serializable {
+	
+	private static final long serialVersionUID = 1L;
 	
 	private String sensorId;
 	private double temperature;
@@ -23,11 +26,26 @@ public class FireSensorData {
 	private int smokeLevel;
 	private double co2Level;
 	
+	// version of the server's state at which this data was stored (see SensorStateStore).
+	// monitors use it to skip data they have already seen.
+	private long version = SensorStateSync.NO_VERSION;
+	
+	// when the reading was taken (millis), sent by the sensor. Readings without one are taken as just now.
+	private long timestamp = System.currentTimeMillis();
+	// a reading the sensor kept while the server was unreachable, recorded but not alarmed on.
+	private boolean backfilled = false;
+	
+	// handle of the sensor in the store that holds this data (see SensorStateStore.put), its thresholds are looked up by it.
+	private transient int handle = SensorIdInterner.NO_HANDLE;
+	// when this server read it off a connection (System.nanoTime()), 0 otherwise; its latency is taken from there.
+	private transient long receivedNanos = 0;
+	
 	// for error handling.
-	private String tempErr = "";
-	private String batteryErr = "";
-	private String smokeErr = "";
-	private String co2Err = "";
+	// errors are recomputed by the validators, so they are not sent to the monitors.
+	private transient String tempErr = "";
+	private transient String batteryErr = "";
+	private transient String smokeErr = "";
+	private transient String co2Err = "";
 	
 	
 	// Getters.
@@ -51,6 +69,31 @@ public class FireSensorData {
 		return co2Level;
 	}
 	
+	public long getVersion() {
+		return version;
+	}
+	
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	public boolean isBackfilled() {
+		return backfilled;
+	}
+	
+	public int getHandle() {
+		return handle;
+	}
+	
+	public long getReceivedNanos() {
+		return receivedNanos;
+	}
+	
+	// Whether the validators found anything dangerous in it, what the monitors must always hear of.
+	public boolean hasErrors() {
+		return isError(tempErr) || isError(batteryErr) || isError(smokeErr) || isError(co2Err);
+	}
+	
 	public String getTempErr() {
 		return tempErr;
 	}
@@ -93,6 +136,26 @@ public class FireSensorData {
 		this.co2Level = co2Level;
 	}
 	
+	public void setVersion(long version) {
+		this.version = version;
+	}
+	
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+	
+	public void setBackfilled(boolean backfilled) {
+		this.backfilled = backfilled;
+	}
+	
+	public void setHandle(int handle) {
+		this.handle = handle;
+	}
+	
+	public void setReceivedNanos(long receivedNanos) {
+		this.receivedNanos = receivedNanos;
+	}
+	
 	public void setTempErr(String tempErr) {
 		this.tempErr = tempErr;
 	}
@@ -118,9 +181,37 @@ public class FireSensorData {
 		setSmokeLevel(Integer.parseInt(stringData.get("smoke")));
 		setCo2Level(Double.parseDouble(stringData.get("co2")));
 		
+		// optional, older sensors do not send these.
+		if (stringData.containsKey("timestamp")) {
+			setTimestamp(Long.parseLong(stringData.get("timestamp")));
+		}
+		setBackfilled(Boolean.parseBoolean(stringData.get("backfill")));
+		
 		return this;
 	}
 	
+	/*
+	 * A sensor in deadband mode only sends the fields that changed since its previous reading, marked as "delta".
+	 * The rest is taken from the previous reading, and only the fields sent are parsed.
+	 */
+	public FireSensorData getFireSensorDataFromDelta(FireSensorData previous, HashMap<String, String> delta) {
+		setSensorId(previous.getSensorId());
+		setTemperature(delta.containsKey("temperature") ? Double.parseDouble(delta.get("temperature")) : previous.getTemperature());
+		setBatteryPercentage(delta.containsKey("battery") ? Integer.parseInt(delta.get("battery")) : previous.getBatteryPercentage());
+		setSmokeLevel(delta.containsKey("smoke") ? Integer.parseInt(delta.get("smoke")) : previous.getSmokeLevel());
+		setCo2Level(delta.containsKey("co2") ? Double.parseDouble(delta.get("co2")) : previous.getCo2Level());
+		
+		if (delta.containsKey("timestamp")) {
+			setTimestamp(Long.parseLong(delta.get("timestamp")));
+		}
+		
+		return this;
+	}
+	
+	public static boolean isDelta(HashMap<String, String> stringData) {
+		return Boolean.parseBoolean(stringData.get("delta"));
+	}
+	
 	
 	/* 
 	 * Validators.
@@ -131,11 +222,18 @@ public class FireSensorData {
 	 * no error means the variable getting an empty string.
 	 * We do so to allow the server to check if there's an error(since validation methods returns a boolean), 
 	 * and if there's an error, server can get the relevant error and send to the monitors.
+	 * 
+	 * The dangerous levels are the sensor's own when the server has them (see SensorThresholds),
+	 * the methods without arguments use the defaults.
 	 */
 	
 	// Minimum possible temperature is -273.15 degrees celcius.
-	// Anything above 50 degrees is considered dangerous.
+	// Anything above 50 degrees (unless the sensor has its own maximum) is considered dangerous.
 	public boolean isTemperatureInLevel() {
+		return isTemperatureInLevel(SensorThresholds.getDefault(SensorThresholds.MAX_TEMPERATURE));
+	}
+	
+	public boolean isTemperatureInLevel(double maxTemperature) {
 		boolean validity = true;
 		
 		// always set the error to none at the beginning.
@@ -145,7 +243,7 @@ public class FireSensorData {
 			validity = false;
 			setTempErr(this.sensorId + " : Sensor is malfunctioning; A temperature of " + this.temperature + " celcius is below absolute zero.");
 		}
-		else if (this.temperature > 50.0) {
+		else if (this.temperature > maxTemperature) {
 			validity = false;
 			setTempErr(this.sensorId + " : Temperature is reaching a dangerous level at " + this.temperature + " celcius.");
 		}
@@ -154,8 +252,12 @@ public class FireSensorData {
 	}
 	
 	// Battery level over 100% indicates a malfunction in the battery.
-	// Anything from 30% to 0% indicates low battery level.
+	// Anything from 30% (unless the sensor has its own minimum) to 0% indicates low battery level.
 	public boolean isBatteryInLevel() {
+		return isBatteryInLevel(SensorThresholds.getDefault(SensorThresholds.MIN_BATTERY));
+	}
+	
+	public boolean isBatteryInLevel(double minBattery) {
 		boolean validity = true;
 		
 		// always set the error to none at the beginning.
@@ -165,7 +267,7 @@ public class FireSensorData {
 			setBatteryErr(this.sensorId + " : Battery malfunction.");
 		}
 		
-		else if (this.batteryPercentage <= 30) {
+		else if (this.batteryPercentage <= minBattery) {
 			validity = false;
 			setBatteryErr(this.sensorId + " : Battery low!");
 		}
@@ -173,9 +275,13 @@ public class FireSensorData {
 		return validity;
 	}
 	
-	// Smoke level above 7 is dangerous.
+	// Smoke level above 7 (unless the sensor has its own maximum) is dangerous.
 	// From 1 to 6 is considered okay.
 	public boolean isSmokeInLevel() {
+		return isSmokeInLevel(SensorThresholds.getDefault(SensorThresholds.MAX_SMOKE));
+	}
+	
+	public boolean isSmokeInLevel(double maxSmoke) {
 		boolean validity = true;
 		
 		// always set the error to none at the beginning.
@@ -186,7 +292,7 @@ public class FireSensorData {
 			validity = false;
 		}
 		
-		else if (this.smokeLevel > 7) {
+		else if (this.smokeLevel > maxSmoke) {
 			setSmokeErr(this.sensorId + " : Smoke level is at a dangerous level of " + this.smokeLevel);
 			validity = false;
 		}
@@ -196,13 +302,18 @@ public class FireSensorData {
 	
 	// A CO2 level of above or belowe 300.0 is considered dangerous.
 	// At 300.0, CO2 level is considered okay.
+	// A sensor with its own maximum (not NaN) is only in danger above it.
 	public boolean isCo2InLevel() {
+		return isCo2InLevel(SensorThresholds.getDefault(SensorThresholds.MAX_CO2));
+	}
+	
+	public boolean isCo2InLevel(double maxCo2) {
 		boolean validity = true; 
 		
 		// always set the error to none at the beginning.
 		setCo2Err("");
 		
-		if (this.co2Level != 300.0) {
+		if (Double.isNaN(maxCo2) ? this.co2Level != 300.0 : this.co2Level > maxCo2) {
 			setCo2Err(this.sensorId + " : CO2 level is at a dangerous level of " + this.co2Level);
 			validity = false;
 		}
@@ -211,6 +322,18 @@ public class FireSensorData {
 	}
 	
 	
+	// null for data that came over the network without being validated again.
+	private static boolean isError(String error) {
+		return error != null && !error.isEmpty();
+	}
+	
+	// A handle is only good in the store that gave it, data from another node (or a standby's stream) has none here.
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		handle = SensorIdInterner.NO_HANDLE;
+	}
+	
+	
 	// For testing whether data is passed from the client to the server properly.
 	// TODO Remove this method after all implementations are done.
 	public void printData() {
@@ -0,0 +1,28 @@
+package fire.alarm.server;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+
+/*
+ * Methods a server node offers to the other nodes of the cluster, on top of what it offers monitors.
+ * A node is identified by "host:port" where port is the port its sensors connect to.
+ */
+public interface IClusterNode extends IRmiServer {
+
+	// Membership.
+	// join is called on any existing node, which tells the others and returns all members including the new one.
+	public ArrayList<String> join(String nodeId) throws RemoteException;
+	public void memberJoined(String nodeId) throws RemoteException;
+	public void memberLeft(String nodeId) throws RemoteException;
+	public ArrayList<String> getMembers() throws RemoteException;
+
+	// Sensor data routed to the node that owns the sensor.
+	public void acceptReading(FireSensorData fireSensorData) throws RemoteException;
+	public void acceptRemoval(String sensorId) throws RemoteException;
+
+	// State of sensors whose owner changed after a node joined or left.
+	public void handOff(ArrayList<FireSensorData> sensors) throws RemoteException;
+	
+	// Thresholds set through another node, every node validates the readings of the sensors it owns.
+	public int acceptThresholds(String zone, float[] thresholds) throws RemoteException;
+}
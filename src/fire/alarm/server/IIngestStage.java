@@ -0,0 +1,11 @@
+package fire.alarm.server;
+
+/*
+ * One step of the IngestPipeline, run by each thread of its stage.
+ * An event is a FireSensorData (a reading) or a String (the id of a sensor that disconnected).
+ */
+public interface IIngestStage {
+
+	// Returns what the next stage gets, null for nothing. Events of a sensor come in the order they were submitted.
+	public Object process(Object event);
+}
@@ -1,15 +1,40 @@
 package fire.alarm.server;
 
 import java.rmi.Remote;
-import javax.management.monitor.Monitor;
-import fire.monitor.FireSensorMonitor;
-import fire.alarm.server.FireAlarmServer;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+
+import fire.monitor.IRmiListener;
 
 public interface IRmiServer extends Remote{
 
+	// The name the server is bound with in its host's registry, what monitors look it up by.
+	public static final String BIND_NAME = "FireAlarmServer";
+	
+	/* * IMPORTANT * */
+	// Each method should throw RemoteException, otherwise "...imlements illgeal remote interface",
+	// will be thrown.
+	
 	//public void bindToRegistry(ServerInstance serverInstance);
-	public void addMonitor(FireSensorMonitor monitor);
-	public void removeMonitor(FireSensorMonitor monitor);
-	public void notifyMonitors(FireSensorData fireSensorData);	// we don't need to pass the sensorId here since the fireSensorData obj already has it inside it.
-	public void notifyMonitors(String error);
+	public void addMonitor(IRmiListener monitor) throws RemoteException;
+	public void removeMonitor(IRmiListener monitor) throws RemoteException;
+	public void notifyMonitors(FireSensorData fireSensorData) throws RemoteException;	// we don't need to pass the sensorId here since the fireSensorData obj already has it inside it.
+	public void notifyMonitors(String error) throws RemoteException;
+	
+	// Joining or reconnecting monitors pass the last version they have seen (SensorStateSync.NO_VERSION if none),
+	// and receive a snapshot or only the changes after that version.
+	public SensorStateSync subscribe(IRmiListener monitor, long lastSeenVersion) throws RemoteException;
+	public SensorStateSync syncState(long lastSeenVersion) throws RemoteException;
+	
+	// Queries over the sensors of this server, answered from indexes (see SensorQueryIndex).
+	// metric is one of temperature, battery, smoke, co2; zone is the part of the sensor id before the '-', null for any.
+	public ArrayList<FireSensorData> querySensors(String metric, double low, double high, String zone, int limit) throws RemoteException;
+	public ArrayList<FireSensorData> queryTop(String metric, int k, boolean highest, String zone) throws RemoteException;
+	public ArrayList<FireSensorData> querySilent(long silentMillis, String zone, int limit) throws RemoteException;
+	// Ids of the sensors of the inventory that never connected (see SensorInventory).
+	public ArrayList<String> queryMissing(String zone, int limit) throws RemoteException;
+	
+	// Sets the thresholds of every sensor of a zone (null for all), one value per SensorThresholds, NaN for the default.
+	// Returns the number of sensors updated.
+	public int setThresholds(String zone, float[] thresholds) throws RemoteException;
 }
@@ -0,0 +1,11 @@
+package fire.alarm.server;
+
+/*
+ * Called by the SensorStateStore for every change, in version order, while the store is locked.
+ * Implementations must return quickly since every sensor thread waits on the store meanwhile.
+ */
+public interface ISensorStateListener {
+
+	// fireSensorData is null when the sensor was removed.
+	public void onChange(String sensorId, FireSensorData fireSensorData, long version);
+}
@@ -0,0 +1,47 @@
+package fire.alarm.server;
+
+import java.util.ArrayList;
+
+/*
+ * The latest data of every sensor of this server, as the server, monitors, replication and the cluster see it.
+ * A single SensorStateStore, or a PartitionedSensorStateStore of several of them (-Dfire.store.partitions).
+ * Handles are whatever the store gives out, only good with the store that gave them.
+ */
+public interface ISensorStateStore {
+
+	// Readings.
+	// Each returns the version the change was stored at.
+	public long put(String sensorId, FireSensorData fireSensorData);
+	public long put(int handle, FireSensorData fireSensorData);
+	public boolean putIfNewer(String sensorId, FireSensorData fireSensorData);
+	public long remove(String sensorId);
+
+	// Changes and snapshots taken on another server (see ReplicationStandby).
+	public void applyChange(String sensorId, FireSensorData fireSensorData, long changeVersion);
+	public void restore(SensorStateSync snapshot);
+
+	// Sensors.
+	public int[] register(SensorInventory inventory);
+	public int register(String sensorId);
+	public int getHandle(String sensorId);
+	public SensorThresholds getThresholds();
+	public int setThresholds(String zone, float[] zoneThresholds);
+
+	// State.
+	public void setListener(ISensorStateListener listener);
+	public FireSensorData get(String sensorId);
+	public long getVersion();
+	public int size();
+	public void flush();
+	public SensorStateSync getChangesSince(long lastSeenVersion);
+	public SensorStateSync getSnapshot();
+	// Runs the action with nothing changing meanwhile, e.g. to take a snapshot and start streaming after it.
+	public void whileLocked(Runnable action);
+
+	// Queries.
+	public ArrayList<FireSensorData> querySensors(String metric, double low, double high, String zone, int limit);
+	public ArrayList<FireSensorData> queryTop(String metric, int k, boolean highest, String zone);
+	public ArrayList<FireSensorData> querySilent(long silentMillis, String zone, int limit);
+	public ArrayList<String> queryMissing(String zone, int limit);
+	public int getMissingCount();
+}
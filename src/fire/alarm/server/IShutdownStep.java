@@ -0,0 +1,10 @@
+package fire.alarm.server;
+
+/*
+ * One step of a ServerShutdown, run once, after the steps before it.
+ */
+public interface IShutdownStep {
+
+	// deadline is when (millis) the whole shutdown must be over. Returns false if the step gave up on something to make it.
+	public boolean run(long deadline);
+}
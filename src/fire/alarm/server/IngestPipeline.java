@@ -0,0 +1,360 @@
+package fire.alarm.server;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Runs the readings of the sensors through stages, each on its own threads, so that a slow step
+ * (printing, notifying monitors) doesn't hold up the reading of the sockets or the steps before it.
+ *
+ * The connection threads read and decode the frames and submit what they carry. Each of them has its own IngestRing
+ * into a thread of the first stage, and every thread of a stage has a ring into every thread of the next one,
+ * so each ring has a single producer and a single consumer. Producers without a ring of their own
+ * (RMI threads, see ClusterNode) share one, taking turns.
+ *
+ * A connection stays on one thread of the first stage, and from there on a sensor always goes to the same thread of
+ * each stage (by the hash of its id), so the events of a sensor are processed in the order they were submitted.
+ * With more than one thread in the later stages, different sensors may be stored or delivered out of version order.
+ *
+ * When a ring is full its producer waits, the wait goes up the stages to the connection threads, which stop
+ * reading their sockets until there is room; the sensors are then held back by TCP.
+ * A thread with nothing to do parks until a producer wakes it up.
+ *
+ * With 0 threads (threads[0] == 0) there are no stage threads, every event goes through all stages on the thread
+ * submitting it, as the server did before; stage threads only pay off with cores to run them.
+ *
+ * getStats tells, for each stage, how much it did, how busy its threads were, how full its rings are and how long
+ * producers waited for room, the stage to give more threads is the one busy with full rings in front of it.
+ */
+public class IngestPipeline {
+
+	private static final int BATCH = 64;					// events taken from a ring before moving on to the next ring.
+	private static final long PARK_NANOS = 10000000;		// longest an idle thread sleeps without being woken up.
+	private static final long BACKOFF_NANOS = 50000;		// between attempts of a producer waiting for room.
+	private static final int SPIN_ROUNDS = 50;				// rounds an idle thread yields before parking.
+
+	private final String[] names;
+	private final IIngestStage[] stages;
+	private final Worker[][] workers;		// [stage][thread].
+	private final int capacity;
+	private final AtomicLong[] blockedNanos;	// per stage, how long producers waited for room in its rings.
+	private final boolean inline;
+
+	private final IngestRing<Object> shared;
+	private int nextConnection = 0;		// first stage thread the next connection goes to.
+
+	// for getStats, the values at its last call.
+	private long lastStats = System.nanoTime();
+	private long[] lastProcessed;
+	private long[] lastBusy;
+	private long[] lastBlocked;
+
+
+	public IngestPipeline(String[] names, IIngestStage[] stages, int[] threads, int capacity) {
+		this.names = names;
+		this.stages = stages;
+		this.capacity = capacity;
+		inline = threads[0] == 0;
+		workers = new Worker[stages.length][];
+		blockedNanos = new AtomicLong[stages.length];
+		lastProcessed = new long[stages.length];
+		lastBusy = new long[stages.length];
+		lastBlocked = new long[stages.length];
+
+		// from the last stage back, each thread needs the threads of the next stage.
+		for (int stage = stages.length - 1; stage >= 0; stage--) {
+			workers[stage] = new Worker[Math.max(1, threads[stage])];
+			blockedNanos[stage] = new AtomicLong();
+			for (int thread = 0; thread < workers[stage].length; thread++) {
+				workers[stage][thread] = new Worker(stage, stage + 1 < stages.length ? workers[stage + 1] : null);
+			}
+		}
+
+		shared = new IngestRing<>(capacity);
+		workers[0][0].inputs.add(shared);
+	}
+
+	public void start() {
+		if (inline) {
+			return;
+		}
+
+		for (int stage = 0; stage < workers.length; stage++) {
+			for (int thread = 0; thread < workers[stage].length; thread++) {
+				Thread t = new Thread(workers[stage][thread], "ingest-" + names[stage] + "-" + thread);
+				t.setDaemon(true);
+				workers[stage][thread].thread = t;
+				t.start();
+			}
+		}
+	}
+
+
+	// Producers.
+	// A ring of its own for a connection thread, only that thread may submit to it.
+	public synchronized Producer connect() {
+		Worker worker = workers[0][nextConnection++ % workers[0].length];
+		IngestRing<Object> ring = new IngestRing<>(capacity);
+		if (!inline) {
+			worker.inputs.add(ring);
+		}
+
+		return new Producer(ring, worker);
+	}
+
+	// For threads without a ring of their own.
+	public void submit(Object event) {
+		if (inline) {
+			processInline(event);
+			return;
+		}
+
+		synchronized (shared) {
+			put(shared, workers[0][0], event, 0);
+		}
+	}
+
+	private void put(IngestRing<Object> ring, Worker consumer, Object event, int stage) {
+		if (!ring.offer(event)) {
+			long start = System.nanoTime();
+			do {
+				consumer.wake();
+				LockSupport.parkNanos(BACKOFF_NANOS);
+			} while (!ring.offer(event));
+			blockedNanos[stage].addAndGet(System.nanoTime() - start);
+		}
+		consumer.wake();
+	}
+
+
+	private void processInline(Object event) {
+		for (int stage = 0; stage < stages.length && event != null; stage++) {
+			try {
+				event = stages[stage].process(event);
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+	}
+
+	// Waits until everything submitted so far went through every stage, for replays and benchmarks.
+	public void awaitIdle() {
+		awaitIdle(Long.MAX_VALUE);
+	}
+
+	// The same, giving up at the deadline (millis); returns false if it did. Used to drain the pipeline on shutdown.
+	public boolean awaitIdle(long deadline) {
+		if (inline) {
+			return true;
+		}
+
+		long processed = -1;
+		while (true) {
+			long now = 0;
+			boolean idle = true;
+			for (Worker[] stage: workers) {
+				for (Worker worker: stage) {
+					now += worker.processed;
+					idle &= worker.sleeping && worker.isEmpty();
+				}
+			}
+			if (idle && now == processed) {
+				return true;
+			}
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+
+			processed = now;
+			LockSupport.parkNanos(1000000);
+		}
+	}
+
+	// How full the fullest ring is, from 0 to 1 (0 inline, there are no rings); what the OverloadController watches.
+	public double getFill() {
+		double fill = 0;
+		for (int stage = 0; stage < workers.length && !inline; stage++) {
+			for (Worker worker: workers[stage]) {
+				for (IngestRing<Object> ring: worker.inputs) {
+					fill = Math.max(fill, (double) ring.size() / ring.capacity());
+				}
+			}
+		}
+
+		return fill;
+	}
+
+	/*
+	 * One line per stage, covering the time since the last call;
+	 * 		validate x1 :   52,310/s, busy  12%, queued      3 of  2,048, producers waited    0 ms
+	 */
+	public synchronized String getStats() {
+		if (inline) {
+			return "every stage inline, on the threads submitting\n";
+		}
+
+		long now = System.nanoTime();
+		double seconds = Math.max(1, now - lastStats) / 1e9;
+		StringBuilder stats = new StringBuilder();
+		for (int stage = 0; stage < workers.length; stage++) {
+			long processed = 0;
+			long busy = 0;
+			int queued = 0;
+			int rings = 0;
+			for (Worker worker: workers[stage]) {
+				processed += worker.processed;
+				busy += worker.busyNanos;
+				for (IngestRing<Object> ring: worker.inputs) {
+					queued += ring.size();
+					rings += ring.capacity();
+				}
+			}
+			long blocked = blockedNanos[stage].get();
+
+			stats.append(String.format("%-8s x%d : %,8.0f/s, busy %3.0f%%, queued %,6d of %,6d, producers waited %,5d ms%n",
+					names[stage], workers[stage].length, (processed - lastProcessed[stage]) / seconds,
+					(busy - lastBusy[stage]) / 1e9 / seconds / workers[stage].length * 100, queued, rings,
+					(blocked - lastBlocked[stage]) / 1000000));
+
+			lastProcessed[stage] = processed;
+			lastBusy[stage] = busy;
+			lastBlocked[stage] = blocked;
+		}
+		lastStats = now;
+
+		return stats.toString();
+	}
+
+
+	// The end of a ring a connection thread submits to.
+	public class Producer {
+
+		private final IngestRing<Object> ring;
+		private final Worker consumer;
+
+		private Producer(IngestRing<Object> ring, Worker consumer) {
+			this.ring = ring;
+			this.consumer = consumer;
+		}
+
+		// Waits while the ring is full.
+		public void submit(Object event) {
+			if (inline) {
+				processInline(event);
+			}
+			else {
+				put(ring, consumer, event, 0);
+			}
+		}
+
+		// What was submitted is still processed, then the ring is dropped.
+		public void close() {
+			ring.close();
+			consumer.wake();
+		}
+	}
+
+
+	// A thread of a stage, taking events from its rings in turn.
+	private class Worker implements Runnable {
+
+		private final int stage;
+		private final Worker[] next;
+		private final IngestRing<Object>[] outputs;		// one per thread of the next stage, this thread is their only producer.
+		private final CopyOnWriteArrayList<IngestRing<Object>> inputs = new CopyOnWriteArrayList<>();
+		private Thread thread;
+
+		// written by this thread only, read by getStats and awaitIdle.
+		private volatile long processed = 0;
+		private volatile long busyNanos = 0;
+		private volatile boolean sleeping = false;
+		private int idleRounds = 0;
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		private Worker(int stage, Worker[] next) {
+			this.stage = stage;
+			this.next = next;
+			outputs = next != null ? new IngestRing[next.length] : null;
+			for (int thread = 0; next != null && thread < next.length; thread++) {
+				outputs[thread] = new IngestRing<>(capacity);
+				next[thread].inputs.add(outputs[thread]);
+			}
+		}
+
+		public void run() {
+			while (true) {
+				boolean idle = true;
+				for (IngestRing<Object> ring: inputs) {
+					Object event;
+					for (int i = 0; i < BATCH && (event = ring.poll()) != null; i++) {
+						idle = false;
+						process(event);
+					}
+					// closed first, anything offered before closing is still seen.
+					if (ring.isClosed() && ring.isEmpty()) {
+						inputs.remove(ring);
+					}
+				}
+
+				if (idle && ++idleRounds > SPIN_ROUNDS) {
+					idleRounds = 0;
+					sleeping = true;
+					// a producer offering now sees sleeping and wakes this thread up.
+					if (isEmpty()) {
+						LockSupport.parkNanos(this, PARK_NANOS);
+					}
+					sleeping = false;
+				}
+				else if (idle) {
+					// let the producers fill the rings some more, rather than being woken up for each event.
+					Thread.yield();
+				}
+				else {
+					idleRounds = 0;
+				}
+			}
+		}
+
+		private void process(Object event) {
+			long start = System.nanoTime();
+			Object result = null;
+			try {
+				result = stages[stage].process(event);
+			}
+			catch (RuntimeException e) {
+				// the event is lost, not the thread.
+				e.printStackTrace();
+			}
+			busyNanos += System.nanoTime() - start;
+			processed++;
+
+			if (result != null && next != null) {
+				int thread = (sensorIdOf(result).hashCode() & 0x7FFFFFFF) % next.length;
+				put(outputs[thread], next[thread], result, stage + 1);
+			}
+		}
+
+		private void wake() {
+			if (sleeping) {
+				LockSupport.unpark(thread);
+			}
+		}
+
+		private boolean isEmpty() {
+			for (IngestRing<Object> ring: inputs) {
+				if (!ring.isEmpty()) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+
+	private static String sensorIdOf(Object event) {
+		return event instanceof FireSensorData ? ((FireSensorData) event).getSensorId() : ((SensorRemoval) event).getSensorId();
+	}
+}
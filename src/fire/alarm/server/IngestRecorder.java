@@ -0,0 +1,120 @@
+package fire.alarm.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+ * Records the sensor traffic of the server to a capture file, to be fed back later by the IngestReplayer.
+ *
+ * Every frame read from a sensor connection is kept as it arrived (see SensorFrameCodec), rejected ones included,
+ * together with the connections opening and closing, so that reconnect storms replay as they happened.
+ * The capture is;
+ * 		header	:	int MAGIC, byte VERSION, long wall clock (millis) when recording started.
+ * 		record	:	byte type, varint micros since the previous record, varint connection,
+ * 					and for a FRAME a varint length followed by the frame (its type and body).
+ * Frames are already compact, a record adds 3 - 5 bytes to one.
+ *
+ * Writes of all the connection threads go through the same lock, in the order they happened.
+ */
+public class IngestRecorder {
+
+	public static final int MAGIC = 0x46434150;		// "FCAP"
+	public static final byte VERSION = 1;
+
+	public static final byte CONNECT = 1, FRAME = 2, DISCONNECT = 3;
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private DataOutputStream out;
+	private long lastRecord = System.nanoTime();
+	private int connections = 0;
+	private boolean closed = false;
+
+
+	public IngestRecorder(String captureFile) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(captureFile), BUFFER_SIZE));
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeLong(System.currentTimeMillis());
+	}
+
+	// A sensor (or gateway) connected, returns the number its frames are recorded under.
+	public synchronized int connected() {
+		int connection = connections++;
+		record(CONNECT, connection, null, 0);
+		return connection;
+	}
+
+	public synchronized void frame(int connection, byte[] frame, int length) {
+		record(FRAME, connection, frame, length);
+	}
+
+	public synchronized void disconnected(int connection) {
+		record(DISCONNECT, connection, null, 0);
+	}
+
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+		try {
+			out.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * A failed write stops the recording, the server goes on without it.
+	 */
+	private void record(byte type, int connection, byte[] frame, int length) {
+		if (closed) {
+			return;
+		}
+
+		long now = System.nanoTime();
+		try {
+			out.writeByte(type);
+			writeVarint(out, (now - lastRecord) / 1000);
+			writeVarint(out, connection);
+			if (type == FRAME) {
+				writeVarint(out, length);
+				out.write(frame, 0, length);
+			}
+			lastRecord = now;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+
+	// Varints, 7 bits a byte with the high bit set on all but the last one.
+	static void writeVarint(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarint(DataInputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		throw new IOException("Varint longer than 64 bits, the capture is corrupted.");
+	}
+}
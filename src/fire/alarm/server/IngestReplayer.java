@@ -0,0 +1,213 @@
+package fire.alarm.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Feeds a capture of the IngestRecorder back into the server's ingest, the same way the connection threads do
+ * (FireAlarmServer.acceptFrame), without any sockets. Each recorded connection gets its own server instance,
+ * frames are replayed one at a time in the order they were recorded, so a replay of a capture always does the same work.
+ * The frames of a connection are decoded by its server's SensorFrameReader, which knows the sensors the connection declared.
+ *
+ * The speed is 1 to keep the recorded timing, N to play it N times faster or max not to wait at all.
+ * Reports the throughput and how long each frame took to process; at 1x or Nx also how far behind schedule it fell.
+ * A frame is processed once it is decoded and submitted to the pipeline, as a connection thread would,
+ * the throughput counts until the stages of the pipeline are done and their load is reported at the end.
+ *
+ * -Dfire.registry.file, -Dfire.history.file and -Dfire.pipeline.* apply as they do to the server. Monitors are not bound,
+ * and the readings the server prints are discarded (they would measure the terminal).
+ *
+ * Usage: IngestReplayer <capture file> [speed]
+ */
+public class IngestReplayer {
+
+	private double speed;		// 0 for max.
+
+	private HashMap<Integer, FireAlarmServer> connections = new HashMap<>();
+	private byte[] frame = new byte[4096];
+
+	// results.
+	private long captureMicros = 0;
+	private int connected = 0;
+	private long frames = 0;
+	private long readings = 0;
+	private long rejected = 0;	// by the connections closed so far.
+	private long[] frameNanos = new long[1024];
+	private long maxBehind = 0;
+
+
+	public IngestReplayer(double speed) {
+		this.speed = speed;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: IngestReplayer <capture file> [1 | N | max]");
+			return;
+		}
+		double speed = args.length < 2 || args[1].equals("max") ? 0 : Double.parseDouble(args[1].replace("x", ""));
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new ByteArrayOutputStream() {
+			public void write(byte[] b, int off, int len) {
+				// discarded.
+			}
+		}));
+
+		FireAlarmServer.startReplay();
+		IngestReplayer replayer = new IngestReplayer(speed);
+
+		long start = System.nanoTime();
+		long recordedAt;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]), 65536))) {
+			recordedAt = replayer.replay(in);
+		}
+		// until the stages are done with it too.
+		FireAlarmServer.getPipeline().awaitIdle();
+		long elapsed = System.nanoTime() - start;
+
+		System.setOut(out);
+		replayer.report(args[0], recordedAt, elapsed);
+		System.exit(0);		// the exported facade keeps the RMI threads alive.
+	}
+
+	// Returns the wall clock time the capture was recorded at.
+	public long replay(DataInputStream in) throws IOException {
+		if (in.readInt() != IngestRecorder.MAGIC) {
+			throw new IOException("Not a capture of the IngestRecorder.");
+		}
+		if (in.readByte() != IngestRecorder.VERSION) {
+			throw new IOException("Capture of an unknown version.");
+		}
+		long recordedAt = in.readLong();
+
+		long start = System.nanoTime();
+		while (true) {
+			byte type;
+			try {
+				type = in.readByte();
+			}
+			catch (EOFException e) {
+				// end of the capture.
+				return recordedAt;
+			}
+
+			captureMicros += IngestRecorder.readVarint(in);
+			int connection = (int) IngestRecorder.readVarint(in);
+			int length = 0;
+			if (type == IngestRecorder.FRAME) {
+				length = (int) IngestRecorder.readVarint(in);
+				if (length < 0 || length > SensorFrameCodec.MAX_FRAME_LENGTH) {
+					throw new IOException("Frame length of " + length + ", the capture is corrupted.");
+				}
+				if (length > frame.length) {
+					frame = new byte[Math.max(length, frame.length * 2)];
+				}
+				in.readFully(frame, 0, length);
+			}
+
+			if (speed > 0) {
+				waitUntil(start + (long) (captureMicros * 1000 / speed));
+			}
+
+			replay(type, connection, length);
+		}
+	}
+
+	private void replay(byte type, int connection, int length) throws IOException {
+		if (type == IngestRecorder.CONNECT) {
+			FireAlarmServer server = new FireAlarmServer();
+			server.startIngest();
+			connections.put(connection, server);
+			connected++;
+		}
+		else if (type == IngestRecorder.DISCONNECT) {
+			FireAlarmServer server = connections.remove(connection);
+			if (server != null) {
+				server.disconnected();
+				rejected += server.getFrameReader().getRejected();
+			}
+		}
+		else if (type == IngestRecorder.FRAME) {
+			FireAlarmServer server = connections.get(connection);
+			if (server == null) {
+				throw new IOException("Frame of connection " + connection + " that is not open, the capture is corrupted.");
+			}
+
+			long start = System.nanoTime();
+			Object data = null;
+			try {
+				data = server.getFrameReader().decode(frame, length);
+			}
+			catch (SensorFrameException e) {
+				// rejected, as the server did.
+			}
+			server.acceptFrame(data);
+			long took = System.nanoTime() - start;
+
+			if (frames == frameNanos.length) {
+				frameNanos = Arrays.copyOf(frameNanos, frameNanos.length * 2);
+			}
+			frameNanos[(int) frames++] = took;
+			if (data instanceof ArrayList) {
+				readings += ((ArrayList<?>) data).size();
+			}
+			else if (data instanceof HashMap) {
+				readings++;
+			}
+		}
+		else {
+			throw new IOException("Record of type " + type + ", the capture is corrupted.");
+		}
+	}
+
+	private void waitUntil(long due) {
+		long now = System.nanoTime();
+		while (now < due) {
+			LockSupport.parkNanos(due - now);
+			now = System.nanoTime();
+		}
+		maxBehind = Math.max(maxBehind, now - due);
+	}
+
+	public void report(String captureFile, long recordedAt, long elapsedNanos) {
+		Arrays.sort(frameNanos, 0, (int) frames);
+		double seconds = elapsedNanos / 1e9;
+
+		System.out.printf("capture         : %s, recorded %tF %<tT, %.1f s%n", captureFile, recordedAt, captureMicros / 1e6);
+		System.out.printf("replayed        : %s in %.1f s%n", speed > 0 ? speed + "x" : "max speed", seconds);
+		System.out.printf("connections     : %,d (%,d left open)%n", connected, connections.size());
+		System.out.printf("frames          : %,d, %,.0f/s%n", frames, frames / seconds);
+		System.out.printf("readings        : %,d, %,.0f/s (backfilled batches not counted)%n", readings, readings / seconds);
+		long rejected = this.rejected;
+		for (FireAlarmServer server: connections.values()) {
+			rejected += server.getFrameReader().getRejected();
+		}
+		System.out.printf("rejected        : %,d%n", rejected);
+		System.out.printf("per frame (us)  : p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+				percentile(0.5), percentile(0.99), percentile(0.999), frames > 0 ? frameNanos[(int) frames - 1] / 1e3 : 0);
+		if (speed > 0) {
+			System.out.printf("behind schedule : at most %.1f ms%n", maxBehind / 1e6);
+		}
+		System.out.printf("store version   : %,d%n", FireAlarmServer.getSensorStateStore().getVersion());
+		System.out.print(FireAlarmServer.getPipeline().getStats());
+		System.out.print(FireAlarmServer.getAlerts().getStats() + FireAlarmServer.getOverload().getStats());
+	}
+
+	private double percentile(double percentile) {
+		if (frames == 0) {
+			return 0;
+		}
+
+		return frameNanos[(int) Math.min(frames - 1, (long) (frames * percentile))] / 1e3;
+	}
+}
@@ -0,0 +1,89 @@
+package fire.alarm.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A bounded queue between two threads of the IngestPipeline, exactly one offering and one polling.
+ *
+ * The items live in a power of 2 array indexed by two ever growing counters, each written by one side only,
+ * so neither side ever locks. Each side caches the other's counter and only reads it again when the ring looks
+ * full (producer) or empty (consumer).
+ */
+public class IngestRing<T> {
+
+	private final Object[] slots;
+	private final int mask;
+
+	private final AtomicLong head = new AtomicLong();	// next slot to poll, written by the consumer.
+	private final AtomicLong tail = new AtomicLong();	// next slot to offer, written by the producer.
+	private long cachedHead = 0;	// producer's last view of head.
+	private long cachedTail = 0;	// consumer's last view of tail.
+
+	// set by the producer once it is done, the consumer drops the ring when it is also empty.
+	private volatile boolean closed = false;
+
+
+	// capacity is rounded up to a power of 2.
+	public IngestRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		slots = new Object[size];
+		mask = size - 1;
+	}
+
+	// Producer side. Returns false if the ring is full.
+	public boolean offer(T item) {
+		long t = tail.get();
+		if (t - cachedHead == slots.length) {
+			cachedHead = head.get();
+			if (t - cachedHead == slots.length) {
+				return false;
+			}
+		}
+
+		slots[(int) t & mask] = item;
+		// a full write, the consumer may be about to park (see IngestPipeline).
+		tail.set(t + 1);
+
+		return true;
+	}
+
+	// Consumer side. Returns null if the ring is empty.
+	@SuppressWarnings("unchecked")
+	public T poll() {
+		long h = head.get();
+		if (h == cachedTail) {
+			cachedTail = tail.get();
+			if (h == cachedTail) {
+				return null;
+			}
+		}
+
+		int slot = (int) h & mask;
+		T item = (T) slots[slot];
+		slots[slot] = null;
+		head.lazySet(h + 1);
+
+		return item;
+	}
+
+	// Either side, or anyone watching; a snapshot that may be off by the items moving meanwhile.
+	public int size() {
+		return (int) (tail.get() - head.get());
+	}
+
+	public boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+
+	public int capacity() {
+		return slots.length;
+	}
+
+	public void close() {
+		closed = true;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+}
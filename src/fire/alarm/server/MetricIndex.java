@@ -0,0 +1,114 @@
+package fire.alarm.server;
+
+import java.util.Arrays;
+
+/*
+ * Sensors ordered by one metric (e.g. temperature), for range and top-k queries without scanning every sensor.
+ *
+ * The range of the metric is cut into fixed width buckets, plus one below and one above it for anything outside.
+ * Each bucket is a doubly linked list of sensor handles, kept in int arrays indexed by handle, so moving a sensor
+ * to another bucket on a new reading is O(1) and creates no garbage. A query walks the buckets from one end and only
+ * compares exact values in the buckets at its bounds.
+ *
+ * Not synchronized, the SensorStateStore serializes all access.
+ */
+public class MetricIndex {
+
+	public static final int NONE = -1;
+
+	private double min;
+	private double width;
+	private int[] heads;		// first handle of each bucket.
+
+	// per handle.
+	private int[] next = new int[0];
+	private int[] prev = new int[0];
+	private int[] bucketOf = new int[0];	// NONE when not indexed.
+	private double[] values = new double[0];
+
+
+	public MetricIndex(double min, double max, double width) {
+		this.min = min;
+		this.width = width;
+		this.heads = new int[(int) Math.ceil((max - min) / width) + 2];
+		Arrays.fill(heads, NONE);
+	}
+
+	public void update(int handle, double value) {
+		ensureCapacity(handle);
+		int bucket = getBucket(value);
+		values[handle] = value;
+		if (bucketOf[handle] == bucket) {
+			return;
+		}
+
+		remove(handle);
+
+		next[handle] = heads[bucket];
+		prev[handle] = NONE;
+		if (heads[bucket] != NONE) {
+			prev[heads[bucket]] = handle;
+		}
+		heads[bucket] = handle;
+		bucketOf[handle] = bucket;
+	}
+
+	public void remove(int handle) {
+		if (handle >= bucketOf.length || bucketOf[handle] == NONE) {
+			return;
+		}
+
+		if (prev[handle] != NONE) {
+			next[prev[handle]] = next[handle];
+		}
+		else {
+			heads[bucketOf[handle]] = next[handle];
+		}
+		if (next[handle] != NONE) {
+			prev[next[handle]] = prev[handle];
+		}
+		bucketOf[handle] = NONE;
+	}
+
+
+	// Walking the buckets.
+	public int getBucketCount() {
+		return heads.length;
+	}
+
+	// Bucket 0 is below the range and the last one above it.
+	public int getBucket(double value) {
+		if (!(value >= min)) {	// NaN as well.
+			return 0;
+		}
+
+		double bucket = 1 + Math.floor((value - min) / width);
+		return bucket < heads.length - 1 ? (int) bucket : heads.length - 1;
+	}
+
+	public int first(int bucket) {
+		return heads[bucket];
+	}
+
+	public int next(int handle) {
+		return next[handle];
+	}
+
+	public double getValue(int handle) {
+		return values[handle];
+	}
+
+	private void ensureCapacity(int handle) {
+		if (handle < bucketOf.length) {
+			return;
+		}
+
+		int capacity = Math.max(handle + 1, bucketOf.length * 2);
+		next = Arrays.copyOf(next, capacity);
+		prev = Arrays.copyOf(prev, capacity);
+		values = Arrays.copyOf(values, capacity);
+		int oldLength = bucketOf.length;
+		bucketOf = Arrays.copyOf(bucketOf, capacity);
+		Arrays.fill(bucketOf, oldLength, capacity, NONE);
+	}
+}
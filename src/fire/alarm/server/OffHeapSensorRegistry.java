@@ -0,0 +1,248 @@
+package fire.alarm.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Latest reading of every sensor, kept outside the java heap.
+ *
+ * Each sensor has a fixed size record at (HEADER_SIZE + handle * STRIDE) of a direct or memory mapped buffer,
+ * where handle comes from the SensorIdInterner. A new reading overwrites the record in place,
+ * so readings do not create garbage and the heap does not grow with the number of sensors.
+ *
+ * When backed by a file the records (and the sensor ids in them) survive a restart, see SensorStateStore.
+ *
+ * Not synchronized, the SensorStateStore serializes all access.
+ */
+public class OffHeapSensorRegistry {
+
+	// Header layout.
+	private static final int MAGIC = 0x46495245;	// "FIRE"
+	private static final int MAGIC_OFFSET = 0;
+	private static final int STRIDE_OFFSET = 4;
+	private static final int COUNT_OFFSET = 8;		// number of handles ever written.
+	private static final int VERSION_OFFSET = 16;	// version of the store at the last change.
+	private static final int HEADER_SIZE = 32;
+
+	// Record layout.
+	public static final int STRIDE = 96;
+	private static final int FLAGS = 0;
+	private static final int BATTERY = 4;
+	private static final int SMOKE = 8;
+	private static final int TEMPERATURE = 16;
+	private static final int CO2 = 24;
+	private static final int VERSION = 32;
+	private static final int TIMESTAMP = 40;
+	private static final int ID_LENGTH = 48;
+	private static final int ID = 50;
+	public static final int MAX_ID_BYTES = STRIDE - ID;
+
+	private static final int PRESENT = 1;	// flag of a sensor that has data (not removed).
+
+	// a single buffer cannot go past 2GB, about 22M sensors.
+	private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / STRIDE;
+
+	private FileChannel channel;	// null when not backed by a file.
+	private ByteBuffer buffer;
+	private int capacity;
+
+
+	private OffHeapSensorRegistry(FileChannel channel, int capacity) throws IOException {
+		this.channel = channel;
+		this.capacity = capacity;
+		this.buffer = allocate(capacity);
+	}
+
+	public static OffHeapSensorRegistry inMemory(int capacity) {
+		try {
+			OffHeapSensorRegistry registry = new OffHeapSensorRegistry(null, capacity);
+			registry.buffer.putInt(MAGIC_OFFSET, MAGIC);
+			registry.buffer.putInt(STRIDE_OFFSET, STRIDE);
+
+			return registry;
+		}
+		catch (IOException e) {
+			// only mapping a file can fail.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * Maps the file, creating it if needed. An existing file keeps its records,
+	 * the file grows to hold at least the given number of sensors.
+	 */
+	@SuppressWarnings("resource")
+	public static OffHeapSensorRegistry mapped(File file, int capacity) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		boolean existing = channel.size() >= HEADER_SIZE;
+		if (existing) {
+			capacity = Math.max(capacity, (int) ((channel.size() - HEADER_SIZE) / STRIDE));
+		}
+
+		OffHeapSensorRegistry registry = new OffHeapSensorRegistry(channel, capacity);
+		if (existing && (registry.buffer.getInt(MAGIC_OFFSET) != MAGIC || registry.buffer.getInt(STRIDE_OFFSET) != STRIDE)) {
+			channel.close();
+			throw new IOException(file + " is not a sensor registry of this version.");
+		}
+
+		registry.buffer.putInt(MAGIC_OFFSET, MAGIC);
+		registry.buffer.putInt(STRIDE_OFFSET, STRIDE);
+
+		return registry;
+	}
+
+	public static boolean fits(String sensorId) {
+		return sensorId.getBytes(StandardCharsets.UTF_8).length <= MAX_ID_BYTES;
+	}
+
+
+	// Writes the data in place, the record's version is taken from the data.
+	public void write(int handle, String sensorId, FireSensorData fireSensorData) {
+		ensureCapacity(handle);
+
+		int record = HEADER_SIZE + handle * STRIDE;
+		buffer.putInt(record + FLAGS, PRESENT);
+		buffer.putInt(record + BATTERY, fireSensorData.getBatteryPercentage());
+		buffer.putInt(record + SMOKE, fireSensorData.getSmokeLevel());
+		buffer.putDouble(record + TEMPERATURE, fireSensorData.getTemperature());
+		buffer.putDouble(record + CO2, fireSensorData.getCo2Level());
+		buffer.putLong(record + VERSION, fireSensorData.getVersion());
+		buffer.putLong(record + TIMESTAMP, fireSensorData.getTimestamp());
+
+		// the id only needs writing the first time.
+		if (handle >= getCount()) {
+			writeId(record, handle, sensorId);
+		}
+	}
+
+	/*
+	 * Writes the record of a sensor that has no data yet, only its id, so that its handle is kept after a restart.
+	 * Does nothing for a handle that already has a record.
+	 */
+	public void reserve(int handle, String sensorId) {
+		if (handle < getCount()) {
+			return;
+		}
+		ensureCapacity(handle);
+
+		int record = HEADER_SIZE + handle * STRIDE;
+		buffer.putInt(record + FLAGS, 0);
+		writeId(record, handle, sensorId);
+	}
+
+	private void writeId(int record, int handle, String sensorId) {
+		byte[] id = sensorId.getBytes(StandardCharsets.UTF_8);
+		buffer.putShort(record + ID_LENGTH, (short) id.length);
+		for (int i = 0; i < id.length; i++) {
+			buffer.put(record + ID + i, id[i]);
+		}
+		buffer.putInt(COUNT_OFFSET, handle + 1);
+	}
+
+	// Returns null if the sensor has no data.
+	public FireSensorData read(int handle) {
+		if (!isPresent(handle)) {
+			return null;
+		}
+
+		int record = HEADER_SIZE + handle * STRIDE;
+		FireSensorData fireSensorData = new FireSensorData();
+		fireSensorData.setSensorId(readSensorId(handle));
+		fireSensorData.setBatteryPercentage(buffer.getInt(record + BATTERY));
+		fireSensorData.setSmokeLevel(buffer.getInt(record + SMOKE));
+		fireSensorData.setTemperature(buffer.getDouble(record + TEMPERATURE));
+		fireSensorData.setCo2Level(buffer.getDouble(record + CO2));
+		fireSensorData.setVersion(buffer.getLong(record + VERSION));
+		fireSensorData.setTimestamp(buffer.getLong(record + TIMESTAMP));
+
+		return fireSensorData;
+	}
+
+	// Returns whether the sensor had data. The id stays, the handle is never reused.
+	public boolean clear(int handle) {
+		if (!isPresent(handle)) {
+			return false;
+		}
+
+		buffer.putInt(HEADER_SIZE + handle * STRIDE + FLAGS, 0);
+
+		return true;
+	}
+
+	public boolean isPresent(int handle) {
+		return handle >= 0 && handle < getCount() && buffer.getInt(HEADER_SIZE + handle * STRIDE + FLAGS) == PRESENT;
+	}
+
+	public String readSensorId(int handle) {
+		int record = HEADER_SIZE + handle * STRIDE;
+		byte[] id = new byte[buffer.getShort(record + ID_LENGTH)];
+		for (int i = 0; i < id.length; i++) {
+			id[i] = buffer.get(record + ID + i);
+		}
+
+		return new String(id, StandardCharsets.UTF_8);
+	}
+
+	// Millis at which the sensor took the reading held in its record.
+	public long getTimestamp(int handle) {
+		return buffer.getLong(HEADER_SIZE + handle * STRIDE + TIMESTAMP);
+	}
+
+	public int getCount() {
+		return buffer.getInt(COUNT_OFFSET);
+	}
+
+	public long getVersion() {
+		return buffer.getLong(VERSION_OFFSET);
+	}
+
+	public void setVersion(long version) {
+		buffer.putLong(VERSION_OFFSET, version);
+	}
+
+	// Writes changes of a mapped registry through to the file.
+	public void force() {
+		if (channel != null) {
+			((MappedByteBuffer) buffer).force();
+		}
+	}
+
+	// Grows to hold the given handle, done by every write; called ahead of a bulk load to grow only once.
+	public void ensureCapacity(int handle) {
+		if (handle < capacity) {
+			return;
+		}
+		if (handle >= MAX_CAPACITY) {
+			throw new IllegalStateException("Sensor registry is full at " + MAX_CAPACITY + " sensors.");
+		}
+
+		int newCapacity = (int) Math.min(Math.max(capacity * 2L, handle + 1L), MAX_CAPACITY);
+		try {
+			ByteBuffer old = buffer;
+			buffer = allocate(newCapacity);
+			// a file mapping already sees what was written, only a direct buffer has to be copied.
+			if (channel == null) {
+				old.clear();
+				buffer.put(old);
+			}
+			capacity = newCapacity;
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not grow the sensor registry.", e);
+		}
+	}
+
+	private ByteBuffer allocate(int capacity) throws IOException {
+		long size = HEADER_SIZE + (long) capacity * STRIDE;
+		if (channel != null) {
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+
+		return ByteBuffer.allocateDirect((int) size);
+	}
+}
@@ -0,0 +1,267 @@
+package fire.alarm.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Keeps the server answering alarms when readings come in faster than it can handle them all.
+ *
+ * Every tick it looks at how long readings took from being read to being fanned out, and at how full the rings
+ * of the pipeline are. Overloaded (latency over the target, or rings filling up) for ESCALATE_TICKS in a row,
+ * it goes one level up; calm (both well under) for RELAX_TICKS in a row, one level down;
+ * 		normal				every reading is printed, sent to the monitors and written to the history,
+ * 		shedding fan-out	routine readings are neither printed nor sent to the monitors,
+ * 		sampling history	on top of that only one routine reading in historySampling goes into the history.
+ * A routine reading is one the validators found nothing dangerous in. Readings in error, and the alerts they raise or
+ * clear, are always validated, stored, delivered and written, at every level; so is the first routine reading of a
+ * sensor after one in error, the monitors would otherwise keep showing the danger once it is over.
+ * Every reading is still stored, and monitors only take a sync's version as the point to sync from next, so what was
+ * shed reaches them with their next sync (IRmiServer.syncState); only the stream of routine readings thins out.
+ *
+ * The levels, what was shed and how late alarms were are in getStats;
+ * 		overload : normal, 2 steps up, 2 down, 12,310 fan-outs shed, 40,120 history writes sampled out
+ * 		alarms   : 1,204 delivered, 35.2 ms at most, 0 over the 250 ms target
+ */
+public class OverloadController {
+
+	public static final int NORMAL = 0, SHED_FAN_OUT = 1, SAMPLE_HISTORY = 2;
+	public static final String[] LEVELS = {"normal", "shedding fan-out", "sampling history"};
+
+	private static final double HIGH_FILL = 0.75;	// of the fullest ring, overloaded above.
+	private static final double LOW_FILL = 0.25;	// calm below, with latency under half the target.
+	private static final int ESCALATE_TICKS = 2;
+	private static final int RELAX_TICKS = 20;
+	private static final int PAGE = 4096;			// sensors (by handle) per page of inError.
+
+	private final IngestPipeline pipeline;
+	private final long targetNanos;		// 0 never sheds.
+	private final int historySampling;
+
+	private volatile int level = NORMAL;
+	private int overloadedTicks = 0;
+	private int calmTicks = 0;
+
+	// readings fanned out since the last tick.
+	private final AtomicLong latencyNanos = new AtomicLong();
+	private final AtomicLong readings = new AtomicLong();
+	private final AtomicLong routine = new AtomicLong();	// to pick the routine readings kept in the history.
+
+	// sensors whose last reading sent to the monitors was in error, a bit per handle in pages that never move once created.
+	private volatile AtomicLongArray[] inError = new AtomicLongArray[0];
+
+	// since the start.
+	private final AtomicLong shedFanOuts = new AtomicLong();
+	private final AtomicLong sampledOut = new AtomicLong();
+	private final AtomicLong alarms = new AtomicLong();
+	private final AtomicLong lateAlarms = new AtomicLong();
+	private final AtomicLong maxAlarmNanos = new AtomicLong();
+	private long stepsUp = 0;
+	private long stepsDown = 0;
+	private double lastLatencyMillis = 0;
+	private double lastFill = 0;
+
+
+	public OverloadController(IngestPipeline pipeline, long targetMillis, int historySampling) {
+		this.pipeline = pipeline;
+		this.targetNanos = targetMillis * 1000000;
+		this.historySampling = Math.max(1, historySampling);
+	}
+
+	// Ticks on a thread of its own every tickMillis.
+	public void start(final long tickMillis) {
+		Thread ticker = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(tickMillis);
+					}
+					catch (InterruptedException e) {
+						return;
+					}
+					tick();
+				}
+			}
+		}, "overload-controller");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	public synchronized void tick() {
+		long count = readings.getAndSet(0);
+		long latency = count > 0 ? latencyNanos.getAndSet(0) / count : 0;
+		double fill = pipeline.getFill();
+		lastLatencyMillis = latency / 1e6;
+		lastFill = fill;
+		if (targetNanos == 0) {
+			return;
+		}
+
+		if (latency > targetNanos || fill > HIGH_FILL) {
+			calmTicks = 0;
+			if (++overloadedTicks >= ESCALATE_TICKS && level < SAMPLE_HISTORY) {
+				overloadedTicks = 0;
+				stepsUp++;
+				setLevel(level + 1);
+			}
+		}
+		else {
+			overloadedTicks = 0;
+			if (latency < targetNanos / 2 && fill < LOW_FILL && ++calmTicks >= RELAX_TICKS && level > NORMAL) {
+				calmTicks = 0;
+				stepsDown++;
+				setLevel(level - 1);
+			}
+		}
+	}
+
+	/*
+	 * Called by the fan-out; true if the reading is routine and its fan-out is shed.
+	 * A sensor's readings are all fanned out by the same thread, in order.
+	 */
+	public boolean shedFanOut(FireSensorData fireSensorData) {
+		if (fireSensorData.hasErrors()) {
+			setInError(fireSensorData.getHandle());
+			return false;
+		}
+		// the reading that clears the error shown.
+		if (clearInError(fireSensorData.getHandle()) || level < SHED_FAN_OUT) {
+			return false;
+		}
+
+		shedFanOuts.incrementAndGet();
+		return true;
+	}
+
+	// Called by the store stage; false if the reading is routine and sampled out of the history.
+	public boolean keepHistory(FireSensorData fireSensorData) {
+		if (level < SAMPLE_HISTORY || fireSensorData.hasErrors() || routine.incrementAndGet() % historySampling == 0) {
+			return true;
+		}
+
+		sampledOut.incrementAndGet();
+		return false;
+	}
+
+	// Called by the fan-out when a sensor disconnects.
+	public void forget(int handle) {
+		clearInError(handle);
+	}
+
+	// Called by the fan-out once done with a reading read off a connection, shed or not.
+	public void delivered(FireSensorData fireSensorData, long now) {
+		if (fireSensorData.getReceivedNanos() == 0) {
+			return;
+		}
+
+		long latency = now - fireSensorData.getReceivedNanos();
+		latencyNanos.addAndGet(latency);
+		readings.incrementAndGet();
+
+		if (fireSensorData.hasErrors()) {
+			alarms.incrementAndGet();
+			if (targetNanos > 0 && latency > targetNanos) {
+				lateAlarms.incrementAndGet();
+			}
+			long max;
+			while (latency > (max = maxAlarmNanos.get()) && !maxAlarmNanos.compareAndSet(max, latency)) {
+				// raced with another fan-out thread, try again.
+			}
+		}
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public long getShedFanOuts() {
+		return shedFanOuts.get();
+	}
+
+	public long getSampledOut() {
+		return sampledOut.get();
+	}
+
+	public long getAlarms() {
+		return alarms.get();
+	}
+
+	public long getLateAlarms() {
+		return lateAlarms.get();
+	}
+
+	public double getMaxAlarmMillis() {
+		return maxAlarmNanos.get() / 1e6;
+	}
+
+	public synchronized String getStats() {
+		return String.format("overload : %s, %,d steps up, %,d down, %,d fan-outs shed, %,d history writes sampled out "
+				+ "(last tick %.1f ms latency, rings %.0f%% full)%n"
+				+ "alarms   : %,d delivered, %.1f ms at most, %,d over the %,d ms target%n",
+				LEVELS[level], stepsUp, stepsDown, shedFanOuts.get(), sampledOut.get(), lastLatencyMillis, lastFill * 100,
+				alarms.get(), getMaxAlarmMillis(), lateAlarms.get(), targetNanos / 1000000);
+	}
+
+	private void setLevel(int level) {
+		this.level = level;
+		System.out.printf("Overload : %s (%.1f ms latency, rings %.0f%% full)%n", LEVELS[level], lastLatencyMillis, lastFill * 100);
+	}
+
+	// A reading without a handle (stored by id on another node) isn't tracked, its errors are never shed anyway.
+	private void setInError(int handle) {
+		if (handle == SensorIdInterner.NO_HANDLE) {
+			return;
+		}
+
+		AtomicLongArray page = getPage(handle / PAGE);
+		int word = (handle % PAGE) / 64;
+		long bit = 1L << (handle % 64);
+		while (true) {
+			long bits = page.get(word);
+			if ((bits & bit) != 0 || page.compareAndSet(word, bits, bits | bit)) {
+				return;
+			}
+		}
+	}
+
+	// Whether the sensor was in error. Only a read for a routine reading of a sensor that wasn't, most of them.
+	private boolean clearInError(int handle) {
+		AtomicLongArray[] pages = inError;
+		if (handle == SensorIdInterner.NO_HANDLE || handle / PAGE >= pages.length || pages[handle / PAGE] == null) {
+			return false;
+		}
+
+		AtomicLongArray page = pages[handle / PAGE];
+		int word = (handle % PAGE) / 64;
+		long bit = 1L << (handle % 64);
+		long bits;
+		while (((bits = page.get(word)) & bit) != 0) {
+			if (page.compareAndSet(word, bits, bits & ~bit)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private AtomicLongArray getPage(int index) {
+		AtomicLongArray[] pages = inError;
+		if (index < pages.length && pages[index] != null) {
+			return pages[index];
+		}
+
+		synchronized (this) {
+			pages = inError;
+			if (index >= pages.length) {
+				AtomicLongArray[] grown = new AtomicLongArray[Math.max(index + 1, pages.length * 2)];
+				System.arraycopy(pages, 0, grown, 0, pages.length);
+				pages = grown;
+			}
+			if (pages[index] == null) {
+				pages[index] = new AtomicLongArray(PAGE / 64);
+			}
+			inError = pages;
+
+			return pages[index];
+		}
+	}
+}
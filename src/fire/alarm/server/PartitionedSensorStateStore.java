@@ -0,0 +1,356 @@
+package fire.alarm.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The state of the sensors split over several SensorStateStores, a sensor always in the same one (by the hash of its id,
+ * as the IngestPipeline picks the thread of a stage). With as many store threads as partitions each thread writes
+ * a single partition, its registry, index and change log, and no other thread ever takes that partition's lock;
+ * the store stage then scales with the threads instead of taking turns on one lock.
+ *
+ * What is still shared;
+ * 		the version counter, every change takes the next number so monitors keep syncing by one version,
+ * 		the thresholds, by handle, read by the validate stage and only written when they are set.
+ * A handle is the partition's handle times the number of partitions plus the partition, so handles stay dense.
+ *
+ * Queries ask every partition and merge what they return; syncs and snapshots lock every partition, in order,
+ * so that they see no change half made. Each partition is backed by a file of its own, <registry file>.<partition>,
+ * a restart with another number of partitions starts from empty files.
+ */
+public class PartitionedSensorStateStore implements ISensorStateStore {
+
+	private final SensorStateStore[] partitions;
+	private final AtomicLong versions = new AtomicLong();
+	private final SensorThresholds thresholds = new SensorThresholds();
+
+
+	// In memory partitions.
+	public PartitionedSensorStateStore(int partitions) {
+		this.partitions = new SensorStateStore[partitions];
+		for (int partition = 0; partition < partitions; partition++) {
+			this.partitions[partition] = new SensorStateStore(versions);
+		}
+	}
+
+	public PartitionedSensorStateStore(File registryFile, int partitions) throws IOException {
+		this.partitions = new SensorStateStore[partitions];
+		for (int partition = 0; partition < partitions; partition++) {
+			this.partitions[partition] = new SensorStateStore(new File(registryFile.getPath() + "." + partition), versions);
+			versions.set(Math.max(versions.get(), this.partitions[partition].getVersion()));
+		}
+	}
+
+	public static PartitionedSensorStateStore open(String registryFile, int partitions) {
+		if (registryFile == null) {
+			return new PartitionedSensorStateStore(partitions);
+		}
+
+		try {
+			return new PartitionedSensorStateStore(new File(registryFile), partitions);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not open the sensor registry " + registryFile, e);
+		}
+	}
+
+	public int getPartitions() {
+		return partitions.length;
+	}
+
+	public int getPartition(String sensorId) {
+		return (sensorId.hashCode() & 0x7FFFFFFF) % partitions.length;
+	}
+
+
+	// Readings, each in the partition of its sensor.
+	public long put(String sensorId, FireSensorData fireSensorData) {
+		int partition = getPartition(sensorId);
+		long version = partitions[partition].put(sensorId, fireSensorData);
+		fireSensorData.setHandle(toHandle(fireSensorData.getHandle(), partition));
+
+		return version;
+	}
+
+	public long put(int handle, FireSensorData fireSensorData) {
+		long version = partitions[handle % partitions.length].put(handle / partitions.length, fireSensorData);
+		fireSensorData.setHandle(handle);
+
+		return version;
+	}
+
+	public boolean putIfNewer(String sensorId, FireSensorData fireSensorData) {
+		int partition = getPartition(sensorId);
+		if (!partitions[partition].putIfNewer(sensorId, fireSensorData)) {
+			return false;
+		}
+		fireSensorData.setHandle(toHandle(fireSensorData.getHandle(), partition));
+
+		return true;
+	}
+
+	public long remove(String sensorId) {
+		return partitions[getPartition(sensorId)].remove(sensorId);
+	}
+
+	public void applyChange(String sensorId, FireSensorData fireSensorData, long changeVersion) {
+		partitions[getPartition(sensorId)].applyChange(sensorId, fireSensorData, changeVersion);
+	}
+
+	// Each partition takes its share of the snapshot, at the snapshot's version.
+	public void restore(final SensorStateSync snapshot) {
+		whileLocked(new Runnable() {
+			public void run() {
+				ArrayList<HashMap<String, FireSensorData>> shares = new ArrayList<>();
+				for (int partition = 0; partition < partitions.length; partition++) {
+					shares.add(new HashMap<String, FireSensorData>());
+				}
+				for (FireSensorData fireSensorData: snapshot.getChangedSensors().values()) {
+					shares.get(getPartition(fireSensorData.getSensorId())).put(fireSensorData.getSensorId(), fireSensorData);
+				}
+
+				for (int partition = 0; partition < partitions.length; partition++) {
+					partitions[partition].restore(new SensorStateSync(true, snapshot.getVersion(), shares.get(partition), new ArrayList<String>()));
+				}
+				versions.set(snapshot.getVersion());
+			}
+		});
+	}
+
+
+	// Sensors.
+	// Every sensor in its partition, listed in its zone; the thresholds in one update of the shared table.
+	public int[] register(SensorInventory inventory) {
+		int[] handles = new int[inventory.size()];
+		float[][] values = new float[SensorThresholds.COUNT][handles.length];
+		for (int sensor = 0; sensor < handles.length; sensor++) {
+			String sensorId = inventory.getSensorId(sensor);
+			int partition = getPartition(sensorId);
+			handles[sensor] = toHandle(partitions[partition].register(sensorId, inventory.getZone(sensor)), partition);
+			for (int threshold = 0; threshold < SensorThresholds.COUNT; threshold++) {
+				values[threshold][sensor] = inventory.getThreshold(threshold, sensor);
+			}
+		}
+		if (handles.length > 0) {
+			thresholds.update(handles, values);
+		}
+
+		return handles;
+	}
+
+	public int register(String sensorId) {
+		int partition = getPartition(sensorId);
+		return toHandle(partitions[partition].register(sensorId), partition);
+	}
+
+	public int getHandle(String sensorId) {
+		int partition = getPartition(sensorId);
+		return toHandle(partitions[partition].getHandle(sensorId), partition);
+	}
+
+	public SensorThresholds getThresholds() {
+		return thresholds;
+	}
+
+	public int setThresholds(String zone, float[] zoneThresholds) {
+		ArrayList<Integer> zoneHandles = new ArrayList<>();
+		for (int partition = 0; partition < partitions.length; partition++) {
+			for (int handle: partitions[partition].selectZone(zone)) {
+				zoneHandles.add(toHandle(handle, partition));
+			}
+		}
+
+		int[] handles = new int[zoneHandles.size()];
+		float[][] values = new float[SensorThresholds.COUNT][handles.length];
+		for (int sensor = 0; sensor < handles.length; sensor++) {
+			handles[sensor] = zoneHandles.get(sensor);
+			for (int threshold = 0; threshold < SensorThresholds.COUNT; threshold++) {
+				values[threshold][sensor] = zoneThresholds[threshold];
+			}
+		}
+		thresholds.update(handles, values);
+
+		return handles.length;
+	}
+
+
+	// State.
+	// Each partition calls the listener for its own changes, in its version order; changes of different partitions interleave.
+	public void setListener(ISensorStateListener listener) {
+		for (SensorStateStore partition: partitions) {
+			partition.setListener(listener);
+		}
+	}
+
+	public FireSensorData get(String sensorId) {
+		return partitions[getPartition(sensorId)].get(sensorId);
+	}
+
+	public long getVersion() {
+		return versions.get();
+	}
+
+	public int size() {
+		int size = 0;
+		for (SensorStateStore partition: partitions) {
+			size += partition.size();
+		}
+
+		return size;
+	}
+
+	public void flush() {
+		for (SensorStateStore partition: partitions) {
+			partition.flush();
+		}
+	}
+
+	/*
+	 * The changes of every partition after lastSeenVersion, at the version of the last change of any partition.
+	 * Taken with every partition locked, there is then no change with a version given out but not yet logged.
+	 * A snapshot if any partition can't go back that far.
+	 */
+	public SensorStateSync getChangesSince(final long lastSeenVersion) {
+		final SensorStateSync[] sync = new SensorStateSync[1];
+		whileLocked(new Runnable() {
+			public void run() {
+				HashMap<String, FireSensorData> changedSensors = new HashMap<>();
+				LinkedHashSet<String> removedSensors = new LinkedHashSet<>();
+				boolean complete = lastSeenVersion != SensorStateSync.NO_VERSION && lastSeenVersion <= versions.get();
+				for (int partition = 0; partition < partitions.length && complete; partition++) {
+					complete = partitions[partition].addChangesSince(lastSeenVersion, changedSensors, removedSensors);
+				}
+
+				sync[0] = complete ? new SensorStateSync(false, versions.get(), changedSensors, new ArrayList<>(removedSensors)) : getSnapshot();
+			}
+		});
+
+		return sync[0];
+	}
+
+	public SensorStateSync getSnapshot() {
+		final SensorStateSync[] sync = new SensorStateSync[1];
+		whileLocked(new Runnable() {
+			public void run() {
+				HashMap<String, FireSensorData> sensors = new HashMap<>();
+				for (SensorStateStore partition: partitions) {
+					sensors.putAll(partition.getSnapshot().getChangedSensors());
+				}
+
+				sync[0] = new SensorStateSync(true, versions.get(), sensors, new ArrayList<String>());
+			}
+		});
+
+		return sync[0];
+	}
+
+	// Locks the partitions one after the other, always in the same order.
+	public void whileLocked(Runnable action) {
+		whileLocked(0, action);
+	}
+
+	private void whileLocked(int partition, Runnable action) {
+		if (partition == partitions.length) {
+			action.run();
+			return;
+		}
+
+		synchronized (partitions[partition]) {
+			whileLocked(partition + 1, action);
+		}
+	}
+
+
+	// Queries.
+	// The best limit of each partition are enough to find the best limit of all.
+	public ArrayList<FireSensorData> querySensors(String metric, double low, double high, String zone, int limit) {
+		ArrayList<FireSensorData> found = new ArrayList<>();
+		for (SensorStateStore partition: partitions) {
+			found.addAll(partition.querySensors(metric, low, high, zone, limit));
+		}
+
+		return best(found, SensorQueryIndex.getMetric(metric), true, limit);
+	}
+
+	public ArrayList<FireSensorData> queryTop(String metric, int k, boolean highest, String zone) {
+		ArrayList<FireSensorData> found = new ArrayList<>();
+		for (SensorStateStore partition: partitions) {
+			found.addAll(partition.queryTop(metric, k, highest, zone));
+		}
+
+		return best(found, SensorQueryIndex.getMetric(metric), highest, k);
+	}
+
+	public ArrayList<FireSensorData> querySilent(long silentMillis, String zone, int limit) {
+		final HashMap<FireSensorData, Long> lastSeen = new HashMap<>();
+		ArrayList<FireSensorData> found = new ArrayList<>();
+		for (SensorStateStore partition: partitions) {
+			for (FireSensorData fireSensorData: partition.querySilent(silentMillis, zone, limit)) {
+				lastSeen.put(fireSensorData, partition.getLastSeen(fireSensorData.getSensorId()));
+				found.add(fireSensorData);
+			}
+		}
+
+		// longest silent first.
+		Collections.sort(found, new Comparator<FireSensorData>() {
+			public int compare(FireSensorData a, FireSensorData b) {
+				return Long.compare(lastSeen.get(a), lastSeen.get(b));
+			}
+		});
+
+		return new ArrayList<>(found.subList(0, Math.min(limit, found.size())));
+	}
+
+	public ArrayList<String> queryMissing(String zone, int limit) {
+		ArrayList<String> sensorIds = new ArrayList<>();
+		for (int partition = 0; partition < partitions.length && sensorIds.size() < limit; partition++) {
+			sensorIds.addAll(partitions[partition].queryMissing(zone, limit - sensorIds.size()));
+		}
+
+		return sensorIds;
+	}
+
+	public int getMissingCount() {
+		int missing = 0;
+		for (SensorStateStore partition: partitions) {
+			missing += partition.getMissingCount();
+		}
+
+		return missing;
+	}
+
+
+	private int toHandle(int partitionHandle, int partition) {
+		return partitionHandle == SensorIdInterner.NO_HANDLE ? SensorIdInterner.NO_HANDLE : partitionHandle * partitions.length + partition;
+	}
+
+	private static ArrayList<FireSensorData> best(ArrayList<FireSensorData> found, final int metric, final boolean highest, int limit) {
+		Collections.sort(found, new Comparator<FireSensorData>() {
+			public int compare(FireSensorData a, FireSensorData b) {
+				int order = Double.compare(valueOf(a, metric), valueOf(b, metric));
+				return highest ? -order : order;
+			}
+		});
+
+		return new ArrayList<>(found.subList(0, Math.min(limit, found.size())));
+	}
+
+	private static double valueOf(FireSensorData fireSensorData, int metric) {
+		switch (metric) {
+		case SensorQueryIndex.TEMPERATURE:
+			return fireSensorData.getTemperature();
+		case SensorQueryIndex.BATTERY:
+			return fireSensorData.getBatteryPercentage();
+		case SensorQueryIndex.SMOKE:
+			return fireSensorData.getSmokeLevel();
+		default:
+			return fireSensorData.getCo2Level();
+		}
+	}
+}
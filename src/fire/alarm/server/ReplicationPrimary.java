@@ -0,0 +1,220 @@
+package fire.alarm.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import fire.monitor.IRmiListener;
+
+/*
+ * Streams every accepted reading, sensor removal and monitor (un)registration to a standby server.
+ *
+ * Changes are queued while the store is locked and a separate thread writes them to the standby in batches,
+ * without waiting for the standby to acknowledge each of them (the standby acknowledges in the background).
+ * Hence ingest never waits for the standby; if the standby falls so far behind that the queue is full,
+ * it is disconnected and receives a fresh snapshot when it reconnects.
+ *
+ * Only one standby is served at a time.
+ */
+public class ReplicationPrimary implements ISensorStateListener, Runnable {
+
+	private static final int QUEUE_CAPACITY = 65536;
+	private static final int MAX_BATCH = 512;				// records written before each flush.
+	private static final long HEARTBEAT_INTERVAL = 200;	// millis, must be well below the standby's failover timeout.
+
+	private int port;
+	private ISensorStateStore store;
+	private RmiServerFacade rmiServer;
+
+	private ArrayBlockingQueue<ReplicationRecord> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	private volatile boolean standbyConnected = false;
+	private long sequence = 0;
+
+	// stats, as acknowledged by the standby.
+	private volatile long ackedSequence = 0;
+	private volatile long lastLagMillis = 0;
+	private volatile long droppedRecords = 0;
+
+
+	public ReplicationPrimary(int port, ISensorStateStore store, RmiServerFacade rmiServer) {
+		this.port = port;
+		this.store = store;
+		this.rmiServer = rmiServer;
+	}
+
+	public void start() {
+		store.setListener(this);
+
+		Thread t = new Thread(this, "replication-primary");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/*
+	 * Called by the store for every change, while it is locked.
+	 * (non-Javadoc)
+	 * @see fire.alarm.server.ISensorStateListener#onChange(java.lang.String, fire.alarm.server.FireSensorData, long)
+	 */
+	public void onChange(String sensorId, FireSensorData fireSensorData, long version) {
+		enqueue(ReplicationRecord.change(sensorId, fireSensorData, version));
+	}
+
+	public void replicateMonitor(IRmiListener monitor, boolean added) {
+		enqueue(ReplicationRecord.monitor(monitor, added));
+	}
+
+	private synchronized void enqueue(ReplicationRecord record) {
+		if (!standbyConnected) {
+			return;
+		}
+
+		record.setSequence(++sequence);
+		if (!queue.offer(record)) {
+			// too far behind, start over with a snapshot.
+			standbyConnected = false;
+			droppedRecords++;
+		}
+	}
+
+
+	/*
+	 * Accepts standby servers one after the other.
+	 */
+	public void run() {
+		try (ServerSocket listener = new ServerSocket(port)) {
+			System.out.println("Replicating to standby on port " + port);
+			while (true) {
+				Socket standby = listener.accept();
+				System.out.println("Standby connected from " + standby.getRemoteSocketAddress());
+				serveStandby(standby);
+				System.err.println("Standby disconnected.");
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void serveStandby(final Socket standby) {
+		try {
+			standby.setTcpNoDelay(true);
+			ObjectOutputStream out = new ObjectOutputStream(standby.getOutputStream());
+			final DataInputStream acks = new DataInputStream(standby.getInputStream());
+
+			// the snapshot and the start of the stream must be taken with the store locked,
+			// otherwise a change could be missed or applied twice.
+			store.whileLocked(new Runnable() {
+				public void run() {
+					synchronized (ReplicationPrimary.this) {
+						queue.clear();
+						standbyConnected = true;
+						enqueue(ReplicationRecord.snapshot(store.getSnapshot(), rmiServer.getMonitors()));
+					}
+				}
+			});
+
+			Thread ackReader = new Thread(new Runnable() {
+				public void run() {
+					readAcks(acks);
+				}
+			}, "replication-acks");
+			ackReader.setDaemon(true);
+			ackReader.start();
+
+			ArrayList<ReplicationRecord> batch = new ArrayList<>(MAX_BATCH);
+			while (standbyConnected) {
+				ReplicationRecord first = queue.poll(HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					out.writeObject(ReplicationRecord.heartbeat());
+				}
+				else {
+					batch.add(first);
+					queue.drainTo(batch, MAX_BATCH - 1);
+					for (ReplicationRecord record: batch) {
+						out.writeObject(record);
+					}
+					batch.clear();
+				}
+
+				out.flush();
+				// do not let the stream hold on to every object written so far.
+				out.reset();
+			}
+		}
+		catch (IOException | InterruptedException e) {
+			// standby is gone.
+		}
+		finally {
+			standbyConnected = false;
+			try {
+				standby.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// The standby sends the sequence number it has applied, followed by the lag it measured.
+	private void readAcks(DataInputStream acks) {
+		try {
+			while (true) {
+				ackedSequence = acks.readLong();
+				lastLagMillis = acks.readLong();
+			}
+		}
+		catch (IOException e) {
+			standbyConnected = false;
+		}
+	}
+
+
+	// Waits until the standby applied everything sent so far, or is gone; returns false if it is still behind at the deadline (millis).
+	public boolean awaitAcked(long deadline) {
+		while (standbyConnected && getRecordsBehind() > 0) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			try {
+				Thread.sleep(10);
+			}
+			catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+
+	// Getters for replication stats.
+	public boolean isStandbyConnected() {
+		return standbyConnected;
+	}
+
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	public long getAckedSequence() {
+		return ackedSequence;
+	}
+
+	// Records sent but not yet applied by the standby.
+	public long getRecordsBehind() {
+		return getSequence() - ackedSequence;
+	}
+
+	public long getLastLagMillis() {
+		return lastLagMillis;
+	}
+
+	public long getDroppedRecords() {
+		return droppedRecords;
+	}
+}
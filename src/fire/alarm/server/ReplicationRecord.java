@@ -0,0 +1,111 @@
+package fire.alarm.server;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import fire.monitor.IRmiListener;
+
+/*
+ * A single change streamed from the primary server to its standby.
+ * Records are numbered in the order they are sent, the standby acknowledges them by that sequence number.
+ */
+public class ReplicationRecord implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int SNAPSHOT = 0;			// whole state, always the first record after the standby connects.
+	public static final int READING = 1;
+	public static final int REMOVAL = 2;
+	public static final int MONITOR_ADDED = 3;
+	public static final int MONITOR_REMOVED = 4;
+	public static final int HEARTBEAT = 5;			// sent when there's nothing else, so the standby knows the primary is alive.
+
+	private int type;
+	private long sequence;
+	private long createdAt;	// millis, the standby measures the replication lag from this.
+
+	private String sensorId;
+	private FireSensorData fireSensorData;
+	private long version;
+	private IRmiListener monitor;
+
+	private SensorStateSync snapshot;
+	private ArrayList<IRmiListener> monitors;
+
+
+	private ReplicationRecord(int type) {
+		this.type = type;
+		this.createdAt = System.currentTimeMillis();
+	}
+
+	public static ReplicationRecord change(String sensorId, FireSensorData fireSensorData, long version) {
+		ReplicationRecord record = new ReplicationRecord(fireSensorData != null ? READING : REMOVAL);
+		record.sensorId = sensorId;
+		record.fireSensorData = fireSensorData;
+		record.version = version;
+
+		return record;
+	}
+
+	public static ReplicationRecord monitor(IRmiListener monitor, boolean added) {
+		ReplicationRecord record = new ReplicationRecord(added ? MONITOR_ADDED : MONITOR_REMOVED);
+		record.monitor = monitor;
+
+		return record;
+	}
+
+	public static ReplicationRecord snapshot(SensorStateSync snapshot, ArrayList<IRmiListener> monitors) {
+		ReplicationRecord record = new ReplicationRecord(SNAPSHOT);
+		record.snapshot = snapshot;
+		record.monitors = monitors;
+
+		return record;
+	}
+
+	public static ReplicationRecord heartbeat() {
+		return new ReplicationRecord(HEARTBEAT);
+	}
+
+
+	// Getters.
+	public int getType() {
+		return type;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	public String getSensorId() {
+		return sensorId;
+	}
+
+	public FireSensorData getFireSensorData() {
+		return fireSensorData;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public IRmiListener getMonitor() {
+		return monitor;
+	}
+
+	public SensorStateSync getSnapshot() {
+		return snapshot;
+	}
+
+	public ArrayList<IRmiListener> getMonitors() {
+		return monitors;
+	}
+
+	// Set by the primary when the record is queued.
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+}
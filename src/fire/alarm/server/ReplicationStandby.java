@@ -0,0 +1,133 @@
+package fire.alarm.server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/*
+ * Keeps a copy of the primary server's state, ready to take over.
+ *
+ * The standby applies the primary's stream to its own store and monitor list, keeping the primary's versions,
+ * so monitors can keep syncing with the versions they already have after a failover.
+ * If nothing (not even a heartbeat) arrives for FAILOVER_TIMEOUT, and the primary cannot be reached again
+ * within that time, the primary is considered dead and waitForFailover() returns.
+ */
+public class ReplicationStandby {
+
+	private static final long FAILOVER_TIMEOUT = 2000;	// millis.
+	private static final long RECONNECT_INTERVAL = 100;
+	private static final int ACK_INTERVAL = 256;		// records applied between acks, heartbeats are always acked.
+
+	private String primaryHost;
+	private int primaryPort;
+	private ISensorStateStore store;
+	private RmiServerFacade rmiServer;
+
+	private long lastHeard;
+	private long appliedSequence = 0;
+
+	// stats.
+	private volatile long maxLagMillis = 0;
+	private volatile double averageLagMillis = 0;	// exponentially weighted.
+
+
+	public ReplicationStandby(String primaryHost, int primaryPort, ISensorStateStore store, RmiServerFacade rmiServer) {
+		this.primaryHost = primaryHost;
+		this.primaryPort = primaryPort;
+		this.store = store;
+		this.rmiServer = rmiServer;
+	}
+
+	/*
+	 * Replicates from the primary, reconnecting as needed, and returns once the primary is considered dead.
+	 * Takeover therefore happens at most FAILOVER_TIMEOUT after the last record received.
+	 */
+	public void waitForFailover() {
+		lastHeard = System.currentTimeMillis();
+
+		while (System.currentTimeMillis() - lastHeard < FAILOVER_TIMEOUT) {
+			try (Socket primary = new Socket(primaryHost, primaryPort)) {
+				primary.setSoTimeout((int) FAILOVER_TIMEOUT);
+				replicate(primary);
+			}
+			catch (SocketTimeoutException e) {
+				System.err.println("Primary is silent.");
+			}
+			catch (IOException | ClassNotFoundException e) {
+				// primary not reachable (yet), try again until the timeout.
+				try {
+					Thread.sleep(RECONNECT_INTERVAL);
+				}
+				catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+
+		System.err.println("Primary lost, taking over at version " + store.getVersion());
+	}
+
+	private void replicate(Socket primary) throws IOException, ClassNotFoundException {
+		DataOutputStream acks = new DataOutputStream(primary.getOutputStream());
+		ObjectInputStream in = new ObjectInputStream(primary.getInputStream());
+		System.out.println("Replicating from " + primaryHost + ":" + primaryPort);
+
+		int unacked = 0;
+		while (true) {
+			ReplicationRecord record = (ReplicationRecord) in.readObject();
+			lastHeard = System.currentTimeMillis();
+			apply(record);
+
+			if (record.getType() == ReplicationRecord.HEARTBEAT || ++unacked >= ACK_INTERVAL) {
+				acks.writeLong(appliedSequence);
+				acks.writeLong((long) averageLagMillis);
+				acks.flush();
+				unacked = 0;
+			}
+		}
+	}
+
+	private void apply(ReplicationRecord record) {
+		switch (record.getType()) {
+			case ReplicationRecord.SNAPSHOT:
+				store.restore(record.getSnapshot());
+				rmiServer.replaceMonitors(record.getMonitors());
+				break;
+			case ReplicationRecord.READING:
+			case ReplicationRecord.REMOVAL:
+				store.applyChange(record.getSensorId(), record.getFireSensorData(), record.getVersion());
+				break;
+			case ReplicationRecord.MONITOR_ADDED:
+				rmiServer.addMonitor(record.getMonitor());
+				break;
+			case ReplicationRecord.MONITOR_REMOVED:
+				rmiServer.removeMonitor(record.getMonitor());
+				break;
+			default:
+				// heartbeat, nothing to apply.
+				return;
+		}
+
+		appliedSequence = record.getSequence();
+
+		long lag = lastHeard - record.getCreatedAt();
+		maxLagMillis = Math.max(maxLagMillis, lag);
+		averageLagMillis = averageLagMillis * 0.99 + lag * 0.01;
+	}
+
+
+	// Getters for replication stats.
+	public long getMaxLagMillis() {
+		return maxLagMillis;
+	}
+
+	public double getAverageLagMillis() {
+		return averageLagMillis;
+	}
+
+	public long getAppliedSequence() {
+		return appliedSequence;
+	}
+}
@@ -0,0 +1,222 @@
+package fire.alarm.server;
+
+import java.rmi.ConnectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+
+import fire.monitor.IRmiListener;
+
+/*
+ * What the monitors see of the server over RMI.
+ *
+ * There is exactly one facade per server process, exported once and bound once at startup,
+ * no matter how many sensors are connected. It is backed by the same SensorStateStore that the sensor threads write to,
+ * and keeps the list of subscribed monitors.
+ */
+public class RmiServerFacade extends UnicastRemoteObject implements IRmiServer {
+
+	private static final long serialVersionUID = 1L;
+
+	private ISensorStateStore sensorAndData;
+	private ArrayList<IRmiListener> monitors = new ArrayList<>();
+
+	// null unless a standby is configured.
+	private ReplicationPrimary replication;
+
+
+	// Exports the facade, the constructor of UnicastRemoteObject does so.
+	public RmiServerFacade(ISensorStateStore sensorAndData) throws RemoteException {
+		this.sensorAndData = sensorAndData;
+	}
+
+	public void setReplication(ReplicationPrimary replication) {
+		this.replication = replication;
+	}
+
+	/*
+	 * Binds the facade to the local RMI registry, starting one in this JVM if there's none running.
+	 * rebind replaces a stale stub left behind by a previous run of the server.
+	 */
+	public void bindToRegistry() throws RemoteException {
+		Registry registry = LocateRegistry.getRegistry();
+		try {
+			registry.rebind(BIND_NAME, this);
+		}
+		catch (ConnectException e) {
+			registry = LocateRegistry.createRegistry(Registry.REGISTRY_PORT);
+			registry.rebind(BIND_NAME, this);
+		}
+	}
+
+	public void unbindFromRegistry() {
+		try {
+			LocateRegistry.getRegistry().unbind(BIND_NAME);
+		}
+		catch (RemoteException | NotBoundException e) {
+			// already gone.
+		}
+	}
+
+
+	/*
+	 * Here listeners are the monitors that observes the sensors' data.
+	 *
+	 * (non-Javadoc)
+	 * @see fire.alarm.server.IRmiServer#addMonitor(fire.monitor.IRmiListener)
+	 */
+	public void addMonitor(IRmiListener monitor) {
+		synchronized (monitors) {
+			// a reconnecting monitor may still be in the list.
+			if (!monitors.contains(monitor)) {
+				monitors.add(monitor);
+				if (replication != null) {
+					replication.replicateMonitor(monitor, true);
+				}
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see fire.alarm.server.IRmiServer#removeMonitor(fire.monitor.IRmiListener)
+	 */
+	public void removeMonitor(IRmiListener monitor) {
+		synchronized (monitors) {
+			if (monitors.remove(monitor) && replication != null) {
+				replication.replicateMonitor(monitor, false);
+			}
+		}
+	}
+
+	/*
+	 * Registers the monitor and hands it the state it is missing, in one step.
+	 * The store is locked while doing so, therefore no reading can be stored between taking the sync
+	 * and adding the monitor; a reading stored right after is both in the sync and notified,
+	 * and the monitor skips it by its version.
+	 *
+	 * (non-Javadoc)
+	 * @see fire.alarm.server.IRmiServer#subscribe(fire.monitor.IRmiListener, long)
+	 */
+	public SensorStateSync subscribe(final IRmiListener monitor, final long lastSeenVersion) {
+		final SensorStateSync[] sync = new SensorStateSync[1];
+		sensorAndData.whileLocked(new Runnable() {
+			public void run() {
+				addMonitor(monitor);
+				sync[0] = sensorAndData.getChangesSince(lastSeenVersion);
+			}
+		});
+
+		return sync[0];
+	}
+
+	/*
+	 * Lets an already subscribed monitor poll for anything it may have missed.
+	 *
+	 * (non-Javadoc)
+	 * @see fire.alarm.server.IRmiServer#syncState(long)
+	 */
+	public SensorStateSync syncState(long lastSeenVersion) {
+		return sensorAndData.getChangesSince(lastSeenVersion);
+	}
+
+	/*
+	 * Queries, straight from the store's indexes.
+	 *
+	 * (non-Javadoc)
+	 * @see fire.alarm.server.IRmiServer#querySensors(java.lang.String, double, double, java.lang.String, int)
+	 */
+	public ArrayList<FireSensorData> querySensors(String metric, double low, double high, String zone, int limit) {
+		return sensorAndData.querySensors(metric, low, high, zone, limit);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see fire.alarm.server.IRmiServer#queryTop(java.lang.String, int, boolean, java.lang.String)
+	 */
+	public ArrayList<FireSensorData> queryTop(String metric, int k, boolean highest, String zone) {
+		return sensorAndData.queryTop(metric, k, highest, zone);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see fire.alarm.server.IRmiServer#querySilent(long, java.lang.String, int)
+	 */
+	public ArrayList<FireSensorData> querySilent(long silentMillis, String zone, int limit) {
+		return sensorAndData.querySilent(silentMillis, zone, limit);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see fire.alarm.server.IRmiServer#queryMissing(java.lang.String, int)
+	 */
+	public ArrayList<String> queryMissing(String zone, int limit) {
+		return sensorAndData.queryMissing(zone, limit);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see fire.alarm.server.IRmiServer#setThresholds(java.lang.String, float[])
+	 */
+	public int setThresholds(String zone, float[] thresholds) {
+		if (thresholds.length != SensorThresholds.COUNT) {
+			throw new IllegalArgumentException("Expected " + SensorThresholds.COUNT + " thresholds, got " + thresholds.length);
+		}
+
+		return sensorAndData.setThresholds(zone, thresholds);
+	}
+
+	// Take a copy so that a slow monitor does not block others from (un)subscribing.
+	public ArrayList<IRmiListener> getMonitors() {
+		synchronized (monitors) {
+			return new ArrayList<>(monitors);
+		}
+	}
+
+	// Used by the standby to take the primary's monitors.
+	public void replaceMonitors(ArrayList<IRmiListener> primaryMonitors) {
+		synchronized (monitors) {
+			monitors.clear();
+			monitors.addAll(primaryMonitors);
+		}
+	}
+
+	/*
+	 * This method is responsible for notifying all the listening monitors if there's new data.
+	 *
+	 * (non-Javadoc)
+	 * @see fire.alarm.server.IRmiServer#notifyMonitors(fire.alarm.server.FireSensorData)
+	 */
+	public void notifyMonitors(FireSensorData sensorData) {
+		for(IRmiListener monitor: getMonitors()) {
+			try {
+				monitor.onData(sensorData);
+			}
+			catch (RemoteException re) {
+				// monitor is gone, it will get what it missed when it subscribes again.
+				removeMonitor(monitor);
+			}
+		}
+	}
+
+	/*
+	 * Same as the above method but conveys error strings instead of data.
+	 * Thereofore, the monitor's error handling method should be called!
+	 *
+	 * (non-Javadoc)
+	 * @see fire.alarm.server.IRmiServer#notifyMonitors(java.lang.String)
+	 */
+	public void notifyMonitors(String error) {
+		for(IRmiListener monitor: getMonitors()) {
+			try {
+				monitor.onError(error);
+			}
+			catch (RemoteException re) {
+				removeMonitor(monitor);
+			}
+		}
+	}
+}
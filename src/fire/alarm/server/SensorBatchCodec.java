@@ -0,0 +1,103 @@
+package fire.alarm.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Encoding of readings sent in bulk, e.g. the backlog a sensor kept while the server was unreachable.
+ *
+ * A reading is written as "key=value;key=value" and readings are separated by new lines,
+ * then the whole batch is deflated. Readings of the same sensor repeat the same keys and mostly the same values,
+ * so a batch compresses far better than readings sent one by one.
+ */
+public class SensorBatchCodec {
+
+	// a batch comes from the network, it must not inflate into more than this (bytes).
+	private static final int MAX_BATCH_SIZE = 16 << 20;
+
+	public static String encodeReading(HashMap<String, String> sensorData) {
+		StringBuilder reading = new StringBuilder();
+		for (Map.Entry<String, String> field: sensorData.entrySet()) {
+			if (reading.length() > 0) {
+				reading.append(';');
+			}
+			reading.append(field.getKey()).append('=').append(field.getValue());
+		}
+
+		return reading.toString();
+	}
+
+	public static HashMap<String, String> decodeReading(String reading) {
+		HashMap<String, String> sensorData = new HashMap<>();
+		for (String field: reading.split(";")) {
+			int separator = field.indexOf('=');
+			if (separator > 0) {
+				sensorData.put(field.substring(0, separator), field.substring(separator + 1));
+			}
+		}
+
+		return sensorData;
+	}
+
+	public static byte[] compress(ArrayList<HashMap<String, String>> readings) {
+		StringBuilder batch = new StringBuilder();
+		for (HashMap<String, String> sensorData: readings) {
+			batch.append(encodeReading(sensorData)).append('\n');
+		}
+
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(batch.toString().getBytes(StandardCharsets.UTF_8));
+		deflater.finish();
+
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		byte[] chunk = new byte[4096];
+		while (!deflater.finished()) {
+			compressed.write(chunk, 0, deflater.deflate(chunk));
+		}
+		deflater.end();
+
+		return compressed.toByteArray();
+	}
+
+	public static ArrayList<HashMap<String, String>> decompress(byte[] compressed) throws IOException {
+		Inflater inflater = new Inflater();
+		inflater.setInput(compressed);
+
+		ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		byte[] chunk = new byte[4096];
+		try {
+			while (!inflater.finished()) {
+				int inflated = inflater.inflate(chunk);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("Truncated batch.");
+				}
+				batch.write(chunk, 0, inflated);
+				if (batch.size() > MAX_BATCH_SIZE) {
+					throw new IOException("Batch inflates to more than " + MAX_BATCH_SIZE + " bytes.");
+				}
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Corrupt batch.", e);
+		}
+		finally {
+			inflater.end();
+		}
+
+		ArrayList<HashMap<String, String>> readings = new ArrayList<>();
+		for (String reading: new String(batch.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+			if (!reading.isEmpty()) {
+				readings.add(decodeReading(reading));
+			}
+		}
+
+		return readings;
+	}
+}
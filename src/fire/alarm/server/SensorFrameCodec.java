@@ -0,0 +1,414 @@
+package fire.alarm.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Wire format between sensors (or gateways) and the server, in place of Java serialization.
+ * Nothing is instantiated by name, the decoder only ever builds hashmaps of strings, and only from an allowlist of fields.
+ *
+ * A frame is;
+ * 		length (int, of what follows), type (byte), body
+ * with the body of each type being;
+ * 		READING		a reading
+ * 		BATCH		count (short), that many readings (a gateway's multiplexed readings)
+ * 		BACKFILL	the rest of the frame is a SensorBatchCodec batch
+ * 		HELLO		count (short), that many sensor ids (UTF), the sensors the connection is about to send readings of
+ * 		GOAWAY		retry millis (int), redirect host:port (UTF, empty for none), from the server; see SensorGoAway
+ * and a reading being;
+ * 		field count (byte), then per field: code (byte, index in FIELDS), value (UTF, ASCII only)
+ *
+ * A connection numbers the sensors it declares in HELLO frames 0, 1, 2, ... in order, and their readings carry that
+ * number ("sensor") instead of the id; the id goes over the wire once per connection (see SensorFrameWriter).
+ * The SensorFrameReader puts the declared id back, the same String every time. Readings may still carry their id.
+ *
+ * The length is read first and the whole frame with it, so a frame that fails validation is dropped on its own
+ * and the next frame is read as usual. Only a length that can't be right (the stream is out of step) ends the connection.
+ */
+public class SensorFrameCodec {
+
+	public static final byte READING = 1;
+	public static final byte BATCH = 2;
+	public static final byte BACKFILL = 3;
+	public static final byte HELLO = 4;
+	public static final byte GOAWAY = 5;
+
+	public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+	// the only fields a reading may carry, the code of a field is its index.
+	static final String[] FIELDS = {"sensorId", "temperature", "battery", "smoke", "co2", "timestamp", "backfill", "delta", "sensor"};
+	private static final int SENSOR_ID = 0, SENSOR = 8;
+	static final int NO_SENSOR = -1;		// a reading written with its sensorId.
+	private static final int MAX_VALUE_LENGTH = 32;
+
+	// field kinds, in the order of FIELDS.
+	private static final int ID = 0, DECIMAL = 1, INT = 2, LONG = 3, FLAG = 4;
+	private static final int[] KINDS = {ID, DECIMAL, INT, INT, DECIMAL, LONG, FLAG, FLAG, INT};
+
+	private static final HashMap<String, Integer> CODES = new HashMap<>();
+	static {
+		for (int code = 0; code < FIELDS.length; code++) {
+			CODES.put(FIELDS[code], code);
+		}
+	}
+
+
+	// Writing.
+	public static void writeReading(DataOutputStream out, HashMap<String, String> sensorData) throws IOException {
+		writeReading(out, sensorData, NO_SENSOR);
+	}
+
+	public static void writeBatch(DataOutputStream out, List<HashMap<String, String>> readings) throws IOException {
+		writeBatch(out, readings, null);
+	}
+
+	// The number a sensor was declared by takes the place of its id, NO_SENSOR to send the id.
+	static void writeReading(DataOutputStream out, HashMap<String, String> sensorData, int sensor) throws IOException {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(128);
+		DataOutputStream body = new DataOutputStream(frame);
+		body.writeByte(READING);
+		writeFields(body, sensorData, sensor);
+
+		writeFrame(out, frame);
+	}
+
+	// sensors, if not null, has the declared number of each reading.
+	static void writeBatch(DataOutputStream out, List<HashMap<String, String>> readings, int[] sensors) throws IOException {
+		if (readings.size() > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Batch of " + readings.size() + " readings, at most " + Short.MAX_VALUE + " per frame.");
+		}
+
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(128 * readings.size());
+		DataOutputStream body = new DataOutputStream(frame);
+		body.writeByte(BATCH);
+		body.writeShort(readings.size());
+		for (int i = 0; i < readings.size(); i++) {
+			writeFields(body, readings.get(i), sensors != null ? sensors[i] : NO_SENSOR);
+		}
+
+		writeFrame(out, frame);
+	}
+
+	static void writeHello(DataOutputStream out, List<String> sensorIds) throws IOException {
+		if (sensorIds.size() > Short.MAX_VALUE) {
+			throw new IllegalArgumentException(sensorIds.size() + " sensors declared, at most " + Short.MAX_VALUE + " per frame.");
+		}
+
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(16 * sensorIds.size() + 3);
+		DataOutputStream body = new DataOutputStream(frame);
+		body.writeByte(HELLO);
+		body.writeShort(sensorIds.size());
+		for (String sensorId: sensorIds) {
+			body.writeUTF(sensorId);
+		}
+
+		writeFrame(out, frame);
+	}
+
+	// Sent by the server, the only frame going that way.
+	public static void writeGoAway(DataOutputStream out, SensorGoAway goAway) throws IOException {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(32);
+		DataOutputStream body = new DataOutputStream(frame);
+		body.writeByte(GOAWAY);
+		body.writeInt(goAway.getRetryMillis());
+		body.writeUTF(goAway.getRedirect() != null ? goAway.getRedirect() : "");
+
+		writeFrame(out, frame);
+	}
+
+	public static void writeBackfill(DataOutputStream out, byte[] batch) throws IOException {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(batch.length + 1);
+		frame.write(BACKFILL);
+		frame.write(batch);
+
+		writeFrame(out, frame);
+	}
+
+	private static void writeFrame(DataOutputStream out, ByteArrayOutputStream frame) throws IOException {
+		if (frame.size() > MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException("Frame of " + frame.size() + " bytes, at most " + MAX_FRAME_LENGTH + ".");
+		}
+
+		out.writeInt(frame.size());
+		frame.writeTo(out);
+	}
+
+	// With a declared sensor, its number goes in place of the sensorId.
+	private static void writeFields(DataOutputStream body, HashMap<String, String> sensorData, int sensor) throws IOException {
+		body.writeByte(sensorData.size());
+		for (Map.Entry<String, String> field: sensorData.entrySet()) {
+			if (sensor != NO_SENSOR && field.getKey().equals(FIELDS[SENSOR_ID])) {
+				body.writeByte(SENSOR);
+				body.writeUTF(Integer.toString(sensor));
+				continue;
+			}
+			Integer code = CODES.get(field.getKey());
+			if (code == null) {
+				throw new IllegalArgumentException("Unknown field " + field.getKey());
+			}
+			body.writeByte(code);
+			body.writeUTF(field.getValue());
+		}
+	}
+
+
+	// Reading.
+	/*
+	 * Decodes the body of a frame into what the server handles: a reading (HashMap), a batch (ArrayList of them),
+	 * a backfill batch (byte[], its readings are validated once decompressed) or the sensors a HELLO declared (String[]);
+	 * on the sensor's end, a SensorGoAway.
+	 * Readings of a batch that fail validation are left out, the rest of the batch is kept.
+	 * Readings of declared sensors get their sensorId from the reader, the String it was declared with.
+	 *
+	 * The frame is parsed in place, without a stream over it, and values must be ASCII
+	 * (what writeUTF writes for them is then ASCII as well), so they are copied straight into strings.
+	 */
+	static Object decode(byte[] frame, int length, SensorFrameReader reader) throws SensorFrameException {
+		if (length < 1) {
+			throw new SensorFrameException("Empty frame.");
+		}
+
+		Body body = new Body(frame, 1, length);
+		switch (frame[0]) {
+		case READING:
+			HashMap<String, String> sensorData = readFields(body);
+			body.checkEnd();
+			reader.resolveAndValidate(sensorData);
+			return sensorData;
+
+		case BATCH:
+			int count = body.readShort();
+			ArrayList<HashMap<String, String>> readings = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				HashMap<String, String> batchData = readFields(body);
+				try {
+					reader.resolveAndValidate(batchData);
+					readings.add(batchData);
+				}
+				catch (SensorFrameException e) {
+					reader.rejected(e);
+				}
+			}
+			body.checkEnd();
+			return readings;
+
+		case BACKFILL:
+			byte[] batch = new byte[length - 1];
+			System.arraycopy(frame, 1, batch, 0, batch.length);
+			return batch;
+
+		case HELLO:
+			int declared = body.readShort();
+			String[] sensorIds = new String[declared];
+			for (int i = 0; i < declared; i++) {
+				sensorIds[i] = body.readAscii();
+			}
+			body.checkEnd();
+			// declared even if invalid, the numbers of the sensors after them stay those the sender gave them.
+			for (int i = 0; i < declared; i++) {
+				if (!isValidSensorId(sensorIds[i])) {
+					reader.rejected(new SensorFrameException("Declared invalid sensorId " + shorten(sensorIds[i])));
+					sensorIds[i] = null;
+				}
+				sensorIds[i] = reader.declare(sensorIds[i]);
+			}
+			return sensorIds;
+
+		case GOAWAY:
+			int retryMillis = (body.readShort() << 16) | body.readShort();
+			String redirect = body.readAscii();
+			body.checkEnd();
+			if (retryMillis < 0) {
+				throw new SensorFrameException("Retry in " + retryMillis + " ms.");
+			}
+			int separator = redirect.lastIndexOf(':');
+			if (!redirect.isEmpty() && (separator < 1 || !isNumber(redirect.substring(separator + 1), false, 5))) {
+				throw new SensorFrameException("Redirect to " + shorten(redirect) + ", not host:port.");
+			}
+			return new SensorGoAway(retryMillis, redirect.isEmpty() ? null : redirect);
+
+		default:
+			throw new SensorFrameException("Unknown frame type " + frame[0]);
+		}
+	}
+
+	private static HashMap<String, String> readFields(Body body) throws SensorFrameException {
+		int count = body.readByte();
+		if (count > FIELDS.length) {
+			throw new SensorFrameException(count + " fields in a reading.");
+		}
+
+		HashMap<String, String> sensorData = new HashMap<>();
+		for (int i = 0; i < count; i++) {
+			int code = body.readByte();
+			if (code >= FIELDS.length) {
+				throw new SensorFrameException("Unknown field code " + code);
+			}
+			sensorData.put(FIELDS[code], body.readAscii());
+		}
+
+		return sensorData;
+	}
+
+	// Position in a frame being decoded, only the frame's own bytes can be read.
+	private static class Body {
+		private byte[] frame;
+		private int position;
+		private int end;
+
+		Body(byte[] frame, int position, int end) {
+			this.frame = frame;
+			this.position = position;
+			this.end = end;
+		}
+
+		int readByte() throws SensorFrameException {
+			need(1);
+			return frame[position++] & 0xFF;
+		}
+
+		int readShort() throws SensorFrameException {
+			need(2);
+			int value = ((frame[position] & 0xFF) << 8) | (frame[position + 1] & 0xFF);
+			position += 2;
+			return value;
+		}
+
+		// A value written by writeUTF.
+		String readAscii() throws SensorFrameException {
+			int length = readShort();
+			need(length);
+			for (int i = position; i < position + length; i++) {
+				if (frame[i] <= 0) {
+					throw new SensorFrameException("Value that is not ASCII.");
+				}
+			}
+
+			String value = new String(frame, position, length, StandardCharsets.ISO_8859_1);
+			position += length;
+			return value;
+		}
+
+		void checkEnd() throws SensorFrameException {
+			if (position != end) {
+				throw new SensorFrameException((end - position) + " bytes after the end of the frame.");
+			}
+		}
+
+		private void need(int bytes) throws SensorFrameException {
+			if (end - position < bytes) {
+				throw new SensorFrameException("Malformed frame, it ends " + (bytes - (end - position)) + " bytes early.");
+			}
+		}
+	}
+
+	/*
+	 * A reading is valid if it only has allowlisted fields, a sensorId the registry can hold, every measurement
+	 * unless it is a delta, and values that parse as what they are. Used on backfilled readings as well.
+	 */
+	public static void validate(HashMap<String, String> sensorData) throws SensorFrameException {
+		String sensorId = sensorData.get(FIELDS[SENSOR_ID]);
+		if (sensorId == null) {
+			throw new SensorFrameException("Reading without a sensorId.");
+		}
+		sensorId = shorten(sensorId);
+
+		boolean delta = "true".equals(sensorData.get("delta"));
+		for (int code = 0; code < FIELDS.length; code++) {
+			String value = sensorData.get(FIELDS[code]);
+			if (value == null) {
+				// the measurements are required in a full reading.
+				if (!delta && code >= 1 && code <= 4) {
+					throw new SensorFrameException(sensorId + " : reading without " + FIELDS[code]);
+				}
+				continue;
+			}
+
+			if (!isValid(KINDS[code], value)) {
+				throw new SensorFrameException(sensorId + " : invalid " + FIELDS[code] + " " + shorten(value));
+			}
+		}
+
+		if (sensorData.size() > FIELDS.length || !CODES.keySet().containsAll(sensorData.keySet())) {
+			throw new SensorFrameException(sensorId + " : reading with unknown fields.");
+		}
+	}
+
+	// Whether a sensor may go by this id, as it would in a reading.
+	public static boolean isValidSensorId(String sensorId) {
+		return isValid(ID, sensorId);
+	}
+
+	private static boolean isValid(int kind, String value) {
+		switch (kind) {
+		case ID:
+			if (value.isEmpty() || !OffHeapSensorRegistry.fits(value)) {
+				return false;
+			}
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == ':')) {
+					return false;
+				}
+			}
+			return true;
+
+		case DECIMAL:
+			return isNumber(value, true, 0);
+
+		case INT:
+			return isNumber(value, false, 9);
+
+		case LONG:
+			return isNumber(value, false, 18);
+
+		default:
+			return "true".equals(value) || "false".equals(value);
+		}
+	}
+
+	// Values end up in error messages, cut to the length of the longest valid one.
+	private static String shorten(String value) {
+		int max = Math.max(MAX_VALUE_LENGTH, OffHeapSensorRegistry.MAX_ID_BYTES);
+		return value.length() > max ? value.substring(0, max) + "..." : value;
+	}
+
+	/*
+	 * A scan instead of parsing, the value is parsed once more when it becomes FireSensorData.
+	 * Decimals are as Double.toString writes them (e.g. 89.0 or 1.0E-4), integers are plain digits,
+	 * at most maxDigits of them so that they can't overflow.
+	 */
+	private static boolean isNumber(String value, boolean decimal, int maxDigits) {
+		int length = value.length();
+		if (length == 0 || length > MAX_VALUE_LENGTH) {
+			return false;
+		}
+
+		int i = value.charAt(0) == '-' ? 1 : 0;
+		int digits = 0;
+		boolean point = false;
+		for (; i < length; i++) {
+			char c = value.charAt(i);
+			if (c >= '0' && c <= '9') {
+				digits++;
+			}
+			else if (c == '.' && decimal && !point) {
+				point = true;
+			}
+			else if ((c == 'E' || c == 'e') && decimal && digits > 0) {
+				return isNumber(value.substring(i + 1), false, 3);
+			}
+			else {
+				return false;
+			}
+		}
+
+		return digits > 0 && (decimal || digits <= maxDigits);
+	}
+}
@@ -0,0 +1,14 @@
+package fire.alarm.server;
+
+/*
+ * A frame (or a reading in it) that failed validation.
+ * The frame was read in full, so the connection it came from is still usable.
+ */
+public class SensorFrameException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public SensorFrameException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,182 @@
+package fire.alarm.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Reads the frames of one connection (see SensorFrameCodec).
+ * The frame buffer is reused from one frame to the next, it grows up to MAX_FRAME_LENGTH as needed.
+ * With an IngestRecorder set every frame read is recorded before it is decoded.
+ *
+ * It also keeps the sensors the connection declared (HELLO frames), by the number the sender gave them,
+ * and puts their id back in their readings. Each id is then one String for as long as the connection lasts,
+ * and its number (the slot) is what the server keeps the sensor by, see getSlot.
+ * Sensors sending their id in every reading are given a slot the first time they are seen.
+ */
+public class SensorFrameReader {
+
+	private DataInputStream in;
+	private byte[] frame = new byte[4096];
+	private long rejected = 0;
+
+	private IngestRecorder recorder;
+	private int connection;
+
+	public static final int MAX_SENSORS = 1 << 16;	// per connection, more are declared but their readings are rejected.
+	private ArrayList<String> sensorIds = new ArrayList<>();	// by slot, null for a sensor declared with an invalid id.
+	private HashMap<String, Integer> slots = new HashMap<>();
+	private int declared = 0;		// slots given out, past MAX_SENSORS as well.
+
+
+	public SensorFrameReader(DataInputStream in) {
+		this.in = in;
+	}
+
+	// Frames handed to decode instead of read from a stream, by the IngestReplayer.
+	SensorFrameReader() {
+	}
+
+	public void setRecorder(IngestRecorder recorder, int connection) {
+		this.recorder = recorder;
+		this.connection = connection;
+	}
+
+	/*
+	 * Returns the next reading (HashMap), batch (ArrayList of them) or backfill batch (byte[]).
+	 * Throws SensorFrameException for a frame that failed validation, the next frame can still be read;
+	 * an IOException means the connection can't be used anymore.
+	 */
+	public Object readFrame() throws IOException, SensorFrameException {
+		int length = in.readInt();
+		if (length < 0 || length > SensorFrameCodec.MAX_FRAME_LENGTH) {
+			throw new IOException("Frame length of " + length + ", the stream is out of step.");
+		}
+
+		if (length > frame.length) {
+			frame = new byte[Math.min(Math.max(length, frame.length * 2), SensorFrameCodec.MAX_FRAME_LENGTH)];
+		}
+		in.readFully(frame, 0, length);
+		if (recorder != null) {
+			recorder.frame(connection, frame, length);
+		}
+
+		return decode(frame, length);
+	}
+
+	Object decode(byte[] frame, int length) throws SensorFrameException {
+		try {
+			return SensorFrameCodec.decode(frame, length, this);
+		}
+		catch (SensorFrameException e) {
+			rejected(e);
+			throw e;
+		}
+	}
+
+	// Sensors.
+	// The next slot, for a declared sensorId; returns the String the connection keeps for it, null if the slot is unusable.
+	String declare(String sensorId) {
+		int slot = declared++;
+		if (slot >= MAX_SENSORS) {
+			rejected(new SensorFrameException("Sensor " + slot + " declared, at most " + MAX_SENSORS + " per connection."));
+			return null;
+		}
+
+		if (sensorId != null) {
+			Integer known = slots.get(sensorId);
+			if (known != null) {
+				sensorId = sensorIds.get(known);
+			}
+			else {
+				slots.put(sensorId, slot);
+			}
+		}
+		sensorIds.add(sensorId);
+
+		return sensorId;
+	}
+
+	/*
+	 * Gives a decoded reading its sensorId and validates it (see SensorFrameCodec.validate), in that order for every
+	 * reading, of a frame or of a backfill batch; a reading of an undeclared sensor is rejected as that, whatever else is wrong with it.
+	 */
+	public void resolveAndValidate(HashMap<String, String> sensorData) throws SensorFrameException {
+		resolve(sensorData);
+		SensorFrameCodec.validate(sensorData);
+	}
+
+	// Gives a reading of a declared sensor its sensorId.
+	private void resolve(HashMap<String, String> sensorData) throws SensorFrameException {
+		String sensor = sensorData.get("sensor");
+		if (sensor == null) {
+			return;
+		}
+
+		int slot = parseSlot(sensor);
+		String sensorId = slot >= 0 && slot < sensorIds.size() ? sensorIds.get(slot) : null;
+		if (sensorId == null) {
+			throw new SensorFrameException("Reading of undeclared sensor " + (slot >= 0 ? sensor : "with an invalid number"));
+		}
+		sensorData.put("sensorId", sensorId);
+	}
+
+	/*
+	 * The slot of the sensor of a decoded reading, from 0 to getSensorCount() - 1.
+	 * A sensor that sent its id gets its slot here, -1 once the connection is out of them
+	 * (or for a number no sensor was declared with, readings not passed through resolve).
+	 */
+	public int getSlot(HashMap<String, String> sensorData) {
+		String sensor = sensorData.get("sensor");
+		if (sensor != null) {
+			int slot = parseSlot(sensor);
+			return slot < getSensorCount() ? slot : -1;
+		}
+
+		Integer slot = slots.get(sensorData.get("sensorId"));
+		if (slot != null) {
+			return slot;
+		}
+		declare(sensorData.get("sensorId"));
+		return declared <= MAX_SENSORS ? declared - 1 : -1;
+	}
+
+	// The String the sensor of a slot goes by on this connection, null if it was declared invalid.
+	public String getSensorId(int slot) {
+		return sensorIds.get(slot);
+	}
+
+	public int getSensorCount() {
+		return sensorIds.size();
+	}
+
+	// Digits only, at most 9 of them (the INT fields of SensorFrameCodec), -1 otherwise.
+	private static int parseSlot(String sensor) {
+		if (sensor.isEmpty() || sensor.length() > 9) {
+			return -1;
+		}
+
+		int slot = 0;
+		for (int i = 0; i < sensor.length(); i++) {
+			char c = sensor.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			slot = slot * 10 + (c - '0');
+		}
+
+		return slot;
+	}
+
+
+	// Frames, and readings of batches, that failed validation.
+	public long getRejected() {
+		return rejected;
+	}
+
+	void rejected(SensorFrameException e) {
+		rejected++;
+		System.err.println("Rejected : " + e.getMessage());
+	}
+}
@@ -0,0 +1,114 @@
+package fire.alarm.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Writes the frames of one connection (see SensorFrameCodec), the sending end of a SensorFrameReader.
+ *
+ * The first time a sensor's reading goes out a HELLO frame declares its id, after that its readings only carry the
+ * number the declaration gave it; the server keeps the sensor by that number and never reads or hashes the id again.
+ * A new connection (a new writer) declares its sensors anew.
+ * Past SensorFrameReader.MAX_SENSORS sensors, readings carry their id as before.
+ *
+ * The server only ever sends one thing back, a GOAWAY when it shuts down; listen reads it on a thread of its own
+ * and the sender checks getGoAway before writing, see SensorGoAway.
+ */
+public class SensorFrameWriter {
+
+	private DataOutputStream out;
+	private HashMap<String, Integer> slots = new HashMap<>();
+	private volatile SensorGoAway goAway;		// null until the server asks this connection to go away.
+
+
+	public SensorFrameWriter(DataOutputStream out) {
+		this.out = out;
+	}
+
+	public void writeReading(HashMap<String, String> sensorData) throws IOException {
+		ArrayList<String> undeclared = new ArrayList<>(1);
+		int slot = slotOf(sensorData.get("sensorId"), undeclared);
+		declare(undeclared);
+
+		SensorFrameCodec.writeReading(out, sensorData, slot);
+	}
+
+	// The sensors of the batch not declared yet are declared together, in a single HELLO ahead of it.
+	public void writeBatch(List<HashMap<String, String>> readings) throws IOException {
+		ArrayList<String> undeclared = new ArrayList<>();
+		int[] sensors = new int[readings.size()];
+		for (int i = 0; i < sensors.length; i++) {
+			sensors[i] = slotOf(readings.get(i).get("sensorId"), undeclared);
+		}
+		declare(undeclared);
+
+		SensorFrameCodec.writeBatch(out, readings, sensors);
+	}
+
+	// Backfilled readings are compressed with their ids, see SensorBatchCodec.
+	public void writeBackfill(byte[] batch) throws IOException {
+		SensorFrameCodec.writeBackfill(out, batch);
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	// Reads the frames the server sends on this connection, until it closes.
+	public void listen(final DataInputStream in) {
+		Thread listener = new Thread(new Runnable() {
+			public void run() {
+				SensorFrameReader serverDataInput = new SensorFrameReader(in);
+				while (true) {
+					try {
+						Object data = serverDataInput.readFrame();
+						if (data instanceof SensorGoAway) {
+							goAway = (SensorGoAway) data;
+						}
+					}
+					catch (SensorFrameException e) {
+						// logged by the reader.
+					}
+					catch (IOException e) {
+						return;		// closed.
+					}
+				}
+			}
+		}, "server-listener");
+		listener.setDaemon(true);
+		listener.start();
+	}
+
+	public SensorGoAway getGoAway() {
+		return goAway;
+	}
+
+	// The slot of a sensor, adding the ones seen for the first time to undeclared; NO_SENSOR to send the id.
+	private int slotOf(String sensorId, ArrayList<String> undeclared) {
+		if (sensorId == null) {
+			return SensorFrameCodec.NO_SENSOR;
+		}
+
+		Integer slot = slots.get(sensorId);
+		if (slot == null) {
+			if (slots.size() >= SensorFrameReader.MAX_SENSORS) {
+				return SensorFrameCodec.NO_SENSOR;
+			}
+			slot = slots.size();
+			slots.put(sensorId, slot);
+			undeclared.add(sensorId);
+		}
+
+		return slot;
+	}
+
+	private void declare(ArrayList<String> undeclared) throws IOException {
+		for (int from = 0; from < undeclared.size(); from += Short.MAX_VALUE) {
+			SensorFrameCodec.writeHello(out, undeclared.subList(from, Math.min(from + Short.MAX_VALUE, undeclared.size())));
+		}
+	}
+}
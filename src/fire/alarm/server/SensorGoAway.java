@@ -0,0 +1,36 @@
+package fire.alarm.server;
+
+/*
+ * What a server shutting down tells the sensors and gateways connected to it (a GOAWAY frame, see SensorFrameCodec);
+ * stop sending on this connection, close it, and connect again after retryMillis, to the server given or the same one.
+ *
+ * Whatever was sent before the sender closes its side is still read and stored, the server reads until then.
+ */
+public class SensorGoAway {
+
+	private final int retryMillis;
+	private final String redirect;		// host:port, null for the same server.
+
+
+	public SensorGoAway(int retryMillis, String redirect) {
+		this.retryMillis = retryMillis;
+		this.redirect = redirect;
+	}
+
+	public int getRetryMillis() {
+		return retryMillis;
+	}
+
+	public String getRedirect() {
+		return redirect;
+	}
+
+	// The host to connect to next, the given one unless redirected.
+	public String getHost(String host) {
+		return redirect != null ? redirect.substring(0, redirect.lastIndexOf(':')) : host;
+	}
+
+	public int getPort(int port) {
+		return redirect != null ? Integer.parseInt(redirect.substring(redirect.lastIndexOf(':') + 1)) : port;
+	}
+}
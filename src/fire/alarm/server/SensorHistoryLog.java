@@ -0,0 +1,60 @@
+package fire.alarm.server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+ * Append only file of every reading the server accepted, live or backfilled, with the time it was taken.
+ * The state store only holds the latest reading of each sensor, this is where the history is kept.
+ *
+ * Each record is;
+ * 		timestamp (long), sensorId (UTF), temperature (double), battery (int), smoke (int), co2 (double), backfilled (boolean)
+ *
+ * Records are buffered, flush() writes them out.
+ */
+public class SensorHistoryLog {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private DataOutputStream history;
+
+
+	public SensorHistoryLog(String file) throws IOException {
+		this.history = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE));
+	}
+
+	public synchronized void append(FireSensorData fireSensorData) {
+		try {
+			history.writeLong(fireSensorData.getTimestamp());
+			history.writeUTF(fireSensorData.getSensorId());
+			history.writeDouble(fireSensorData.getTemperature());
+			history.writeInt(fireSensorData.getBatteryPercentage());
+			history.writeInt(fireSensorData.getSmokeLevel());
+			history.writeDouble(fireSensorData.getCo2Level());
+			history.writeBoolean(fireSensorData.isBackfilled());
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized void flush() {
+		try {
+			history.flush();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized void close() {
+		try {
+			history.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
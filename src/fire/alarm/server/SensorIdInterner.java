@@ -0,0 +1,112 @@
+package fire.alarm.server;
+
+import java.util.Arrays;
+
+/*
+ * Maps sensor ids to dense int handles (0, 1, 2, ...) in the order they are first seen.
+ * Handles index the fixed size records of the OffHeapSensorRegistry, and never change or get reused.
+ *
+ * Implemented as an open addressing table of parallel arrays (linear probing),
+ * so a sensor costs its id String and a few array slots instead of a map entry and a boxed Integer.
+ * The hash of every key is kept next to it, probing and rehashing only touch the Strings that really match.
+ */
+public class SensorIdInterner {
+
+	public static final int NO_HANDLE = -1;
+
+	private static final int INITIAL_CAPACITY = 1024;	// must be a power of 2.
+
+	private String[] keys = new String[INITIAL_CAPACITY];
+	private int[] hashes = new int[INITIAL_CAPACITY];
+	private int[] handles = new int[INITIAL_CAPACITY];
+	private String[] sensorIds = new String[INITIAL_CAPACITY];	// indexed by handle.
+	private int size = 0;
+
+
+	// Returns the handle of the sensor, assigning the next one if the sensor was never seen.
+	public synchronized int intern(String sensorId) {
+		int hash = ConsistentHashRing.hash(sensorId);
+		int slot = find(sensorId, hash);
+		if (keys[slot] != null) {
+			return handles[slot];
+		}
+
+		int handle = size++;
+		if (handle == sensorIds.length) {
+			sensorIds = Arrays.copyOf(sensorIds, sensorIds.length * 2);
+		}
+		sensorIds[handle] = sensorId;
+		keys[slot] = sensorId;
+		hashes[slot] = hash;
+		handles[slot] = handle;
+
+		// keep the table at most half full, probes stay short.
+		if (size * 2 > keys.length) {
+			rehash(keys.length * 2);
+		}
+
+		return handle;
+	}
+
+	// Returns NO_HANDLE if the sensor was never seen.
+	public synchronized int lookup(String sensorId) {
+		int slot = find(sensorId, ConsistentHashRing.hash(sensorId));
+
+		return keys[slot] != null ? handles[slot] : NO_HANDLE;
+	}
+
+	// Grows ahead of interning that many sensors in all, e.g. for a SensorInventory, instead of doubling on the way.
+	public synchronized void ensureCapacity(int sensors) {
+		int capacity = keys.length;
+		while (sensors * 2L > capacity && capacity < (1 << 30)) {
+			capacity *= 2;
+		}
+		if (capacity > keys.length) {
+			rehash(capacity);
+		}
+		if (sensors > sensorIds.length) {
+			sensorIds = Arrays.copyOf(sensorIds, sensors);
+		}
+	}
+
+	public synchronized String getSensorId(int handle) {
+		return sensorIds[handle];
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private int find(String sensorId, int hash) {
+		int mask = keys.length - 1;
+		int slot = hash & mask;
+		while (keys[slot] != null && (hashes[slot] != hash || !keys[slot].equals(sensorId))) {
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+	// Keys are all different, a free slot is all a key needs.
+	private void rehash(int capacity) {
+		String[] newKeys = new String[capacity];
+		int[] newHashes = new int[capacity];
+		int[] newHandles = new int[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != null) {
+				int slot = hashes[i] & mask;
+				while (newKeys[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				newKeys[slot] = keys[i];
+				newHashes[slot] = hashes[i];
+				newHandles[slot] = handles[i];
+			}
+		}
+
+		keys = newKeys;
+		hashes = newHashes;
+		handles = newHandles;
+	}
+}
@@ -0,0 +1,343 @@
+package fire.alarm.server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * The sensors a deployment expects, loaded at startup (see SensorStateStore.register) so that a sensor
+ * that never connects can be told apart from one that went silent.
+ *
+ * Each sensor has an id, a zone (by default the part of the id before the first '-', see SensorQueryIndex)
+ * and optionally its own thresholds (see SensorThresholds), NaN when the default applies.
+ *
+ * The file is binary, written by main from a CSV;
+ * 		header	:	int MAGIC, byte VERSION, int sensors,
+ * 					int zones and each zone as a byte length and ASCII name,
+ * 					int chunks and per chunk its int offset and int sensors.
+ * 		sensor	:	byte length of the prefix shared with the previous id of the chunk, byte length and ASCII rest of the id,
+ * 					varint zone (0 for the one of the id, otherwise 1 + its place in the header),
+ * 					byte of which thresholds follow (bit 0 max temperature, 1 min battery, 2 max smoke, 3 max CO2), a float each.
+ * Ids listed in order share most of their prefix, a sensor usually takes a few bytes plus the ones its id differs by.
+ * Sensors are written in chunks of CHUNK_SENSORS, each chunk is parsed by its own thread.
+ */
+public class SensorInventory {
+
+	public static final int MAGIC = 0x46494E56;		// "FINV"
+	public static final byte VERSION = 1;
+
+	// the thresholds of a sensor, in the order of SensorThresholds.
+	private static final int THRESHOLDS = SensorThresholds.COUNT;
+
+	private static final int CHUNK_SENSORS = 16384;
+
+	private String[] sensorIds;
+	private String[] zones;				// null for the zone taken from the id, the same String for every sensor of a zone.
+	private float[][] thresholds;		// [threshold][sensor].
+
+
+	private SensorInventory(int sensors) {
+		sensorIds = new String[sensors];
+		zones = new String[sensors];
+		thresholds = new float[THRESHOLDS][sensors];
+	}
+
+	public int size() {
+		return sensorIds.length;
+	}
+
+	public String getSensorId(int sensor) {
+		return sensorIds[sensor];
+	}
+
+	public String getZone(int sensor) {
+		return zones[sensor] != null ? zones[sensor] : SensorQueryIndex.getZone(sensorIds[sensor]);
+	}
+
+	// threshold is one of SensorThresholds, NaN when the sensor uses the default.
+	public float getThreshold(int threshold, int sensor) {
+		return thresholds[threshold][sensor];
+	}
+
+
+	/*
+	 * Reads the whole file and parses its chunks on the given number of threads.
+	 */
+	public static SensorInventory load(File file, int threads) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		final SensorInventory inventory;
+		final String[] zoneNames;
+		int chunks;
+		try {
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException(file + " is not a sensor inventory.");
+			}
+			if (buffer.get() != VERSION) {
+				throw new IOException(file + " is an inventory of an unknown version.");
+			}
+
+			// every sensor takes at least 4 bytes, don't allocate for a count the file can't hold.
+			int size = buffer.getInt();
+			if (size < 0 || size > buffer.remaining() / 4) {
+				throw new IOException(file + " has a corrupted header.");
+			}
+			inventory = new SensorInventory(size);
+
+			zoneNames = new String[buffer.getInt()];
+			byte[] text = new byte[255];
+			for (int zone = 0; zone < zoneNames.length; zone++) {
+				zoneNames[zone] = readAscii(buffer, text, 0);
+			}
+
+			chunks = buffer.getInt();
+			if (chunks < 0 || chunks > buffer.remaining() / 8) {
+				throw new IOException(file + " has a corrupted chunk table.");
+			}
+		}
+		catch (RuntimeException e) {
+			// a count larger than the file.
+			throw new IOException(file + " has a corrupted header.", e);
+		}
+
+		ExecutorService parsers = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			ArrayList<Future<Void>> parsed = new ArrayList<>(chunks);
+			int first = 0;
+			for (int chunk = 0; chunk < chunks; chunk++) {
+				final int offset = buffer.getInt();
+				final int sensors = buffer.getInt();
+				final int from = first;
+				if (offset < 0 || offset > buffer.limit() || sensors < 0 || sensors > inventory.size() - from) {
+					throw new IOException(file + " has a corrupted chunk table.");
+				}
+
+				parsed.add(parsers.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						inventory.parse(buffer.duplicate(), offset, from, sensors, zoneNames);
+						return null;
+					}
+				}));
+				first += sensors;
+			}
+			if (first != inventory.size()) {
+				throw new IOException(file + " lists " + inventory.size() + " sensors, its chunks " + first);
+			}
+
+			for (Future<Void> chunk: parsed) {
+				try {
+					chunk.get();
+				}
+				catch (ExecutionException e) {
+					throw new IOException(file + " is corrupted.", e.getCause());
+				}
+				catch (InterruptedException e) {
+					throw new IOException("Interrupted while loading " + file, e);
+				}
+			}
+		}
+		finally {
+			parsers.shutdown();
+		}
+
+		return inventory;
+	}
+
+	// Each chunk fills its own range of the arrays, chunks don't share anything else.
+	private void parse(ByteBuffer buffer, int offset, int from, int sensors, String[] zoneNames) throws IOException {
+		try {
+			buffer.position(offset);
+			byte[] id = new byte[255 * 2];
+			int idLength = 0;
+			for (int sensor = from; sensor < from + sensors; sensor++) {
+				int shared = buffer.get() & 0xFF;
+				if (shared > idLength) {
+					throw new IOException("Sensor " + sensor + " shares more of its id than the previous one has.");
+				}
+				String sensorId = readAscii(buffer, id, shared);
+				idLength = sensorId.length();
+				sensorIds[sensor] = sensorId;
+
+				int zone = readVarint(buffer);
+				zones[sensor] = zone == 0 ? null : zoneNames[zone - 1];
+
+				int present = buffer.get();
+				for (int threshold = 0; threshold < THRESHOLDS; threshold++) {
+					thresholds[threshold][sensor] = (present & (1 << threshold)) != 0 ? buffer.getFloat() : Float.NaN;
+				}
+			}
+		}
+		catch (RuntimeException e) {
+			// running out of the buffer, a zone that isn't in the header, or a chunk offset pointing at the wrong place.
+			throw new IOException("Chunk at " + offset + " can't be read.", e);
+		}
+	}
+
+	// Reads a byte length and that many bytes into text after what it already has (shared bytes of it).
+	private static String readAscii(ByteBuffer buffer, byte[] text, int shared) {
+		int length = buffer.get() & 0xFF;
+		buffer.get(text, shared, length);
+
+		return new String(text, 0, shared + length, StandardCharsets.ISO_8859_1);
+	}
+
+	private static int readVarint(ByteBuffer buffer) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		throw new IllegalStateException("Varint longer than 32 bits.");
+	}
+
+
+	// Writing.
+	/*
+	 * Writes the sensors of a CSV, one per line, as an inventory;
+	 * 		sensorId,zone,maxTemperature,minBattery,maxSmoke,maxCo2
+	 * Everything but the id may be left empty (or out), lines starting with # are skipped.
+	 * Ids have to be valid sensor ids (see SensorFrameCodec), zones up to 255 ASCII characters.
+	 */
+	public static int convert(File csv, File inventoryFile) throws IOException {
+		ByteArrayOutputStream sensorBytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(sensorBytes);
+		ArrayList<int[]> chunks = new ArrayList<>();
+		HashMap<String, Integer> zones = new HashMap<>();
+		ArrayList<String> zoneNames = new ArrayList<>();
+		String previousId = "";
+		int sensors = 0;
+
+		try (BufferedReader in = new BufferedReader(new FileReader(csv))) {
+			String line;
+			for (int number = 1; (line = in.readLine()) != null; number++) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				if (sensors % CHUNK_SENSORS == 0) {
+					chunks.add(new int[] {out.size(), 0});
+					previousId = "";
+				}
+				try {
+					String[] fields = line.split(",", -1);
+					writeSensor(out, fields, previousId, zones, zoneNames);
+					previousId = fields[0].trim();
+				}
+				catch (IllegalArgumentException e) {
+					throw new IOException(csv + " line " + number + " : " + e.getMessage());
+				}
+				chunks.get(chunks.size() - 1)[1]++;
+				sensors++;
+			}
+		}
+
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeInt(MAGIC);
+		header.writeByte(VERSION);
+		header.writeInt(sensors);
+		header.writeInt(zoneNames.size());
+		for (String zone: zoneNames) {
+			header.writeByte(zone.length());
+			header.writeBytes(zone);
+		}
+		header.writeInt(chunks.size());
+		int headerSize = header.size() + chunks.size() * 8;
+		for (int[] chunk: chunks) {
+			header.writeInt(headerSize + chunk[0]);
+			header.writeInt(chunk[1]);
+		}
+
+		try (BufferedOutputStream file = new BufferedOutputStream(new FileOutputStream(inventoryFile))) {
+			headerBytes.writeTo(file);
+			sensorBytes.writeTo(file);
+		}
+
+		return sensors;
+	}
+
+	private static void writeSensor(DataOutputStream out, String[] fields, String previousId,
+			HashMap<String, Integer> zones, ArrayList<String> zoneNames) throws IOException {
+		String sensorId = fields[0].trim();
+		if (!SensorFrameCodec.isValidSensorId(sensorId)) {
+			throw new IllegalArgumentException("Invalid sensor id " + sensorId);
+		}
+		String zone = fields.length > 1 ? fields[1].trim() : "";
+		if (zone.length() > 255 || !StandardCharsets.US_ASCII.newEncoder().canEncode(zone)) {
+			throw new IllegalArgumentException("Invalid zone " + zone);
+		}
+
+		int shared = 0;
+		while (shared < sensorId.length() && shared < previousId.length() && sensorId.charAt(shared) == previousId.charAt(shared)) {
+			shared++;
+		}
+		out.writeByte(shared);
+		out.writeByte(sensorId.length() - shared);
+		out.writeBytes(sensorId.substring(shared));
+
+		int zoneCode = 0;
+		if (!zone.isEmpty() && !zone.equals(SensorQueryIndex.getZone(sensorId))) {
+			Integer known = zones.get(zone);
+			if (known == null) {
+				known = zoneNames.size();
+				zones.put(zone, known);
+				zoneNames.add(zone);
+			}
+			zoneCode = known + 1;
+		}
+		for (int value = zoneCode; ; value >>>= 7) {
+			if ((value & ~0x7F) == 0) {
+				out.writeByte(value);
+				break;
+			}
+			out.writeByte((value & 0x7F) | 0x80);
+		}
+
+		int present = 0;
+		float[] values = new float[THRESHOLDS];
+		for (int threshold = 0; threshold < THRESHOLDS; threshold++) {
+			String value = fields.length > threshold + 2 ? fields[threshold + 2].trim() : "";
+			if (!value.isEmpty()) {
+				// NumberFormatException is an IllegalArgumentException.
+				values[threshold] = Float.parseFloat(value);
+				present |= 1 << threshold;
+			}
+		}
+		out.writeByte(present);
+		for (int threshold = 0; threshold < THRESHOLDS; threshold++) {
+			if ((present & (1 << threshold)) != 0) {
+				out.writeFloat(values[threshold]);
+			}
+		}
+	}
+
+	// Usage: SensorInventory <csv> <inventory file>
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: SensorInventory <csv> <inventory file>");
+			return;
+		}
+
+		int sensors = convert(new File(args[0]), new File(args[1]));
+		System.out.println(sensors + " sensors written to " + args[1]);
+	}
+}
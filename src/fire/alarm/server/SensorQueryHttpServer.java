@@ -0,0 +1,166 @@
+package fire.alarm.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * The store's queries over HTTP, on the loopback interface only, answered as JSON arrays of sensors.
+ * 		GET /sensors?metric=temperature&min=50&max=100&zone=10&limit=100	sensors in a range, highest first
+ * 		GET /sensors/top?metric=temperature&k=10&order=lowest&zone=10		top-k (order is highest by default)
+ * 		GET /sensors/silent?minutes=5&zone=10&limit=100						sensors silent for more than that, longest first
+ * 		GET /sensors/missing?zone=10&limit=100								ids of sensors of the inventory that never connected
+ * Every parameter but metric is optional.
+ */
+public class SensorQueryHttpServer {
+
+	private static final int DEFAULT_LIMIT = 1000;
+	private static final int THREADS = 2;
+
+	private IRmiServer sensorAndData;
+	private HttpServer server;
+
+
+	// Answers what the server would over RMI, the RmiServerFacade or the ClusterNode in a cluster.
+	public SensorQueryHttpServer(IRmiServer sensorAndData, int port) throws IOException {
+		this.sensorAndData = sensorAndData;
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.setExecutor(Executors.newFixedThreadPool(THREADS));
+		server.createContext("/sensors", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				answer(exchange);
+			}
+		});
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	private void answer(HttpExchange exchange) throws IOException {
+		HashMap<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+		String path = exchange.getRequestURI().getPath();
+		String zone = parameters.get("zone");
+
+		int status = 200;
+		String body;
+		try {
+			if (path.equals("/sensors")) {
+				body = toJson(sensorAndData.querySensors(required(parameters, "metric"),
+						getDouble(parameters, "min", Double.NEGATIVE_INFINITY), getDouble(parameters, "max", Double.POSITIVE_INFINITY),
+						zone, (int) getDouble(parameters, "limit", DEFAULT_LIMIT)));
+			}
+			else if (path.equals("/sensors/top")) {
+				body = toJson(sensorAndData.queryTop(required(parameters, "metric"), (int) getDouble(parameters, "k", 10),
+						!"lowest".equals(parameters.get("order")), zone));
+			}
+			else if (path.equals("/sensors/silent")) {
+				body = toJson(sensorAndData.querySilent((long) (getDouble(parameters, "minutes", 60) * 60000), zone,
+						(int) getDouble(parameters, "limit", DEFAULT_LIMIT)));
+			}
+			else if (path.equals("/sensors/missing")) {
+				body = toJsonIds(sensorAndData.queryMissing(zone, (int) getDouble(parameters, "limit", DEFAULT_LIMIT)));
+			}
+			else {
+				throw new IllegalArgumentException("Unknown query " + path);
+			}
+		}
+		catch (IllegalArgumentException e) {
+			status = 400;
+			body = "{\"error\": \"" + escape(e.getMessage()) + "\"}";
+		}
+		catch (RemoteException e) {
+			// the server is local, it doesn't go over the network.
+			status = 500;
+			body = "{\"error\": \"" + escape(e.getMessage()) + "\"}";
+		}
+
+		byte[] response = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, response.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(response);
+		}
+	}
+
+	private static HashMap<String, String> parseQuery(String query) throws IOException {
+		HashMap<String, String> parameters = new HashMap<>();
+		if (query == null) {
+			return parameters;
+		}
+
+		for (String parameter: query.split("&")) {
+			int separator = parameter.indexOf('=');
+			if (separator > 0) {
+				parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+						URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+			}
+		}
+
+		return parameters;
+	}
+
+	private static String required(HashMap<String, String> parameters, String name) {
+		if (!parameters.containsKey(name)) {
+			throw new IllegalArgumentException("Missing parameter " + name);
+		}
+
+		return parameters.get(name);
+	}
+
+	// NumberFormatException is an IllegalArgumentException, a bad number is a bad request.
+	private static double getDouble(HashMap<String, String> parameters, String name, double defaultValue) {
+		return parameters.containsKey(name) ? Double.parseDouble(parameters.get(name)) : defaultValue;
+	}
+
+	private static String toJson(ArrayList<FireSensorData> sensors) {
+		StringBuilder json = new StringBuilder("[");
+		for (FireSensorData sensor: sensors) {
+			if (json.length() > 1) {
+				json.append(",");
+			}
+			json.append("\n{\"sensorId\": \"").append(escape(sensor.getSensorId()))
+				.append("\", \"temperature\": ").append(sensor.getTemperature())
+				.append(", \"battery\": ").append(sensor.getBatteryPercentage())
+				.append(", \"smoke\": ").append(sensor.getSmokeLevel())
+				.append(", \"co2\": ").append(sensor.getCo2Level())
+				.append(", \"timestamp\": ").append(sensor.getTimestamp())
+				.append(", \"version\": ").append(sensor.getVersion())
+				.append("}");
+		}
+
+		return json.append("]\n").toString();
+	}
+
+	private static String toJsonIds(ArrayList<String> sensorIds) {
+		StringBuilder json = new StringBuilder("[");
+		for (String sensorId: sensorIds) {
+			if (json.length() > 1) {
+				json.append(", ");
+			}
+			json.append("\"").append(escape(sensorId)).append("\"");
+		}
+
+		return json.append("]\n").toString();
+	}
+
+	private static String escape(String value) {
+		return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -0,0 +1,301 @@
+package fire.alarm.server;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/*
+ * Secondary indexes of the SensorStateStore, kept up to date on every change, so that queries don't scan every sensor;
+ * 		1) a MetricIndex per metric, for range and top-k queries,
+ * 		2) the sensors ordered by when they were last seen, oldest first, for silent sensors,
+ * 		3) the zone of each sensor, the part of its id before the first '-' (the building or floor, 10 for 10-13)
+ * 		   unless the SensorInventory gives it one,
+ * 		4) the sensors of the inventory that have not been seen since it was listed, for missing sensors.
+ * Everything is kept in arrays indexed by the sensor's handle.
+ *
+ * Queries return handles, the store turns them into FireSensorData.
+ * Not synchronized, the SensorStateStore serializes all access.
+ */
+public class SensorQueryIndex {
+
+	public static final String[] METRICS = {"temperature", "battery", "smoke", "co2"};
+	public static final int TEMPERATURE = 0, BATTERY = 1, SMOKE = 2, CO2 = 3;
+
+	private static final int NONE = MetricIndex.NONE;
+	private static final int UNKNOWN_ZONE = -2;
+
+	// bucket widths are about the precision readings are sent with.
+	private MetricIndex[] metrics = {
+			new MetricIndex(-50.0, 150.0, 0.1),		// celcius.
+			new MetricIndex(0, 100, 1),				// percentage.
+			new MetricIndex(0, 10, 1),				// scale of 1 - 10.
+			new MetricIndex(0, 5000, 1)};			// ppm.
+
+	// last seen order, a doubly linked list of handles.
+	private int oldest = NONE;
+	private int newest = NONE;
+	private int[] seenNext = new int[0];
+	private int[] seenPrev = new int[0];
+	private long[] lastSeen = new long[0];
+
+	private int[] zoneOf = new int[0];		// NONE when the handle is not indexed.
+	private int[] listedZone = new int[0];	// NONE when the handle is not in the inventory.
+	private HashMap<String, Integer> zones = new HashMap<>();
+	private BitSet missing = new BitSet();
+
+
+	/*
+	 * Indexes the latest reading of a sensor, seen at seenAt (millis).
+	 * The last seen order is kept by moving the sensor to the end, a time earlier than that of the
+	 * newest sensor (the clock went back) is taken as the same time.
+	 */
+	public void update(int handle, String sensorId, FireSensorData fireSensorData, long seenAt) {
+		ensureCapacity(handle);
+
+		metrics[TEMPERATURE].update(handle, fireSensorData.getTemperature());
+		metrics[BATTERY].update(handle, fireSensorData.getBatteryPercentage());
+		metrics[SMOKE].update(handle, fireSensorData.getSmokeLevel());
+		metrics[CO2].update(handle, fireSensorData.getCo2Level());
+
+		if (zoneOf[handle] == NONE) {
+			zoneOf[handle] = listedZone[handle] != NONE ? listedZone[handle] : internZone(getZone(sensorId));
+			missing.clear(handle);
+		}
+		else {
+			unlinkSeen(handle);
+		}
+
+		lastSeen[handle] = newest == NONE ? seenAt : Math.max(seenAt, lastSeen[newest]);
+		seenPrev[handle] = newest;
+		seenNext[handle] = NONE;
+		if (newest != NONE) {
+			seenNext[newest] = handle;
+		}
+		else {
+			oldest = handle;
+		}
+		newest = handle;
+	}
+
+	/*
+	 * A sensor of the inventory, in the given zone.
+	 * Unless it already has a reading (e.g. from before a restart) it is missing until it is seen.
+	 */
+	public void list(int handle, String zone) {
+		ensureCapacity(handle);
+
+		listedZone[handle] = internZone(zone);
+		if (zoneOf[handle] == NONE) {
+			missing.set(handle);
+		}
+		else {
+			zoneOf[handle] = listedZone[handle];
+		}
+	}
+
+	public void remove(int handle) {
+		if (handle >= zoneOf.length || zoneOf[handle] == NONE) {
+			return;
+		}
+
+		for (MetricIndex metric: metrics) {
+			metric.remove(handle);
+		}
+		unlinkSeen(handle);
+		zoneOf[handle] = NONE;
+	}
+
+
+	// Queries.
+	/*
+	 * Sensors whose metric is between low and high (inclusive), in the given zone (null for any),
+	 * ordered highest first or lowest first, at most limit of them.
+	 * Top-k is the same query over the whole range.
+	 */
+	public int[] select(int metric, double low, double high, String zone, int limit, boolean highest) {
+		int zoneCode = getZoneCode(zone);
+		if (zoneCode == UNKNOWN_ZONE || low > high || limit <= 0) {
+			return new int[0];
+		}
+
+		MetricIndex index = metrics[metric];
+		int from = index.getBucket(low);
+		int to = index.getBucket(high);
+
+		// whole buckets are taken until there are enough, starting from the end asked for.
+		long[] found = new long[Math.min(limit, 1024)];
+		int count = 0;
+		for (int i = 0; i <= to - from && count < limit; i++) {
+			int bucket = highest ? to - i : from + i;
+			for (int handle = index.first(bucket); handle != NONE; handle = index.next(handle)) {
+				double value = index.getValue(handle);
+				if (value >= low && value <= high && (zoneCode == NONE || zoneOf[handle] == zoneCode)) {
+					if (count == found.length) {
+						found = Arrays.copyOf(found, found.length * 2);
+					}
+					found[count++] = sortKey(value, handle);
+				}
+			}
+		}
+
+		// buckets are not sorted inside, and the last one taken may have more than needed.
+		Arrays.sort(found, 0, count);
+
+		int[] handles = new int[Math.min(count, limit)];
+		for (int i = 0; i < handles.length; i++) {
+			handles[i] = (int) found[highest ? count - 1 - i : i];
+		}
+
+		return handles;
+	}
+
+	// Sensors not seen since seenBefore (millis), in the given zone (null for any), longest silent first.
+	public int[] selectSilent(long seenBefore, String zone, int limit) {
+		int zoneCode = getZoneCode(zone);
+		if (zoneCode == UNKNOWN_ZONE || limit <= 0) {
+			return new int[0];
+		}
+
+		int[] found = new int[Math.min(limit, 1024)];
+		int count = 0;
+		for (int handle = oldest; handle != NONE && lastSeen[handle] < seenBefore && count < limit; handle = seenNext[handle]) {
+			if (zoneCode == NONE || zoneOf[handle] == zoneCode) {
+				if (count == found.length) {
+					found = Arrays.copyOf(found, found.length * 2);
+				}
+				found[count++] = handle;
+			}
+		}
+
+		return Arrays.copyOf(found, count);
+	}
+
+	// Sensors of the inventory never seen since they were listed, in the given zone (null for any), in inventory order.
+	public int[] selectMissing(String zone, int limit) {
+		int zoneCode = getZoneCode(zone);
+		if (zoneCode == UNKNOWN_ZONE || limit <= 0) {
+			return new int[0];
+		}
+
+		int[] found = new int[Math.min(limit, 1024)];
+		int count = 0;
+		for (int handle = missing.nextSetBit(0); handle >= 0 && count < limit; handle = missing.nextSetBit(handle + 1)) {
+			if (zoneCode == NONE || listedZone[handle] == zoneCode) {
+				if (count == found.length) {
+					found = Arrays.copyOf(found, found.length * 2);
+				}
+				found[count++] = handle;
+			}
+		}
+
+		return Arrays.copyOf(found, count);
+	}
+
+	// Sensors in the given zone (null for any), of the inventory or reporting now, in handle order.
+	public int[] selectZone(String zone) {
+		int zoneCode = getZoneCode(zone);
+		if (zoneCode == UNKNOWN_ZONE) {
+			return new int[0];
+		}
+
+		int[] found = new int[1024];
+		int count = 0;
+		for (int handle = 0; handle < zoneOf.length; handle++) {
+			int handleZone = listedZone[handle] != NONE ? listedZone[handle] : zoneOf[handle];
+			if (handleZone != NONE && (zoneCode == NONE || handleZone == zoneCode)) {
+				if (count == found.length) {
+					found = Arrays.copyOf(found, found.length * 2);
+				}
+				found[count++] = handle;
+			}
+		}
+
+		return Arrays.copyOf(found, count);
+	}
+
+	public int getMissingCount() {
+		return missing.cardinality();
+	}
+
+	/*
+	 * Orders by value then handle as a single long, so the results sort as primitives.
+	 * The value is taken as a float with its bits flipped to sort as a signed int, finer differences than
+	 * a float's are not told apart.
+	 */
+	private static long sortKey(double value, int handle) {
+		int bits = Float.floatToIntBits((float) value);
+		bits ^= (bits >> 31) & 0x7FFFFFFF;
+
+		return ((long) bits << 32) | handle;
+	}
+
+	public long getLastSeen(int handle) {
+		return lastSeen[handle];
+	}
+
+	public static int getMetric(String name) {
+		for (int metric = 0; metric < METRICS.length; metric++) {
+			if (METRICS[metric].equals(name)) {
+				return metric;
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown metric " + name + ", expected one of " + Arrays.toString(METRICS));
+	}
+
+	public static String getZone(String sensorId) {
+		int separator = sensorId.indexOf('-');
+		return separator < 0 ? "" : sensorId.substring(0, separator);
+	}
+
+	private int getZoneCode(String zone) {
+		if (zone == null) {
+			return NONE;
+		}
+
+		Integer zoneCode = zones.get(zone);
+		return zoneCode != null ? zoneCode : UNKNOWN_ZONE;
+	}
+
+	private int internZone(String zone) {
+		Integer zoneCode = zones.get(zone);
+		if (zoneCode == null) {
+			zoneCode = zones.size();
+			zones.put(zone, zoneCode);
+		}
+
+		return zoneCode;
+	}
+
+	private void unlinkSeen(int handle) {
+		if (seenPrev[handle] != NONE) {
+			seenNext[seenPrev[handle]] = seenNext[handle];
+		}
+		else {
+			oldest = seenNext[handle];
+		}
+		if (seenNext[handle] != NONE) {
+			seenPrev[seenNext[handle]] = seenPrev[handle];
+		}
+		else {
+			newest = seenPrev[handle];
+		}
+	}
+
+	// Grows to hold the given handle, done by every update; called ahead of a bulk load to grow only once.
+	public void ensureCapacity(int handle) {
+		if (handle < zoneOf.length) {
+			return;
+		}
+
+		int capacity = Math.max(handle + 1, zoneOf.length * 2);
+		seenNext = Arrays.copyOf(seenNext, capacity);
+		seenPrev = Arrays.copyOf(seenPrev, capacity);
+		lastSeen = Arrays.copyOf(lastSeen, capacity);
+		int oldLength = zoneOf.length;
+		zoneOf = Arrays.copyOf(zoneOf, capacity);
+		Arrays.fill(zoneOf, oldLength, capacity, NONE);
+		listedZone = Arrays.copyOf(listedZone, capacity);
+		Arrays.fill(listedZone, oldLength, capacity, NONE);
+	}
+}
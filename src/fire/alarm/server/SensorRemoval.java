@@ -0,0 +1,50 @@
+package fire.alarm.server;
+
+/*
+ * A sensor to remove from the store, as it went through the pipeline.
+ *
+ * A connection's removals and readings stay in order in its own ring, but the rings of two connections don't;
+ * a sensor moving to another connection (a gateway's new uplink, the sensor reconnecting) may have readings from its
+ * new connection stored before the removal from the old one gets there. The removal therefore carries what the old
+ * connection knew of the sensor, the last reading it sent or else the store version when it declared the sensor;
+ * anything stored since came from somewhere else, and the removal is stale.
+ *
+ * Removals routed from another node of a cluster don't know either, they are always applied.
+ */
+public class SensorRemoval {
+
+	private final String sensorId;
+	private final FireSensorData lastReading;	// given its version when stored, by the stage thread applying this.
+	private final long declaredVersion;
+
+
+	// A removal that is always applied.
+	public SensorRemoval(String sensorId) {
+		this(sensorId, null, Long.MAX_VALUE);
+	}
+
+	public SensorRemoval(String sensorId, FireSensorData lastReading, long declaredVersion) {
+		this.sensorId = sensorId;
+		this.lastReading = lastReading;
+		this.declaredVersion = declaredVersion;
+	}
+
+	public String getSensorId() {
+		return sensorId;
+	}
+
+	/*
+	 * Removes the sensor unless the store has a reading of it newer than the connection knew.
+	 * Called on the thread storing the sensor's readings, after every reading the connection sent of it.
+	 */
+	public boolean applyTo(ISensorStateStore store) {
+		FireSensorData stored = store.get(sensorId);
+		long knownVersion = lastReading != null ? Math.max(lastReading.getVersion(), declaredVersion) : declaredVersion;
+		if (stored != null && stored.getVersion() > knownVersion) {
+			return false;
+		}
+
+		store.remove(sensorId);
+		return true;
+	}
+}
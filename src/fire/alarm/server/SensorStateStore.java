@@ -0,0 +1,496 @@
+package fire.alarm.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Holds the latest data of every connected sensor, keyed by the sensor's id.
+ *
+ * Sensor ids are interned to int handles and the data lives off the heap in an OffHeapSensorRegistry,
+ * one fixed size record per handle, overwritten in place by every reading.
+ * When the registry is backed by a file, a restarted server starts from the state it had when it stopped.
+ *
+ * Every change (a new reading or a sensor leaving) bumps a global version number.
+ * The handles of the most recent changes are kept in a fixed size ring, with their versions,
+ * so a monitor that already has the state up to some version only receives what changed after it.
+ * If the monitor is too far behind (its version has been overwritten in the ring) it gets a full snapshot instead.
+ * As a partition of a PartitionedSensorStateStore the version comes from a counter shared by the partitions,
+ * so a partition's versions have gaps, those of the changes of the other partitions.
+ *
+ * Queries (sensors in a range of a metric, top-k, silent sensors) are answered from a SensorQueryIndex
+ * kept up to date with every change, not by scanning the sensors.
+ * The sensors of a SensorInventory are registered up front, without data, so that the ones that never report can be found.
+ * The thresholds readings are validated against are kept by handle in SensorThresholds, outside the store's lock.
+ *
+ * All methods are synchronized since every sensor thread writes to the same store.
+ * A listener (the replication to a standby server) sees every change in version order.
+ */
+public class SensorStateStore implements ISensorStateStore {
+
+	// number of changes remembered for delta syncs.
+	private static final int CHANGE_LOG_CAPACITY = 8192;
+	private static final int INITIAL_CAPACITY = 65536;	// sensors, the registry grows as needed.
+
+	private SensorIdInterner interner = new SensorIdInterner();
+	private OffHeapSensorRegistry registry;
+	private SensorQueryIndex index = new SensorQueryIndex();
+	private SensorThresholds thresholds = new SensorThresholds();
+	private int size = 0;
+
+	private long version = 0;		// of the last change of this store.
+	private final AtomicLong versions;	// shared by the partitions of a PartitionedSensorStateStore, null otherwise.
+	// the n-th change changed handle changeLog[n % CHANGE_LOG_CAPACITY] at version changeVersions[n % CHANGE_LOG_CAPACITY].
+	private int[] changeLog = new int[CHANGE_LOG_CAPACITY];
+	private long[] changeVersions = new long[CHANGE_LOG_CAPACITY];
+	private long changes = 0;
+	private long restoredVersion = 0;	// the change log has nothing before this version after a restore.
+
+	private ISensorStateListener listener;
+
+
+	// A store that starts empty every time.
+	public SensorStateStore() {
+		this((AtomicLong) null);
+	}
+
+	// A partition, the versions of its changes are taken from a counter the partitions share.
+	SensorStateStore(AtomicLong versions) {
+		this.registry = OffHeapSensorRegistry.inMemory(INITIAL_CAPACITY);
+		this.versions = versions;
+	}
+
+	/*
+	 * A store backed by a memory mapped file.
+	 * If the file exists, the sensors and version it holds are taken as they are (warm restart);
+	 * only the ids have to be read back to rebuild the interner, the readings themselves stay in the file.
+	 */
+	public SensorStateStore(File registryFile) throws IOException {
+		this(registryFile, null);
+	}
+
+	SensorStateStore(File registryFile, AtomicLong versions) throws IOException {
+		this.registry = OffHeapSensorRegistry.mapped(registryFile, INITIAL_CAPACITY);
+		this.versions = versions;
+
+		ArrayList<Integer> present = new ArrayList<>();
+		for (int handle = 0; handle < registry.getCount(); handle++) {
+			interner.intern(registry.readSensorId(handle));
+			if (registry.isPresent(handle)) {
+				present.add(handle);
+				size++;
+			}
+		}
+
+		// nothing was seen since the restart, the sensors are last seen when their reading was taken.
+		Collections.sort(present, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(registry.getTimestamp(a), registry.getTimestamp(b));
+			}
+		});
+		for (int handle: present) {
+			FireSensorData fireSensorData = registry.read(handle);
+			index.update(handle, fireSensorData.getSensorId(), fireSensorData, fireSensorData.getTimestamp());
+		}
+
+		version = registry.getVersion();
+		restoredVersion = version;
+	}
+
+	// A file backed store if a file is given, otherwise an in memory one.
+	public static SensorStateStore open(String registryFile) {
+		if (registryFile == null) {
+			return new SensorStateStore();
+		}
+
+		try {
+			return new SensorStateStore(new File(registryFile));
+		}
+		catch (IOException e) {
+			throw new IllegalStateException("Could not open the sensor registry " + registryFile, e);
+		}
+	}
+
+	// The same with the given number of partitions, more than 1 gives a PartitionedSensorStateStore.
+	public static ISensorStateStore open(String registryFile, int partitions) {
+		return partitions > 1 ? PartitionedSensorStateStore.open(registryFile, partitions) : open(registryFile);
+	}
+
+
+	/*
+	 * Overwrites the sensor's record, or creates it if the sensorId is new.
+	 * The data is tagged with the version of this change before it is stored.
+	 */
+	public synchronized long put(String sensorId, FireSensorData fireSensorData) {
+		return put(intern(sensorId), sensorId, fireSensorData);
+	}
+
+	// The same for a sensor already registered, by its handle; its id isn't looked up or hashed.
+	public synchronized long put(int handle, FireSensorData fireSensorData) {
+		return put(handle, fireSensorData.getSensorId(), fireSensorData);
+	}
+
+	private long put(int handle, String sensorId, FireSensorData fireSensorData) {
+		long changeVersion = recordChange(handle);
+		fireSensorData.setVersion(changeVersion);
+		fireSensorData.setHandle(handle);
+		write(handle, sensorId, fireSensorData);
+		notifyListener(sensorId, fireSensorData, changeVersion);
+
+		return changeVersion;
+	}
+
+	/*
+	 * Stores a reading only if it was taken after the one already held for the sensor,
+	 * e.g. a backfilled reading must not replace a live one. Returns false if it was older.
+	 */
+	public synchronized boolean putIfNewer(String sensorId, FireSensorData fireSensorData) {
+		int handle = interner.lookup(sensorId);
+		if (registry.isPresent(handle) && registry.getTimestamp(handle) >= fireSensorData.getTimestamp()) {
+			return false;
+		}
+
+		put(sensorId, fireSensorData);
+
+		return true;
+	}
+
+	// A sensor disconnecting is also a change, monitors should drop it.
+	public synchronized long remove(String sensorId) {
+		int handle = interner.lookup(sensorId);
+		if (handle == SensorIdInterner.NO_HANDLE || !registry.clear(handle)) {
+			return version;
+		}
+
+		index.remove(handle);
+		size--;
+		long changeVersion = recordChange(handle);
+		notifyListener(sensorId, null, changeVersion);
+
+		return changeVersion;
+	}
+
+	/*
+	 * Applies a change made on another server at the given version (data is null for a removal),
+	 * so that versions already seen by monitors stay valid on this server.
+	 * The removal of a sensor this server never had only moves the version; interning it would leave a handle
+	 * without a registry record, read back as a sensor without an id after a restart.
+	 */
+	public synchronized void applyChange(String sensorId, FireSensorData fireSensorData, long changeVersion) {
+		int handle = fireSensorData != null ? intern(sensorId) : interner.lookup(sensorId);
+		if (fireSensorData != null) {
+			write(handle, sensorId, fireSensorData);
+		}
+		else if (handle != SensorIdInterner.NO_HANDLE && registry.clear(handle)) {
+			index.remove(handle);
+			size--;
+		}
+
+		version = changeVersion;
+		if (handle != SensorIdInterner.NO_HANDLE) {
+			log(handle);
+		}
+		else {
+			registry.setVersion(version);
+		}
+		if (versions != null) {
+			advanceVersions(changeVersion);
+		}
+	}
+
+	// Replaces everything with a snapshot taken on another server.
+	public synchronized void restore(SensorStateSync snapshot) {
+		for (int handle = 0; handle < registry.getCount(); handle++) {
+			registry.clear(handle);
+			index.remove(handle);
+		}
+		size = 0;
+
+		for (FireSensorData fireSensorData: snapshot.getChangedSensors().values()) {
+			write(intern(fireSensorData.getSensorId()), fireSensorData.getSensorId(), fireSensorData);
+		}
+
+		version = snapshot.getVersion();
+		restoredVersion = version;
+		changes = 0;
+		registry.setVersion(version);
+		if (versions != null) {
+			advanceVersions(version);
+		}
+	}
+
+	/*
+	 * Interns the sensors of the inventory and reserves their registry records, in inventory order,
+	 * and lists them in the query index. They have no data, monitors don't see them until they report.
+	 * Their thresholds are set to the inventory's, all in one update.
+	 * Returns the handle of every sensor of the inventory.
+	 */
+	public synchronized int[] register(SensorInventory inventory) {
+		int[] handles = new int[inventory.size()];
+		if (handles.length == 0) {
+			return handles;
+		}
+
+		int atMost = interner.size() + handles.length;
+		interner.ensureCapacity(atMost);
+		registry.ensureCapacity(atMost - 1);
+		index.ensureCapacity(atMost - 1);
+		for (int sensor = 0; sensor < handles.length; sensor++) {
+			String sensorId = inventory.getSensorId(sensor);
+			int handle = intern(sensorId);
+			registry.reserve(handle, sensorId);
+			index.list(handle, inventory.getZone(sensor));
+			handles[sensor] = handle;
+		}
+
+		float[][] values = new float[SensorThresholds.COUNT][handles.length];
+		for (int threshold = 0; threshold < SensorThresholds.COUNT; threshold++) {
+			for (int sensor = 0; sensor < handles.length; sensor++) {
+				values[threshold][sensor] = inventory.getThreshold(threshold, sensor);
+			}
+		}
+		thresholds.update(handles, values);
+
+		return handles;
+	}
+
+	/*
+	 * Interns a sensor and reserves its record without data, as for a sensor of the inventory but without listing it,
+	 * e.g. when a connection declares it. Returns its handle, for put(int, FireSensorData).
+	 */
+	public synchronized int register(String sensorId) {
+		return register(sensorId, null);
+	}
+
+	// The same, listing it in a zone (null for none) as register(SensorInventory) does.
+	synchronized int register(String sensorId, String zone) {
+		int handle = intern(sensorId);
+		registry.reserve(handle, sensorId);
+		if (zone != null) {
+			index.list(handle, zone);
+		}
+
+		return handle;
+	}
+
+	// SensorIdInterner.NO_HANDLE for a sensor never seen. Not synchronized, the interner locks itself.
+	public int getHandle(String sensorId) {
+		return interner.lookup(sensorId);
+	}
+
+	// Not synchronized, readers take the table without the store's lock.
+	public SensorThresholds getThresholds() {
+		return thresholds;
+	}
+
+	/*
+	 * Sets the thresholds (one value per SensorThresholds, NaN for the default) of every sensor of the zone,
+	 * listed in the inventory or reporting now. Returns the number of sensors updated.
+	 * The store is only locked to find the sensors, readings keep being stored while the table is copied.
+	 * A sensor of the zone seen for the first time afterwards starts with the defaults.
+	 */
+	public int setThresholds(String zone, float[] zoneThresholds) {
+		int[] handles = selectZone(zone);
+
+		float[][] values = new float[SensorThresholds.COUNT][];
+		for (int threshold = 0; threshold < SensorThresholds.COUNT; threshold++) {
+			values[threshold] = new float[handles.length];
+			Arrays.fill(values[threshold], zoneThresholds[threshold]);
+		}
+		thresholds.update(handles, values);
+
+		return handles.length;
+	}
+
+	// The handles of the sensors of a zone, listed or reporting.
+	synchronized int[] selectZone(String zone) {
+		return index.selectZone(zone);
+	}
+
+	public synchronized void setListener(ISensorStateListener listener) {
+		this.listener = listener;
+	}
+
+	public synchronized FireSensorData get(String sensorId) {
+		return registry.read(interner.lookup(sensorId));
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	// Writes a file backed store through to disk.
+	public synchronized void flush() {
+		registry.force();
+	}
+
+	/*
+	 * Returns only the sensors that changed after lastSeenVersion.
+	 * Several changes to the same sensor collapse into its latest data, and a sensor that is no longer
+	 * in the store is reported as removed.
+	 *
+	 * Falls back to a snapshot for a monitor that never synced or whose version fell out of the change log.
+	 */
+	public synchronized SensorStateSync getChangesSince(long lastSeenVersion) {
+		HashMap<String, FireSensorData> changedSensors = new HashMap<>();
+		LinkedHashSet<String> removedSensors = new LinkedHashSet<>();
+		if (lastSeenVersion == SensorStateSync.NO_VERSION || lastSeenVersion > version
+				|| !addChangesSince(lastSeenVersion, changedSensors, removedSensors)) {
+			return getSnapshot();
+		}
+
+		return new SensorStateSync(false, version, changedSensors, new ArrayList<>(removedSensors));
+	}
+
+	/*
+	 * Adds the sensors that changed after lastSeenVersion, newest change first, a sensor only once.
+	 * Returns false if the change log doesn't go back that far.
+	 * Removals are collected in a set, a sync with many of them stays linear.
+	 */
+	synchronized boolean addChangesSince(long lastSeenVersion, HashMap<String, FireSensorData> changedSensors, LinkedHashSet<String> removedSensors) {
+		if (lastSeenVersion < restoredVersion) {
+			return false;
+		}
+
+		for (long change = changes - 1; change >= 0; change--) {
+			if (changes - change > CHANGE_LOG_CAPACITY) {
+				return false;	// overwritten, and maybe still after lastSeenVersion.
+			}
+			int slot = (int) (change % CHANGE_LOG_CAPACITY);
+			if (changeVersions[slot] <= lastSeenVersion) {
+				break;
+			}
+
+			String sensorId = interner.getSensorId(changeLog[slot]);
+			if (changedSensors.containsKey(sensorId) || removedSensors.contains(sensorId)) {
+				continue;
+			}
+
+			FireSensorData latest = registry.read(changeLog[slot]);
+			if (latest != null) {
+				changedSensors.put(sensorId, latest);
+			}
+			else {
+				removedSensors.add(sensorId);
+			}
+		}
+
+		return true;
+	}
+
+	public synchronized void whileLocked(Runnable action) {
+		action.run();
+	}
+
+	public synchronized SensorStateSync getSnapshot() {
+		HashMap<String, FireSensorData> sensors = new HashMap<>();
+		for (int handle = 0; handle < registry.getCount(); handle++) {
+			FireSensorData fireSensorData = registry.read(handle);
+			if (fireSensorData != null) {
+				sensors.put(fireSensorData.getSensorId(), fireSensorData);
+			}
+		}
+
+		return new SensorStateSync(true, version, sensors, new ArrayList<String>());
+	}
+
+	// Queries.
+	// Sensors whose metric (see SensorQueryIndex.METRICS) is between low and high, in a zone (null for any), highest first.
+	public synchronized ArrayList<FireSensorData> querySensors(String metric, double low, double high, String zone, int limit) {
+		return read(index.select(SensorQueryIndex.getMetric(metric), low, high, zone, limit, true));
+	}
+
+	// The k sensors with the highest (or lowest) metric, in a zone (null for any).
+	public synchronized ArrayList<FireSensorData> queryTop(String metric, int k, boolean highest, String zone) {
+		return read(index.select(SensorQueryIndex.getMetric(metric), Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, zone, k, highest));
+	}
+
+	// Sensors that sent nothing for more than silentMillis, in a zone (null for any), longest silent first.
+	public synchronized ArrayList<FireSensorData> querySilent(long silentMillis, String zone, int limit) {
+		return read(index.selectSilent(System.currentTimeMillis() - silentMillis, zone, limit));
+	}
+
+	// Sensors of the inventory that never reported since it was registered, in a zone (null for any).
+	public synchronized ArrayList<String> queryMissing(String zone, int limit) {
+		int[] handles = index.selectMissing(zone, limit);
+		ArrayList<String> sensorIds = new ArrayList<>(handles.length);
+		for (int handle: handles) {
+			sensorIds.add(interner.getSensorId(handle));
+		}
+
+		return sensorIds;
+	}
+
+	public synchronized int getMissingCount() {
+		return index.getMissingCount();
+	}
+
+	// When the sensor last sent something, as querySilent orders them.
+	synchronized long getLastSeen(String sensorId) {
+		return index.getLastSeen(interner.lookup(sensorId));
+	}
+
+	private ArrayList<FireSensorData> read(int[] handles) {
+		ArrayList<FireSensorData> sensors = new ArrayList<>(handles.length);
+		for (int handle: handles) {
+			sensors.add(registry.read(handle));
+		}
+
+		return sensors;
+	}
+
+	private int intern(String sensorId) {
+		// the registry must be able to hold the id, otherwise it would not be found after a restart.
+		if (!OffHeapSensorRegistry.fits(sensorId)) {
+			throw new IllegalArgumentException("Sensor id is longer than " + OffHeapSensorRegistry.MAX_ID_BYTES + " bytes : " + sensorId);
+		}
+
+		return interner.intern(sensorId);
+	}
+
+	private void write(int handle, String sensorId, FireSensorData fireSensorData) {
+		if (!registry.isPresent(handle)) {
+			size++;
+		}
+		registry.write(handle, sensorId, fireSensorData);
+		index.update(handle, sensorId, fireSensorData, System.currentTimeMillis());
+	}
+
+	private void notifyListener(String sensorId, FireSensorData fireSensorData, long changeVersion) {
+		if (listener != null) {
+			listener.onChange(sensorId, fireSensorData, changeVersion);
+		}
+	}
+
+	private long recordChange(int handle) {
+		version = versions != null ? versions.incrementAndGet() : version + 1;
+		log(handle);
+
+		return version;
+	}
+
+	private void log(int handle) {
+		changeLog[(int) (changes % CHANGE_LOG_CAPACITY)] = handle;
+		changeVersions[(int) (changes % CHANGE_LOG_CAPACITY)] = version;
+		changes++;
+		registry.setVersion(version);
+	}
+
+	// The shared counter never goes back, a partition may apply a change older than another partition's.
+	private void advanceVersions(long changeVersion) {
+		long current = versions.get();
+		while (current < changeVersion && !versions.compareAndSet(current, changeVersion)) {
+			current = versions.get();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package fire.alarm.server;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * What a monitor receives when it (re)joins the server.
+ *
+ * A monitor sends the last version it has seen and gets back either;
+ * 		1) a snapshot : every sensor that the server knows about, or
+ * 		2) a delta    : only the sensors that changed or left after that version.
+ *
+ * In both cases the version of the server's state at the time of the sync is attached,
+ * so the monitor can ignore any callback it has already seen.
+ */
+public class SensorStateSync implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// a monitor that has never synced uses this as its last seen version.
+	public static final long NO_VERSION = -1;
+
+	private boolean snapshot;
+	private long version;
+	private HashMap<String, FireSensorData> changedSensors;
+	private ArrayList<String> removedSensors;
+
+
+	public SensorStateSync(boolean snapshot, long version, HashMap<String, FireSensorData> changedSensors, ArrayList<String> removedSensors) {
+		this.snapshot = snapshot;
+		this.version = version;
+		this.changedSensors = changedSensors;
+		this.removedSensors = removedSensors;
+	}
+
+
+	// Getters.
+	// When this is a snapshot the monitor should drop whatever it had before applying it.
+	public boolean isSnapshot() {
+		return snapshot;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public HashMap<String, FireSensorData> getChangedSensors() {
+		return changedSensors;
+	}
+
+	public ArrayList<String> getRemovedSensors() {
+		return removedSensors;
+	}
+}
@@ -0,0 +1,83 @@
+package fire.alarm.server;
+
+import java.util.Arrays;
+
+/*
+ * The dangerous levels of every sensor, indexed by the handle the SensorStateStore interned it to.
+ *
+ * Each threshold is a float array with a slot per handle, a sensor without its own value (or a handle past the end,
+ * a sensor seen after the last update) gets the default of the threshold, the levels FireSensorData always had.
+ * Validating a reading is a few array reads, no map lookups or boxing.
+ *
+ * The arrays are never modified once published. An update copies the arrays it changes, writes the new values
+ * and swaps the whole table in at once, so readers never lock and never see half an update;
+ * a reading is validated against the table as it was before or after, not a mix of both.
+ * Updates are serialized among themselves, each costs a copy of the thresholds it touches.
+ */
+public class SensorThresholds {
+
+	public static final int MAX_TEMPERATURE = 0, MIN_BATTERY = 1, MAX_SMOKE = 2, MAX_CO2 = 3;
+	public static final int COUNT = 4;
+
+	// celcius, percent, smoke scale, ppm. The default CO2 level is NaN: anything but exactly 300.0 is dangerous.
+	private static final float[] DEFAULTS = {50.0f, 30.0f, 7.0f, Float.NaN};
+
+	private volatile Table table = new Table(new float[COUNT][0]);
+
+
+	// What the readers validate against, take it once per reading.
+	public Table getTable() {
+		return table;
+	}
+
+	/*
+	 * Sets the thresholds of the given sensors in one swap.
+	 * values[threshold][i] is the value for handles[i], NaN for the default; a null values[threshold] leaves
+	 * that threshold as it is.
+	 */
+	public synchronized void update(int[] handles, float[][] values) {
+		int length = 0;
+		for (int handle: handles) {
+			length = Math.max(length, handle + 1);
+		}
+
+		float[][] thresholds = table.thresholds.clone();
+		for (int threshold = 0; threshold < COUNT; threshold++) {
+			if (values[threshold] == null) {
+				continue;
+			}
+
+			float[] oldValues = thresholds[threshold];
+			float[] newValues = Arrays.copyOf(oldValues, Math.max(oldValues.length, length));
+			Arrays.fill(newValues, oldValues.length, newValues.length, DEFAULTS[threshold]);
+			for (int i = 0; i < handles.length; i++) {
+				float value = values[threshold][i];
+				newValues[handles[i]] = Float.isNaN(value) ? DEFAULTS[threshold] : value;
+			}
+			thresholds[threshold] = newValues;
+		}
+
+		table = new Table(thresholds);
+	}
+
+	public static float getDefault(int threshold) {
+		return DEFAULTS[threshold];
+	}
+
+
+	// One version of the thresholds, immutable.
+	public static class Table {
+
+		private final float[][] thresholds;		// [threshold][handle].
+
+		private Table(float[][] thresholds) {
+			this.thresholds = thresholds;
+		}
+
+		public float get(int threshold, int handle) {
+			float[] values = thresholds[threshold];
+
+			return handle >= 0 && handle < values.length ? values[handle] : DEFAULTS[threshold];
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package fire.alarm.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/*
+ * The connection between sensors (or gateways) and the server: plain sockets, or TLS, optionally compressed.
+ * What goes over it are the frames of SensorFrameCodec.
+ * Both ends must be configured alike, with;
+ * 		-Dfire.transport.tls=true			TLS, keys and trust taken from the standard javax.net.ssl.keyStore / trustStore properties.
+ * 		-Dfire.transport.compress=true		deflate the streams.
+ *
+ * TLS:-
+ * Handshakes are the expensive part when many sensors reconnect at once, e.g. after a network outage.
+ * The server caches up to SESSION_CACHE_SIZE sessions for SESSION_TIMEOUT, and clients of the same SSLContext
+ * resume them, which skips the key exchange and certificate checks. A restarted server has an empty cache,
+ * its sensors all do a full handshake.
+ * The handshake runs on the connection's own thread at its first read or write, never on the accepting thread.
+ * AES-GCM suites are preferred, they are done in hardware on current CPUs.
+ *
+ * Compression:-
+ * Readings repeat the same keys and mostly the same values, so one deflate stream per connection, kept for its
+ * whole life, compresses each message against the previous ones. BEST_SPEED gets most of that for little CPU,
+ * and every flush of the stream is a sync flush so a reading is never held back.
+ * Either way the stream is buffered, so a flushed frame goes out as a single TLS record.
+ * Readings carry no secrets, compressing before encrypting does not expose anything (as CRIME did for cookies).
+ */
+public class SensorTransport {
+
+	private static final int SESSION_CACHE_SIZE = 65536;
+	private static final int SESSION_TIMEOUT = 24 * 60 * 60;	// seconds.
+	private static final List<String> PREFERRED_CIPHER_SUITES = Arrays.asList(
+			"TLS_AES_128_GCM_SHA256",
+			"TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+			"TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+	private static final int BUFFER_SIZE = 8192;
+
+	private SSLContext tls;		// null for plain sockets.
+	private boolean compressed;
+
+
+	public SensorTransport(SSLContext tls, boolean compressed) {
+		this.tls = tls;
+		this.compressed = compressed;
+
+		if (tls != null) {
+			SSLSessionContext sessions = tls.getServerSessionContext();
+			sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+			sessions.setSessionTimeout(SESSION_TIMEOUT);
+			tls.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+		}
+	}
+
+	public static SensorTransport fromSystemProperties() {
+		SSLContext tls = null;
+		if (Boolean.getBoolean("fire.transport.tls")) {
+			try {
+				tls = SSLContext.getDefault();
+			}
+			catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("TLS is not available.", e);
+			}
+		}
+
+		return new SensorTransport(tls, Boolean.getBoolean("fire.transport.compress"));
+	}
+
+
+	public ServerSocket listen(int port) throws IOException {
+		if (tls == null) {
+			return new ServerSocket(port);
+		}
+
+		SSLServerSocket listener = (SSLServerSocket) tls.getServerSocketFactory().createServerSocket(port);
+		SSLParameters parameters = listener.getSSLParameters();
+		parameters.setCipherSuites(preferredCipherSuites(parameters.getCipherSuites()));
+		parameters.setUseCipherSuitesOrder(true);
+		listener.setSSLParameters(parameters);
+
+		return listener;
+	}
+
+	public Socket connect(String host, int port) throws IOException {
+		if (tls == null) {
+			return new Socket(host, port);
+		}
+
+		SSLSocket socket = (SSLSocket) tls.getSocketFactory().createSocket(host, port);
+		socket.setEnabledCipherSuites(preferredCipherSuites(socket.getEnabledCipherSuites()));
+
+		return socket;
+	}
+
+	// The stream to write frames to the other end, flush() sends them.
+	public DataOutputStream openOutput(Socket socket) throws IOException {
+		OutputStream out = socket.getOutputStream();
+		if (compressed) {
+			out = new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), BUFFER_SIZE, true);
+		}
+		else {
+			// frames are written in small pieces, each would be a TLS record (or a packet) of its own.
+			out = new BufferedOutputStream(out, BUFFER_SIZE);
+		}
+
+		return new DataOutputStream(out);
+	}
+
+	public DataInputStream openInput(Socket socket) throws IOException {
+		InputStream in = socket.getInputStream();
+		if (compressed) {
+			in = new InflaterInputStream(in, new Inflater(), BUFFER_SIZE);
+		}
+		else {
+			in = new BufferedInputStream(in, BUFFER_SIZE);
+		}
+
+		return new DataInputStream(in);
+	}
+
+	public boolean isTls() {
+		return tls != null;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	// Keeps the order of PREFERRED_CIPHER_SUITES first, then whatever else was enabled.
+	private static String[] preferredCipherSuites(String[] enabled) {
+		List<String> enabledSuites = Arrays.asList(enabled);
+		ArrayList<String> suites = new ArrayList<>();
+		for (String suite: PREFERRED_CIPHER_SUITES) {
+			if (enabledSuites.contains(suite)) {
+				suites.add(suite);
+			}
+		}
+		for (String suite: enabled) {
+			if (!suites.contains(suite)) {
+				suites.add(suite);
+			}
+		}
+
+		return suites.toArray(new String[suites.size()]);
+	}
+}
@@ -0,0 +1,75 @@
+package fire.alarm.server;
+
+import java.util.ArrayList;
+
+/*
+ * Takes the server down in steps, one after the other, all within one deadline, e.g.
+ * 		stop accepting sensors, send them away, drain the pipeline, let the standby catch up, flush, unexport.
+ * A step that runs out of time gives up on what it waits for and the next step runs regardless, so the server
+ * always gets down in about the deadline; a step that fails is reported and skipped the same way.
+ *
+ * Runs once, later calls return straight away; e.g. from a shutdown hook, on SIGTERM or Ctrl-C.
+ *
+ * Each step is reported as it is done;
+ * 		Shutdown : sensors sent away in 812 ms
+ * 		Shutdown : pipeline drained in 3 ms
+ * 		Shutdown : standby caught up gave up after 2,004 ms
+ */
+public class ServerShutdown {
+
+	private final long deadlineMillis;
+	private final ArrayList<String> names = new ArrayList<>();
+	private final ArrayList<IShutdownStep> steps = new ArrayList<>();
+	private boolean started = false;
+
+
+	public ServerShutdown(long deadlineMillis) {
+		this.deadlineMillis = deadlineMillis;
+	}
+
+	// name says what is done once the step is over.
+	public synchronized void add(String name, IShutdownStep step) {
+		names.add(name);
+		steps.add(step);
+	}
+
+	// Returns true if every step made it in time.
+	public boolean run() {
+		synchronized (this) {
+			if (started) {
+				return true;
+			}
+			started = true;
+		}
+
+		long start = System.currentTimeMillis();
+		long deadline = start + deadlineMillis;
+		boolean inTime = true;
+		for (int step = 0; step < steps.size(); step++) {
+			long stepStart = System.currentTimeMillis();
+			boolean done;
+			try {
+				done = steps.get(step).run(deadline);
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+				done = false;
+			}
+			inTime &= done;
+
+			System.out.printf("Shutdown : %s %s %,d ms%n", names.get(step), done ? "in" : "gave up after", System.currentTimeMillis() - stepStart);
+		}
+		System.out.printf("Shutdown : done in %,d ms%s%n", System.currentTimeMillis() - start, inTime ? "" : ", some steps gave up");
+
+		return inTime;
+	}
+
+	// A thread running the shutdown, for Runtime.addShutdownHook.
+	public Thread hook() {
+		return new Thread(new Runnable() {
+			public void run() {
+				ServerShutdown.this.run();
+			}
+		}, "shutdown");
+	}
+}
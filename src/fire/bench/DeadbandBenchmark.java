@@ -0,0 +1,106 @@
+package fire.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import fire.alarm.sensor.DeadbandReporter;
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.SensorFrameCodec;
+
+/*
+ * Compares sending every reading in full with deadband reporting for a quiet building:
+ * values only drift by a little noise, and now and then a sensor's temperature steps up (e.g. heating turned on).
+ * Measures the bytes of the frames sent and the server's time to turn them into FireSensorData.
+ *
+ * Usage: DeadbandBenchmark [sensors] [readings per sensor] [keepalive readings]
+ */
+public class DeadbandBenchmark {
+
+	private static final long READING_INTERVAL = 5000;	// millis, as FireSensor.
+
+	public static void main(String[] args) throws IOException {
+		int sensors = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int readings = args.length > 1 ? Integer.parseInt(args[1]) : 720;	// an hour.
+		int keepalive = args.length > 2 ? Integer.parseInt(args[2]) : 12;	// a minute.
+
+		ArrayList<HashMap<String, String>> full = new ArrayList<>();
+		ArrayList<HashMap<String, String>> reported = new ArrayList<>();
+		DeadbandReporter deadband = new DeadbandReporter(keepalive * READING_INTERVAL);
+
+		Random random = new Random(42);
+		double[] base = new double[sensors];
+		for (int s = 0; s < sensors; s++) {
+			base[s] = 20 + random.nextInt(5);
+		}
+
+		for (int r = 0; r < readings; r++) {
+			long now = r * READING_INTERVAL;
+			for (int s = 0; s < sensors; s++) {
+				if (random.nextInt(1000) == 0) {
+					base[s] += 2;
+				}
+
+				HashMap<String, String> sensorData = new HashMap<>();
+				sensorData.put("sensorId", "10-" + s);
+				sensorData.put("temperature", String.format("%.1f", base[s] + random.nextGaussian() * 0.1));
+				sensorData.put("battery", Integer.toString(100 - r / 360));
+				sensorData.put("smoke", "3");
+				sensorData.put("co2", "300.0");
+				sensorData.put("timestamp", Long.toString(now));
+				full.add(sensorData);
+
+				HashMap<String, String> report = deadband.report(sensorData, now);
+				if (report != null) {
+					reported.add(report);
+				}
+			}
+		}
+
+		// warm up, then measure.
+		parse(full);
+		parse(reported);
+
+		long fullBytes = bytesSent(full);
+		long reportedBytes = bytesSent(reported);
+		long fullNanos = parse(full);
+		long reportedNanos = parse(reported);
+
+		System.out.printf("full     : %,d messages, %,d bytes, parsed in %,d ms%n", full.size(), fullBytes, fullNanos / 1000000);
+		System.out.printf("deadband : %,d messages, %,d bytes, parsed in %,d ms%n", reported.size(), reportedBytes, reportedNanos / 1000000);
+		System.out.printf("saved    : %.1f%% bytes, %.1f%% parse time%n",
+				100.0 * (fullBytes - reportedBytes) / fullBytes, 100.0 * (fullNanos - reportedNanos) / fullNanos);
+	}
+
+	// Frames as a FireSensor writes them.
+	private static long bytesSent(ArrayList<HashMap<String, String>> messages) throws IOException {
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(sent);
+		for (HashMap<String, String> message: messages) {
+			SensorFrameCodec.writeReading(out, message);
+		}
+
+		return sent.size();
+	}
+
+	// What FireAlarmServer does with a message before storing it.
+	private static long parse(ArrayList<HashMap<String, String>> messages) {
+		HashMap<String, FireSensorData> lastReading = new HashMap<>();
+		long start = System.nanoTime();
+		for (HashMap<String, String> message: messages) {
+			FireSensorData fsd;
+			if (FireSensorData.isDelta(message)) {
+				fsd = new FireSensorData().getFireSensorDataFromDelta(lastReading.get(message.get("sensorId")), message);
+			}
+			else {
+				fsd = new FireSensorData().getFireSensorDataFromHashMap(message);
+			}
+			lastReading.put(fsd.getSensorId(), fsd);
+		}
+
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,208 @@
+package fire.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.SensorFrameCodec;
+import fire.alarm.server.SensorFrameException;
+import fire.alarm.server.SensorFrameReader;
+
+/*
+ * Compares reading sensor messages with Java serialization (as the server did) and with SensorFrameCodec frames,
+ * up to the FireSensorData the server stores. Both read from memory, the network is left out.
+ * Also feeds each a stream with a few corrupted messages to see how much of it is still read.
+ *
+ * Usage: FrameCodecBenchmark [readings] [sensors]
+ */
+public class FrameCodecBenchmark {
+
+	private static final int BATCH = 500;	// as FireSensorGateway.
+	private static final int CORRUPT_EVERY = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int readings = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int sensors = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+		ArrayList<HashMap<String, String>> messages = new ArrayList<>(readings);
+		for (int i = 0; i < readings; i++) {
+			HashMap<String, String> sensorData = new HashMap<>();
+			sensorData.put("sensorId", "10-" + (i % sensors));
+			sensorData.put("temperature", Double.toString(20 + (i % 70) * 0.1));
+			sensorData.put("battery", Integer.toString(100 - i % 50));
+			sensorData.put("smoke", Integer.toString(1 + i % 6));
+			sensorData.put("co2", "300.0");
+			sensorData.put("timestamp", Long.toString(1500000000000L + i));
+			messages.add(sensorData);
+		}
+
+		byte[] objects = writeObjects(messages, false);
+		byte[] objectBatches = writeObjects(messages, true);
+		byte[] frames = writeFrames(messages, false);
+		byte[] frameBatches = writeFrames(messages, true);
+
+		// warm up.
+		for (int i = 0; i < 3; i++) {
+			readObjects(objects);
+			readFrames(frames);
+		}
+
+		System.out.println("                        bytes/msg      msgs/s");
+		report("serialization", objects, readings, readObjects(objects));
+		report("frames", frames, readings, readFrames(frames));
+		report("serialization, batched", objectBatches, readings, readObjects(objectBatches));
+		report("frames, batched", frameBatches, readings, readFrames(frameBatches));
+
+		// corrupt a byte of one message in CORRUPT_EVERY, not the length of a frame.
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new ByteArrayOutputStream()));	// the reader logs every rejected frame.
+		Random random = new Random(42);
+		int objectLength = objects.length / readings;
+		for (int i = CORRUPT_EVERY / 2, frame = 0, at = 0; at < frames.length; frame++) {
+			int length = ((frames[at] & 0xFF) << 24) | ((frames[at + 1] & 0xFF) << 16) | ((frames[at + 2] & 0xFF) << 8) | (frames[at + 3] & 0xFF);
+			if (frame == i) {
+				frames[at + 4 + random.nextInt(length)] ^= 0x5A;
+				objects[i * objectLength + random.nextInt(objectLength)] ^= 0x5A;
+				i += CORRUPT_EVERY;
+			}
+			at += 4 + length;
+		}
+		long objectsRead = countObjects(objects);
+		long[] framesRead = countFrames(frames);
+		System.setErr(err);
+
+		System.out.println("with 1 in " + CORRUPT_EVERY + " messages corrupted");
+		System.out.printf("  serialization : %,d of %,d read before the stream broke%n", objectsRead, readings);
+		System.out.printf("  frames        : %,d of %,d read, %,d rejected, connection kept%n", framesRead[0], readings, framesRead[1]);
+	}
+
+	private static void report(String name, byte[] stream, int readings, long nanos) {
+		System.out.printf("  %-22s %8.1f %,12.0f%n", name, (double) stream.length / readings, readings / (nanos / 1e9));
+	}
+
+	// As a FireSensor wrote them, or a gateway in batches.
+	private static byte[] writeObjects(ArrayList<HashMap<String, String>> messages, boolean batched) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(stream);
+		for (int i = 0; i < messages.size(); i += batched ? BATCH : 1) {
+			if (batched) {
+				out.writeObject(new ArrayList<>(messages.subList(i, Math.min(i + BATCH, messages.size()))));
+				out.reset();
+			}
+			else {
+				out.writeObject(messages.get(i));
+			}
+		}
+		out.close();
+
+		return stream.toByteArray();
+	}
+
+	private static byte[] writeFrames(ArrayList<HashMap<String, String>> messages, boolean batched) throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(stream);
+		for (int i = 0; i < messages.size(); i += batched ? BATCH : 1) {
+			if (batched) {
+				SensorFrameCodec.writeBatch(out, messages.subList(i, Math.min(i + BATCH, messages.size())));
+			}
+			else {
+				SensorFrameCodec.writeReading(out, messages.get(i));
+			}
+		}
+
+		return stream.toByteArray();
+	}
+
+	// The server's old readSocketData and acceptSensorData.
+	@SuppressWarnings("unchecked")
+	private static long readObjects(byte[] stream) throws IOException, ClassNotFoundException {
+		long start = System.nanoTime();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(stream));
+		try {
+			while (true) {
+				Object data = in.readObject();
+				if (data instanceof HashMap) {
+					new FireSensorData().getFireSensorDataFromHashMap((HashMap<String, String>) data);
+				}
+				else {
+					for (HashMap<String, String> sensorData: (ArrayList<HashMap<String, String>>) data) {
+						new FireSensorData().getFireSensorDataFromHashMap(sensorData);
+					}
+				}
+			}
+		}
+		catch (java.io.EOFException e) {
+			// end of the stream.
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static long readFrames(byte[] stream) throws IOException, SensorFrameException {
+		long start = System.nanoTime();
+		SensorFrameReader in = new SensorFrameReader(new DataInputStream(new ByteArrayInputStream(stream)));
+		try {
+			while (true) {
+				Object data = in.readFrame();
+				if (data instanceof HashMap) {
+					new FireSensorData().getFireSensorDataFromHashMap((HashMap<String, String>) data);
+				}
+				else {
+					for (HashMap<String, String> sensorData: (ArrayList<HashMap<String, String>>) data) {
+						new FireSensorData().getFireSensorDataFromHashMap(sensorData);
+					}
+				}
+			}
+		}
+		catch (java.io.EOFException e) {
+			// end of the stream.
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	// Readings read until the stream can't be read anymore.
+	private static long countObjects(byte[] stream) {
+		long read = 0;
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(stream));
+			while (true) {
+				in.readObject();
+				read++;
+			}
+		}
+		catch (Exception e) {
+			return read;
+		}
+	}
+
+	// Returns readings read and frames rejected.
+	private static long[] countFrames(byte[] stream) throws IOException {
+		SensorFrameReader in = new SensorFrameReader(new DataInputStream(new ByteArrayInputStream(stream)));
+		long read = 0;
+		try {
+			while (true) {
+				try {
+					in.readFrame();
+					read++;
+				}
+				catch (SensorFrameException e) {
+					// rejected, go on with the next one.
+				}
+			}
+		}
+		catch (java.io.EOFException e) {
+			return new long[] {read, in.getRejected()};
+		}
+	}
+}
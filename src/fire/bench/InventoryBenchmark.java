@@ -0,0 +1,85 @@
+package fire.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.SensorInventory;
+import fire.alarm.server.SensorStateStore;
+
+/*
+ * Cold start with an inventory: converting a CSV of sensors, loading it on 1 and on every core,
+ * registering it in an empty store, and finding the sensors that never connected once most of them have.
+ *
+ * Usage: InventoryBenchmark [sensors] [zones]
+ */
+public class InventoryBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int sensors = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int zones = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+		File csv = File.createTempFile("inventory", ".csv");
+		File inventoryFile = File.createTempFile("inventory", ".finv");
+		csv.deleteOnExit();
+		inventoryFile.deleteOnExit();
+
+		// listed zone by zone, as a deployment would; one sensor in ten has its own zone and thresholds.
+		int perZone = Math.max(1, sensors / zones);
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(csv))) {
+			for (int i = 0; i < sensors; i++) {
+				out.write((i / perZone) + "-" + i);
+				if (i % 10 == 0) {
+					out.write(i % 20 == 0 ? ",kitchen-" + (i / perZone) + ",70,,8," : ",server-room-" + (i / perZone) + ",35,50,,");
+				}
+				out.newLine();
+			}
+		}
+
+		long start = System.nanoTime();
+		SensorInventory.convert(csv, inventoryFile);
+		System.out.printf("csv of %,d KB converted to %,d KB in %,d ms%n", csv.length() / 1024, inventoryFile.length() / 1024,
+				(System.nanoTime() - start) / 1000000);
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads: cores > 1 ? new int[] {1, cores, 1, cores} : new int[] {1, 1}) {
+			start = System.nanoTime();
+			SensorInventory inventory = SensorInventory.load(inventoryFile, threads);
+			long loaded = System.nanoTime();
+			SensorStateStore store = new SensorStateStore();
+			store.register(inventory);
+			long registered = System.nanoTime();
+			System.out.printf("%,d sensors on %d thread(s) : loaded %,d ms, registered %,d ms, %,d ms in all%n", inventory.size(), threads,
+					(loaded - start) / 1000000, (registered - loaded) / 1000000, (registered - start) / 1000000);
+		}
+
+		// all but one sensor in a hundred connect.
+		SensorInventory inventory = SensorInventory.load(inventoryFile, cores);
+		SensorStateStore store = new SensorStateStore();
+		store.register(inventory);
+		for (int i = 0; i < sensors; i++) {
+			if (i % 100 != 0) {
+				FireSensorData fireSensorData = new FireSensorData();
+				fireSensorData.setSensorId(inventory.getSensorId(i));
+				fireSensorData.setTemperature(21.0);
+				fireSensorData.setBatteryPercentage(90);
+				fireSensorData.setSmokeLevel(2);
+				fireSensorData.setCo2Level(300.0);
+				store.put(fireSensorData.getSensorId(), fireSensorData);
+			}
+		}
+
+		for (int i = 0; i < 3; i++) {
+			store.queryMissing(null, Integer.MAX_VALUE);
+		}
+		start = System.nanoTime();
+		int missing = store.queryMissing(null, Integer.MAX_VALUE).size();
+		long all = System.nanoTime() - start;
+		start = System.nanoTime();
+		int inZone = store.queryMissing("kitchen-20", Integer.MAX_VALUE).size();
+		long zone = System.nanoTime() - start;
+		System.out.printf("never connected : %,d in %.2f ms, %,d of them in kitchen-20 in %.2f ms%n", missing, all / 1e6, inZone, zone / 1e6);
+	}
+}
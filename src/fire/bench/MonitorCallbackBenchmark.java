@@ -0,0 +1,155 @@
+package fire.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fire.alarm.server.FireSensorData;
+import fire.monitor.FireSensorMonitor;
+
+/*
+ * How long the server's delivery to a monitor (onData) takes when the monitor's console is slow;
+ * printing every reading in the callback, as the monitor did, against queueing it to the MonitorSensorCache.
+ * Server threads are played by local threads calling onData directly, RMI itself costs the same either way.
+ *
+ * Usage: MonitorCallbackBenchmark [callbacks per thread] [threads] [sensors] [console micros per write]
+ */
+public class MonitorCallbackBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final int callbacks = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		final int sensors = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+		final long writeNanos = (args.length > 3 ? Long.parseLong(args[3]) : 5) * 1000;
+
+		// a terminal, slow to write to.
+		final long[] lines = new long[1];
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) {
+				lines[0]++;
+				long until = System.nanoTime() + writeNanos;
+				while (System.nanoTime() < until);
+			}
+		}, true));
+
+		final Object printing = new Object();
+		final FireSensorData[] readings = readings(sensors);
+		long[] latencies = run(callbacks, threads, readings, new Callback() {
+			public void onData(FireSensorData sensorData) {
+				// as FireSensorMonitor.onData was, synchronized.
+				synchronized (printing) {
+					sensorData.printData();
+				}
+			}
+		});
+		long oldWrites = lines[0];
+		report(out, "print in the callback", latencies, oldWrites, -1);
+
+		lines[0] = 0;
+		final FireSensorMonitor monitor = new FireSensorMonitor();
+		long start = System.nanoTime();
+		latencies = run(callbacks, threads, readings, new Callback() {
+			public void onData(FireSensorData sensorData) throws Exception {
+				monitor.onData(sensorData);
+			}
+		});
+		// until the cache has taken in the last reading and published it.
+		long last = (long) callbacks * threads;
+		FireSensorData rendered;
+		while ((rendered = monitor.getSensors().get(lastSensor(readings, last))) == null || rendered.getVersion() < last) {
+			Thread.sleep(1);
+		}
+		double caughtUp = (System.nanoTime() - start) / 1e6;
+		// and has printed it.
+		for (long writes = -1; writes != lines[0]; Thread.sleep(200)) {
+			writes = lines[0];
+		}
+		report(out, "queue to the cache", latencies, lines[0], caughtUp);
+
+		System.exit(0);		// the monitor is exported.
+	}
+
+	private interface Callback {
+		void onData(FireSensorData sensorData) throws Exception;
+	}
+
+	private static FireSensorData[] readings(int sensors) {
+		FireSensorData[] readings = new FireSensorData[sensors];
+		for (int i = 0; i < sensors; i++) {
+			readings[i] = new FireSensorData();
+			readings[i].setSensorId("10-" + i);
+			readings[i].setTemperature(20 + i % 50 * 0.1);
+			readings[i].setBatteryPercentage(90);
+			readings[i].setSmokeLevel(2);
+			readings[i].setCo2Level(300.0);
+		}
+
+		return readings;
+	}
+
+	private static String lastSensor(FireSensorData[] readings, long version) {
+		return readings[(int) ((version - 1) % readings.length)].getSensorId();
+	}
+
+	// Every thread delivers readings of the next versions, as the store hands them out, and times each call.
+	private static long[] run(final int callbacks, int threads, final FireSensorData[] readings, final Callback callback) throws InterruptedException {
+		final AtomicLong version = new AtomicLong();
+		final long[] latencies = new long[callbacks * threads];
+		Thread[] servers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int offset = t * callbacks;
+			servers[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < callbacks; i++) {
+						FireSensorData sensorData = new FireSensorData();
+						long next = version.incrementAndGet();
+						FireSensorData reading = readings[(int) ((next - 1) % readings.length)];
+						sensorData.setSensorId(reading.getSensorId());
+						sensorData.setTemperature(reading.getTemperature());
+						sensorData.setBatteryPercentage(reading.getBatteryPercentage());
+						sensorData.setSmokeLevel(reading.getSmokeLevel());
+						sensorData.setCo2Level(reading.getCo2Level());
+						sensorData.setVersion(next);
+
+						long start = System.nanoTime();
+						try {
+							callback.onData(sensorData);
+						}
+						catch (Exception e) {
+							e.printStackTrace();
+						}
+						latencies[offset + i] = System.nanoTime() - start;
+					}
+				}
+			};
+		}
+
+		for (Thread server: servers) {
+			server.start();
+		}
+		for (Thread server: servers) {
+			server.join();
+		}
+
+		return latencies;
+	}
+
+	private static void report(PrintStream out, String name, long[] latencies, long writes, double caughtUpMillis) {
+		long total = 0;
+		for (long latency: latencies) {
+			total += latency;
+		}
+		Arrays.sort(latencies);
+
+		out.printf("%-22s : onData p50 %,9.1f us, p99 %,9.1f us, max %,10.1f us, server threads busy %,8.0f ms, console writes %,d",
+				name, latencies[latencies.length / 2] / 1e3, latencies[(int) (latencies.length * 0.99)] / 1e3,
+				latencies[latencies.length - 1] / 1e3, total / 1e6, writes);
+		out.println(caughtUpMillis >= 0 ? String.format(", snapshot caught up after %,.0f ms", caughtUpMillis) : "");
+	}
+}
@@ -0,0 +1,142 @@
+package fire.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.IIngestStage;
+import fire.alarm.server.IngestPipeline;
+import fire.alarm.server.OverloadController;
+import fire.alarm.server.SensorHistoryLog;
+import fire.alarm.server.SensorStateStore;
+import fire.alarm.server.SensorThresholds;
+
+/*
+ * A burst of readings well past what the server can deliver, with alarms among them, through the stages of the server:
+ * validate, store (with the history) and a fan-out that waits on a monitor for every reading it sends.
+ * Sensors send at the normal rate, then at burst times that rate, then at the normal rate again.
+ * Run without shedding and with an OverloadController, the alarms should stay within the target with it.
+ *
+ * Usage: OverloadBenchmark [normal readings/s] [burst factor] [monitor micros per reading] [target millis]
+ */
+public class OverloadBenchmark {
+
+	private static final long PHASE_NANOS = 2000000000L;	// normal, burst, normal.
+	private static final int ALARM_EVERY = 50;				// one reading in that many is in error.
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int rate = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+		int burst = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		long monitorNanos = (args.length > 2 ? Long.parseLong(args[2]) : 150) * 1000;
+		long targetMillis = args.length > 3 ? Long.parseLong(args[3]) : 250;
+
+		System.out.printf("%,d readings/s, %,d/s for %d s, monitor %d us per reading, target %d ms%n",
+				rate, rate * burst, PHASE_NANOS / 1000000000L, monitorNanos / 1000, targetMillis);
+		run("no shedding", rate, burst, monitorNanos, targetMillis, false);
+		run("shedding   ", rate, burst, monitorNanos, targetMillis, true);
+	}
+
+	private static void run(String name, int rate, int burst, final long monitorNanos, long targetMillis, boolean shed) throws IOException, InterruptedException {
+		final SensorStateStore store = new SensorStateStore();
+		File historyFile = File.createTempFile("overload-history", ".bin");
+		historyFile.deleteOnExit();
+		final SensorHistoryLog history = new SensorHistoryLog(historyFile.getPath());
+		final OverloadController[] overload = new OverloadController[1];
+		final long[] alarmLatencies = new long[(int) (rate * (2 + burst) * (PHASE_NANOS / 1000000000L)) / ALARM_EVERY + 1];
+		final int[] alarms = new int[1];
+
+		IngestPipeline pipeline = new IngestPipeline(new String[] {"validate", "store", "fan-out"},
+				new IIngestStage[] {
+					new IIngestStage() {
+						public Object process(Object event) {
+							FireSensorData fsd = (FireSensorData) event;
+							SensorThresholds.Table thresholds = store.getThresholds().getTable();
+							int handle = store.getHandle(fsd.getSensorId());
+							fsd.isTemperatureInLevel(thresholds.get(SensorThresholds.MAX_TEMPERATURE, handle));
+							fsd.isBatteryInLevel(thresholds.get(SensorThresholds.MIN_BATTERY, handle));
+							fsd.isSmokeInLevel(thresholds.get(SensorThresholds.MAX_SMOKE, handle));
+							fsd.isCo2InLevel(thresholds.get(SensorThresholds.MAX_CO2, handle));
+							return fsd;
+						}
+					},
+					new IIngestStage() {
+						public Object process(Object event) {
+							FireSensorData fsd = (FireSensorData) event;
+							if (overload[0].keepHistory(fsd)) {
+								history.append(fsd);
+							}
+							store.put(fsd.getSensorId(), fsd);
+							return fsd;
+						}
+					},
+					new IIngestStage() {
+						public Object process(Object event) {
+							FireSensorData fsd = (FireSensorData) event;
+							if (!overload[0].shedFanOut(fsd)) {
+								// the monitor's RMI call.
+								LockSupport.parkNanos(monitorNanos);
+							}
+							long now = System.nanoTime();
+							if (fsd.hasErrors()) {
+								LockSupport.parkNanos(monitorNanos);	// and its alert.
+								alarmLatencies[alarms[0]++] = now - fsd.getReceivedNanos();
+							}
+							overload[0].delivered(fsd, now);
+							return null;
+						}
+					}},
+				new int[] {1, 1, 1}, 1024);
+		overload[0] = new OverloadController(pipeline, shed ? targetMillis : 0, 10);
+		pipeline.start();
+		overload[0].start(100);
+
+		// paced by the clock, whatever is due is sent; a full ring holds the sensors back as TCP would.
+		IngestPipeline.Producer sensors = pipeline.connect();
+		long start = System.nanoTime();
+		long sent = 0;
+		while (true) {
+			long elapsed = System.nanoTime() - start;
+			if (elapsed >= 3 * PHASE_NANOS) {
+				break;
+			}
+			long due = elapsed < PHASE_NANOS ? elapsed * rate / 1000000000L
+					: elapsed < 2 * PHASE_NANOS ? PHASE_NANOS * rate / 1000000000L + (elapsed - PHASE_NANOS) * rate * burst / 1000000000L
+					: PHASE_NANOS * rate * (1 + burst) / 1000000000L + (elapsed - 2 * PHASE_NANOS) * rate / 1000000000L;
+			for (; sent < due; sent++) {
+				FireSensorData fsd = new FireSensorData();
+				fsd.setSensorId("sensor-" + sent % 5000);
+				fsd.setTemperature(sent % ALARM_EVERY == 0 ? 80 : 20 + sent % 30);
+				fsd.setBatteryPercentage(90);
+				fsd.setSmokeLevel(2);
+				fsd.setCo2Level(300.0);
+				fsd.setReceivedNanos(System.nanoTime());
+				sensors.submit(fsd);
+			}
+			LockSupport.parkNanos(100000);
+		}
+		pipeline.awaitIdle();
+		long took = System.nanoTime() - start;
+		history.close();
+
+		long[] latencies = Arrays.copyOf(alarmLatencies, alarms[0]);
+		Arrays.sort(latencies);
+		int late = 0;
+		for (long latency: latencies) {
+			if (latency > targetMillis * 1000000) {
+				late++;
+			}
+		}
+		System.out.printf("%s : %,d readings in %.1f s, alarms p50 %,7.1f ms, p99 %,7.1f ms, max %,7.1f ms, %,d of %,d over %d ms%n",
+				name, sent, took / 1e9, percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 1.0),
+				late, latencies.length, targetMillis);
+		if (shed) {
+			System.out.print(overload[0].getStats());
+		}
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+	}
+}
@@ -0,0 +1,83 @@
+package fire.bench;
+
+import java.util.ArrayList;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.ISensorStateStore;
+import fire.alarm.server.PartitionedSensorStateStore;
+import fire.alarm.server.SensorStateStore;
+
+/*
+ * Store threads writing readings, as the store stage does with that many threads: each thread writes its own share
+ * of the sensors, the share of its partition. Into one SensorStateStore (every thread takes its lock) and into a
+ * PartitionedSensorStateStore with a partition per thread (each thread alone on its partition's lock).
+ * Only scales with as many cores as threads, on fewer the threads take turns either way.
+ *
+ * Usage: PartitionScalingBenchmark [readings per thread] [sensors] [most threads]
+ */
+public class PartitionScalingBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int readings = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+		int sensors = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+		int mostThreads = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+
+		System.out.printf("%,d readings per thread, %,d sensors, %d cores%n", readings, sensors, Runtime.getRuntime().availableProcessors());
+		for (int threads = 1; threads <= mostThreads; threads *= 2) {
+			double single = run(new SensorStateStore(), threads, readings, sensors);
+			double partitioned = run(new PartitionedSensorStateStore(threads), threads, readings, sensors);
+
+			System.out.printf("%2d threads : single %,12.0f readings/s | partitioned %,12.0f readings/s%n", threads, single, partitioned);
+		}
+	}
+
+	private static double run(ISensorStateStore store, int threads, final int readings, int sensors) throws InterruptedException {
+		// the sensors by the thread that writes them, as the pipeline picks the store thread.
+		PartitionedSensorStateStore partitioning = new PartitionedSensorStateStore(threads);
+		ArrayList<ArrayList<String>> shares = new ArrayList<>();
+		for (int thread = 0; thread < threads; thread++) {
+			shares.add(new ArrayList<String>());
+		}
+		for (int sensor = 0; sensor < sensors; sensor++) {
+			String sensorId = "building-7:floor-" + sensor / 100 + ":sensor-" + sensor;
+			shares.get(partitioning.getPartition(sensorId)).add(sensorId);
+		}
+
+		final ISensorStateStore target = store;
+		Thread[] writers = new Thread[threads];
+		for (int thread = 0; thread < threads; thread++) {
+			final ArrayList<String> sensorIds = shares.get(thread);
+			final int[] handles = new int[sensorIds.size()];
+			for (int sensor = 0; sensor < handles.length; sensor++) {
+				handles[sensor] = store.register(sensorIds.get(sensor));
+			}
+			writers[thread] = new Thread() {
+				public void run() {
+					if (handles.length == 0) {
+						return;
+					}
+					for (int i = 0; i < readings; i++) {
+						FireSensorData fsd = new FireSensorData();
+						fsd.setSensorId(sensorIds.get(i % handles.length));
+						fsd.setTemperature(20 + i % 40);
+						fsd.setBatteryPercentage(90);
+						fsd.setSmokeLevel(2);
+						fsd.setCo2Level(300.0);
+						fsd.setTimestamp(1500000000000L + i);
+						target.put(handles[i % handles.length], fsd);
+					}
+				}
+			};
+		}
+
+		long start = System.nanoTime();
+		for (Thread writer: writers) {
+			writer.start();
+		}
+		for (Thread writer: writers) {
+			writer.join();
+		}
+
+		return (double) threads * readings / ((System.nanoTime() - start) / 1e9);
+	}
+}
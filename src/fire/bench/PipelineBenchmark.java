@@ -0,0 +1,105 @@
+package fire.bench;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.IIngestStage;
+import fire.alarm.server.IngestPipeline;
+import fire.alarm.server.SensorStateStore;
+import fire.alarm.server.SensorThresholds;
+
+/*
+ * Connection threads submitting readings to the IngestPipeline, with a fan-out that waits on a slow monitor
+ * (a network round trip, not CPU) for every reading; the stages as the server runs them otherwise.
+ * Run inline (every stage on the connection threads, as before the pipeline), then with stage threads,
+ * then with more threads for the fan-out, the stage the stats point at.
+ *
+ * Usage: PipelineBenchmark [connections] [readings per connection] [monitor micros per reading]
+ */
+public class PipelineBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int readings = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		long monitorNanos = (args.length > 2 ? Long.parseLong(args[2]) : 50) * 1000;
+
+		for (int[] threads: new int[][] {{0, 0, 0}, {1, 1, 1}, {1, 1, 4}, {1, 1, 16}}) {
+			run(connections, readings, monitorNanos, threads);
+		}
+	}
+
+	private static void run(int connections, final int readings, final long monitorNanos, int[] threads) throws InterruptedException {
+		final SensorStateStore store = new SensorStateStore();
+		final IngestPipeline pipeline = new IngestPipeline(new String[] {"validate", "store", "fan-out"},
+				new IIngestStage[] {
+					new IIngestStage() {
+						public Object process(Object event) {
+							FireSensorData fsd = (FireSensorData) event;
+							SensorThresholds.Table thresholds = store.getThresholds().getTable();
+							int handle = store.getHandle(fsd.getSensorId());
+							fsd.isTemperatureInLevel(thresholds.get(SensorThresholds.MAX_TEMPERATURE, handle));
+							fsd.isBatteryInLevel(thresholds.get(SensorThresholds.MIN_BATTERY, handle));
+							fsd.isSmokeInLevel(thresholds.get(SensorThresholds.MAX_SMOKE, handle));
+							fsd.isCo2InLevel(thresholds.get(SensorThresholds.MAX_CO2, handle));
+							return fsd;
+						}
+					},
+					new IIngestStage() {
+						public Object process(Object event) {
+							store.put(((FireSensorData) event).getSensorId(), (FireSensorData) event);
+							return event;
+						}
+					},
+					new IIngestStage() {
+						public Object process(Object event) {
+							// the monitor's RMI call.
+							LockSupport.parkNanos(monitorNanos);
+							return null;
+						}
+					}},
+				threads, 1024);
+		pipeline.start();
+		pipeline.getStats();
+
+		final long[] latencies = new long[connections * readings];
+		Thread[] sensors = new Thread[connections];
+		for (int c = 0; c < connections; c++) {
+			final int connection = c;
+			sensors[c] = new Thread() {
+				public void run() {
+					IngestPipeline.Producer ingest = pipeline.connect();
+					for (int i = 0; i < readings; i++) {
+						FireSensorData fsd = new FireSensorData();
+						fsd.setSensorId(connection + "-" + (i % 100));
+						fsd.setTemperature(20 + i % 40);
+						fsd.setBatteryPercentage(90);
+						fsd.setSmokeLevel(2);
+						fsd.setCo2Level(300.0);
+
+						long start = System.nanoTime();
+						ingest.submit(fsd);
+						latencies[connection * readings + i] = System.nanoTime() - start;
+					}
+					ingest.close();
+				}
+			};
+		}
+
+		long start = System.nanoTime();
+		for (Thread sensor: sensors) {
+			sensor.start();
+		}
+		for (Thread sensor: sensors) {
+			sensor.join();
+		}
+		pipeline.awaitIdle();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		Arrays.sort(latencies);
+		System.out.printf("threads %s : %,8.0f readings/s, connection thread per reading p50 %,8.1f us, p99 %,9.1f us%n",
+				threads[0] == 0 ? "inline" : threads[0] + "," + threads[1] + "," + threads[2], latencies.length / seconds,
+				latencies[latencies.length / 2] / 1e3, latencies[(int) (latencies.length * 0.99)] / 1e3);
+		System.out.print(pipeline.getStats().replaceAll("(?m)^", "    "));
+	}
+}
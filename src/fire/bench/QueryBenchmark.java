@@ -0,0 +1,113 @@
+package fire.bench;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.SensorStateStore;
+
+/*
+ * Latency of the store's queries over many sensors, against finding the same answer by scanning a snapshot.
+ * Sensors are spread over zones ("<zone>-<n>"); a few are hot, and a few stop reporting.
+ *
+ * Usage: QueryBenchmark [sensors] [zones]
+ */
+public class QueryBenchmark {
+
+	private static final int RUNS = 20;
+
+	public static void main(String[] args) throws InterruptedException {
+		int sensors = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int zones = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+		SensorStateStore store = new SensorStateStore();
+		Random random = new Random(42);
+
+		long start = System.nanoTime();
+		ingest(store, sensors, zones, random, false);
+		System.out.printf("ingest with indexes : %,d ns/reading%n", (System.nanoTime() - start) / sensors);
+
+		// all but one sensor in a thousand report again.
+		Thread.sleep(50);
+		long secondPass = System.currentTimeMillis();
+		start = System.nanoTime();
+		ingest(store, sensors, zones, random, true);
+		System.out.printf("again, known sensors : %,d ns/reading%n", (System.nanoTime() - start) / sensors);
+
+		query("top 10 temperature", new Query() {
+			public int run(SensorStateStore store) {
+				return store.queryTop("temperature", 10, true, null).size();
+			}
+		}, store);
+		query("top 10 temperature, zone 7", new Query() {
+			public int run(SensorStateStore store) {
+				return store.queryTop("temperature", 10, true, "7").size();
+			}
+		}, store);
+		query("lowest 10 battery", new Query() {
+			public int run(SensorStateStore store) {
+				return store.queryTop("battery", 10, false, null).size();
+			}
+		}, store);
+		query("temperature > 50", new Query() {
+			public int run(SensorStateStore store) {
+				return store.querySensors("temperature", 50.0, Double.POSITIVE_INFINITY, null, Integer.MAX_VALUE).size();
+			}
+		}, store);
+		query("temperature 20 - 20.5, limit 100", new Query() {
+			public int run(SensorStateStore store) {
+				return store.querySensors("temperature", 20.0, 20.5, null, 100).size();
+			}
+		}, store);
+		final long seenBefore = secondPass;
+		query("silent sensors", new Query() {
+			public int run(SensorStateStore store) {
+				return store.querySilent(System.currentTimeMillis() - seenBefore + 1, null, Integer.MAX_VALUE).size();
+			}
+		}, store);
+		query("scan for temperature > 50", new Query() {
+			public int run(SensorStateStore store) {
+				int found = 0;
+				for (FireSensorData sensor: store.getSnapshot().getChangedSensors().values()) {
+					if (sensor.getTemperature() > 50.0) {
+						found++;
+					}
+				}
+				return found;
+			}
+		}, store);
+	}
+
+	private static void ingest(SensorStateStore store, int sensors, int zones, Random random, boolean skipSome) {
+		for (int i = 0; i < sensors; i++) {
+			if (skipSome && i % 1000 == 0) {
+				continue;
+			}
+
+			FireSensorData fireSensorData = new FireSensorData();
+			fireSensorData.setSensorId((i % zones) + "-" + i);
+			fireSensorData.setTemperature(random.nextInt(10000) == 0 ? 60 + random.nextInt(40) : 15 + random.nextDouble() * 15);
+			fireSensorData.setBatteryPercentage(5 + random.nextInt(96));
+			fireSensorData.setSmokeLevel(1 + random.nextInt(5));
+			fireSensorData.setCo2Level(300.0);
+			store.put(fireSensorData.getSensorId(), fireSensorData);
+		}
+	}
+
+	private interface Query {
+		int run(SensorStateStore store);
+	}
+
+	private static void query(String name, Query query, SensorStateStore store) {
+		int found = 0;
+		for (int i = 0; i < 3; i++) {
+			found = query.run(store);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < RUNS; i++) {
+			query.run(store);
+		}
+		System.out.printf("%-35s %,8d sensors in %8.3f ms%n", name, found, (System.nanoTime() - start) / 1e6 / RUNS);
+	}
+}
@@ -0,0 +1,63 @@
+package fire.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.SensorStateStore;
+
+/*
+ * Loads a file backed SensorStateStore with many sensors, then measures the cost of a reading,
+ * the heap used, and how long a warm restart from the file takes.
+ *
+ * Usage: RegistryBenchmark [sensors] [readings per sensor] [registry file]
+ */
+public class RegistryBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int sensors = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		File file = new File(args.length > 2 ? args[2] : "sensor-registry.bin");
+		file.delete();
+
+		long heapBefore = usedHeap();
+		String[] sensorIds = new String[sensors];
+		for (int i = 0; i < sensors; i++) {
+			sensorIds[i] = "10-" + i;
+		}
+
+		SensorStateStore store = new SensorStateStore(file);
+		long start = System.nanoTime();
+		FireSensorData fsd = new FireSensorData();
+		for (int round = 0; round < rounds; round++) {
+			for (int i = 0; i < sensors; i++) {
+				fsd.setSensorId(sensorIds[i]);
+				fsd.setTemperature(20.0 + round);
+				fsd.setBatteryPercentage(90);
+				fsd.setSmokeLevel(3);
+				fsd.setCo2Level(300.0);
+				store.put(sensorIds[i], fsd);
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		store.flush();
+
+		System.out.printf("%,d readings for %,d sensors : %.0f ns/reading%n", (long) sensors * rounds, sensors, (double) elapsed / sensors / rounds);
+		long heapGrowth = usedHeap() - heapBefore;
+		// store.size() keeps the store reachable until the heap is measured.
+		System.out.printf("heap grown by %,d KB for %,d sensors (%d bytes/sensor, the id strings included)%n", heapGrowth / 1024, store.size(), heapGrowth / sensors);
+
+		start = System.nanoTime();
+		SensorStateStore restarted = new SensorStateStore(file);
+		System.out.printf("warm restart of %,d sensors : %.0f ms, version %d%n", restarted.size(), (System.nanoTime() - start) / 1e6, restarted.getVersion());
+	}
+
+	private static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime runtime = Runtime.getRuntime();
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,73 @@
+package fire.bench;
+
+import java.rmi.RemoteException;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.ReplicationPrimary;
+import fire.alarm.server.ReplicationStandby;
+import fire.alarm.server.RmiServerFacade;
+import fire.alarm.server.SensorStateStore;
+
+/*
+ * Measures what replicating to a standby costs the ingest path, and how far behind the standby is.
+ * Primary and standby run in this JVM, connected over loopback.
+ *
+ * Usage: ReplicationBenchmark [readings] [sensors] [replication port]
+ */
+public class ReplicationBenchmark {
+
+	public static void main(String[] args) throws InterruptedException, RemoteException {
+		int readings = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int sensors = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 9101;
+
+		SensorStateStore plainStore = new SensorStateStore();
+		System.out.printf("without standby : %,.0f readings/s%n", ingest(plainStore, readings, sensors));
+
+		SensorStateStore primaryStore = new SensorStateStore();
+		ReplicationPrimary primary = new ReplicationPrimary(port, primaryStore, new RmiServerFacade(primaryStore));
+		primary.start();
+
+		SensorStateStore standbyStore = new SensorStateStore();
+		final ReplicationStandby standby = new ReplicationStandby("localhost", port, standbyStore, new RmiServerFacade(standbyStore));
+		Thread standbyThread = new Thread(new Runnable() {
+			public void run() {
+				standby.waitForFailover();
+			}
+		});
+		standbyThread.setDaemon(true);
+		standbyThread.start();
+		while (!primary.isStandbyConnected()) {
+			Thread.sleep(10);
+		}
+
+		System.out.printf("with standby    : %,.0f readings/s%n", ingest(primaryStore, readings, sensors));
+
+		long start = System.currentTimeMillis();
+		while (primary.getRecordsBehind() > 0 && primary.isStandbyConnected()) {
+			Thread.sleep(1);
+		}
+		System.out.println("standby caught up " + (System.currentTimeMillis() - start) + " ms after ingest ended");
+		System.out.printf("replication lag : avg %.1f ms, max %d ms%n", standby.getAverageLagMillis(), standby.getMaxLagMillis());
+		System.out.println("standby resyncs : " + primary.getDroppedRecords());
+
+		// the exported facades would keep the JVM alive.
+		System.exit(0);
+	}
+
+	// Returns readings per second stored.
+	private static double ingest(SensorStateStore store, int readings, int sensors) {
+		long start = System.nanoTime();
+		for (int i = 0; i < readings; i++) {
+			FireSensorData fsd = new FireSensorData();
+			fsd.setSensorId("10-" + (i % sensors));
+			fsd.setTemperature(20.0 + (i % 30));
+			fsd.setBatteryPercentage(90);
+			fsd.setSmokeLevel(3);
+			fsd.setCo2Level(300.0);
+			store.put(fsd.getSensorId(), fsd);
+		}
+
+		return readings / ((System.nanoTime() - start) / 1e9);
+	}
+}
@@ -0,0 +1,143 @@
+package fire.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.SensorFrameCodec;
+import fire.alarm.server.SensorFrameException;
+import fire.alarm.server.SensorFrameReader;
+import fire.alarm.server.SensorFrameWriter;
+import fire.alarm.server.SensorStateStore;
+import fire.alarm.server.SensorThresholds;
+
+/*
+ * A gateway's connection read by the server, from the frame to the stored reading, with every reading carrying
+ * its sensorId (the id is hashed to find the sensor's last update, its handle, its thresholds) and with the sensors
+ * declared once by a SensorFrameWriter (readings carry the slot, the handle comes from an array).
+ * Both read from memory, the network and the monitors are left out.
+ *
+ * Usage: SensorIdBenchmark [readings] [sensors]
+ */
+public class SensorIdBenchmark {
+
+	private static final int BATCH = 500;	// as FireSensorGateway.
+
+	public static void main(String[] args) throws IOException, SensorFrameException {
+		int readings = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int sensors = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+
+		ArrayList<HashMap<String, String>> messages = new ArrayList<>(readings);
+		for (int i = 0; i < readings; i++) {
+			HashMap<String, String> sensorData = new HashMap<>();
+			sensorData.put("sensorId", "building-7:floor-" + (i % sensors) / 100 + ":sensor-" + (i % sensors));
+			sensorData.put("temperature", Double.toString(20 + (i % 70) * 0.1));
+			sensorData.put("battery", Integer.toString(100 - i % 50));
+			sensorData.put("smoke", Integer.toString(1 + i % 6));
+			sensorData.put("co2", "300.0");
+			sensorData.put("timestamp", Long.toString(1500000000000L + i));
+			messages.add(sensorData);
+		}
+
+		ByteArrayOutputStream byId = new ByteArrayOutputStream();
+		ByteArrayOutputStream declared = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(byId);
+		SensorFrameWriter writer = new SensorFrameWriter(new DataOutputStream(declared));
+		for (int i = 0; i < readings; i += BATCH) {
+			SensorFrameCodec.writeBatch(out, messages.subList(i, Math.min(i + BATCH, readings)));
+			writer.writeBatch(messages.subList(i, Math.min(i + BATCH, readings)));
+		}
+		messages = null;
+
+		SensorStateStore idStore = new SensorStateStore();
+		SensorStateStore slotStore = new SensorStateStore();
+		System.out.printf("%,d readings of %,d sensors%n", readings, sensors);
+		for (int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			readById(byId.toByteArray(), idStore);
+			long id = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			readDeclared(declared.toByteArray(), slotStore);
+			long slot = System.nanoTime() - start;
+
+			System.out.printf("by id   : %5.1f bytes, %6.1f ns per reading | declared : %5.1f bytes, %6.1f ns per reading%n",
+					(double) byId.size() / readings, (double) id / readings, (double) declared.size() / readings, (double) slot / readings);
+		}
+	}
+
+	// As the server did, every reading's id hashed for its last update, its thresholds and its record.
+	@SuppressWarnings("unchecked")
+	private static void readById(byte[] stream, SensorStateStore store) throws IOException, SensorFrameException {
+		SensorFrameReader in = new SensorFrameReader(new DataInputStream(new ByteArrayInputStream(stream)));
+		HashMap<String, Long> lastUpdate = new HashMap<>();
+		while (true) {
+			Object data;
+			try {
+				data = in.readFrame();
+			}
+			catch (EOFException e) {
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			for (HashMap<String, String> sensorData: (ArrayList<HashMap<String, String>>) data) {
+				FireSensorData fsd = new FireSensorData().getFireSensorDataFromHashMap(sensorData);
+				validate(fsd, store.getThresholds().getTable(), store.getHandle(fsd.getSensorId()));
+				store.put(fsd.getSensorId(), fsd);
+				lastUpdate.put(fsd.getSensorId(), now);
+			}
+		}
+	}
+
+	// As the server does with a declaring connection, the id is read once and the sensor is kept by its slot.
+	@SuppressWarnings("unchecked")
+	private static void readDeclared(byte[] stream, SensorStateStore store) throws IOException, SensorFrameException {
+		SensorFrameReader in = new SensorFrameReader(new DataInputStream(new ByteArrayInputStream(stream)));
+		int[] handles = new int[0];
+		long[] lastUpdate = new long[0];
+		while (true) {
+			Object data;
+			try {
+				data = in.readFrame();
+			}
+			catch (EOFException e) {
+				return;
+			}
+
+			if (data instanceof String[]) {
+				int from = handles.length;
+				handles = Arrays.copyOf(handles, in.getSensorCount());
+				lastUpdate = Arrays.copyOf(lastUpdate, handles.length);
+				for (int slot = from; slot < handles.length; slot++) {
+					handles[slot] = store.register(in.getSensorId(slot));
+				}
+				continue;
+			}
+
+			long now = System.currentTimeMillis();
+			for (HashMap<String, String> sensorData: (ArrayList<HashMap<String, String>>) data) {
+				int slot = in.getSlot(sensorData);
+				FireSensorData fsd = new FireSensorData().getFireSensorDataFromHashMap(sensorData);
+				fsd.setHandle(handles[slot]);
+				validate(fsd, store.getThresholds().getTable(), fsd.getHandle());
+				store.put(fsd.getHandle(), fsd);
+				lastUpdate[slot] = now;
+			}
+		}
+	}
+
+	private static void validate(FireSensorData fsd, SensorThresholds.Table thresholds, int handle) {
+		fsd.isTemperatureInLevel(thresholds.get(SensorThresholds.MAX_TEMPERATURE, handle));
+		fsd.isBatteryInLevel(thresholds.get(SensorThresholds.MIN_BATTERY, handle));
+		fsd.isSmokeInLevel(thresholds.get(SensorThresholds.MAX_SMOKE, handle));
+		fsd.isCo2InLevel(thresholds.get(SensorThresholds.MAX_CO2, handle));
+	}
+}
@@ -0,0 +1,145 @@
+package fire.bench;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.SensorStateStore;
+import fire.alarm.server.SensorThresholds;
+
+/*
+ * Validating readings against per-sensor thresholds; the fixed levels FireSensorData always had, the SensorThresholds
+ * table by handle, and a map of thresholds by sensor id. Then readings keep being stored and validated while the
+ * thresholds of a whole zone are replaced over and over, to see that ingest goes on during the updates.
+ *
+ * Usage: ThresholdBenchmark [sensors] [sensors per zone] [seconds]
+ */
+public class ThresholdBenchmark {
+
+	private static volatile boolean updating = true;
+
+	public static void main(String[] args) throws InterruptedException {
+		final int sensors = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+		int perZone = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		final SensorStateStore store = new SensorStateStore();
+		final FireSensorData[] readings = new FireSensorData[sensors];
+		HashMap<String, float[]> byId = new HashMap<>();
+		for (int i = 0; i < sensors; i++) {
+			readings[i] = new FireSensorData();
+			readings[i].setSensorId((i / perZone) + "-" + i);
+			readings[i].setTemperature(20 + i % 25);
+			readings[i].setBatteryPercentage(90);
+			readings[i].setSmokeLevel(2);
+			readings[i].setCo2Level(300.0);
+			store.put(readings[i].getSensorId(), readings[i]);
+			byId.put(readings[i].getSensorId(), new float[] {50.0f, 30.0f, 7.0f, Float.NaN});
+		}
+		System.out.printf("%,d sensors in zones of %,d%n", sensors, perZone);
+
+		// validation alone, every reading in level.
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			int alarms = 0;
+			for (FireSensorData reading: readings) {
+				alarms += validate(reading);
+			}
+			long fixed = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (FireSensorData reading: readings) {
+				alarms += validate(reading, store.getThresholds().getTable());
+			}
+			long table = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (FireSensorData reading: readings) {
+				alarms += validate(reading, byId.get(reading.getSensorId()));
+			}
+			long map = System.nanoTime() - start;
+
+			System.out.printf("validate : fixed levels %5.1f ns, table by handle %5.1f ns, map by id %5.1f ns per reading (%d alarms)%n",
+					(double) fixed / sensors, (double) table / sensors, (double) map / sensors, alarms);
+		}
+
+		// a kitchen zone is allowed up to 40 celcius, readings above alarm from the next table on.
+		int zoneSensors = store.setThresholds("0", new float[] {40.0f, Float.NaN, Float.NaN, Float.NaN});
+		int alarms = 0;
+		for (int i = 0; i < Math.min(sensors, perZone); i++) {
+			alarms += validate(readings[i], store.getThresholds().getTable());
+		}
+		System.out.printf("zone 0   : %,d sensors set to 40 celcius, %,d readings now alarm%n", zoneSensors, alarms);
+
+		// ingest against a zone being replaced the whole time.
+		final long[] latencies = new long[20000000];
+		final int[] count = new int[1];
+		Runnable ingestLoop = new Runnable() {
+			public void run() {
+				int i = 0;
+				while (updating && count[0] < latencies.length) {
+					FireSensorData reading = readings[i];
+					long start = System.nanoTime();
+					store.put(reading.getSensorId(), reading);
+					validate(reading, store.getThresholds().getTable());
+					latencies[count[0]++] = System.nanoTime() - start;
+					i = i + 1 == readings.length ? 0 : i + 1;
+				}
+			}
+		};
+
+		for (boolean withUpdates: new boolean[] {false, true}) {
+			updating = true;
+			count[0] = 0;
+			Thread ingest = new Thread(ingestLoop);
+			long deadline = System.currentTimeMillis() + seconds * 1000L;
+			long updates = 0;
+			long updateNanos = 0;
+			long maxUpdate = 0;
+
+			ingest.start();
+			while (System.currentTimeMillis() < deadline) {
+				if (withUpdates) {
+					long start = System.nanoTime();
+					store.setThresholds(Long.toString(updates % Math.max(1, sensors / perZone)), new float[] {45.0f + updates % 5, 25.0f, Float.NaN, 400.0f});
+					long took = System.nanoTime() - start;
+					updateNanos += took;
+					maxUpdate = Math.max(maxUpdate, took);
+					updates++;
+				}
+				else {
+					Thread.sleep(10);
+				}
+			}
+			updating = false;
+			ingest.join();
+
+			Arrays.sort(latencies, 0, count[0]);
+			System.out.printf("%-15s: %,9.0f readings/s, p50 %5.2f us, p99.9 %7.2f us, max %7.2f ms",
+					withUpdates ? "during updates" : "no updates", count[0] / (double) seconds, latencies[count[0] / 2] / 1e3,
+					latencies[(int) (count[0] * 0.999)] / 1e3, latencies[count[0] - 1] / 1e6);
+			System.out.println(withUpdates ? String.format(", %,d updates of %,d sensors, %.1f ms each (max %.1f ms)",
+					updates, zoneSensors, updateNanos / 1e6 / updates, maxUpdate / 1e6) : "");
+		}
+	}
+
+	private static int validate(FireSensorData reading) {
+		return (reading.isTemperatureInLevel() ? 0 : 1) + (reading.isBatteryInLevel() ? 0 : 1)
+				+ (reading.isSmokeInLevel() ? 0 : 1) + (reading.isCo2InLevel() ? 0 : 1);
+	}
+
+	private static int validate(FireSensorData reading, SensorThresholds.Table thresholds) {
+		int handle = reading.getHandle();
+		return (reading.isTemperatureInLevel(thresholds.get(SensorThresholds.MAX_TEMPERATURE, handle)) ? 0 : 1)
+				+ (reading.isBatteryInLevel(thresholds.get(SensorThresholds.MIN_BATTERY, handle)) ? 0 : 1)
+				+ (reading.isSmokeInLevel(thresholds.get(SensorThresholds.MAX_SMOKE, handle)) ? 0 : 1)
+				+ (reading.isCo2InLevel(thresholds.get(SensorThresholds.MAX_CO2, handle)) ? 0 : 1);
+	}
+
+	private static int validate(FireSensorData reading, float[] thresholds) {
+		return (reading.isTemperatureInLevel(thresholds[SensorThresholds.MAX_TEMPERATURE]) ? 0 : 1)
+				+ (reading.isBatteryInLevel(thresholds[SensorThresholds.MIN_BATTERY]) ? 0 : 1)
+				+ (reading.isSmokeInLevel(thresholds[SensorThresholds.MAX_SMOKE]) ? 0 : 1)
+				+ (reading.isCo2InLevel(thresholds[SensorThresholds.MAX_CO2]) ? 0 : 1);
+	}
+}
@@ -0,0 +1,222 @@
+package fire.bench;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+
+import fire.alarm.server.SensorFrameCodec;
+import fire.alarm.server.SensorFrameException;
+import fire.alarm.server.SensorFrameReader;
+import fire.alarm.server.SensorTransport;
+
+/*
+ * Sizes the sensor transport: connections per second (a reconnect storm) and CPU per reading,
+ * for plain sockets, compression, TLS and TLS with compression. Sensors and server run in this JVM over loopback,
+ * so the CPU is that of both ends.
+ *
+ * TLS needs a key pair, e.g.
+ * 		keytool -genkeypair -alias fire -keyalg EC -dname CN=localhost -validity 365 -keystore fire.p12 -storepass changeit
+ * 		java -Djavax.net.ssl.keyStore=fire.p12 -Djavax.net.ssl.keyStorePassword=changeit
+ * 			 -Djavax.net.ssl.trustStore=fire.p12 -Djavax.net.ssl.trustStorePassword=changeit fire.bench.TransportBenchmark
+ * Without javax.net.ssl.keyStore only the plain modes are run.
+ *
+ * Usage: TransportBenchmark [connections] [sensors] [readings per sensor] [port]
+ */
+public class TransportBenchmark {
+
+	private static final int CLIENT_THREADS = 32;
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int sensors = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int readings = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+		int port = args.length > 3 ? Integer.parseInt(args[3]) : 9201;
+
+		boolean tls = System.getProperty("javax.net.ssl.keyStore") != null;
+		SSLContext serverContext = tls ? SSLContext.getDefault() : null;
+
+		System.out.println("connections/s (" + CLIENT_THREADS + " sensors reconnecting at once)");
+		SensorTransport plain = new SensorTransport(null, false);
+		System.out.printf("  plain            : %,10.0f%n", connect(plain, plain, connections, port, false));
+		if (tls) {
+			SensorTransport server = new SensorTransport(serverContext, false);
+			System.out.printf("  tls full         : %,10.0f%n", connect(server, null, connections, port, true));
+			System.out.printf("  tls resumed      : %,10.0f%n", connect(server, new SensorTransport(newContext(), false), connections, port, false));
+		}
+
+		System.out.println("readings (" + sensors + " sensors x " + readings + ")      readings/s    CPU us/reading");
+		stream("plain", new SensorTransport(null, false), sensors, readings, port);
+		stream("compressed", new SensorTransport(null, true), sensors, readings, port);
+		if (tls) {
+			stream("tls", new SensorTransport(serverContext, false), sensors, readings, port);
+			stream("tls + compressed", new SensorTransport(serverContext, true), sensors, readings, port);
+		}
+
+		System.exit(0);
+	}
+
+	/*
+	 * Connects, sends a reading and disconnects, from CLIENT_THREADS threads. Returns connections per second.
+	 * With freshClients every connection has a new client SSLContext, so no session can be resumed.
+	 */
+	private static double connect(final SensorTransport server, final SensorTransport client, final int connections,
+			final int port, final boolean freshClients) throws Exception {
+		ServerSocket listener = server.listen(port);
+		Thread acceptor = serve(server, listener);
+
+		// warm up, and for resumption let the first connection get a session.
+		send(client != null ? client : new SensorTransport(newContext(), false), port, 1);
+
+		final AtomicLong remaining = new AtomicLong(connections);
+		ExecutorService clients = Executors.newFixedThreadPool(CLIENT_THREADS);
+		final CountDownLatch done = new CountDownLatch(CLIENT_THREADS);
+		long start = System.nanoTime();
+		for (int i = 0; i < CLIENT_THREADS; i++) {
+			clients.execute(new Runnable() {
+				public void run() {
+					try {
+						while (remaining.decrementAndGet() >= 0) {
+							send(freshClients ? new SensorTransport(newContext(), false) : client, port, 1);
+						}
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+		double perSecond = connections / ((System.nanoTime() - start) / 1e9);
+
+		clients.shutdown();
+		listener.close();
+		acceptor.join();
+
+		return perSecond;
+	}
+
+	// Streams readings from every sensor on its own connection, prints readings per second and CPU per reading.
+	private static void stream(String name, final SensorTransport transport, int sensors, final int readings, final int port)
+			throws Exception {
+		ServerSocket listener = transport.listen(port);
+		Thread acceptor = serve(transport, listener);
+
+		send(transport, port, 1000);	// warm up.
+
+		final CountDownLatch done = new CountDownLatch(sensors);
+		long cpuStart = processCpuNanos();
+		long start = System.nanoTime();
+		for (int i = 0; i < sensors; i++) {
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						send(transport, port, readings);
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		long cpu = processCpuNanos() - cpuStart;
+
+		long total = (long) sensors * readings;
+		System.out.printf("  %-16s             %,10.0f    %8.2f%n", name, total / (elapsed / 1e9), cpu / 1000.0 / total);
+
+		listener.close();
+		acceptor.join();
+	}
+
+	// What a FireSensor does; returns once the server has read every reading.
+	private static void send(SensorTransport transport, int port, int readings) throws IOException {
+		try (Socket socket = transport.connect("localhost", port)) {
+			DataOutputStream out = transport.openOutput(socket);
+			DataInputStream in = transport.openInput(socket);
+
+			for (int i = 0; i < readings; i++) {
+				HashMap<String, String> sensorData = new HashMap<>();
+				sensorData.put("sensorId", "10-" + Thread.currentThread().getId());
+				sensorData.put("temperature", Double.toString(20 + (i % 7) * 0.1));
+				sensorData.put("battery", "100");
+				sensorData.put("smoke", "3");
+				sensorData.put("co2", "300.0");
+				sensorData.put("timestamp", Long.toString(System.currentTimeMillis()));
+				SensorFrameCodec.writeReading(out, sensorData);
+				out.flush();
+			}
+			// an empty batch says bye.
+			SensorFrameCodec.writeBatch(out, new ArrayList<HashMap<String, String>>());
+			out.flush();
+
+			// the server answers once it read everything.
+			in.readInt();
+		}
+	}
+
+	// What a FireAlarmServer does, minus storing the readings: a thread per connection reading until the empty batch.
+	private static Thread serve(final SensorTransport transport, final ServerSocket listener) {
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					final Socket socket;
+					try {
+						socket = listener.accept();
+					}
+					catch (IOException e) {
+						return;	// closed.
+					}
+
+					new Thread(new Runnable() {
+						public void run() {
+							try (Socket connection = socket) {
+								DataOutputStream out = transport.openOutput(connection);
+								SensorFrameReader in = new SensorFrameReader(transport.openInput(connection));
+								while (in.readFrame() instanceof HashMap) {
+								}
+								out.writeInt(0);
+								out.flush();
+							}
+							catch (IOException | SensorFrameException e) {
+								e.printStackTrace();
+							}
+						}
+					}).start();
+				}
+			}
+		});
+		acceptor.start();
+
+		return acceptor;
+	}
+
+	// A client context trusting the javax.net.ssl.trustStore, with its own session cache.
+	private static SSLContext newContext() {
+		try {
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, null, null);
+			return context;
+		}
+		catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static long processCpuNanos() {
+		return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+	}
+}
@@ -0,0 +1,99 @@
+package fire.monitor;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import fire.alarm.server.ClusterNode;
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.IClusterNode;
+
+/*
+ * Monitors a sharded cluster of FireAlarmServers.
+ *
+ * Every node keeps a disjoint set of sensors and versions its own state, therefore one FireSensorMonitor
+ * is subscribed to each node and keeps its own last seen version. They all feed one MonitorSensorCache, a shard each,
+ * which renders the merged view of the cluster; a sensor moving to another node is shown once, from its latest reading.
+ * The member list is refreshed on every round so that nodes joining later are picked up.
+ *
+ * Usage: FireSensorClusterMonitor <host:port of any node>
+ */
+public class FireSensorClusterMonitor {
+
+	private static final long SYNC_INTERVAL = 10000;
+
+	private MonitorSensorCache cache = new MonitorSensorCache();
+	private HashMap<String, FireSensorMonitor> shardMonitors = new HashMap<>();
+	private HashMap<String, IClusterNode> shards = new HashMap<>();
+
+
+	public FireSensorClusterMonitor() {
+		cache.start();
+	}
+
+	// Latest state of every sensor of the cluster as last rendered.
+	public Map<String, FireSensorData> getSensors() {
+		return cache.getSnapshot();
+	}
+
+
+	/*
+	 * Subscribes to members not seen before, and lets the already subscribed ones catch up.
+	 * A member that cannot be reached is forgotten, but its monitor (and last seen version) is kept
+	 * in case the node comes back.
+	 */
+	public void syncWithCluster(String knownNodeId) throws RemoteException {
+		ArrayList<String> members = lookup(knownNodeId).getMembers();
+
+		for (String member: members) {
+			try {
+				FireSensorMonitor monitor = shardMonitors.get(member);
+				if (monitor == null) {
+					monitor = new FireSensorMonitor(cache, member);
+					shardMonitors.put(member, monitor);
+				}
+
+				IClusterNode shard = shards.get(member);
+				if (shard == null) {
+					shard = lookup(member);
+					monitor.subscribe(shard);
+					shards.put(member, shard);
+				}
+				else {
+					monitor.applySync(shard.syncState(monitor.getLastSeenVersion()));
+				}
+			}
+			catch (RemoteException e) {
+				System.err.println(member + " unreachable : " + e.getMessage());
+				shards.remove(member);
+				RmiServerPool.evict(getHost(member), ClusterNode.getBindName(member));
+			}
+		}
+	}
+
+	private static IClusterNode lookup(String nodeId) throws RemoteException {
+		return RmiServerPool.lookup(getHost(nodeId), ClusterNode.getBindName(nodeId), IClusterNode.class);
+	}
+
+	private static String getHost(String nodeId) {
+		return nodeId.substring(0, nodeId.lastIndexOf(':'));
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		FireSensorClusterMonitor clusterMonitor = new FireSensorClusterMonitor();
+		String knownNodeId = args.length > 0 ? args[0] : "localhost:9001";
+
+		while (true) {
+			try {
+				clusterMonitor.syncWithCluster(knownNodeId);
+			}
+			catch (RemoteException e) {
+				System.err.println("Cluster unreachable through " + knownNodeId + ", retrying : " + e.getMessage());
+				RmiServerPool.evict(getHost(knownNodeId), ClusterNode.getBindName(knownNodeId));
+			}
+
+			Thread.sleep(SYNC_INTERVAL);
+		}
+	}
+}
@@ -8,6 +8,7 @@ import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.Map;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
@@ -23,21 +24,38 @@ import javax.jms.TextMessage;
 import org.apache.activemq.ActiveMQConnection;
 import org.apache.activemq.ActiveMQConnectionFactory;
 
-import fire.alarm.server.FireAlarmServer;
 import fire.alarm.server.FireSensorData;
+import fire.alarm.server.IRmiServer;
+import fire.alarm.server.SensorStateSync;
 
 
 public class FireSensorMonitor extends UnicastRemoteObject implements IRmiListener {
 
 	// RMI Listner properties.
 	private static final String rmiRegistrationTarget = "//localhost/server";	// this is the same url as the server's reg address but without rmi: protocol part.
+	private static final String SERVER_HOST = "localhost";
+	private static final long SYNC_INTERVAL = 10000;	// how often (millis) to check in with the server for missed data.
 
+	// latest state of every sensor, callbacks are queued to it and rendered by its own thread.
+	// the shard's version of the latest server state is sent when (re)subscribing so that only the changes since then are transmitted.
+	private MonitorSensorCache cache;
+	private MonitorSensorCache.Shard shard;
 	
 	// Message Queue implementation.
 	/*
 	 * We need to implement the constructor in a way it can handle the RemoteException.
 	 */
-	public FireSensorMonitor() throws RemoteException {}
+	public FireSensorMonitor() throws RemoteException {
+		cache = new MonitorSensorCache();
+		shard = cache.addShard(null);
+		cache.start();
+	}
+	
+	// One of the servers feeding a cache shared with other monitors (see FireSensorClusterMonitor), started by the caller.
+	public FireSensorMonitor(MonitorSensorCache cache, String name) throws RemoteException {
+		this.cache = cache;
+		this.shard = cache.addShard(name);
+	}
 	/*
 	 * To execute methods provided by the server, we can use it as a remote service,
 	 * and invoke methods via RMI.
@@ -45,27 +63,20 @@ public class FireSensorMonitor extends UnicastRemoteObject implements IRmiListen
 	 * (non-Javadoc)
 	 * @see fire.monitor.IRmiListner#getRemoteServer()
 	 */
-	public FireAlarmServer getRemoteServer() {
-		FireAlarmServer server = null;
-		try {
-			Remote remoteService = Naming.lookup(rmiRegistrationTarget);
-			server = (FireAlarmServer)remoteService;
-		}
-		catch (MalformedURLException | RemoteException | NotBoundException e) {
-			e.printStackTrace();
-		}
-		
-		return server;
+	public IRmiServer getRemoteServer() throws RemoteException {
+		// the stub is a proxy implementing the remote interface, it can never be cast to the server class itself.
+		return RmiServerPool.lookup(SERVER_HOST, IRmiServer.BIND_NAME, IRmiServer.class);
 	}
 	
 	/*
 	 * Acts as an async method call.
+	 * Only queues the data, the server's delivery isn't held up by rendering.
 	 * 
 	 * (non-Javadoc)
 	 * @see fire.monitor.IRmiListener#onData(fire.alarm.server.FireSensorData)
 	 */
 	public void onData(FireSensorData sensorData) throws RemoteException{
-		sensorData.printData();
+		cache.offer(shard, sensorData);
 	}
 
 	/*
@@ -73,23 +84,64 @@ public class FireSensorMonitor extends UnicastRemoteObject implements IRmiListen
 	 * @see fire.monitor.IRmiListener#onError(java.lang.String)
 	 */
 	public void onError(String error) throws RemoteException {
-		System.err.println(error);
+		cache.offerError(error);
 	}
 	
-	public static void main(String[] args) throws RemoteException {
-		Registry registry = LocateRegistry.getRegistry("localhost");
-		try {
-			FireAlarmServer stub = (FireAlarmServer)registry.lookup("FireAlarmServer");
-		} catch (NotBoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
+	/*
+	 * Applies a snapshot or delta received from the server.
+	 * Queued with the callbacks, so it is applied in the order it arrived.
+	 */
+	public void applySync(SensorStateSync sync) {
+		cache.offerSync(shard, sync);
+	}
+	
+	// May lag behind what was received until the queue is drained, the server then sends a little more than needed.
+	public long getLastSeenVersion() {
+		return shard.getLastSeenVersion();
+	}
+	
+	// Latest state of every sensor as last rendered.
+	public Map<String, FireSensorData> getSensors() {
+		return cache.getSnapshot();
+	}
+	
+	/*
+	 * Subscribes to the server's listeners list and catches up with the state from there.
+	 * On the first call this is a full snapshot, after a network drop only what changed while disconnected.
+	 */
+	public IRmiServer subscribe() throws RemoteException {
+		return subscribe(getRemoteServer());
+	}
+	
+	public IRmiServer subscribe(IRmiServer server) throws RemoteException {
+		applySync(server.subscribe(this, getLastSeenVersion()));
 		
-		//FireAlarmServer server = monitor.getRemoteServer();
+		return server;
+	}
+	
+	public static void main(String[] args) throws RemoteException, InterruptedException {
+		FireSensorMonitor monitor = new FireSensorMonitor();
+		IRmiServer server = null;
 		
-		// subscribing to the server's listeners list.
-		//server.addMonitor(monitor);
+		// keep checking in with the server, the server drops monitors it cannot reach,
+		// therefore we subscribe again whenever the server is unreachable.
+		while (true) {
+			try {
+				if (server == null) {
+					server = monitor.subscribe();
+				}
+				else {
+					monitor.applySync(server.syncState(monitor.getLastSeenVersion()));
+				}
+			}
+			catch (RemoteException e) {
+				System.err.println("Server unreachable, retrying : " + e.getMessage());
+				RmiServerPool.evict(SERVER_HOST, IRmiServer.BIND_NAME);
+				server = null;
+			}
+			
+			Thread.sleep(SYNC_INTERVAL);
+		}
 	}
 	
 }
@@ -3,7 +3,7 @@ package fire.monitor;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 
-import fire.alarm.server.FireAlarmServer;
+import fire.alarm.server.IRmiServer;
 import fire.alarm.server.FireSensorData;
 
 public interface IRmiListener extends Remote {
@@ -12,7 +12,7 @@ public interface IRmiListener extends Remote {
 	// Each method should throw RemoteException, otherwise "...imlements illgeal remote interface",
 	// will be thrown.
 	
-	public FireAlarmServer getRemoteServer() throws RemoteException;
+	public IRmiServer getRemoteServer() throws RemoteException;
 	public void onData(FireSensorData sensorData) throws RemoteException;
 	public void onError(String error) throws RemoteException;
 	
@@ -0,0 +1,256 @@
+package fire.monitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.SensorStateSync;
+
+/*
+ * The latest state of every sensor as the monitor knows it, fed by the server's callbacks.
+ *
+ * Callbacks only add to a lock-free queue and wake the consumer thread, so the RMI threads (and the server thread
+ * delivering to this monitor) return at once however slow rendering is. The consumer thread is the only one
+ * touching the cache;
+ * 		1) it drains the queue and applies everything in the order it arrived,
+ * 		2) at most every RENDER_INTERVAL it publishes an unmodifiable copy of the cache, what getSnapshot returns,
+ * 		3) and renders what changed since the last render, a sensor updated many times in between is printed once.
+ *
+ * The servers it is fed by are its shards, one for a single server, every node of a cluster for a cluster monitor.
+ * Each shard versions its own state, so each keeps its own last seen version and its own view of its sensors;
+ * what is shown of a sensor is the latest reading any shard has of it. A sensor moving from one node to another
+ * (see ClusterNode) is then shown from the new owner once the old one drops it, never dropped in between.
+ */
+public class MonitorSensorCache implements Runnable {
+
+	private static final long RENDER_INTERVAL = 500;	// millis.
+
+	private ConcurrentLinkedQueue<Event> incoming = new ConcurrentLinkedQueue<>();
+	private Thread consumer;
+
+	private CopyOnWriteArrayList<Shard> shards = new CopyOnWriteArrayList<>();
+
+	// only touched by the consumer thread; what is shown of every sensor, the latest of the shards.
+	private HashMap<String, FireSensorData> sensors = new HashMap<>();
+	private LinkedHashMap<String, FireSensorData> changed = new LinkedHashMap<>();
+	private LinkedHashSet<String> removed = new LinkedHashSet<>();
+	private ArrayList<String> errors = new ArrayList<>();
+	private String syncNote;
+	private long lastRender = 0;
+
+	private volatile Map<String, FireSensorData> snapshot = Collections.emptyMap();
+
+
+	public MonitorSensorCache() {
+	}
+
+	// A server feeding the cache, named in what is printed of it (null for a single server).
+	public Shard addShard(String name) {
+		Shard shard = new Shard(name);
+		shards.add(shard);
+
+		return shard;
+	}
+
+	public void start() {
+		consumer = new Thread(this, "monitor-render");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+
+	// Called by the RMI threads, never blocks.
+	public void offer(Shard from, FireSensorData sensorData) {
+		enqueue(new Event(from, sensorData));
+	}
+
+	public void offerError(String error) {
+		enqueue(new Event(null, error));
+	}
+
+	public void offerSync(Shard from, SensorStateSync sync) {
+		enqueue(new Event(from, sync));
+	}
+
+	private void enqueue(Event event) {
+		incoming.offer(event);
+		LockSupport.unpark(consumer);
+	}
+
+	// Consistent state of every sensor as of the last render, never modified afterwards.
+	public Map<String, FireSensorData> getSnapshot() {
+		return snapshot;
+	}
+
+
+	public void run() {
+		while (true) {
+			Event event;
+			while ((event = incoming.poll()) != null) {
+				apply(event.shard, event.event);
+			}
+
+			long now = System.currentTimeMillis();
+			if (now - lastRender >= RENDER_INTERVAL && hasChanges()) {
+				snapshot = Collections.unmodifiableMap(new HashMap<>(sensors));
+				render();
+				lastRender = now;
+			}
+
+			// woken up by the next callback, or when it's time to render what's left.
+			if (incoming.isEmpty()) {
+				LockSupport.parkNanos(hasChanges() ? RENDER_INTERVAL * 1000000 : Long.MAX_VALUE);
+			}
+		}
+	}
+
+	private void apply(Shard shard, Object event) {
+		if (event instanceof FireSensorData) {
+			FireSensorData sensorData = (FireSensorData) event;
+			// already received as part of a sync, or older than what the shard has of the sensor.
+			if (sensorData.getVersion() <= shard.lastSeenVersion || !shard.isNewer(sensorData.getSensorId(), sensorData.getVersion())) {
+				return;
+			}
+
+			shard.sensors.put(sensorData.getSensorId(), sensorData);
+			show(sensorData.getSensorId());
+		}
+		else if (event instanceof SensorStateSync) {
+			applySync(shard, (SensorStateSync) event);
+		}
+		else {
+			errors.add((String) event);
+		}
+	}
+
+	private void applySync(Shard shard, SensorStateSync sync) {
+		if (sync.isSnapshot()) {
+			syncNote = "Snapshot of " + sync.getChangedSensors().size() + " sensors at version " + sync.getVersion()
+					+ (shard.name != null ? " of " + shard.name : "");
+			// whatever isn't in it is gone.
+			// (unless a callback newer than it already brought the sensor back).
+			for (String sensorId: new ArrayList<>(shard.sensors.keySet())) {
+				if (!sync.getChangedSensors().containsKey(sensorId) && shard.isNewer(sensorId, sync.getVersion())) {
+					shard.sensors.remove(sensorId);
+					show(sensorId);
+				}
+			}
+		}
+
+		for (FireSensorData sensorData: sync.getChangedSensors().values()) {
+			if (shard.isNewer(sensorData.getSensorId(), sensorData.getVersion())) {
+				shard.sensors.put(sensorData.getSensorId(), sensorData);
+				show(sensorData.getSensorId());
+			}
+		}
+		for (String sensorId: sync.getRemovedSensors()) {
+			if (shard.isNewer(sensorId, sync.getVersion()) && shard.sensors.remove(sensorId) != null) {
+				show(sensorId);
+			}
+		}
+
+		shard.lastSeenVersion = Math.max(shard.lastSeenVersion, sync.getVersion());
+	}
+
+	// Shows the latest reading any shard has of the sensor, or that it is gone if none has it.
+	private void show(String sensorId) {
+		FireSensorData latest = null;
+		for (Shard shard: shards) {
+			FireSensorData sensorData = shard.sensors.get(sensorId);
+			if (sensorData != null && (latest == null || sensorData.getTimestamp() > latest.getTimestamp())) {
+				latest = sensorData;
+			}
+		}
+
+		if (latest == null) {
+			if (sensors.containsKey(sensorId)) {
+				remove(sensorId);
+			}
+		}
+		else if (latest != sensors.get(sensorId)) {
+			update(latest);
+		}
+	}
+
+	private void update(FireSensorData sensorData) {
+		sensors.put(sensorData.getSensorId(), sensorData);
+		changed.put(sensorData.getSensorId(), sensorData);
+		removed.remove(sensorData.getSensorId());
+	}
+
+	private void remove(String sensorId) {
+		sensors.remove(sensorId);
+		changed.remove(sensorId);
+		removed.add(sensorId);
+	}
+
+	private boolean hasChanges() {
+		return !changed.isEmpty() || !removed.isEmpty() || !errors.isEmpty() || syncNote != null;
+	}
+
+	private void render() {
+		if (syncNote != null) {
+			System.out.println(syncNote);
+		}
+		for (FireSensorData sensorData: changed.values()) {
+			sensorData.printData();
+		}
+		for (String sensorId: removed) {
+			System.out.println(sensorId + " has disconnected.");
+		}
+		for (String error: errors) {
+			System.err.println(error);
+		}
+
+		syncNote = null;
+		changed.clear();
+		removed.clear();
+		errors.clear();
+	}
+
+	/*
+	 * A server the cache is fed by.
+	 * Its version of the server state last synced is what FireSensorMonitor syncs from. Only syncs move it; callbacks
+	 * of different sensors arrive out of version order (several server threads deliver them), one with a higher
+	 * version says nothing of the lower ones not yet received. Each sensor is kept at the highest version applied instead.
+	 */
+	public static class Shard {
+
+		private final String name;
+		private volatile long lastSeenVersion = SensorStateSync.NO_VERSION;
+		private final HashMap<String, FireSensorData> sensors = new HashMap<>();	// only touched by the consumer thread.
+
+		private Shard(String name) {
+			this.name = name;
+		}
+
+		public long getLastSeenVersion() {
+			return lastSeenVersion;
+		}
+
+		// true if the shard has nothing of the sensor as recent as version.
+		private boolean isNewer(String sensorId, long version) {
+			FireSensorData known = sensors.get(sensorId);
+			return known == null || known.getVersion() < version;
+		}
+	}
+
+	// A callback or sync, with the shard it came from.
+	private static class Event {
+
+		private final Shard shard;
+		private final Object event;
+
+		private Event(Shard shard, Object event) {
+			this.shard = shard;
+			this.event = event;
+		}
+	}
+}
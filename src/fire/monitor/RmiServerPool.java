@@ -0,0 +1,51 @@
+package fire.monitor;
+
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.HashMap;
+
+/*
+ * Client side cache of server stubs.
+ *
+ * A stub sends its calls over RMI's own pool of TCP connections to the server, which are kept open and reused,
+ * so one stub per server is shared by every caller in the monitor. Looking the server up again for each call
+ * would open a new connection to the registry every time.
+ * A stub whose call failed should be evicted, so that the next call looks the server up again (e.g. after a failover).
+ */
+public class RmiServerPool {
+
+	private static HashMap<String, Remote> stubs = new HashMap<>();
+
+
+	public static <T extends Remote> T lookup(String host, String bindName, Class<T> type) throws RemoteException {
+		String key = host + "/" + bindName;
+		synchronized (stubs) {
+			Remote stub = stubs.get(key);
+			if (stub != null) {
+				return type.cast(stub);
+			}
+		}
+
+		try {
+			Registry registry = LocateRegistry.getRegistry(host);
+			T stub = type.cast(registry.lookup(bindName));
+			synchronized (stubs) {
+				stubs.put(key, stub);
+			}
+
+			return stub;
+		}
+		catch (NotBoundException e) {
+			throw new RemoteException(bindName + " is not bound at " + host, e);
+		}
+	}
+
+	public static void evict(String host, String bindName) {
+		synchronized (stubs) {
+			stubs.remove(host + "/" + bindName);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package fire.test;
+
+import fire.alarm.server.AlertTracker;
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.SensorThresholds;
+
+/*
+ * What AlertTracker lets through to the monitors for the readings of a sensor; raised, held back, reminded, cleared,
+ * raised again when the error turns into another kind of error, and the alert of a sensor gone silent.
+ *
+ * Usage: AlertTrackerTest
+ */
+public class AlertTrackerTest {
+
+	private static final long WINDOW = 60000;
+
+	public static void main(String[] args) {
+		run();
+		Check.report();
+	}
+
+	static void run() {
+		AlertTracker alerts = new AlertTracker(WINDOW);
+		long now = 1000000;
+
+		// raised on the first reading in error, the error as it is.
+		FireSensorData hot = reading(7, 80);
+		hot.isTemperatureInLevel(50);
+		Check.equal(hot.getTempErr(), alerts.update(hot, SensorThresholds.MAX_TEMPERATURE, hot.getTempErr(), now), "raised");
+
+		// the same error within the window is held back, even with another temperature.
+		FireSensorData hotter = reading(7, 85);
+		hotter.isTemperatureInLevel(50);
+		Check.equal(null, alerts.update(hotter, SensorThresholds.MAX_TEMPERATURE, hotter.getTempErr(), now + 1000), "held back");
+
+		// a window after the last message, a reminder.
+		String reminder = alerts.update(hotter, SensorThresholds.MAX_TEMPERATURE, hotter.getTempErr(), now + WINDOW);
+		Check.that(reminder != null && reminder.startsWith(hotter.getTempErr()) && reminder.contains("ongoing for 60 s, 3 readings"),
+				"reminded : " + reminder);
+		Check.equal(null, alerts.update(hotter, SensorThresholds.MAX_TEMPERATURE, hotter.getTempErr(), now + WINDOW + 1000),
+				"held back after the reminder");
+
+		// back in level, cleared once.
+		FireSensorData fine = reading(7, 20);
+		fine.isTemperatureInLevel(50);
+		String clear = alerts.update(fine, SensorThresholds.MAX_TEMPERATURE, fine.getTempErr(), now + WINDOW + 2000);
+		Check.that(clear != null && clear.contains("back in level after 62 s"), "cleared : " + clear);
+		Check.equal(null, alerts.update(fine, SensorThresholds.MAX_TEMPERATURE, fine.getTempErr(), now + WINDOW + 3000), "clear stays quiet");
+
+		// a malfunction, then a real danger of the same measurement within the window, raised again.
+		FireSensorData broken = reading(8, 20);
+		broken.setSmokeLevel(0);
+		broken.isSmokeInLevel(7);
+		Check.equal(broken.getSmokeErr(), alerts.update(broken, SensorThresholds.MAX_SMOKE, broken.getSmokeErr(), now), "malfunction raised");
+		FireSensorData smoke = reading(8, 20);
+		smoke.setSmokeLevel(9);
+		smoke.isSmokeInLevel(7);
+		Check.equal(smoke.getSmokeErr(), alerts.update(smoke, SensorThresholds.MAX_SMOKE, smoke.getSmokeErr(), now + 1000), "danger raised after a malfunction");
+		smoke.setSmokeLevel(10);
+		smoke.isSmokeInLevel(7);
+		Check.equal(null, alerts.update(smoke, SensorThresholds.MAX_SMOKE, smoke.getSmokeErr(), now + 2000), "danger held back");
+
+		// the alerts of a sensor are its own, by type and by handle.
+		FireSensorData other = reading(9, 80);
+		other.isTemperatureInLevel(50);
+		Check.equal(other.getTempErr(), alerts.update(other, SensorThresholds.MAX_TEMPERATURE, other.getTempErr(), now + 2000), "other sensor raised");
+
+		// forgotten on disconnect, raised again when it comes back in error.
+		alerts.forget(9);
+		Check.equal(other.getTempErr(), alerts.update(other, SensorThresholds.MAX_TEMPERATURE, other.getTempErr(), now + 3000), "raised after forget");
+
+		// gone silent, told once and held back as any error, cleared by its next reading; its other alerts untouched.
+		FireSensorData quiet = reading(10, 20);
+		String silent = quiet.getSensorId() + " has not reported in 60 minutes.";
+		Check.equal(silent, alerts.update(quiet, AlertTracker.SILENT, silent, now), "silent raised");
+		Check.equal(null, alerts.update(quiet, AlertTracker.SILENT, silent, now + 1000), "silent held back");
+		Check.equal(null, alerts.update(quiet, SensorThresholds.MAX_TEMPERATURE, quiet.getTempErr(), now + 2000), "silent is its own alert");
+		String reporting = alerts.update(quiet, AlertTracker.SILENT, "", now + 5000);
+		Check.that(reporting != null && reporting.contains("reporting again after 5 s"), "silent cleared : " + reporting);
+
+		// no window, every error is sent.
+		AlertTracker everyError = new AlertTracker(0);
+		everyError.update(hot, SensorThresholds.MAX_TEMPERATURE, hot.getTempErr(), now);
+		Check.equal(hot.getTempErr(), everyError.update(hot, SensorThresholds.MAX_TEMPERATURE, hot.getTempErr(), now + 1), "no window");
+
+		Check.that(alerts.getStats().contains("6 raised, 1 reminders, 2 cleared, 4 repeats held back"), "stats : " + alerts.getStats().trim());
+	}
+
+	private static FireSensorData reading(int handle, double temperature) {
+		FireSensorData fsd = new FireSensorData();
+		fsd.setSensorId("sensor-" + handle);
+		fsd.setHandle(handle);
+		fsd.setTemperature(temperature);
+		fsd.setBatteryPercentage(90);
+		fsd.setSmokeLevel(2);
+		fsd.setCo2Level(300.0);
+		return fsd;
+	}
+}
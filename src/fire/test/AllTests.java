@@ -0,0 +1,24 @@
+package fire.test;
+
+import java.io.IOException;
+
+/*
+ * Runs every test, exits with 1 if any check failed.
+ *
+ * Usage: AllTests
+ */
+public class AllTests {
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		AlertTrackerTest.run();
+		IngestRingTest.run();
+		SensorFrameTest.run();
+		MetricIndexTest.run(42);
+		SensorThresholdsTest.run();
+		ConsistentHashRingTest.run();
+		DeadbandReporterTest.run();
+		SensorStateStoreTest.run();
+		SensorRemovalTest.run();
+		Check.report();
+	}
+}
@@ -0,0 +1,39 @@
+package fire.test;
+
+/*
+ * What the tests check with; a failed check is printed and counted, the test goes on with the next one.
+ * report prints how many checks failed and exits with 1 if any did, so a script can run the tests.
+ */
+public class Check {
+
+	private static int checks = 0;
+	private static int failures = 0;
+
+
+	public static void that(boolean condition, String what) {
+		checks++;
+		if (!condition) {
+			failures++;
+			System.err.println("FAILED : " + what);
+		}
+	}
+
+	public static void equal(Object expected, Object actual, String what) {
+		that(expected == null ? actual == null : expected.equals(actual), what + " : expected " + expected + ", got " + actual);
+	}
+
+	public static void fails(Runnable action, Class<? extends Throwable> expected, String what) {
+		try {
+			action.run();
+			that(false, what + " : expected " + expected.getSimpleName() + ", nothing thrown");
+		}
+		catch (Throwable t) {
+			that(expected.isInstance(t), what + " : expected " + expected.getSimpleName() + ", got " + t);
+		}
+	}
+
+	public static void report() {
+		System.out.printf("%,d checks, %,d failed%n", checks, failures);
+		System.exit(failures == 0 ? 0 : 1);
+	}
+}
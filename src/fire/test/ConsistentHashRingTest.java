@@ -0,0 +1,85 @@
+package fire.test;
+
+import java.util.HashMap;
+
+import fire.alarm.server.ConsistentHashRing;
+
+/*
+ * Where the ring places sensors; the same everywhere whatever order the nodes joined in, spread evenly over the nodes,
+ * and only the new node's share moving when a node joins (and moving back when it leaves).
+ *
+ * Usage: ConsistentHashRingTest
+ */
+public class ConsistentHashRingTest {
+
+	private static final int SENSORS = 40000;
+
+	public static void main(String[] args) {
+		run();
+		Check.report();
+	}
+
+	static void run() {
+		ConsistentHashRing ring = new ConsistentHashRing();
+		Check.equal(null, ring.getNode("10-1"), "no nodes, no owner");
+		Check.that(ring.addNode("host-1:9001"), "node added");
+		Check.that(!ring.addNode("host-1:9001"), "node added twice");
+		Check.equal("host-1:9001", ring.getNode("10-1"), "a single node owns everything");
+		Check.that(ring.contains("host-1:9001"), "contains");
+
+		ring.addNode("host-2:9001");
+		ring.addNode("host-3:9001");
+		ring.addNode("host-4:9001");
+		Check.equal(4, ring.getNodes().size(), "members");
+
+		// every node computes the same owner, whatever order it learnt of the others in.
+		ConsistentHashRing other = new ConsistentHashRing();
+		for (String nodeId: new String[] {"host-4:9001", "host-2:9001", "host-1:9001", "host-3:9001"}) {
+			other.addNode(nodeId);
+		}
+		HashMap<String, String> owners = new HashMap<>();
+		HashMap<String, Integer> shares = new HashMap<>();
+		boolean same = true;
+		for (int sensor = 0; sensor < SENSORS; sensor++) {
+			String sensorId = sensor / 100 + "-" + sensor % 100;
+			String owner = ring.getNode(sensorId);
+			same &= owner.equals(other.getNode(sensorId));
+			owners.put(sensorId, owner);
+			shares.put(owner, shares.containsKey(owner) ? shares.get(owner) + 1 : 1);
+		}
+		Check.that(same, "same owners whatever the join order");
+
+		// placement doesn't depend on the JVM (nor on String.hashCode).
+		Check.equal("host-3:9001", ring.getNode("10-11"), "owner of 10-11");
+		Check.equal("host-1:9001", ring.getNode("10-12"), "owner of 10-12");
+		Check.equal("host-1:9001", ring.getNode("building-7:floor-3:sensor-42"), "owner of a long id");
+
+		for (String nodeId: ring.getNodes()) {
+			int share = shares.containsKey(nodeId) ? shares.get(nodeId) : 0;
+			Check.that(share > SENSORS / 4 * 0.7 && share < SENSORS / 4 * 1.3, nodeId + " owns " + share + " of " + SENSORS);
+		}
+
+		// a node joining only takes sensors over, none move between the others.
+		ring.addNode("host-5:9001");
+		int moved = 0;
+		boolean onlyToNew = true;
+		for (String sensorId: owners.keySet()) {
+			String owner = ring.getNode(sensorId);
+			if (!owner.equals(owners.get(sensorId))) {
+				moved++;
+				onlyToNew &= owner.equals("host-5:9001");
+			}
+		}
+		Check.that(onlyToNew, "sensors only move to the node joining");
+		Check.that(moved > SENSORS / 5 * 0.7 && moved < SENSORS / 5 * 1.3, moved + " of " + SENSORS + " sensors moved, about a fifth");
+
+		// and leaving gives them back to their owners before.
+		Check.that(ring.removeNode("host-5:9001"), "node removed");
+		Check.that(!ring.removeNode("host-5:9001"), "node removed twice");
+		boolean restored = true;
+		for (String sensorId: owners.keySet()) {
+			restored &= ring.getNode(sensorId).equals(owners.get(sensorId));
+		}
+		Check.that(restored, "owners as before the node joined");
+	}
+}
@@ -0,0 +1,71 @@
+package fire.test;
+
+import java.util.HashMap;
+
+import fire.alarm.sensor.DeadbandReporter;
+import fire.alarm.server.SensorThresholds;
+
+/*
+ * What a DeadbandReporter sends; nothing for changes within the tolerances, deltas for the others, and the full
+ * reading at once for a field crossing its threshold (CO2, battery, temperature against a sensor's own threshold),
+ * however small the change.
+ *
+ * Usage: DeadbandReporterTest
+ */
+public class DeadbandReporterTest {
+
+	private static final long KEEPALIVE = 60000;
+
+	public static void main(String[] args) {
+		run();
+		Check.report();
+	}
+
+	static void run() {
+		DeadbandReporter deadband = new DeadbandReporter(KEEPALIVE);
+		long now = 0;
+
+		Check.that(isFull(deadband.report(reading("s-1", 20.0, 80, 300.0), now)), "first reading in full");
+		Check.equal(null, deadband.report(reading("s-1", 20.2, 79, 300.0), now += 5000), "within the tolerances");
+		HashMap<String, String> delta = deadband.report(reading("s-1", 21.0, 79, 300.0), now += 5000);
+		Check.that(delta != null && "true".equals(delta.get("delta")) && delta.containsKey("temperature") && !delta.containsKey("battery"), "delta of the temperature");
+
+		// CO2 off the exact 300.0 the server expects by default, well within its tolerance of 5.
+		HashMap<String, String> co2 = deadband.report(reading("s-1", 21.0, 79, 301.0), now += 5000);
+		Check.that(isFull(co2) && "301.0".equals(co2.get("co2")), "CO2 alarm sent at once");
+		Check.that(isFull(deadband.report(reading("s-1", 21.0, 79, 300.0), now += 5000)), "CO2 back in level sent at once");
+
+		// battery crossing 30 percent by 1, within its tolerance of 2.
+		Check.that(isFull(deadband.report(reading("s-2", 20.0, 31, 300.0), now)), "first reading of s-2 in full");
+		HashMap<String, String> battery = deadband.report(reading("s-2", 20.0, 30, 300.0), now += 5000);
+		Check.that(isFull(battery) && "30".equals(battery.get("battery")), "battery alarm sent at once");
+		Check.equal(null, deadband.report(reading("s-2", 20.0, 29, 300.0), now += 5000), "still low, within the tolerance");
+
+		// the thresholds the server applies to the sensor, not the defaults.
+		deadband.setThresholds("s-3", new float[] {40.0f, Float.NaN, Float.NaN, Float.NaN});
+		deadband.report(reading("s-3", 39.8, 80, 300.0), now);
+		Check.that(isFull(deadband.report(reading("s-3", 40.2, 80, 300.0), now += 5000)), "own temperature threshold crossed");
+		Check.equal(null, deadband.report(reading("s-1", 21.2, 79, 300.0), now += 5000), "the default threshold for the others");
+
+		// the fields in alarm, as the server's validators find them.
+		Check.equal(0, DeadbandReporter.getAlarms(reading("s-4", 20.0, 80, 300.0), null), "nothing in alarm");
+		Check.equal(1 << SensorThresholds.MAX_CO2, DeadbandReporter.getAlarms(reading("s-4", 20.0, 80, 300.5), null), "CO2 in alarm");
+		Check.equal(1 << SensorThresholds.MIN_BATTERY | 1 << SensorThresholds.MAX_TEMPERATURE,
+				DeadbandReporter.getAlarms(reading("s-4", 60.0, 20, 300.0), null), "battery and temperature in alarm");
+		Check.equal(0, DeadbandReporter.getAlarms(reading("s-4", 45.0, 80, 300.0), new float[] {50.0f, Float.NaN, Float.NaN, Float.NaN}), "own threshold");
+	}
+
+	private static boolean isFull(HashMap<String, String> report) {
+		return report != null && !report.containsKey("delta");
+	}
+
+	private static HashMap<String, String> reading(String sensorId, double temperature, int battery, double co2) {
+		HashMap<String, String> sensorData = new HashMap<>();
+		sensorData.put("sensorId", sensorId);
+		sensorData.put("temperature", Double.toString(temperature));
+		sensorData.put("battery", Integer.toString(battery));
+		sensorData.put("smoke", "3");
+		sensorData.put("co2", Double.toString(co2));
+		return sensorData;
+	}
+}
@@ -0,0 +1,89 @@
+package fire.test;
+
+import fire.alarm.server.IngestRing;
+
+/*
+ * The ring between two pipeline threads; rounded capacity, empty and full, order kept across many wraparounds,
+ * and a producer and a consumer thread passing a million items through a small ring.
+ *
+ * Usage: IngestRingTest
+ */
+public class IngestRingTest {
+
+	public static void main(String[] args) throws InterruptedException {
+		run();
+		Check.report();
+	}
+
+	static void run() throws InterruptedException {
+		Check.equal(8, new IngestRing<Integer>(5).capacity(), "capacity 5 rounded up");
+		Check.equal(8, new IngestRing<Integer>(8).capacity(), "capacity 8 kept");
+		Check.equal(2, new IngestRing<Integer>(1).capacity(), "capacity 1");
+
+		// empty, then full.
+		IngestRing<Integer> ring = new IngestRing<>(4);
+		Check.equal(null, ring.poll(), "poll of an empty ring");
+		Check.that(ring.isEmpty(), "empty");
+		for (int i = 0; i < 4; i++) {
+			Check.that(ring.offer(i), "offer " + i + " of 4");
+		}
+		Check.that(!ring.offer(4), "offer to a full ring");
+		Check.equal(4, ring.size(), "size when full");
+		Check.equal(0, ring.poll(), "first in, first out");
+		Check.that(ring.offer(4), "offer once one is taken");
+		Check.that(!ring.offer(5), "full again");
+
+		// wraps around many times, in order, the size following.
+		int next = 1;
+		int expected = 1;
+		boolean inOrder = true;
+		for (int round = 0; round < 1000; round++) {
+			for (int i = 0; i < 3; i++) {
+				Integer item = ring.poll();
+				inOrder &= item != null && item == expected++;
+			}
+			for (int i = 0; i < 3; i++) {
+				inOrder &= ring.offer(4 + next++);
+			}
+		}
+		Check.that(inOrder, "in order across wraparounds");
+		Check.equal(4, ring.size(), "size after wraparounds");
+		while (ring.poll() != null) {
+			expected++;
+		}
+		Check.equal(4 + next, expected, "drained to the last item offered");
+		Check.that(ring.isEmpty(), "empty when drained");
+
+		// one producer, one consumer.
+		final IngestRing<Integer> shared = new IngestRing<>(16);
+		final int items = 1000000;
+		Thread producer = new Thread() {
+			public void run() {
+				for (int i = 0; i < items; i++) {
+					while (!shared.offer(i)) {
+						Thread.yield();
+					}
+				}
+				shared.close();
+			}
+		};
+		producer.start();
+
+		int received = 0;
+		boolean ordered = true;
+		while (true) {
+			Integer item = shared.poll();
+			if (item == null) {
+				if (shared.isClosed() && shared.isEmpty()) {
+					break;
+				}
+				Thread.yield();
+				continue;
+			}
+			ordered &= item == received++;
+		}
+		producer.join();
+		Check.equal(items, received, "items across threads");
+		Check.that(ordered, "order across threads");
+	}
+}
@@ -0,0 +1,154 @@
+package fire.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.MetricIndex;
+import fire.alarm.server.SensorQueryIndex;
+
+/*
+ * The buckets of a MetricIndex as sensors move between them, and range and top-k queries of the SensorQueryIndex
+ * over random readings checked against a scan of every sensor.
+ *
+ * Usage: MetricIndexTest [seed]
+ */
+public class MetricIndexTest {
+
+	private static final String[] ZONES = {"a", "b", "c"};
+
+	public static void main(String[] args) {
+		run(args.length > 0 ? Long.parseLong(args[0]) : 42);
+		Check.report();
+	}
+
+	static void run(long seed) {
+		// buckets, one below the range and one above it.
+		MetricIndex index = new MetricIndex(0, 10, 1);
+		Check.equal(12, index.getBucketCount(), "bucket count");
+		Check.equal(0, index.getBucket(-0.5), "below the range");
+		Check.equal(0, index.getBucket(Double.NaN), "NaN below the range");
+		Check.equal(1, index.getBucket(0), "lowest bucket");
+		Check.equal(10, index.getBucket(9.99), "highest bucket");
+		Check.equal(11, index.getBucket(10), "above the range");
+
+		index.update(3, 2.5);
+		index.update(7, 2.2);
+		Check.equal(sorted(7, 3), handlesOf(index, 3), "two sensors in a bucket");
+		index.update(3, 2.9);
+		Check.equal(sorted(7, 3), handlesOf(index, 3), "same bucket, new value");
+		Check.equal(2.9, index.getValue(3), "value kept");
+		index.update(3, 5.0);
+		Check.equal(sorted(7), handlesOf(index, 3), "moved out of the bucket");
+		Check.equal(sorted(3), handlesOf(index, 6), "moved into the bucket");
+		index.remove(7);
+		Check.equal(MetricIndex.NONE, index.first(3), "removed");
+		index.remove(7);
+		index.remove(1000);
+		index.update(1000, 11.0);
+		Check.equal(sorted(1000), handlesOf(index, 11), "grown to a new handle");
+
+		// range and top-k queries against a scan.
+		Random random = new Random(seed);
+		SensorQueryIndex queries = new SensorQueryIndex();
+		int sensors = 2000;
+		double[] temperatures = new double[sensors];
+		boolean[] indexed = new boolean[sensors];
+		for (int round = 0; round < 3; round++) {
+			for (int handle = 0; handle < sensors; handle++) {
+				if (round > 0 && random.nextInt(10) == 0) {
+					queries.remove(handle);
+					indexed[handle] = false;
+					continue;
+				}
+				if (round > 0 && random.nextBoolean()) {
+					continue;
+				}
+
+				FireSensorData fsd = new FireSensorData();
+				fsd.setSensorId(ZONES[handle % ZONES.length] + "-" + handle);
+				temperatures[handle] = Math.round((random.nextDouble() * 220 - 60) * 10) / 10.0;
+				fsd.setTemperature(temperatures[handle]);
+				fsd.setBatteryPercentage(random.nextInt(101));
+				fsd.setSmokeLevel(1 + random.nextInt(10));
+				fsd.setCo2Level(300.0);
+				queries.update(handle, fsd.getSensorId(), fsd, 1000 + round);
+				indexed[handle] = true;
+			}
+		}
+
+		int mismatches = 0;
+		int nonEmpty = 0;
+		for (int query = 0; query < 500; query++) {
+			double low = Math.round((random.nextDouble() * 240 - 70) * 10) / 10.0;
+			double high = query % 10 == 0 ? low : Math.round((low + random.nextDouble() * 60) * 10) / 10.0;
+			if (query % 50 == 0) {
+				high = low - 1;
+			}
+			String zone = query % 4 == 3 ? null : ZONES[query % 4];
+			int limit = 1 + random.nextInt(query % 2 == 0 ? 20 : 2000);
+			boolean highest = random.nextBoolean();
+
+			int[] found = queries.select(SensorQueryIndex.TEMPERATURE, low, high, zone, limit, highest);
+			int[] expected = scan(temperatures, indexed, low, high, zone, limit, highest);
+			nonEmpty += expected.length > 0 ? 1 : 0;
+			if (!Arrays.equals(found, expected)) {
+				mismatches++;
+				Check.that(false, "temperature between " + low + " and " + high + " in " + zone + ", " + limit
+						+ (highest ? " highest" : " lowest") + " : " + found.length + " sensors, expected " + expected.length);
+			}
+		}
+		Check.equal(0, mismatches, "range queries matching a scan");
+		Check.that(nonEmpty > 300, nonEmpty + " of 500 queries finding sensors");
+
+		// top-k is the range over everything.
+		int[] top = queries.select(SensorQueryIndex.TEMPERATURE, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, null, 5, true);
+		Check.that(Arrays.equals(top, scan(temperatures, indexed, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, null, 5, true)), "top 5");
+		Check.equal(0, queries.select(SensorQueryIndex.TEMPERATURE, 0, 100, "unknown", 10, true).length, "unknown zone");
+		Check.equal(0, queries.select(SensorQueryIndex.TEMPERATURE, 0, 100, null, 0, true).length, "limit of 0");
+	}
+
+	// The handles of a bucket, sorted.
+	private static ArrayList<Integer> handlesOf(MetricIndex index, int bucket) {
+		ArrayList<Integer> handles = new ArrayList<>();
+		for (int handle = index.first(bucket); handle != MetricIndex.NONE; handle = index.next(handle)) {
+			handles.add(handle);
+		}
+		Collections.sort(handles);
+		return handles;
+	}
+
+	private static ArrayList<Integer> sorted(Integer... handles) {
+		ArrayList<Integer> list = new ArrayList<>(Arrays.asList(handles));
+		Collections.sort(list);
+		return list;
+	}
+
+	// Every sensor looked at, ordered as select orders them: by value as a float, then by handle.
+	private static int[] scan(final double[] values, boolean[] indexed, double low, double high, String zone, int limit, boolean highest) {
+		ArrayList<Integer> found = new ArrayList<>();
+		for (int handle = 0; handle < values.length; handle++) {
+			if (indexed[handle] && values[handle] >= low && values[handle] <= high && (zone == null || ZONES[handle % ZONES.length].equals(zone))) {
+				found.add(handle);
+			}
+		}
+		Collections.sort(found, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int order = Float.compare((float) values[a], (float) values[b]);
+				return order != 0 ? order : Integer.compare(a, b);
+			}
+		});
+		if (highest) {
+			Collections.reverse(found);
+		}
+
+		int[] handles = new int[Math.min(limit, found.size())];
+		for (int i = 0; i < handles.length; i++) {
+			handles[i] = found.get(i);
+		}
+		return handles;
+	}
+}
@@ -0,0 +1,266 @@
+package fire.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import fire.alarm.server.SensorFrameCodec;
+import fire.alarm.server.SensorFrameException;
+import fire.alarm.server.SensorFrameReader;
+import fire.alarm.server.SensorFrameWriter;
+import fire.alarm.server.SensorGoAway;
+
+/*
+ * Frames as the SensorFrameWriter sends them and the SensorFrameReader reads them back, and every way a frame
+ * is rejected; malformed, unknown, invalid or of an undeclared sensor. A rejected frame is dropped on its own,
+ * the frames after it are still read; only a length that can't be right ends the connection.
+ *
+ * Usage: SensorFrameTest
+ */
+public class SensorFrameTest {
+
+	// the field codes of the wire format, see SensorFrameCodec.
+	private static final List<String> FIELDS = Arrays.asList("sensorId", "temperature", "battery", "smoke", "co2", "timestamp", "backfill", "delta", "sensor");
+
+	public static void main(String[] args) throws IOException {
+		run();
+		Check.report();
+	}
+
+	static void run() throws IOException {
+		// declared once, then read back by number with the declared id.
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		SensorFrameWriter writer = new SensorFrameWriter(new DataOutputStream(sent));
+		writer.writeReading(reading("sensor-1", "20.0"));
+		writer.writeReading(reading("sensor-1", "21.0"));
+		ArrayList<HashMap<String, String>> batch = new ArrayList<>();
+		batch.add(reading("sensor-2", "22.0"));
+		batch.add(reading("sensor-1", "23.0"));
+		writer.writeBatch(batch);
+
+		SensorFrameReader reader = reader(sent);
+		Object hello = next(reader);
+		Check.that(hello instanceof String[] && Arrays.equals((String[]) hello, new String[] {"sensor-1"}), "first HELLO");
+		HashMap<String, String> first = asReading(next(reader));
+		HashMap<String, String> second = asReading(next(reader));
+		Check.equal("sensor-1", first.get("sensorId"), "declared id put back");
+		Check.equal("0", first.get("sensor"), "sent by number");
+		Check.that(first.get("sensorId") == second.get("sensorId"), "the same String for every reading of a sensor");
+		Check.equal(0, reader.getSlot(first), "slot of a declared sensor");
+		Check.that(next(reader) instanceof String[], "HELLO ahead of a batch with a new sensor");
+		Object batchRead = next(reader);
+		Check.that(batchRead instanceof ArrayList && ((ArrayList<?>) batchRead).size() == 2, "batch of 2");
+		Check.equal(2, reader.getSensorCount(), "sensors declared");
+		Check.equal(0L, reader.getRejected(), "nothing rejected");
+
+		// a sensor number that was never declared, in range of the INT field or not.
+		HashMap<String, String> undeclared = reading(null, "20.0");
+		undeclared.put("sensor", "5");
+		HashMap<String, String> outOfRange = reading(null, "20.0");
+		outOfRange.put("sensor", "70000");
+		HashMap<String, String> notANumber = reading(null, "20.0");
+		notANumber.put("sensor", "x");
+
+		// malformed and invalid frames, each followed by a valid one.
+		ByteArrayOutputStream raw = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(raw);
+		writeHello(out, "sensor-1", "bad id", "sensor-3");
+		writeRaw(out, readingBody(undeclared));
+		writeRaw(out, readingBody(outOfRange));
+		writeRaw(out, readingBody(notANumber));
+		HashMap<String, String> ofInvalid = reading(null, "20.0");
+		ofInvalid.put("sensor", "1");
+		writeRaw(out, readingBody(ofInvalid));
+		writeRaw(out);
+		writeRaw(out, 9);
+		writeRaw(out, SensorFrameCodec.READING, 2, 0, 0, 1, 'a');
+		writeRaw(out, concat(readingBody(reading("sensor-1", "20.0")), new byte[] {0}));
+		writeRaw(out, SensorFrameCodec.READING, 1, 20, 0, 1, 'a');
+		writeRaw(out, SensorFrameCodec.READING, 1, 0, 0, 2, 0xC3, 0xA9);
+		writeRaw(out, readingBody(reading("sensor 1", "20.0")));
+		writeRaw(out, readingBody(reading("sensor-1", "hot")));
+		HashMap<String, String> withoutSmoke = reading("sensor-1", "20.0");
+		withoutSmoke.remove("smoke");
+		writeRaw(out, readingBody(withoutSmoke));
+		HashMap<String, String> tooLong = reading(null, "20.0");
+		tooLong.put("sensor", "1234567890");
+		writeRaw(out, readingBody(tooLong));
+		writeRaw(out, SensorFrameCodec.GOAWAY, 0, 0, 0, 100, 0, 4, 'h', 'o', 's', 't');
+		writeRaw(out, readingBody(reading("sensor-1", "24.0")));
+
+		reader = reader(raw);
+		String[] declared = (String[]) next(reader);
+		Check.that(declared[0].equals("sensor-1") && declared[1] == null && declared[2].equals("sensor-3"), "invalid id declared as null");
+		Check.that(next(reader) instanceof SensorFrameException, "reading of an undeclared sensor");
+		Check.that(next(reader) instanceof SensorFrameException, "reading of a sensor number out of range");
+		Check.that(next(reader) instanceof SensorFrameException, "reading of a sensor number that isn't one");
+		Check.that(next(reader) instanceof SensorFrameException, "reading of a sensor declared with an invalid id");
+		Check.that(next(reader) instanceof SensorFrameException, "empty frame");
+		Check.that(next(reader) instanceof SensorFrameException, "unknown frame type");
+		Check.that(next(reader) instanceof SensorFrameException, "frame ending early");
+		Check.that(next(reader) instanceof SensorFrameException, "bytes after the end");
+		Check.that(next(reader) instanceof SensorFrameException, "unknown field code");
+		Check.that(next(reader) instanceof SensorFrameException, "value that is not ASCII");
+		Check.that(next(reader) instanceof SensorFrameException, "invalid sensorId");
+		Check.that(next(reader) instanceof SensorFrameException, "invalid temperature");
+		Check.that(next(reader) instanceof SensorFrameException, "full reading without smoke");
+		Check.that(next(reader) instanceof SensorFrameException, "sensor number past 9 digits");
+		Check.that(next(reader) instanceof SensorFrameException, "redirect that isn't host:port");
+		Check.equal("24.0", asReading(next(reader)).get("temperature"), "read on after the rejected frames");
+		Check.equal(16L, reader.getRejected(), "15 frames rejected, and the invalid declared id");
+
+		// a batch keeps its valid readings.
+		raw = new ByteArrayOutputStream();
+		out = new DataOutputStream(raw);
+		HashMap<String, String> invalid = reading("sensor-2", "warm");
+		writeRaw(out, concat(new byte[] {SensorFrameCodec.BATCH, 0, 3}, fields(reading("sensor-1", "20.0")), fields(invalid), fields(reading("sensor-3", "20.0"))));
+		reader = reader(raw);
+		Object kept = next(reader);
+		Check.that(kept instanceof ArrayList && ((ArrayList<?>) kept).size() == 2, "batch without its invalid reading");
+		Check.equal(1L, reader.getRejected(), "the invalid reading of a batch rejected");
+
+		// only a number a sensor was declared with has a slot.
+		Check.equal(-1, reader.getSlot(outOfRange), "slot of a number never declared");
+		HashMap<String, String> byId = reading("sensor-9", "20.0");
+		Check.equal(0, reader.getSlot(byId), "a sensor sending its id gets a slot");
+		Check.equal(0, reader.getSlot(byId), "and keeps it");
+
+		// backfilled readings are resolved and validated on their own, in the same order as those of a frame.
+		HashMap<String, String> backfilled = reading(null, "20.0");
+		backfilled.put("sensor", "0");
+		try {
+			reader.resolveAndValidate(backfilled);
+			Check.equal("sensor-9", backfilled.get("sensorId"), "backfilled reading by number");
+		}
+		catch (SensorFrameException e) {
+			Check.that(false, "backfilled reading by number : " + e.getMessage());
+		}
+		HashMap<String, String> backfilledUndeclared = reading(null, "hot");
+		backfilledUndeclared.put("sensor", "5");
+		try {
+			reader.resolveAndValidate(backfilledUndeclared);
+			Check.that(false, "backfilled reading of an undeclared sensor");
+		}
+		catch (SensorFrameException e) {
+			Check.equal("Reading of undeclared sensor 5", e.getMessage(), "backfilled reading of an undeclared sensor, rejected as a frame's");
+		}
+		HashMap<String, String> unknownField = reading("sensor-1", "20.0");
+		unknownField.put("owner", "x");
+		Check.that(validate(unknownField) instanceof SensorFrameException, "unknown field");
+		HashMap<String, String> delta = new HashMap<>();
+		delta.put("sensorId", "sensor-1");
+		delta.put("delta", "true");
+		delta.put("temperature", "30.0");
+		Check.equal(null, validate(delta), "delta with one measurement");
+
+		// the server's GOAWAY.
+		raw = new ByteArrayOutputStream();
+		SensorFrameCodec.writeGoAway(new DataOutputStream(raw), new SensorGoAway(2000, "backup:9001"));
+		Object goAway = next(reader(raw));
+		Check.that(goAway instanceof SensorGoAway && ((SensorGoAway) goAway).getRetryMillis() == 2000
+				&& ((SensorGoAway) goAway).getHost("primary").equals("backup") && ((SensorGoAway) goAway).getPort(9000) == 9001, "GOAWAY redirect");
+
+		// a length that can't be right ends the connection.
+		for (int length: new int[] {-1, SensorFrameCodec.MAX_FRAME_LENGTH + 1}) {
+			raw = new ByteArrayOutputStream();
+			new DataOutputStream(raw).writeInt(length);
+			Check.that(next(reader(raw)) instanceof IOException, "frame length of " + length);
+		}
+	}
+
+	private static HashMap<String, String> reading(String sensorId, String temperature) {
+		HashMap<String, String> sensorData = new HashMap<>();
+		if (sensorId != null) {
+			sensorData.put("sensorId", sensorId);
+		}
+		sensorData.put("temperature", temperature);
+		sensorData.put("battery", "90");
+		sensorData.put("smoke", "2");
+		sensorData.put("co2", "300.0");
+		sensorData.put("timestamp", "1500000000000");
+		return sensorData;
+	}
+
+	private static SensorFrameReader reader(ByteArrayOutputStream sent) {
+		return new SensorFrameReader(new DataInputStream(new ByteArrayInputStream(sent.toByteArray())));
+	}
+
+	// The next frame, or what reading it threw.
+	private static Object next(SensorFrameReader reader) {
+		try {
+			return reader.readFrame();
+		}
+		catch (SensorFrameException | IOException e) {
+			return e;
+		}
+	}
+
+	private static Exception validate(HashMap<String, String> sensorData) {
+		try {
+			SensorFrameCodec.validate(sensorData);
+			return null;
+		}
+		catch (SensorFrameException e) {
+			return e;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static HashMap<String, String> asReading(Object frame) {
+		Check.that(frame instanceof HashMap, "a reading : " + frame);
+		return frame instanceof HashMap ? (HashMap<String, String>) frame : new HashMap<String, String>();
+	}
+
+	private static void writeHello(DataOutputStream out, String... sensorIds) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(body);
+		data.writeByte(SensorFrameCodec.HELLO);
+		data.writeShort(sensorIds.length);
+		for (String sensorId: sensorIds) {
+			data.writeUTF(sensorId);
+		}
+		writeRaw(out, body.toByteArray());
+	}
+
+	private static byte[] readingBody(HashMap<String, String> sensorData) throws IOException {
+		return concat(new byte[] {SensorFrameCodec.READING}, fields(sensorData));
+	}
+
+	private static byte[] fields(HashMap<String, String> sensorData) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(body);
+		data.writeByte(sensorData.size());
+		for (String field: sensorData.keySet()) {
+			data.writeByte(FIELDS.indexOf(field));
+			data.writeUTF(sensorData.get(field));
+		}
+		return body.toByteArray();
+	}
+
+	private static void writeRaw(DataOutputStream out, int... bytes) throws IOException {
+		byte[] frame = new byte[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			frame[i] = (byte) bytes[i];
+		}
+		writeRaw(out, frame);
+	}
+
+	private static void writeRaw(DataOutputStream out, byte[] frame) throws IOException {
+		out.writeInt(frame.length);
+		out.write(frame);
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		for (byte[] part: parts) {
+			all.write(part, 0, part.length);
+		}
+		return all.toByteArray();
+	}
+}
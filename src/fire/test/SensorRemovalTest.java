@@ -0,0 +1,98 @@
+package fire.test;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.IngestRing;
+import fire.alarm.server.SensorRemoval;
+import fire.alarm.server.SensorStateStore;
+
+/*
+ * A sensor moving from one connection to another; the old connection's ring ends with its removal, the new one's
+ * has its next readings, and the store stage takes them in whatever order the two rings are drained.
+ * The sensor is only removed when nothing newer than the old connection knew was stored.
+ *
+ * Usage: SensorRemovalTest
+ */
+public class SensorRemovalTest {
+
+	private static final String SENSOR = "sensor-1";
+
+	public static void main(String[] args) {
+		run();
+		Check.report();
+	}
+
+	static void run() {
+		// the removal drained before the new connection's reading, the sensor comes back with it.
+		SensorStateStore store = new SensorStateStore();
+		FireSensorData old = reading(20);
+		IngestRing<Object> oldRing = ring(old, new SensorRemoval(SENSOR, old, store.getVersion()));
+		FireSensorData moved = reading(21);
+		IngestRing<Object> newRing = ring(moved);
+		drain(store, oldRing, oldRing, newRing);
+		Check.equal(21.0, temperature(store), "removal before the new connection's reading");
+
+		// the new connection's reading drained before the removal, the removal is stale.
+		store = new SensorStateStore();
+		old = reading(20);
+		oldRing = ring(old, new SensorRemoval(SENSOR, old, store.getVersion()));
+		moved = reading(21);
+		newRing = ring(moved);
+		drain(store, oldRing, newRing, oldRing);
+		Check.equal(21.0, temperature(store), "removal after the new connection's reading");
+
+		// the old connection only declared the sensor, the new one stored it after, the removal is stale.
+		store = new SensorStateStore();
+		store.put(SENSOR, reading(19));
+		oldRing = ring(new SensorRemoval(SENSOR, null, store.getVersion()));
+		newRing = ring(reading(21));
+		drain(store, newRing, oldRing);
+		Check.equal(21.0, temperature(store), "removal of a declared sensor stored since");
+
+		// nothing newer, removed; a removal routed from another node always is.
+		store = new SensorStateStore();
+		old = reading(20);
+		oldRing = ring(old, new SensorRemoval(SENSOR, old, store.getVersion()));
+		drain(store, oldRing, oldRing);
+		Check.equal(null, store.get(SENSOR), "removal with nothing newer");
+		store.put(SENSOR, reading(21));
+		drain(store, ring(new SensorRemoval(SENSOR)));
+		Check.equal(null, store.get(SENSOR), "routed removal");
+	}
+
+	private static IngestRing<Object> ring(Object... events) {
+		IngestRing<Object> ring = new IngestRing<>(8);
+		for (Object event: events) {
+			ring.offer(event);
+		}
+		return ring;
+	}
+
+	// The next event of each ring given, in that order, as the store stage would take them.
+	@SafeVarargs
+	private static void drain(SensorStateStore store, IngestRing<Object>... turns) {
+		for (IngestRing<Object> ring: turns) {
+			Object event = ring.poll();
+			if (event instanceof SensorRemoval) {
+				((SensorRemoval) event).applyTo(store);
+			}
+			else {
+				store.put(SENSOR, (FireSensorData) event);
+			}
+		}
+	}
+
+	private static Double temperature(SensorStateStore store) {
+		FireSensorData stored = store.get(SENSOR);
+		return stored != null ? stored.getTemperature() : null;
+	}
+
+	private static FireSensorData reading(double temperature) {
+		FireSensorData fsd = new FireSensorData();
+		fsd.setSensorId(SENSOR);
+		fsd.setTemperature(temperature);
+		fsd.setBatteryPercentage(90);
+		fsd.setSmokeLevel(2);
+		fsd.setCo2Level(300.0);
+		return fsd;
+	}
+}
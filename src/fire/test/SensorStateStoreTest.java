@@ -0,0 +1,121 @@
+package fire.test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.ISensorStateStore;
+import fire.alarm.server.PartitionedSensorStateStore;
+import fire.alarm.server.SensorIdInterner;
+import fire.alarm.server.SensorStateStore;
+import fire.alarm.server.SensorStateSync;
+
+/*
+ * The same readings into a single SensorStateStore and a PartitionedSensorStateStore; versions, handles,
+ * delta syncs (changes collapsed per sensor, removals, snapshots when there is nothing to go back to),
+ * replicated changes and queries should come out the same from both.
+ *
+ * Usage: SensorStateStoreTest
+ */
+public class SensorStateStoreTest {
+
+	private static final int SENSORS = 200;
+
+	public static void main(String[] args) {
+		run();
+		Check.report();
+	}
+
+	static void run() {
+		ISensorStateStore single = new SensorStateStore();
+		ISensorStateStore partitioned = new PartitionedSensorStateStore(4);
+		check("single store", single);
+		check("partitioned store", partitioned);
+
+		// queries merged over the partitions find what the single store finds; sensors with the same value may come
+		// in another order, or another of them be cut by the limit, so the values are compared, and the sensors when all fit.
+		Check.equal(temperatures(single.querySensors("temperature", 30, 60, null, 25)), temperatures(partitioned.querySensors("temperature", 30, 60, null, 25)), "range query");
+		Check.equal(ids(single.querySensors("battery", 0, 100, "zone1", 1000)), ids(partitioned.querySensors("battery", 0, 100, "zone1", 1000)), "range query of a zone");
+		Check.equal(temperatures(single.queryTop("temperature", 10, true, null)), temperatures(partitioned.queryTop("temperature", 10, true, null)), "top 10");
+		Check.equal(ids(single.queryTop("smoke", 1000, false, "zone2")), ids(partitioned.queryTop("smoke", 1000, false, "zone2")), "every sensor of a zone by smoke");
+	}
+
+	private static void check(String name, ISensorStateStore store) {
+		HashSet<Integer> handles = new HashSet<>();
+		for (int sensor = 0; sensor < SENSORS; sensor++) {
+			store.put(sensorId(sensor), reading(sensor, 20 + sensor % 50));
+			handles.add(store.getHandle(sensorId(sensor)));
+		}
+		Check.equal(SENSORS, handles.size(), name + " : a handle per sensor");
+		Check.equal((long) SENSORS, store.getVersion(), name + " : a version per change");
+		Check.equal(SENSORS, store.size(), name + " : size");
+		Check.equal(SensorIdInterner.NO_HANDLE, store.getHandle("zone9-unknown"), name + " : no handle for an unknown sensor");
+
+		SensorStateSync snapshot = store.getChangesSince(SensorStateSync.NO_VERSION);
+		Check.that(snapshot.isSnapshot() && snapshot.getChangedSensors().size() == SENSORS, name + " : snapshot for a monitor that never synced");
+
+		// sensors changed several times come once, with their latest reading; removed ones as removed.
+		long seen = store.getVersion();
+		for (int sensor = 0; sensor < 10; sensor++) {
+			store.put(sensorId(sensor), reading(sensor, 70));
+			store.put(sensorId(sensor), reading(sensor, 80 + sensor));
+		}
+		for (int sensor = 5; sensor < 15; sensor++) {
+			store.remove(sensorId(sensor));
+		}
+		long removedVersion = store.getVersion();
+		Check.equal(removedVersion, store.remove("zone9-unknown"), name + " : removing an unknown sensor is no change");
+
+		SensorStateSync delta = store.getChangesSince(seen);
+		Check.that(!delta.isSnapshot(), name + " : delta");
+		Check.equal(seen + 30, delta.getVersion(), name + " : version of the delta");
+		Check.equal(5, delta.getChangedSensors().size(), name + " : sensors changed and still there");
+		Check.equal(80.0 + 4, delta.getChangedSensors().get(sensorId(4)).getTemperature(), name + " : latest reading of a sensor");
+		Check.equal(10, delta.getRemovedSensors().size(), name + " : sensors removed, once each");
+		Check.equal(10, new HashSet<>(delta.getRemovedSensors()).size(), name + " : no removal twice");
+		Check.that(store.getChangesSince(store.getVersion()).getChangedSensors().isEmpty(), name + " : nothing since the latest version");
+		Check.that(store.getChangesSince(store.getVersion() + 5).isSnapshot(), name + " : snapshot for a version ahead of the store");
+
+		// changes made on another server keep their versions; the removal of a sensor never seen only moves the version.
+		store.applyChange(sensorId(SENSORS), reading(SENSORS, 25), removedVersion + 10);
+		store.applyChange("zone9-never-seen", null, removedVersion + 11);
+		Check.equal(removedVersion + 11, store.getVersion(), name + " : version of the replicated changes");
+		Check.equal(SensorIdInterner.NO_HANDLE, store.getHandle("zone9-never-seen"), name + " : no handle for a removal of a sensor never seen");
+		SensorStateSync replicated = store.getChangesSince(removedVersion);
+		Check.that(replicated.getChangedSensors().containsKey(sensorId(SENSORS)) && replicated.getRemovedSensors().isEmpty(), name + " : replicated changes in the delta");
+		Check.equal(SENSORS - 10 + 1, store.size(), name + " : size after the changes");
+	}
+
+	private static String sensorId(int sensor) {
+		return "zone" + sensor % 3 + "-" + sensor;
+	}
+
+	private static FireSensorData reading(int sensor, double temperature) {
+		FireSensorData fsd = new FireSensorData();
+		fsd.setSensorId(sensorId(sensor));
+		fsd.setTemperature(temperature);
+		fsd.setBatteryPercentage(sensor % 100);
+		fsd.setSmokeLevel(1 + sensor % 10);
+		fsd.setCo2Level(300.0);
+		fsd.setTimestamp(1500000000000L + sensor);
+		return fsd;
+	}
+
+	// The sensors found, in no particular order.
+	private static HashSet<String> ids(ArrayList<FireSensorData> found) {
+		HashSet<String> sensorIds = new HashSet<>();
+		for (FireSensorData fireSensorData: found) {
+			sensorIds.add(fireSensorData.getSensorId());
+		}
+		return sensorIds;
+	}
+
+	// The temperatures found, in the order found.
+	private static ArrayList<Double> temperatures(ArrayList<FireSensorData> found) {
+		ArrayList<Double> values = new ArrayList<>();
+		for (FireSensorData fireSensorData: found) {
+			values.add(fireSensorData.getTemperature());
+		}
+		return values;
+	}
+}
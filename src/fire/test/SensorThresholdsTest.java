@@ -0,0 +1,92 @@
+package fire.test;
+
+import fire.alarm.server.FireSensorData;
+import fire.alarm.server.ISensorStateStore;
+import fire.alarm.server.PartitionedSensorStateStore;
+import fire.alarm.server.SensorIdInterner;
+import fire.alarm.server.SensorStateStore;
+import fire.alarm.server.SensorThresholds;
+
+/*
+ * Thresholds looked up by handle; the defaults for sensors without their own, updates that leave earlier tables
+ * as they were, and the thresholds of a zone set through the store, a single one and a partitioned one.
+ *
+ * Usage: SensorThresholdsTest
+ */
+public class SensorThresholdsTest {
+
+	public static void main(String[] args) {
+		run();
+		Check.report();
+	}
+
+	static void run() {
+		SensorThresholds thresholds = new SensorThresholds();
+		SensorThresholds.Table empty = thresholds.getTable();
+		Check.equal(50.0f, empty.get(SensorThresholds.MAX_TEMPERATURE, 0), "default before any update");
+		Check.equal(30.0f, empty.get(SensorThresholds.MIN_BATTERY, SensorIdInterner.NO_HANDLE), "default of no handle");
+
+		float nan = Float.NaN;
+		thresholds.update(new int[] {2, 5}, new float[][] {{60.0f, nan}, {20.0f, 10.0f}, null, null});
+		SensorThresholds.Table table = thresholds.getTable();
+		Check.equal(60.0f, table.get(SensorThresholds.MAX_TEMPERATURE, 2), "own temperature");
+		Check.equal(50.0f, table.get(SensorThresholds.MAX_TEMPERATURE, 5), "NaN for the default");
+		Check.equal(10.0f, table.get(SensorThresholds.MIN_BATTERY, 5), "own battery");
+		Check.equal(30.0f, table.get(SensorThresholds.MIN_BATTERY, 3), "handle in between");
+		Check.equal(7.0f, table.get(SensorThresholds.MAX_SMOKE, 2), "threshold left out of the update");
+		Check.equal(50.0f, table.get(SensorThresholds.MAX_TEMPERATURE, 100), "handle past the end");
+		Check.that(Float.isNaN(table.get(SensorThresholds.MAX_CO2, 2)), "CO2 default");
+
+		thresholds.update(new int[] {2}, new float[][] {{70.0f}, null, {5.0f}, null});
+		Check.equal(70.0f, thresholds.getTable().get(SensorThresholds.MAX_TEMPERATURE, 2), "updated again");
+		Check.equal(20.0f, thresholds.getTable().get(SensorThresholds.MIN_BATTERY, 2), "the rest kept");
+		Check.equal(60.0f, table.get(SensorThresholds.MAX_TEMPERATURE, 2), "an earlier table unchanged");
+		Check.equal(7.0f, table.get(SensorThresholds.MAX_SMOKE, 2), "an earlier table unchanged, other threshold");
+
+		// a zone's thresholds, through the store.
+		check("single store", new SensorStateStore());
+		check("partitioned store", new PartitionedSensorStateStore(4));
+	}
+
+	private static void check(String name, ISensorStateStore store) {
+		for (int sensor = 0; sensor < 20; sensor++) {
+			store.put((sensor % 2 == 0 ? "east" : "west") + "-" + sensor, reading((sensor % 2 == 0 ? "east" : "west") + "-" + sensor, 55.0));
+		}
+
+		Check.equal(10, store.setThresholds("east", new float[] {60.0f, Float.NaN, 8.0f, Float.NaN}), name + " : sensors of the zone");
+		Check.equal(0, store.setThresholds("north", new float[] {60.0f, 0, 0, 0}), name + " : unknown zone");
+
+		SensorThresholds.Table table = store.getThresholds().getTable();
+		boolean east = true;
+		boolean west = true;
+		for (int sensor = 0; sensor < 20; sensor++) {
+			int handle = store.getHandle((sensor % 2 == 0 ? "east" : "west") + "-" + sensor);
+			float temperature = table.get(SensorThresholds.MAX_TEMPERATURE, handle);
+			if (sensor % 2 == 0) {
+				east &= temperature == 60.0f && table.get(SensorThresholds.MAX_SMOKE, handle) == 8.0f && table.get(SensorThresholds.MIN_BATTERY, handle) == 30.0f;
+			}
+			else {
+				west &= temperature == 50.0f && table.get(SensorThresholds.MAX_SMOKE, handle) == 7.0f;
+			}
+		}
+		Check.that(east, name + " : the zone's thresholds");
+		Check.that(west, name + " : other zones keep the defaults");
+
+		// 55 celcius is dangerous in the west only.
+		FireSensorData eastReading = store.get("east-0");
+		FireSensorData westReading = store.get("west-1");
+		Check.that(eastReading.isTemperatureInLevel(table.get(SensorThresholds.MAX_TEMPERATURE, store.getHandle("east-0"))), name + " : in level in the east");
+		Check.that(!westReading.isTemperatureInLevel(table.get(SensorThresholds.MAX_TEMPERATURE, store.getHandle("west-1"))), name + " : dangerous in the west");
+	}
+
+	private static FireSensorData reading(String sensorId, double temperature) {
+		FireSensorData fsd = new FireSensorData();
+		fsd.setSensorId(sensorId);
+		fsd.setTemperature(temperature);
+		fsd.setBatteryPercentage(90);
+		fsd.setSmokeLevel(2);
+		fsd.setCo2Level(300.0);
+		fsd.setTimestamp(1500000000000L);
+		return fsd;
+	}
+}